@@ -0,0 +1,68 @@
+package com.intentïon.S3SqsBridge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awscdk.App;
+import software.amazon.awscdk.cxapi.CloudAssembly;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthesizes an app of the given number of bridge pipelines, each a S3SqsBridgeStack with its own bucket, queues and
+ * tables, as `cdk synth` does. Synthesis takes seconds, so each operation is timed on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StackSynthesisBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int pipelines;
+
+    @Benchmark
+    public CloudAssembly synthesize() {
+        App app = new App();
+        for (int pipeline = 0; pipeline < this.pipelines; pipeline++) {
+            String name = "s3-sqs-bridge-" + pipeline;
+            S3SqsBridgeStack.Builder.create(app, "S3SqsBridgeStack" + pipeline)
+                    .s3WriterArnPrinciple("arn:aws:iam::123456789012:user/benchmark")
+                    .s3WriterRoleName(name + "-bucket-writer-role")
+                    .s3BucketName(name + "-bucket")
+                    .cloudTrailEnabled(false)
+                    .s3ObjectPrefix("events/")
+                    .s3UseExistingBucket(false)
+                    .s3RetainBucket(false)
+                    .sqsSourceQueueName(name + "-source-queue")
+                    .sqsReplayQueueName(name + "-replay-queue")
+                    .sqsDigestQueueName(name + "-digest-queue")
+                    .sqsDigestQueueArn("arn:aws:sqs:eu-west-2:123456789012:" + name + "-digest-queue")
+                    .sqsUseExistingDigestQueue(false)
+                    .sqsRetainDigestQueue(false)
+                    .offsetsTableName(name + "-offsets-table")
+                    .projectionsTableName(name + "-projections-table")
+                    .lambdaEntry("src/lib/main.")
+                    .lambdaUseJavaRuntime(true)
+                    .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                    .lambdaJarPath("target/classes")
+                    .replayBatchLambdaFunctionName(name + "-replay-batch-function")
+                    .replayBatchLambdaHandlerFunctionName("replayBatchLambdaHandler")
+                    .sourceLambdaFunctionName(name + "-source-function")
+                    .sourceLambdaHandlerFunctionName("sourceLambdaHandler")
+                    .replayLambdaFunctionName(name + "-replay-function")
+                    .replayLambdaHandlerFunctionName("replayLambdaHandler")
+                    .build();
+        }
+        return app.synth();
+    }
+}
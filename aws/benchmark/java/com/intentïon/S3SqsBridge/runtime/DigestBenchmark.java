@@ -0,0 +1,62 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds ids to the sharded digest index and computes the digest from an index of the given number of projections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DigestBenchmark {
+
+    private static final String TABLE = ProjectionBridgeTest.CONFIG.projectionsTableName();
+
+    @Param({"1000", "10000"})
+    public int projections;
+
+    private DigestIndex index;
+    private int nextId;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+        dynamodb.globalSecondaryIndex(TABLE, DigestIndex.MEMBER_INDEX, "memberShard", "id");
+        this.index = new DigestIndex(dynamodb, TABLE, DigestIndex.DEFAULT_SHARDS);
+        for (this.nextId = 0; this.nextId < this.projections; this.nextId++) {
+            this.index.add(SyntheticVersionListing.key(this.nextId));
+        }
+    }
+
+    @Benchmark
+    public boolean addId() {
+        return this.index.add(SyntheticVersionListing.key(this.nextId++));
+    }
+
+    @Benchmark
+    public DigestIndex.Summary summary() {
+        return this.index.summary();
+    }
+
+    @Benchmark
+    public Map<String, Map<String, String>> computeDigest() {
+        return this.index.idsMap();
+    }
+}
@@ -0,0 +1,273 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs each handler against the in-memory stand-ins in a JVM sized like a Lambda function of each memory setting and
+ * reports the invocation latency and the peak RSS, to size the functions' memory in their Lambda profiles.
+ * <p>
+ * Every handler and memory setting runs in a forked JVM with the heap ergonomics of a container of that memory
+ * (-XX:MaxRAM), the processor count Lambda allocates for it (one vCPU per 1769 MB) and the JAVA_TOOL_OPTIONS the stack
+ * sets. The CPU time itself is not throttled, so the latencies are lower bounds which compare the settings with each
+ * other rather than predict the deployed latency. The first invocation is reported apart from the percentiles.
+ * <p>
+ * Usage: LambdaSizingHarness [--handlers source,replay,replayBatch,snapshot] [--memory 512,1024,1769,3008]
+ * [--invocations 200] [--objects 1000] [--out target/lambda-sizing.json]
+ */
+public class LambdaSizingHarness {
+
+    private static final String RESULT = "RESULT ";
+    private static final int MB_PER_VCPU = 1769;
+    private static final String[] JAVA_TOOL_OPTIONS = {"-XX:+TieredCompilation", "-XX:TieredStopAtLevel=1"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        if (options.containsKey("run")) {
+            run(options.get("run"), Integer.parseInt(options.get("memory")), Integer.parseInt(options.get("invocations")),
+                    Integer.parseInt(options.get("objects")));
+            return;
+        }
+        List<String> handlers = Arrays.asList(options.getOrDefault("handlers", "source,replay,replayBatch,snapshot").split(","));
+        List<Integer> memorySizes = Arrays.stream(options.getOrDefault("memory", "512,1024,1769,3008").split(","))
+                .map(Integer::valueOf)
+                .toList();
+        String invocations = options.getOrDefault("invocations", "200");
+        String objects = options.getOrDefault("objects", "1000");
+        Path out = Path.of(options.getOrDefault("out", "target/lambda-sizing.json"));
+
+        ObjectMapper mapper = new ObjectMapper();
+        ArrayNode results = mapper.createArrayNode();
+        System.out.printf("%-12s %8s %6s %10s %10s %10s %10s %10s %10s%n",
+                "handler", "memoryMb", "vcpus", "firstMs", "p50Ms", "p90Ms", "p99Ms", "maxMs", "peakRssMb");
+        for (String handler : handlers) {
+            for (int memorySize : memorySizes) {
+                JsonNode result = fork(mapper, handler, memorySize, invocations, objects);
+                results.add(result);
+                System.out.printf("%-12s %8d %6d %10.3f %10.3f %10.3f %10.3f %10.3f %10d%n",
+                        handler, memorySize, result.path("vcpus").asInt(), result.path("firstMs").asDouble(),
+                        result.path("p50Ms").asDouble(), result.path("p90Ms").asDouble(), result.path("p99Ms").asDouble(),
+                        result.path("maxMs").asDouble(), result.path("peakRssMb").asLong());
+            }
+        }
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        Files.writeString(out, mapper.writerWithDefaultPrettyPrinter().writeValueAsString(results));
+        System.out.println("Wrote " + out);
+    }
+
+    private static JsonNode fork(ObjectMapper mapper, String handler, int memorySize, String invocations, String objects) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-XX:MaxRAM=" + memorySize + "m");
+        command.add("-XX:ActiveProcessorCount=" + vcpus(memorySize));
+        command.addAll(Arrays.asList(JAVA_TOOL_OPTIONS));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LambdaSizingHarness.class.getName());
+        command.addAll(List.of("--run", handler, "--memory", Integer.toString(memorySize), "--invocations", invocations, "--objects", objects));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        JsonNode result = null;
+        // The handlers log every invocation, only the result line is kept.
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.startsWith(RESULT)) {
+                    result = mapper.readTree(line.substring(RESULT.length()));
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || result == null) {
+            throw new IllegalStateException("Sizing run of " + handler + " at " + memorySize + " MB failed with exit code " + exitCode);
+        }
+        return result;
+    }
+
+    // A handler invocation with its untimed preparation, e.g. uploading the object a source event refers to.
+    private interface Workload {
+        default void prepare() {
+        }
+
+        void invoke();
+    }
+
+    private static void run(String handler, int memorySize, int invocations, int objects) {
+        InMemoryS3Client s3 = new InMemoryS3Client();
+        InMemorySqsClient sqs = new InMemorySqsClient();
+        InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+        BridgeConfig config = ProjectionBridgeTest.CONFIG;
+        ProjectionBridge bridge = new ProjectionBridge(config, new BridgeClients(s3, sqs, dynamodb));
+        for (int i = 0; i < objects; i++) {
+            s3.putObject(config.bucketName(), SyntheticVersionListing.key(i), "{\"i\":" + i + "}");
+        }
+        Workload workload = switch (handler) {
+            case "source" -> {
+                replayAndProject(bridge, sqs, config);
+                SourceLambdaHandler source = new SourceLambdaHandler(bridge);
+                yield new Workload() {
+                    private int next;
+                    private SQSEvent event;
+
+                    @Override
+                    public void prepare() {
+                        String key = SyntheticVersionListing.key(this.next++ % objects);
+                        String versionId = s3.putObject(config.bucketName(), key, "{\"next\":" + this.next + "}");
+                        SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+                        message.setMessageId("message-" + this.next);
+                        message.setBody(bridge.createS3EventFromVersion(key, versionId, null).toString());
+                        this.event = new SQSEvent();
+                        this.event.setRecords(List.of(message));
+                        sqs.drainAsSqsEvent(config.digestQueueUrl(), Integer.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void invoke() {
+                        source.handleRequest(this.event, null);
+                    }
+                };
+            }
+            case "replay" -> {
+                ReplayLambdaHandler replay = new ReplayLambdaHandler(bridge);
+                yield new Workload() {
+                    private SQSEvent event;
+
+                    @Override
+                    public void prepare() {
+                        if (sqs.messages(config.replayQueueUrl()).isEmpty()) {
+                            new ReplayBatchLambdaHandler(bridge).handleRequest(Map.of(), null);
+                        }
+                        this.event = sqs.drainAsSqsEvent(config.replayQueueUrl(), 10);
+                    }
+
+                    @Override
+                    public void invoke() {
+                        replay.handleRequest(this.event, null);
+                    }
+                };
+            }
+            case "replayBatch" -> {
+                ReplayBatchLambdaHandler replayBatch = new ReplayBatchLambdaHandler(bridge);
+                yield new Workload() {
+                    @Override
+                    public void prepare() {
+                        sqs.drainAsSqsEvent(config.replayQueueUrl(), Integer.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void invoke() {
+                        replayBatch.handleRequest(Map.of(), null);
+                    }
+                };
+            }
+            case "snapshot" -> {
+                replayAndProject(bridge, sqs, config);
+                SnapshotLambdaHandler snapshot = new SnapshotLambdaHandler(bridge);
+                yield () -> snapshot.handleRequest(Map.of(), null);
+            }
+            default -> throw new IllegalArgumentException("Unsupported handler: " + handler + ", expected source, replay, replayBatch or snapshot");
+        };
+
+        long[] latencies = new long[invocations];
+        for (int i = 0; i < invocations; i++) {
+            workload.prepare();
+            long start = System.nanoTime();
+            workload.invoke();
+            latencies[i] = System.nanoTime() - start;
+        }
+        long first = latencies[0];
+        Arrays.sort(latencies);
+
+        ObjectNode result = new ObjectMapper().createObjectNode()
+                .put("handler", handler)
+                .put("memoryMb", memorySize)
+                .put("vcpus", vcpus(memorySize))
+                .put("invocations", invocations)
+                .put("objects", objects)
+                .put("firstMs", millis(first))
+                .put("p50Ms", millis(percentile(latencies, 50)))
+                .put("p90Ms", millis(percentile(latencies, 90)))
+                .put("p99Ms", millis(percentile(latencies, 99)))
+                .put("maxMs", millis(latencies[latencies.length - 1]))
+                .put("peakRssMb", peakRssMb())
+                .put("peakHeapMb", peakHeapMb());
+        System.out.println(RESULT + result);
+    }
+
+    // Replays the bucket and projects it, so that the source handler sees a completed replay and snapshots have data.
+    private static void replayAndProject(ProjectionBridge bridge, InMemorySqsClient sqs, BridgeConfig config) {
+        new ReplayBatchLambdaHandler(bridge).handleRequest(Map.of(), null);
+        ReplayLambdaHandler replay = new ReplayLambdaHandler(bridge);
+        for (SQSEvent batch = sqs.drainAsSqsEvent(config.replayQueueUrl(), 10); !batch.getRecords().isEmpty();
+             batch = sqs.drainAsSqsEvent(config.replayQueueUrl(), 10)) {
+            replay.handleRequest(batch, null);
+        }
+        sqs.drainAsSqsEvent(config.digestQueueUrl(), Integer.MAX_VALUE);
+    }
+
+    private static int vcpus(int memorySize) {
+        return Math.max(1, Math.min(6, (memorySize + MB_PER_VCPU - 1) / MB_PER_VCPU));
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    // VmHWM is the peak resident set size on Linux, -1 where /proc is not available.
+    private static long peakRssMb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) / 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux.
+        }
+        return -1;
+    }
+
+    private static long peakHeapMb() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes / (1024 * 1024);
+    }
+
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs but found " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
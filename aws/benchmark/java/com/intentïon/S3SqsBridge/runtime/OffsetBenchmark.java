@@ -0,0 +1,58 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats and compares offsets, and advances the bucket offset with OffsetTracker's conditional update against the
+ * in-memory DynamoDB stand-in, which measures the tracker and the expression evaluation rather than a network call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OffsetBenchmark {
+
+    private static final String ID = ProjectionBridgeTest.CONFIG.bucketOffsetId();
+
+    private final ReplayPlanner.ReplayEvent earlier = new ReplayPlanner.ReplayEvent("events/key-00000001.json", "v1", SyntheticVersionListing.BASE_EPOCH_MILLI);
+    private final ReplayPlanner.ReplayEvent later = new ReplayPlanner.ReplayEvent("events/key-00000002.json", "v2", SyntheticVersionListing.BASE_EPOCH_MILLI + 1);
+    private OffsetTracker offsets;
+    private long epochMilli;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.offsets = new OffsetTracker(new InMemoryDynamoDbClient(), ProjectionBridgeTest.CONFIG.offsetsTableName());
+        this.offsets.reset(ID, null);
+        this.epochMilli = SyntheticVersionListing.BASE_EPOCH_MILLI;
+    }
+
+    @Benchmark
+    public String formatOffset() {
+        return this.later.offset();
+    }
+
+    @Benchmark
+    public int compareOffsets() {
+        return this.earlier.offset().compareTo(this.later.offset());
+    }
+
+    @Benchmark
+    public boolean advanceOffset() {
+        String offset = new ReplayPlanner.ReplayEvent("events/key-00000001.json", "v1", ++this.epochMilli).offset();
+        return this.offsets.advance(ID, offset);
+    }
+}
@@ -0,0 +1,56 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges a synthetic listing through the ReplayPlanner, once with a window holding every key (exact order) and once
+ * with a window of a tenth of the keys. The pages are built up front so only the merge is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayPlannerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int keys;
+
+    @Param({"10"})
+    public int versionsPerKey;
+
+    private List<ListObjectVersionsResponse> pages;
+
+    @Setup
+    public void setUp() {
+        this.pages = new ArrayList<>();
+        new SyntheticVersionListing(this.keys, this.versionsPerKey, 1000).forEach(this.pages::add);
+    }
+
+    @Benchmark
+    public ReplayPlanner.Stats mergeExact(Blackhole blackhole) {
+        return new ReplayPlanner(this.keys).plan(this.pages, blackhole::consume);
+    }
+
+    @Benchmark
+    public ReplayPlanner.Stats mergeBounded(Blackhole blackhole) {
+        return new ReplayPlanner(Math.max(1, this.keys / 10)).plan(this.pages, blackhole::consume);
+    }
+}
@@ -0,0 +1,70 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds replay events as the replay batch handler does and parses the S3 events out of an SQS batch as the source and
+ * replay handlers do, without touching the stand-ins' storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3EventBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ProjectionBridge bridge;
+    private ReplayPlanner.ReplayEvent event;
+    private SQSEvent sqsEvent;
+
+    @Setup
+    public void setUp() {
+        this.bridge = new ProjectionBridge(ProjectionBridgeTest.CONFIG,
+                new BridgeClients(new InMemoryS3Client(), new InMemorySqsClient(), new InMemoryDynamoDbClient()));
+        this.event = new ReplayPlanner.ReplayEvent("events/key-00000042.json", "v000000000042", SyntheticVersionListing.BASE_EPOCH_MILLI);
+        List<SQSEvent.SQSMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            SQSEvent.SQSMessage message = new SQSEvent.SQSMessage();
+            message.setMessageId("message-" + i);
+            message.setBody(this.bridge.createS3EventFromVersion(SyntheticVersionListing.key(i), "v" + i, this.event.lastModified()).toString());
+            messages.add(message);
+        }
+        this.sqsEvent = new SQSEvent();
+        this.sqsEvent.setRecords(messages);
+    }
+
+    @Benchmark
+    public String createReplayEventBody() {
+        return this.bridge.createS3EventFromVersion(this.event.key(), this.event.versionId(), this.event.lastModified()).toString();
+    }
+
+    // A batch of 10 messages, the SQS maximum for a standard queue mapping without a batching window.
+    @Benchmark
+    public int parseSqsBatch() throws IOException {
+        int records = 0;
+        for (SQSEvent.SQSMessage message : this.sqsEvent.getRecords()) {
+            List<JsonNode> putRecords = this.bridge.putEventRecords(this.mapper.readTree(message.getBody()));
+            records += putRecords.size();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,87 @@
+package com.intentïon.S3SqsBridge;
+
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * The performance profile of one handler function: memory size, timeout, architecture, ephemeral storage, provisioned
+ * concurrency and the receive count after which a message on the queue the function consumes is moved to its DLQ.
+ * <p>
+ * In CDK context and environment variables a profile is written as comma separated settings, e.g.
+ * "memorySize=2048,timeoutSeconds=30,architecture=arm64". A setting that is left out (null) takes the function's
+ * default, see {@link #orElse(LambdaProfile)}.
+ */
+public record LambdaProfile(Integer memorySize, Integer timeoutSeconds, String architecture, Integer ephemeralStorageMb,
+                            Integer provisionedConcurrency, Integer maxReceiveCount) {
+
+    public static final String X86_64 = "x86_64";
+    public static final String ARM_64 = "arm64";
+
+    private static final String SETTINGS = "Lambda profile";
+
+    public static final LambdaProfile UNSET = new LambdaProfile(null, null, null, null, null, null);
+
+    public LambdaProfile {
+        Settings.requireRange(SETTINGS, "memorySize", memorySize, 128, 10240);
+        Settings.requireRange(SETTINGS, "timeoutSeconds", timeoutSeconds, 1, 900);
+        Settings.requireRange(SETTINGS, "ephemeralStorageMb", ephemeralStorageMb, 512, 10240);
+        Settings.requireRange(SETTINGS, "provisionedConcurrency", provisionedConcurrency, 0, Integer.MAX_VALUE);
+        Settings.requireRange(SETTINGS, "maxReceiveCount", maxReceiveCount, 1, 1000);
+        if (architecture != null && !X86_64.equals(architecture) && !ARM_64.equals(architecture)) {
+            throw new IllegalArgumentException("Unsupported architecture: " + architecture + ", expected " + X86_64 + " or " + ARM_64);
+        }
+    }
+
+    // Parses the comma separated form, null or an empty string being a profile with nothing set.
+    public static LambdaProfile parse(String profile) {
+        if (profile == null || profile.isBlank()) {
+            return UNSET;
+        }
+        Map<String, String> settings = Settings.parse(SETTINGS, profile);
+        LambdaProfile parsed = new LambdaProfile(
+                Settings.intSetting(settings.remove("memorySize")),
+                Settings.intSetting(settings.remove("timeoutSeconds")),
+                settings.remove("architecture"),
+                Settings.intSetting(settings.remove("ephemeralStorageMb")),
+                Settings.intSetting(settings.remove("provisionedConcurrency")),
+                Settings.intSetting(settings.remove("maxReceiveCount")));
+        Settings.requireNoneLeft(SETTINGS, settings, profile);
+        return parsed;
+    }
+
+    // The settings of this profile, with those that are not set taken from the defaults.
+    public LambdaProfile orElse(LambdaProfile defaults) {
+        return new LambdaProfile(
+                this.memorySize != null ? this.memorySize : defaults.memorySize(),
+                this.timeoutSeconds != null ? this.timeoutSeconds : defaults.timeoutSeconds(),
+                this.architecture != null ? this.architecture : defaults.architecture(),
+                this.ephemeralStorageMb != null ? this.ephemeralStorageMb : defaults.ephemeralStorageMb(),
+                this.provisionedConcurrency != null ? this.provisionedConcurrency : defaults.provisionedConcurrency(),
+                this.maxReceiveCount != null ? this.maxReceiveCount : defaults.maxReceiveCount());
+    }
+
+    public LambdaProfile withTimeoutSeconds(Integer timeoutSeconds) {
+        return new LambdaProfile(this.memorySize, timeoutSeconds, this.architecture, this.ephemeralStorageMb, this.provisionedConcurrency, this.maxReceiveCount);
+    }
+
+    public LambdaProfile withArchitecture(String architecture) {
+        return new LambdaProfile(this.memorySize, this.timeoutSeconds, architecture, this.ephemeralStorageMb, this.provisionedConcurrency, this.maxReceiveCount);
+    }
+
+    public boolean arm64() {
+        return ARM_64.equals(this.architecture);
+    }
+
+    // The comma separated form, so that a profile set on the Builder goes through the same path as a context value.
+    @Override
+    public String toString() {
+        StringJoiner profile = new StringJoiner(",");
+        Settings.append(profile, "memorySize", this.memorySize);
+        Settings.append(profile, "timeoutSeconds", this.timeoutSeconds);
+        Settings.append(profile, "architecture", this.architecture);
+        Settings.append(profile, "ephemeralStorageMb", this.ephemeralStorageMb);
+        Settings.append(profile, "provisionedConcurrency", this.provisionedConcurrency);
+        Settings.append(profile, "maxReceiveCount", this.maxReceiveCount);
+        return profile.toString();
+    }
+}
@@ -27,24 +27,69 @@ public class S3SqsBridgeApp {
                 .sqsUseExistingDigestQueue(Boolean.parseBoolean(System.getenv("USE_EXISTING_DIGEST_QUEUE")))
                 .sqsRetainDigestQueue(Boolean.parseBoolean(System.getenv("RETAIN_DIGEST_QUEUE"))) // TODO: Switch to removal policy
                 .offsetsTableName(System.getenv("OFFSETS_TABLE_NAME"))
-                // TODO: Offsets table partition key
                 // TODO: Offsets table stack removal policy
-                // TODO: Offsets table TTL (1 month)
                 .projectionsTableName(System.getenv("PROJECTIONS_TABLE_NAME"))
                 // TODO: Projections table partition key
                 // TODO: Projections table stack removal policy
-                // TODO: Projections table TTL (1 month)
                 .lambdaEntry(System.getenv("LAMBDA_ENTRY"))
+                .lambdaUseJavaRuntime(Boolean.parseBoolean(System.getenv("LAMBDA_USE_JAVA_RUNTIME")))
+                .lambdaJavaEntry(System.getenv("LAMBDA_JAVA_ENTRY"))
+                .lambdaJarPath(System.getenv("LAMBDA_JAR_PATH"))
                 // TODO: Lambda LogGroup prefix
                 .replayBatchLambdaFunctionName(System.getenv("REPLAY_BATCH_LAMBDA_FUNCTION_NAME"))
                 .replayBatchLambdaHandlerFunctionName(System.getenv("REPLAY_BATCH_LAMBDA_HANDLER_FUNCTION_NAME"))
-                // TODO: Lambda timeout
+                .replayBatchLambdaProfile(LambdaProfile.parse(System.getenv("REPLAY_BATCH_LAMBDA_PROFILE")))
                 .sourceLambdaFunctionName(System.getenv("SOURCE_LAMBDA_FUNCTION_NAME"))
                 .sourceLambdaHandlerFunctionName(System.getenv("SOURCE_LAMBDA_HANDLER_FUNCTION_NAME"))
-                // TODO: Lambda timeout
+                .sourceLambdaProfile(LambdaProfile.parse(System.getenv("SOURCE_LAMBDA_PROFILE")))
                 .replayLambdaFunctionName(System.getenv("REPLAY_LAMBDA_FUNCTION_NAME"))
                 .replayLambdaHandlerFunctionName(System.getenv("REPLAY_LAMBDA_HANDLER_FUNCTION_NAME"))
-                // TODO: Lambda timeout
+                .replayLambdaProfile(LambdaProfile.parse(System.getenv("REPLAY_LAMBDA_PROFILE")))
+                .sourceBatchSize(optionalInteger(System.getenv("SOURCE_BATCH_SIZE")))
+                .sourceMaxBatchingWindowSeconds(optionalInteger(System.getenv("SOURCE_MAX_BATCHING_WINDOW_SECONDS")))
+                .sourceMaxConcurrency(optionalInteger(System.getenv("SOURCE_MAX_CONCURRENCY")))
+                .sourceReportBatchItemFailures(optionalBoolean(System.getenv("SOURCE_REPORT_BATCH_ITEM_FAILURES")))
+                .sourceRoutes(SourceRoute.parseAll(System.getenv("SOURCE_ROUTES")))
+                .replayBatchSize(optionalInteger(System.getenv("REPLAY_BATCH_SIZE")))
+                .replayMaxBatchingWindowSeconds(optionalInteger(System.getenv("REPLAY_MAX_BATCHING_WINDOW_SECONDS")))
+                .replayMaxConcurrency(optionalInteger(System.getenv("REPLAY_MAX_CONCURRENCY")))
+                .replayReportBatchItemFailures(optionalBoolean(System.getenv("REPLAY_REPORT_BATCH_ITEM_FAILURES")))
+                .sqsFifoQueues(optionalBoolean(System.getenv("SQS_FIFO_QUEUES")))
+                .messageGroupPrefixSegments(optionalInteger(System.getenv("MESSAGE_GROUP_PREFIX_SEGMENTS")))
+                .messageGroupHashBuckets(optionalInteger(System.getenv("MESSAGE_GROUP_HASH_BUCKETS")))
+                .sourceSequencerLambdaFunctionName(System.getenv("SOURCE_SEQUENCER_LAMBDA_FUNCTION_NAME"))
+                .sourceSequencerLambdaHandlerFunctionName(System.getenv("SOURCE_SEQUENCER_LAMBDA_HANDLER_FUNCTION_NAME"))
+                .sourceSequencerLambdaProfile(LambdaProfile.parse(System.getenv("SOURCE_SEQUENCER_LAMBDA_PROFILE")))
+                .projectionValueEncodings(System.getenv("PROJECTION_VALUE_ENCODINGS"))
+                .projectionInlineMaxBytes(optionalInteger(System.getenv("PROJECTION_INLINE_MAX_BYTES")))
+                .projectionCompressedMaxBytes(optionalInteger(System.getenv("PROJECTION_COMPRESSED_MAX_BYTES")))
+                .projectionLatestOnly(optionalBoolean(System.getenv("PROJECTION_LATEST_ONLY")))
+                .s3FetchCacheBytes(optionalInteger(System.getenv("S3_FETCH_CACHE_BYTES")))
+                .replayShards(optionalInteger(System.getenv("REPLAY_SHARDS")))
+                .replayShardBy(System.getenv("REPLAY_SHARD_BY"))
+                .offsetsShards(optionalInteger(System.getenv("OFFSETS_SHARDS")))
+                .offsetsShardBy(System.getenv("OFFSETS_SHARD_BY"))
+                .offsetsTtlDays(optionalInteger(System.getenv("OFFSETS_TTL_DAYS")))
+                .projectionConditionalWrites(optionalBoolean(System.getenv("PROJECTION_CONDITIONAL_WRITES")))
+                .projectionsIndexShards(optionalInteger(System.getenv("PROJECTIONS_INDEX_SHARDS")))
+                .projectionsTtlDays(optionalInteger(System.getenv("PROJECTIONS_TTL_DAYS")))
+                .snapshotPrefix(System.getenv("SNAPSHOT_PREFIX"))
+                .snapshotScheduleMinutes(optionalInteger(System.getenv("SNAPSHOT_SCHEDULE_MINUTES")))
+                .replayFromSnapshot(optionalBoolean(System.getenv("REPLAY_FROM_SNAPSHOT")))
+                .replayConcurrentIngest(optionalBoolean(System.getenv("REPLAY_CONCURRENT_INGEST")))
+                .snapshotLambdaFunctionName(System.getenv("SNAPSHOT_LAMBDA_FUNCTION_NAME"))
+                .snapshotLambdaHandlerFunctionName(System.getenv("SNAPSHOT_LAMBDA_HANDLER_FUNCTION_NAME"))
+                .snapshotLambdaProfile(LambdaProfile.parse(System.getenv("SNAPSHOT_LAMBDA_PROFILE")))
+                .digestFormat(System.getenv("DIGEST_FORMAT"))
+                .digestSnapshotEvery(optionalInteger(System.getenv("DIGEST_SNAPSHOT_EVERY")))
+                .dlqRedriveEnabled(optionalBoolean(System.getenv("DLQ_REDRIVE_ENABLED")))
+                .dlqRedriveLambdaFunctionName(System.getenv("DLQ_REDRIVE_LAMBDA_FUNCTION_NAME"))
+                .dlqRedriveLambdaHandlerFunctionName(System.getenv("DLQ_REDRIVE_LAMBDA_HANDLER_FUNCTION_NAME"))
+                .dlqRedriveLambdaProfile(LambdaProfile.parse(System.getenv("DLQ_REDRIVE_LAMBDA_PROFILE")))
+                .lambdaArchitecture(System.getenv("LAMBDA_ARCHITECTURE"))
+                .lambdaSlimImage(optionalBoolean(System.getenv("LAMBDA_SLIM_IMAGE")))
+                .queueAgeAlarmSeconds(optionalInteger(System.getenv("QUEUE_AGE_ALARM_SECONDS")))
+                .stageLatencyAlarmMillis(optionalInteger(System.getenv("STAGE_LATENCY_ALARM_MILLIS")))
                 // TODO: As properties not variables: Enable/disable versioning (also allowing unlimited concurrency because we always read the latest state)
                 .build();
 
@@ -98,4 +143,13 @@ public class S3SqsBridgeApp {
 
         app.synth();
     }
+
+    // Unset variables stay null so the stack falls back to the CDK context.
+    private static Integer optionalInteger(String value) {
+        return value == null || value.isEmpty() ? null : Integer.valueOf(value);
+    }
+
+    private static Boolean optionalBoolean(String value) {
+        return value == null || value.isEmpty() ? null : Boolean.valueOf(value);
+    }
 }
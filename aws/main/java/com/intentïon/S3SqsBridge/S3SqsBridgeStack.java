@@ -1,25 +1,55 @@
 package com.intentïon.S3SqsBridge;
 
+import com.intentïon.S3SqsBridge.runtime.DigestIndex;
+import com.intentïon.S3SqsBridge.runtime.ProjectionWriter;
+import com.intentïon.S3SqsBridge.runtime.StageMetrics;
 import software.amazon.awscdk.CfnOutput;
 import software.amazon.awscdk.CustomResource;
 import software.amazon.awscdk.Duration;
 import software.amazon.awscdk.RemovalPolicy;
+import software.amazon.awscdk.Size;
 import software.amazon.awscdk.Stack;
 import software.amazon.awscdk.StackProps;
+import software.amazon.awscdk.customresources.AwsCustomResource;
+import software.amazon.awscdk.customresources.AwsCustomResourcePolicy;
+import software.amazon.awscdk.customresources.AwsSdkCall;
+import software.amazon.awscdk.customresources.PhysicalResourceId;
 import software.amazon.awscdk.customresources.Provider;
 import software.amazon.awscdk.services.cloudtrail.S3EventSelector;
 import software.amazon.awscdk.services.cloudtrail.Trail;
+import software.amazon.awscdk.services.cloudwatch.Alarm;
+import software.amazon.awscdk.services.cloudwatch.ComparisonOperator;
+import software.amazon.awscdk.services.cloudwatch.Dashboard;
+import software.amazon.awscdk.services.cloudwatch.GraphWidget;
+import software.amazon.awscdk.services.cloudwatch.IMetric;
+import software.amazon.awscdk.services.cloudwatch.MathExpression;
+import software.amazon.awscdk.services.cloudwatch.Metric;
+import software.amazon.awscdk.services.cloudwatch.MetricOptions;
+import software.amazon.awscdk.services.cloudwatch.TreatMissingData;
 import software.amazon.awscdk.services.dynamodb.Attribute;
 import software.amazon.awscdk.services.dynamodb.AttributeType;
+import software.amazon.awscdk.services.dynamodb.GlobalSecondaryIndexProps;
+import software.amazon.awscdk.services.dynamodb.ProjectionType;
 import software.amazon.awscdk.services.dynamodb.Table;
+import software.amazon.awscdk.services.ecr.assets.Platform;
+import software.amazon.awscdk.services.events.Rule;
+import software.amazon.awscdk.services.events.Schedule;
+import software.amazon.awscdk.services.events.targets.LambdaFunction;
 import software.amazon.awscdk.services.iam.ArnPrincipal;
 import software.amazon.awscdk.services.iam.Effect;
 import software.amazon.awscdk.services.iam.PolicyDocument;
 import software.amazon.awscdk.services.iam.PolicyStatement;
 import software.amazon.awscdk.services.iam.Role;
+import software.amazon.awscdk.services.lambda.Alias;
+import software.amazon.awscdk.services.lambda.Architecture;
 import software.amazon.awscdk.services.lambda.AssetImageCodeProps;
+import software.amazon.awscdk.services.lambda.Code;
 import software.amazon.awscdk.services.lambda.DockerImageCode;
 import software.amazon.awscdk.services.lambda.DockerImageFunction;
+import software.amazon.awscdk.services.lambda.Function;
+import software.amazon.awscdk.services.lambda.IFunction;
+import software.amazon.awscdk.services.lambda.Runtime;
+import software.amazon.awscdk.services.lambda.SnapStartConf;
 import software.amazon.awscdk.services.lambda.eventsources.SqsEventSource;
 import software.amazon.awscdk.services.lambda.eventsources.SqsEventSourceProps;
 import software.amazon.awscdk.services.logs.LogGroup;
@@ -28,13 +58,26 @@ import software.amazon.awscdk.services.logs.RetentionDays;
 import software.amazon.awscdk.services.s3.Bucket;
 import software.amazon.awscdk.services.s3.EventType;
 import software.amazon.awscdk.services.s3.IBucket;
+import software.amazon.awscdk.services.s3.NotificationKeyFilter;
 import software.amazon.awscdk.services.s3.notifications.SqsDestination;
 import software.amazon.awscdk.services.sqs.DeadLetterQueue;
+import software.amazon.awscdk.services.sqs.DeduplicationScope;
+import software.amazon.awscdk.services.sqs.FifoThroughputLimit;
 import software.amazon.awscdk.services.sqs.IQueue;
 import software.amazon.awscdk.services.sqs.Queue;
+import software.amazon.awscdk.services.stepfunctions.DefinitionBody;
+import software.amazon.awscdk.services.stepfunctions.Errors;
+import software.amazon.awscdk.services.stepfunctions.JsonPath;
+import software.amazon.awscdk.services.stepfunctions.RetryProps;
+import software.amazon.awscdk.services.stepfunctions.StateMachine;
+import software.amazon.awscdk.services.stepfunctions.TaskInput;
+import software.amazon.awscdk.services.stepfunctions.tasks.LambdaInvoke;
 import software.constructs.Construct;
 
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -46,19 +89,44 @@ public class S3SqsBridgeStack extends Stack {
     public Role s3AccessRole;
     public Queue sourceDLQ;
     public Queue sourceQueue;
+    // The source queue of each source route by route name, the first being sourceQueue.
+    public Map<String, Queue> sourceRouteQueues;
+    public Queue orderedSourceQueueDLQ;
+    public Queue orderedSourceQueue;
     public Queue replayQueueDLQ;
     public Queue replayQueue;
     public IQueue digestQueue;
     public Queue digestQueueDLQ;
     public Table offsetsTable;
     public Table projectionsTable;
-    public DockerImageFunction replayBatchLambda;
+    public Function replayBatchLambda;
+    public Alias replayBatchLambdaAlias;
     public LogGroup replayBatchLambdaLogGroup;
     public CustomResource replayBatchOneOffJobResource;
-    public DockerImageFunction sourceLambda;
+    public StateMachine replayStateMachine;
+    public AwsCustomResource replayStateMachineExecution;
+    public Function sourceLambda;
+    public Alias sourceLambdaAlias;
     public LogGroup sourceLambdaLogGroup;
-    public DockerImageFunction replayLambda;
+    public Function sourceSequencerLambda;
+    public Alias sourceSequencerLambdaAlias;
+    public LogGroup sourceSequencerLambdaLogGroup;
+    public Function replayLambda;
+    public Alias replayLambdaAlias;
     public LogGroup replayLambdaLogGroup;
+    public Function snapshotLambda;
+    public Alias snapshotLambdaAlias;
+    public LogGroup snapshotLambdaLogGroup;
+    public Rule snapshotSchedule;
+    public Function dlqRedriveLambda;
+    public Alias dlqRedriveLambdaAlias;
+    public LogGroup dlqRedriveLambdaLogGroup;
+    public Dashboard dashboard;
+    public Map<String, Alarm> queueAgeAlarms;
+    public Map<String, Alarm> stageLatencyAlarms;
+
+    // Shared by every handler function, see createHandlerFunction.
+    private String lambdaImageTarget;
 
     public static class Builder {
         // TODO: Add default values for the builder properties
@@ -81,12 +149,63 @@ public class S3SqsBridgeStack extends Stack {
         public String offsetsTableName;
         public String projectionsTableName;
         public String lambdaEntry;
+        public boolean lambdaUseJavaRuntime;
+        public String lambdaJavaEntry;
+        public String lambdaJarPath;
         public String replayBatchLambdaFunctionName;
         public String replayBatchLambdaHandlerFunctionName;
         public String sourceLambdaFunctionName;
         public String sourceLambdaHandlerFunctionName;
         public String replayLambdaFunctionName;
         public String replayLambdaHandlerFunctionName;
+        public Integer sourceBatchSize;
+        public Integer sourceMaxBatchingWindowSeconds;
+        public Integer sourceMaxConcurrency;
+        public Boolean sourceReportBatchItemFailures;
+        public List<SourceRoute> sourceRoutes;
+        public Integer replayBatchSize;
+        public Integer replayMaxBatchingWindowSeconds;
+        public Integer replayMaxConcurrency;
+        public Boolean replayReportBatchItemFailures;
+        public Boolean sqsFifoQueues;
+        public Integer messageGroupPrefixSegments;
+        public Integer messageGroupHashBuckets;
+        public String sourceSequencerLambdaFunctionName;
+        public String sourceSequencerLambdaHandlerFunctionName;
+        public String projectionValueEncodings;
+        public Integer projectionInlineMaxBytes;
+        public Integer projectionCompressedMaxBytes;
+        public Boolean projectionLatestOnly;
+        public Integer s3FetchCacheBytes;
+        public Integer replayShards;
+        public String replayShardBy;
+        public Integer offsetsShards;
+        public String offsetsShardBy;
+        public Integer offsetsTtlDays;
+        public Boolean projectionConditionalWrites;
+        public Integer projectionsIndexShards;
+        public Integer projectionsTtlDays;
+        public String snapshotPrefix;
+        public Integer snapshotScheduleMinutes;
+        public Boolean replayFromSnapshot;
+        public Boolean replayConcurrentIngest;
+        public String snapshotLambdaFunctionName;
+        public String snapshotLambdaHandlerFunctionName;
+        public String digestFormat;
+        public Integer digestSnapshotEvery;
+        public Boolean dlqRedriveEnabled;
+        public String dlqRedriveLambdaFunctionName;
+        public String dlqRedriveLambdaHandlerFunctionName;
+        public String lambdaArchitecture;
+        public Boolean lambdaSlimImage;
+        public LambdaProfile sourceLambdaProfile;
+        public LambdaProfile sourceSequencerLambdaProfile;
+        public LambdaProfile replayBatchLambdaProfile;
+        public LambdaProfile replayLambdaProfile;
+        public LambdaProfile snapshotLambdaProfile;
+        public LambdaProfile dlqRedriveLambdaProfile;
+        public Integer queueAgeAlarmSeconds;
+        public Integer stageLatencyAlarmMillis;
 
         public Builder(Construct scope, String id, StackProps props) {
             this.scope = scope;
@@ -184,6 +303,21 @@ public class S3SqsBridgeStack extends Stack {
             return this;
         }
 
+        public Builder lambdaUseJavaRuntime(boolean lambdaUseJavaRuntime) {
+            this.lambdaUseJavaRuntime = lambdaUseJavaRuntime;
+            return this;
+        }
+
+        public Builder lambdaJavaEntry(String lambdaJavaEntry) {
+            this.lambdaJavaEntry = lambdaJavaEntry;
+            return this;
+        }
+
+        public Builder lambdaJarPath(String lambdaJarPath) {
+            this.lambdaJarPath = lambdaJarPath;
+            return this;
+        }
+
         public Builder replayBatchLambdaFunctionName(String replayBatchLambdaFunctionName) {
             this.replayBatchLambdaFunctionName = replayBatchLambdaFunctionName;
             return this;
@@ -214,6 +348,246 @@ public class S3SqsBridgeStack extends Stack {
             return this;
         }
 
+        public Builder sourceBatchSize(Integer sourceBatchSize) {
+            this.sourceBatchSize = sourceBatchSize;
+            return this;
+        }
+
+        public Builder sourceMaxBatchingWindowSeconds(Integer sourceMaxBatchingWindowSeconds) {
+            this.sourceMaxBatchingWindowSeconds = sourceMaxBatchingWindowSeconds;
+            return this;
+        }
+
+        public Builder sourceMaxConcurrency(Integer sourceMaxConcurrency) {
+            this.sourceMaxConcurrency = sourceMaxConcurrency;
+            return this;
+        }
+
+        public Builder sourceReportBatchItemFailures(Boolean sourceReportBatchItemFailures) {
+            this.sourceReportBatchItemFailures = sourceReportBatchItemFailures;
+            return this;
+        }
+
+        public Builder sourceRoutes(List<SourceRoute> sourceRoutes) {
+            this.sourceRoutes = sourceRoutes;
+            return this;
+        }
+
+        public Builder replayBatchSize(Integer replayBatchSize) {
+            this.replayBatchSize = replayBatchSize;
+            return this;
+        }
+
+        public Builder replayMaxBatchingWindowSeconds(Integer replayMaxBatchingWindowSeconds) {
+            this.replayMaxBatchingWindowSeconds = replayMaxBatchingWindowSeconds;
+            return this;
+        }
+
+        public Builder replayMaxConcurrency(Integer replayMaxConcurrency) {
+            this.replayMaxConcurrency = replayMaxConcurrency;
+            return this;
+        }
+
+        public Builder replayReportBatchItemFailures(Boolean replayReportBatchItemFailures) {
+            this.replayReportBatchItemFailures = replayReportBatchItemFailures;
+            return this;
+        }
+
+        public Builder sqsFifoQueues(Boolean sqsFifoQueues) {
+            this.sqsFifoQueues = sqsFifoQueues;
+            return this;
+        }
+
+        public Builder messageGroupPrefixSegments(Integer messageGroupPrefixSegments) {
+            this.messageGroupPrefixSegments = messageGroupPrefixSegments;
+            return this;
+        }
+
+        public Builder messageGroupHashBuckets(Integer messageGroupHashBuckets) {
+            this.messageGroupHashBuckets = messageGroupHashBuckets;
+            return this;
+        }
+
+        public Builder sourceSequencerLambdaFunctionName(String sourceSequencerLambdaFunctionName) {
+            this.sourceSequencerLambdaFunctionName = sourceSequencerLambdaFunctionName;
+            return this;
+        }
+
+        public Builder sourceSequencerLambdaHandlerFunctionName(String sourceSequencerLambdaHandlerFunctionName) {
+            this.sourceSequencerLambdaHandlerFunctionName = sourceSequencerLambdaHandlerFunctionName;
+            return this;
+        }
+
+        public Builder projectionValueEncodings(String projectionValueEncodings) {
+            this.projectionValueEncodings = projectionValueEncodings;
+            return this;
+        }
+
+        public Builder projectionInlineMaxBytes(Integer projectionInlineMaxBytes) {
+            this.projectionInlineMaxBytes = projectionInlineMaxBytes;
+            return this;
+        }
+
+        public Builder projectionCompressedMaxBytes(Integer projectionCompressedMaxBytes) {
+            this.projectionCompressedMaxBytes = projectionCompressedMaxBytes;
+            return this;
+        }
+
+        public Builder projectionLatestOnly(Boolean projectionLatestOnly) {
+            this.projectionLatestOnly = projectionLatestOnly;
+            return this;
+        }
+
+        public Builder s3FetchCacheBytes(Integer s3FetchCacheBytes) {
+            this.s3FetchCacheBytes = s3FetchCacheBytes;
+            return this;
+        }
+
+        public Builder replayShards(Integer replayShards) {
+            this.replayShards = replayShards;
+            return this;
+        }
+
+        public Builder replayShardBy(String replayShardBy) {
+            this.replayShardBy = replayShardBy;
+            return this;
+        }
+
+        public Builder offsetsShards(Integer offsetsShards) {
+            this.offsetsShards = offsetsShards;
+            return this;
+        }
+
+        public Builder offsetsShardBy(String offsetsShardBy) {
+            this.offsetsShardBy = offsetsShardBy;
+            return this;
+        }
+
+        public Builder offsetsTtlDays(Integer offsetsTtlDays) {
+            this.offsetsTtlDays = offsetsTtlDays;
+            return this;
+        }
+
+        public Builder projectionConditionalWrites(Boolean projectionConditionalWrites) {
+            this.projectionConditionalWrites = projectionConditionalWrites;
+            return this;
+        }
+
+        public Builder projectionsIndexShards(Integer projectionsIndexShards) {
+            this.projectionsIndexShards = projectionsIndexShards;
+            return this;
+        }
+
+        public Builder projectionsTtlDays(Integer projectionsTtlDays) {
+            this.projectionsTtlDays = projectionsTtlDays;
+            return this;
+        }
+
+        public Builder snapshotPrefix(String snapshotPrefix) {
+            this.snapshotPrefix = snapshotPrefix;
+            return this;
+        }
+
+        public Builder snapshotScheduleMinutes(Integer snapshotScheduleMinutes) {
+            this.snapshotScheduleMinutes = snapshotScheduleMinutes;
+            return this;
+        }
+
+        public Builder replayFromSnapshot(Boolean replayFromSnapshot) {
+            this.replayFromSnapshot = replayFromSnapshot;
+            return this;
+        }
+
+        public Builder replayConcurrentIngest(Boolean replayConcurrentIngest) {
+            this.replayConcurrentIngest = replayConcurrentIngest;
+            return this;
+        }
+
+        public Builder snapshotLambdaFunctionName(String snapshotLambdaFunctionName) {
+            this.snapshotLambdaFunctionName = snapshotLambdaFunctionName;
+            return this;
+        }
+
+        public Builder snapshotLambdaHandlerFunctionName(String snapshotLambdaHandlerFunctionName) {
+            this.snapshotLambdaHandlerFunctionName = snapshotLambdaHandlerFunctionName;
+            return this;
+        }
+
+        public Builder lambdaArchitecture(String lambdaArchitecture) {
+            this.lambdaArchitecture = lambdaArchitecture;
+            return this;
+        }
+
+        public Builder lambdaSlimImage(Boolean lambdaSlimImage) {
+            this.lambdaSlimImage = lambdaSlimImage;
+            return this;
+        }
+
+        public Builder sourceLambdaProfile(LambdaProfile sourceLambdaProfile) {
+            this.sourceLambdaProfile = sourceLambdaProfile;
+            return this;
+        }
+
+        public Builder sourceSequencerLambdaProfile(LambdaProfile sourceSequencerLambdaProfile) {
+            this.sourceSequencerLambdaProfile = sourceSequencerLambdaProfile;
+            return this;
+        }
+
+        public Builder replayBatchLambdaProfile(LambdaProfile replayBatchLambdaProfile) {
+            this.replayBatchLambdaProfile = replayBatchLambdaProfile;
+            return this;
+        }
+
+        public Builder replayLambdaProfile(LambdaProfile replayLambdaProfile) {
+            this.replayLambdaProfile = replayLambdaProfile;
+            return this;
+        }
+
+        public Builder snapshotLambdaProfile(LambdaProfile snapshotLambdaProfile) {
+            this.snapshotLambdaProfile = snapshotLambdaProfile;
+            return this;
+        }
+
+        public Builder digestFormat(String digestFormat) {
+            this.digestFormat = digestFormat;
+            return this;
+        }
+
+        public Builder digestSnapshotEvery(Integer digestSnapshotEvery) {
+            this.digestSnapshotEvery = digestSnapshotEvery;
+            return this;
+        }
+
+        public Builder dlqRedriveEnabled(Boolean dlqRedriveEnabled) {
+            this.dlqRedriveEnabled = dlqRedriveEnabled;
+            return this;
+        }
+
+        public Builder dlqRedriveLambdaFunctionName(String dlqRedriveLambdaFunctionName) {
+            this.dlqRedriveLambdaFunctionName = dlqRedriveLambdaFunctionName;
+            return this;
+        }
+
+        public Builder dlqRedriveLambdaHandlerFunctionName(String dlqRedriveLambdaHandlerFunctionName) {
+            this.dlqRedriveLambdaHandlerFunctionName = dlqRedriveLambdaHandlerFunctionName;
+            return this;
+        }
+
+        public Builder dlqRedriveLambdaProfile(LambdaProfile dlqRedriveLambdaProfile) {
+            this.dlqRedriveLambdaProfile = dlqRedriveLambdaProfile;
+            return this;
+        }
+
+        public Builder queueAgeAlarmSeconds(Integer queueAgeAlarmSeconds) {
+            this.queueAgeAlarmSeconds = queueAgeAlarmSeconds;
+            return this;
+        }
+
+        public Builder stageLatencyAlarmMillis(Integer stageLatencyAlarmMillis) {
+            this.stageLatencyAlarmMillis = stageLatencyAlarmMillis;
+            return this;
+        }
+
         public S3SqsBridgeStack build() {
             S3SqsBridgeStack stack = new S3SqsBridgeStack(this.scope, this.id, this.props, this);
             return stack;
@@ -244,12 +618,177 @@ public class S3SqsBridgeStack extends Stack {
         String offsetsTableName = this.getConfigValue(builder.offsetsTableName, "offsetsTableName");
         String projectionsTableName = this.getConfigValue(builder.projectionsTableName, "projectionsTableName");
         String lambdaEntry = this.getConfigValue(builder.lambdaEntry, "lambdaEntry");
+        boolean lambdaUseJavaRuntime = Boolean.parseBoolean(this.getConfigValue(Boolean.toString(builder.lambdaUseJavaRuntime), "lambdaUseJavaRuntime"));
+        String lambdaJavaEntry = lambdaUseJavaRuntime ? this.getConfigValue(builder.lambdaJavaEntry, "lambdaJavaEntry") : null;
+        String lambdaJarPath = lambdaUseJavaRuntime ? this.getConfigValue(builder.lambdaJarPath, "lambdaJarPath") : null;
         String sourceLambdaHandlerFunctionName = this.getConfigValue(builder.sourceLambdaHandlerFunctionName, "sourceLambdaHandlerFunctionName");
         String sourceLambdaFunctionName = this.getConfigValue(builder.sourceLambdaFunctionName, "sourceLambdaFunctionName");
         String replayBatchLambdaHandlerFunctionName = this.getConfigValue(builder.replayBatchLambdaHandlerFunctionName, "replayBatchLambdaHandlerFunctionName");
         String replayBatchLambdaFunctionName = this.getConfigValue(builder.replayBatchLambdaFunctionName, "replayBatchLambdaFunctionName");
         String replayLambdaHandlerFunctionName = this.getConfigValue(builder.replayLambdaHandlerFunctionName, "replayLambdaHandlerFunctionName");
         String replayLambdaFunctionName = this.getConfigValue(builder.replayLambdaFunctionName, "replayLambdaFunctionName");
+        int sourceBatchSize = Integer.parseInt(this.getConfigValue(toConfigString(builder.sourceBatchSize), "sourceBatchSize", "1"));
+        int sourceMaxBatchingWindowSeconds = Integer.parseInt(this.getConfigValue(toConfigString(builder.sourceMaxBatchingWindowSeconds), "sourceMaxBatchingWindowSeconds", "0"));
+        int sourceMaxConcurrency = Integer.parseInt(this.getConfigValue(toConfigString(builder.sourceMaxConcurrency), "sourceMaxConcurrency", "0"));
+        boolean sourceReportBatchItemFailures = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.sourceReportBatchItemFailures), "sourceReportBatchItemFailures", "false"));
+        // Each route gets a filtered notification and a source queue of its own, with no routes one route takes every
+        // put and multipart upload under the object prefix.
+        List<SourceRoute> sourceRoutes = new ArrayList<>();
+        for (SourceRoute sourceRoute : SourceRoute.parseAll(this.getConfigValue(builder.sourceRoutes == null ? null : SourceRoute.format(builder.sourceRoutes), "sourceRoutes", ""))) {
+            sourceRoutes.add(sourceRoute.orElse(s3ObjectPrefix, sourceBatchSize, sourceMaxBatchingWindowSeconds, sourceMaxConcurrency));
+        }
+        if (sourceRoutes.isEmpty()) {
+            sourceRoutes.add(SourceRoute.DEFAULT.orElse(s3ObjectPrefix, sourceBatchSize, sourceMaxBatchingWindowSeconds, sourceMaxConcurrency));
+        }
+        int sourceRoutesMaxConcurrency = 0;
+        for (int i = 0; i < sourceRoutes.size(); i++) {
+            SourceRoute sourceRoute = sourceRoutes.get(i);
+            if (!sourceRoute.prefix().startsWith(s3ObjectPrefix)) {
+                throw new IllegalArgumentException("The prefix " + sourceRoute.prefix() + " of source route " + sourceRoute.name()
+                        + " is outside the object prefix " + s3ObjectPrefix);
+            }
+            for (SourceRoute other : sourceRoutes.subList(0, i)) {
+                if (other.name().equalsIgnoreCase(sourceRoute.name()) || other.overlaps(sourceRoute)) {
+                    throw new IllegalArgumentException("Source route " + sourceRoute.name() + " has the name of or overlaps source route " + other.name());
+                }
+            }
+            sourceRoutesMaxConcurrency += sourceRoute.maxConcurrency();
+        }
+        int replayBatchSize = Integer.parseInt(this.getConfigValue(toConfigString(builder.replayBatchSize), "replayBatchSize", "1"));
+        int replayMaxBatchingWindowSeconds = Integer.parseInt(this.getConfigValue(toConfigString(builder.replayMaxBatchingWindowSeconds), "replayMaxBatchingWindowSeconds", "0"));
+        int replayMaxConcurrency = Integer.parseInt(this.getConfigValue(toConfigString(builder.replayMaxConcurrency), "replayMaxConcurrency", "0"));
+        boolean replayReportBatchItemFailures = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.replayReportBatchItemFailures), "replayReportBatchItemFailures", "false"));
+        boolean sqsFifoQueues = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.sqsFifoQueues), "sqsFifoQueues", "false"));
+        if (sqsFifoQueues && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("sqsFifoQueues requires lambdaUseJavaRuntime for the source sequencer handler");
+        }
+        String messageGroupPrefixSegments = this.getConfigValue(toConfigString(builder.messageGroupPrefixSegments), "messageGroupPrefixSegments", "0");
+        String messageGroupHashBuckets = this.getConfigValue(toConfigString(builder.messageGroupHashBuckets), "messageGroupHashBuckets", "0");
+        String sourceSequencerLambdaFunctionName = this.getConfigValue(builder.sourceSequencerLambdaFunctionName, "sourceSequencerLambdaFunctionName", sourceLambdaFunctionName + "-sequencer");
+        String sourceSequencerLambdaHandlerFunctionName = this.getConfigValue(builder.sourceSequencerLambdaHandlerFunctionName, "sourceSequencerLambdaHandlerFunctionName", "sourceSequencerLambdaHandler");
+        // In FIFO mode each object key (or key prefix hash) is a message group, see com.intentïon.S3SqsBridge.runtime.MessageGroups.
+        Map<String, String> messageGroupEnvironment = sqsFifoQueues
+                ? Map.of("MESSAGE_GROUP_PREFIX_SEGMENTS", messageGroupPrefixSegments, "MESSAGE_GROUP_HASH_BUCKETS", messageGroupHashBuckets)
+                : Map.of();
+        String projectionValueEncodings = this.getConfigValue(builder.projectionValueEncodings, "projectionValueEncodings", "");
+        String projectionInlineMaxBytes = this.getConfigValue(toConfigString(builder.projectionInlineMaxBytes), "projectionInlineMaxBytes", "4096");
+        String projectionCompressedMaxBytes = this.getConfigValue(toConfigString(builder.projectionCompressedMaxBytes), "projectionCompressedMaxBytes", "358400");
+        String projectionLatestOnly = this.getConfigValue(toConfigString(builder.projectionLatestOnly), "projectionLatestOnly", "false");
+        String s3FetchCacheBytes = this.getConfigValue(toConfigString(builder.s3FetchCacheBytes), "s3FetchCacheBytes", "8388608");
+        // Per prefix choice of inline, gzip or S3 pointer values, see com.intentïon.S3SqsBridge.runtime.ProjectionValueCodec,
+        // and how object versions are fetched, see com.intentïon.S3SqsBridge.runtime.S3ObjectFetcher.
+        Map<String, String> projectionValueEnvironment = lambdaUseJavaRuntime
+                ? Map.of("PROJECTION_VALUE_ENCODINGS", projectionValueEncodings,
+                        "PROJECTION_INLINE_MAX_BYTES", projectionInlineMaxBytes,
+                        "PROJECTION_COMPRESSED_MAX_BYTES", projectionCompressedMaxBytes,
+                        "PROJECTION_LATEST_ONLY", projectionLatestOnly,
+                        "S3_FETCH_CACHE_BYTES", s3FetchCacheBytes)
+                : Map.of();
+        int replayShards = Integer.parseInt(this.getConfigValue(toConfigString(builder.replayShards), "replayShards", "1"));
+        String replayShardBy = this.getConfigValue(builder.replayShardBy, "replayShardBy", "prefix");
+        if (replayShards > 1 && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("replayShards requires lambdaUseJavaRuntime for the replay coordinator actions");
+        }
+        // Key prefix or key hash shards of the replay, see com.intentïon.S3SqsBridge.runtime.ReplayShard.
+        Map<String, String> replayShardEnvironment = lambdaUseJavaRuntime
+                ? Map.of("REPLAY_SHARDS", Integer.toString(replayShards), "REPLAY_SHARD_BY", replayShardBy)
+                : Map.of();
+        int offsetsShards = Integer.parseInt(this.getConfigValue(toConfigString(builder.offsetsShards), "offsetsShards", "0"));
+        String offsetsShardBy = this.getConfigValue(builder.offsetsShardBy, "offsetsShardBy", "hash");
+        int offsetsTtlDays = Integer.parseInt(this.getConfigValue(toConfigString(builder.offsetsTtlDays), "offsetsTtlDays", "30"));
+        if (offsetsShards < 0 || offsetsTtlDays < 0) {
+            throw new IllegalArgumentException("offsetsShards and offsetsTtlDays must not be negative");
+        }
+        if (!List.of("hash", "prefix").contains(offsetsShardBy)) {
+            throw new IllegalArgumentException("offsetsShardBy must be hash or prefix, not " + offsetsShardBy);
+        }
+        if (offsetsShards > 0 && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("offsetsShards requires lambdaUseJavaRuntime for the sharded offsets table");
+        }
+        // Key hash or sub-prefix watermark rows under the sort key "shard", see com.intentïon.S3SqsBridge.runtime.OffsetShards.
+        Map<String, String> offsetsEnvironment = offsetsShards > 0
+                ? Map.of("OFFSETS_SHARDS", Integer.toString(offsetsShards),
+                        "OFFSETS_SHARD_BY", offsetsShardBy,
+                        "OFFSETS_TTL_SECONDS", Integer.toString(offsetsTtlDays * 24 * 60 * 60))
+                : Map.of();
+        boolean projectionConditionalWrites = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.projectionConditionalWrites), "projectionConditionalWrites", "false"));
+        int projectionsIndexShards = Integer.parseInt(this.getConfigValue(toConfigString(builder.projectionsIndexShards), "projectionsIndexShards", "0"));
+        int projectionsTtlDays = Integer.parseInt(this.getConfigValue(toConfigString(builder.projectionsTtlDays), "projectionsTtlDays", "0"));
+        if (projectionsIndexShards < 0 || projectionsTtlDays < 0) {
+            throw new IllegalArgumentException("projectionsIndexShards and projectionsTtlDays must not be negative");
+        }
+        if ((projectionConditionalWrites || projectionsIndexShards > 0 || projectionsTtlDays > 0) && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("projectionConditionalWrites, projectionsIndexShards and projectionsTtlDays require lambdaUseJavaRuntime for the versioned projection items");
+        }
+        // Version conditioned writes, the changeShard of the lastModified index and expiresAt, see
+        // com.intentïon.S3SqsBridge.runtime.ProjectionWriter.
+        Map<String, String> projectionWriteEnvironment = lambdaUseJavaRuntime
+                ? Map.of("PROJECTION_CONDITIONAL_WRITES", Boolean.toString(projectionConditionalWrites),
+                        "PROJECTION_INDEX_SHARDS", Integer.toString(projectionsIndexShards),
+                        "PROJECTION_TTL_SECONDS", Integer.toString(projectionsTtlDays * 24 * 60 * 60))
+                : Map.of();
+        String snapshotPrefix = this.getConfigValue(builder.snapshotPrefix, "snapshotPrefix", "snapshots/");
+        int snapshotScheduleMinutes = Integer.parseInt(this.getConfigValue(toConfigString(builder.snapshotScheduleMinutes), "snapshotScheduleMinutes", "0"));
+        boolean replayFromSnapshot = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.replayFromSnapshot), "replayFromSnapshot", "false"));
+        String snapshotLambdaFunctionName = this.getConfigValue(builder.snapshotLambdaFunctionName, "snapshotLambdaFunctionName", replayLambdaFunctionName + "-snapshot");
+        String snapshotLambdaHandlerFunctionName = this.getConfigValue(builder.snapshotLambdaHandlerFunctionName, "snapshotLambdaHandlerFunctionName", "snapshotLambdaHandler");
+        if ((snapshotScheduleMinutes > 0 || replayFromSnapshot) && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("snapshotScheduleMinutes and replayFromSnapshot require lambdaUseJavaRuntime for the snapshot handler");
+        }
+        // The Java source handler writes digest snapshots under <snapshotPrefix>digest/, see
+        // com.intentïon.S3SqsBridge.runtime.DigestPublisher.
+        String digestFormat = this.getConfigValue(builder.digestFormat, "digestFormat", "delta");
+        String digestSnapshotEvery = this.getConfigValue(toConfigString(builder.digestSnapshotEvery), "digestSnapshotEvery", "1000");
+        if (!List.of("delta", "full").contains(digestFormat)) {
+            throw new IllegalArgumentException("digestFormat must be delta or full but was " + digestFormat);
+        }
+        boolean digestSnapshots = lambdaUseJavaRuntime && "delta".equals(digestFormat);
+        Map<String, String> digestEnvironment = lambdaUseJavaRuntime
+                ? Map.of("DIGEST_FORMAT", digestFormat, "DIGEST_SNAPSHOT_EVERY", digestSnapshotEvery, "SNAPSHOT_PREFIX", snapshotPrefix)
+                : Map.of();
+        if ((snapshotScheduleMinutes > 0 || replayFromSnapshot || digestSnapshots) && snapshotPrefix.startsWith(s3ObjectPrefix)) {
+            // Snapshots under the object prefix would be notified and replayed as events.
+            throw new IllegalArgumentException("snapshotPrefix " + snapshotPrefix + " must not be under s3ObjectPrefix " + s3ObjectPrefix);
+        }
+        boolean dlqRedriveEnabled = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.dlqRedriveEnabled), "dlqRedriveEnabled", "false"));
+        String dlqRedriveLambdaFunctionName = this.getConfigValue(builder.dlqRedriveLambdaFunctionName, "dlqRedriveLambdaFunctionName", replayLambdaFunctionName + "-dlq-redrive");
+        String dlqRedriveLambdaHandlerFunctionName = this.getConfigValue(builder.dlqRedriveLambdaHandlerFunctionName, "dlqRedriveLambdaHandlerFunctionName", "dlqRedriveLambdaHandler");
+        if (dlqRedriveEnabled && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("dlqRedriveEnabled requires lambdaUseJavaRuntime for the DLQ redrive handler");
+        }
+        // Snapshots of the projections table for replay to start from, see com.intentïon.S3SqsBridge.runtime.ProjectionSnapshots.
+        Map<String, String> replaySnapshotEnvironment = replayFromSnapshot
+                ? Map.of("SNAPSHOT_PREFIX", snapshotPrefix, "REPLAY_FROM_SNAPSHOT", "true")
+                : Map.of();
+        boolean replayConcurrentIngest = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.replayConcurrentIngest), "replayConcurrentIngest", "false"));
+        if (replayConcurrentIngest && !lambdaUseJavaRuntime) {
+            throw new IllegalArgumentException("replayConcurrentIngest requires lambdaUseJavaRuntime for the live lane");
+        }
+        // A reserved concurrency of 1 is what keeps the versions of a key in order on standard queues. Concurrent batches
+        // need the message groups of FIFO queues or the version conditions on the projection items.
+        int sourceReservedConcurrency = Math.max(1, sqsFifoQueues ? sourceMaxConcurrency : sourceRoutesMaxConcurrency);
+        int replayReservedConcurrency = Math.max(1, replayMaxConcurrency);
+        if ((sourceReservedConcurrency > 1 || replayReservedConcurrency > 1) && !sqsFifoQueues && !projectionConditionalWrites && !replayConcurrentIngest) {
+            throw new IllegalArgumentException("sourceMaxConcurrency, source route maxConcurrency and replayMaxConcurrency above 1 require sqsFifoQueues or projectionConditionalWrites to project the versions of a key in order");
+        }
+        // Source batches projected beside a replay in the live lane, see com.intentïon.S3SqsBridge.runtime.ProjectionBridge.
+        Map<String, String> replayIngestEnvironment = replayConcurrentIngest
+                ? Map.of("REPLAY_CONCURRENT_INGEST", "true")
+                : Map.of();
+        String lambdaArchitecture = this.getConfigValue(builder.lambdaArchitecture, "lambdaArchitecture", LambdaProfile.X86_64);
+        boolean lambdaSlimImage = Boolean.parseBoolean(this.getConfigValue(toConfigString(builder.lambdaSlimImage), "lambdaSlimImage", "false"));
+        this.lambdaImageTarget = lambdaSlimImage ? "slim" : "full";
+        // Settings a function's profile leaves out take these defaults, a null memory size being 1024 MB for the Java
+        // runtime and the Lambda default for the image.
+        LambdaProfile defaultLambdaProfile = new LambdaProfile(null, null, lambdaArchitecture, null, 0, 5);
+        LambdaProfile sourceLambdaProfile = this.getLambdaProfile(builder.sourceLambdaProfile, "sourceLambdaProfile", defaultLambdaProfile.withTimeoutSeconds(5));
+        LambdaProfile sourceSequencerLambdaProfile = this.getLambdaProfile(builder.sourceSequencerLambdaProfile, "sourceSequencerLambdaProfile", defaultLambdaProfile.withTimeoutSeconds(5));
+        LambdaProfile replayBatchLambdaProfile = this.getLambdaProfile(builder.replayBatchLambdaProfile, "replayBatchLambdaProfile", defaultLambdaProfile.withTimeoutSeconds(900));
+        LambdaProfile replayLambdaProfile = this.getLambdaProfile(builder.replayLambdaProfile, "replayLambdaProfile", defaultLambdaProfile.withTimeoutSeconds(3));
+        LambdaProfile snapshotLambdaProfile = this.getLambdaProfile(builder.snapshotLambdaProfile, "snapshotLambdaProfile", defaultLambdaProfile.withTimeoutSeconds(900));
+        LambdaProfile dlqRedriveLambdaProfile = this.getLambdaProfile(builder.dlqRedriveLambdaProfile, "dlqRedriveLambdaProfile", defaultLambdaProfile.withTimeoutSeconds(900));
+        int queueAgeAlarmSeconds = Integer.parseInt(this.getConfigValue(toConfigString(builder.queueAgeAlarmSeconds), "queueAgeAlarmSeconds", "300"));
+        int stageLatencyAlarmMillis = Integer.parseInt(this.getConfigValue(toConfigString(builder.stageLatencyAlarmMillis), "stageLatencyAlarmMillis", "1000"));
 
         if (s3UseExistingBucket) {
             this.eventsBucket = Bucket.fromBucketName(this, "EventsBucket", s3BucketName);
@@ -303,39 +842,66 @@ public class S3SqsBridgeStack extends Stack {
                         .build()))
                 .build();
 
-        Duration sourceLambdaDuration = Duration.seconds(5);
-        Duration sourceQueueDuration = Duration.seconds(sourceLambdaDuration.toSeconds().intValue() * 2);
+        // With FIFO queues the source queue is consumed by the source sequencer and the ordered source queue by the
+        // source lambda.
+        LambdaProfile sourceQueueConsumerProfile = sqsFifoQueues ? sourceSequencerLambdaProfile : sourceLambdaProfile;
         this.sourceDLQ = Queue.Builder.create(this, "SourceDLQ")
                 .queueName(sqsSourceQueueName + "-dlq")
                 .retentionPeriod(Duration.days(3))
                 .build();
-        this.sourceQueue = Queue.Builder.create(this, "SourceQueue")
-                .queueName(sqsSourceQueueName)
-                .visibilityTimeout(sourceQueueDuration)
-                .retentionPeriod(Duration.hours(24))
-                .deadLetterQueue(DeadLetterQueue.builder()
-                        .queue(this.sourceDLQ)
-                        .maxReceiveCount(5)
-                        .build())
-                .build();
-        this.eventsBucket.addEventNotification(
-                EventType.OBJECT_CREATED_PUT,
-                new SqsDestination(this.sourceQueue)
-        );
-
-        Duration replayLambdaDuration = Duration.seconds(3);
-        Duration replayQueueDuration = Duration.seconds(replayLambdaDuration.toSeconds().intValue() * 2);
-        this.replayQueueDLQ = Queue.Builder.create(this, "ReplayQueueDLQ")
-                .queueName(sqsReplayQueueName + "-dlq")
+        // The first route keeps the source queue, the others get a queue named after the route, all sharing the source
+        // DLQ, which is redriven to the source queue.
+        this.sourceRouteQueues = new LinkedHashMap<>();
+        for (SourceRoute sourceRoute : sourceRoutes) {
+            boolean first = this.sourceRouteQueues.isEmpty();
+            Queue sourceRouteQueue = Queue.Builder.create(this, first ? "SourceQueue" : sourceRouteQueueId(sourceRoute.name()))
+                    .queueName(first ? sqsSourceQueueName : sqsSourceQueueName + "-" + sourceRoute.name())
+                    .visibilityTimeout(visibilityTimeout(sourceQueueConsumerProfile, sourceRoute.maxBatchingWindowSeconds()))
+                    .retentionPeriod(Duration.hours(24))
+                    .deadLetterQueue(DeadLetterQueue.builder()
+                            .queue(this.sourceDLQ)
+                            .maxReceiveCount(sourceQueueConsumerProfile.maxReceiveCount())
+                            .build())
+                    .build();
+            // CDK rejects a key filter with neither a prefix nor a suffix, a route of the whole bucket has no filter.
+            List<NotificationKeyFilter> keyFilters = sourceRoute.prefix().isEmpty() && sourceRoute.suffix().isEmpty()
+                    ? List.of()
+                    : List.of(NotificationKeyFilter.builder()
+                            .prefix(sourceRoute.prefix().isEmpty() ? null : sourceRoute.prefix())
+                            .suffix(sourceRoute.suffix().isEmpty() ? null : sourceRoute.suffix())
+                            .build());
+            for (String event : sourceRoute.events()) {
+                this.eventsBucket.addEventNotification(objectCreatedEventType(event), new SqsDestination(sourceRouteQueue),
+                        keyFilters.toArray(new NotificationKeyFilter[0]));
+            }
+            this.sourceRouteQueues.put(sourceRoute.name(), sourceRouteQueue);
+        }
+        this.sourceQueue = this.sourceRouteQueues.values().iterator().next();
+        if (sqsFifoQueues) {
+            // S3 cannot notify a FIFO queue, the source sequencer forwards from the source queue to this one.
+            this.orderedSourceQueueDLQ = this.createQueue("OrderedSourceQueueDLQ", sqsSourceQueueName + "-ordered-dlq", true)
+                    .retentionPeriod(Duration.days(3))
+                    .build();
+            this.orderedSourceQueue = this.createQueue("OrderedSourceQueue", sqsSourceQueueName + "-ordered", true)
+                    // FIFO event source mappings have no batching window.
+                    .visibilityTimeout(visibilityTimeout(sourceLambdaProfile, 0))
+                    .retentionPeriod(Duration.hours(24))
+                    .deadLetterQueue(DeadLetterQueue.builder()
+                            .queue(this.orderedSourceQueueDLQ)
+                            .maxReceiveCount(sourceLambdaProfile.maxReceiveCount())
+                            .build())
+                    .build();
+        }
+
+        this.replayQueueDLQ = this.createQueue("ReplayQueueDLQ", sqsReplayQueueName + "-dlq", sqsFifoQueues)
                 .retentionPeriod(Duration.days(3))
                 .build();
-        this.replayQueue = Queue.Builder.create(this, "ReplayQueue")
-                .queueName(sqsReplayQueueName)
-                .visibilityTimeout(replayQueueDuration)
+        this.replayQueue = this.createQueue("ReplayQueue", sqsReplayQueueName, sqsFifoQueues)
+                .visibilityTimeout(visibilityTimeout(replayLambdaProfile, sqsFifoQueues ? 0 : replayMaxBatchingWindowSeconds))
                 .retentionPeriod(Duration.hours(24))
                 .deadLetterQueue(DeadLetterQueue.builder()
                         .queue(this.replayQueueDLQ)
-                        .maxReceiveCount(5)
+                        .maxReceiveCount(replayLambdaProfile.maxReceiveCount())
                         .build())
                 .build();
 
@@ -359,24 +925,68 @@ public class S3SqsBridgeStack extends Stack {
                     .build();
         }
 
-        this.offsetsTable = Table.Builder.create(this, "OffsetsTable")
+        // Adding or removing the sort key replaces the table, which needs a new offsetsTableName.
+        Table.Builder offsetsTable = Table.Builder.create(this, "OffsetsTable")
                 .tableName(offsetsTableName)
                 .partitionKey(Attribute.builder()
                         .name("id") // bucketName/objectPrefix | projectionsTableName
                         .type(AttributeType.STRING)
                         .build())
-                .removalPolicy(RemovalPolicy.DESTROY)
-                .build();
+                .removalPolicy(RemovalPolicy.DESTROY);
+        if (offsetsShards > 0) {
+            offsetsTable.sortKey(Attribute.builder()
+                    .name("shard") // # | hash-<n> | prefix-<sub-prefix>
+                    .type(AttributeType.STRING)
+                    .build());
+        }
+        if (offsetsTtlDays > 0) {
+            offsetsTable.timeToLiveAttribute("expiresAt");
+        }
+        this.offsetsTable = offsetsTable.build();
 
         // Incoming object:  events/branches/main.json  (id=events/branches/main, resourceName=main)
-        this.projectionsTable = Table.Builder.create(this, "ProjectionsTable")
+        Table.Builder projectionsTable = Table.Builder.create(this, "ProjectionsTable")
                 .tableName(projectionsTableName)
                 .partitionKey(Attribute.builder()
                         .name("id")
                         .type(AttributeType.STRING)
                         .build())
-                .removalPolicy(RemovalPolicy.DESTROY)
-                .build();
+                .removalPolicy(RemovalPolicy.DESTROY);
+        if (projectionsTtlDays > 0) {
+            projectionsTable.timeToLiveAttribute("expiresAt");
+        }
+        this.projectionsTable = projectionsTable.build();
+        if (projectionsIndexShards > 0) {
+            // Changes since a time are a query per changeShard instead of a scan of the table.
+            this.projectionsTable.addGlobalSecondaryIndex(GlobalSecondaryIndexProps.builder()
+                    .indexName(ProjectionWriter.LAST_MODIFIED_INDEX)
+                    .partitionKey(Attribute.builder()
+                            .name("changeShard") // 0 .. projectionsIndexShards - 1
+                            .type(AttributeType.NUMBER)
+                            .build())
+                    .sortKey(Attribute.builder()
+                            .name("lastModified")
+                            .type(AttributeType.STRING)
+                            .build())
+                    .projectionType(ProjectionType.INCLUDE)
+                    .nonKeyAttributes(List.of("versionId"))
+                    .build());
+        }
+        if (lambdaUseJavaRuntime) {
+            // The digest membership rows alone carry memberShard, so the full id list is read without the projections.
+            this.projectionsTable.addGlobalSecondaryIndex(GlobalSecondaryIndexProps.builder()
+                    .indexName(DigestIndex.MEMBER_INDEX)
+                    .partitionKey(Attribute.builder()
+                            .name("memberShard") // 0 .. digest shards - 1
+                            .type(AttributeType.NUMBER)
+                            .build())
+                    .sortKey(Attribute.builder()
+                            .name("id")
+                            .type(AttributeType.STRING)
+                            .build())
+                    .projectionType(ProjectionType.KEYS_ONLY)
+                    .build());
+        }
 
         PolicyStatement listBucketPolicy = PolicyStatement.Builder.create()
                 .actions(Arrays.asList("s3:ListBucket","s3:ListBucketVersions"))
@@ -413,22 +1023,20 @@ public class S3SqsBridgeStack extends Stack {
                 //.resources(Arrays.asList("arn:aws:lambda:" + this.getRegion() + ":" + this.getRegion() + ":event-source-mapping:*"))
                 .build();
 
-        this.sourceLambda = DockerImageFunction.Builder.create(this, "SourceLambda")
-                .code(DockerImageCode.fromImageAsset(".", AssetImageCodeProps.builder()
-                        .buildArgs(Map.of("HANDLER", lambdaEntry + sourceLambdaHandlerFunctionName))
-                        .build()))
-                .environment(Map.of(
+        this.sourceLambda = this.createHandlerFunction("SourceLambda", sourceLambdaFunctionName,
+                lambdaUseJavaRuntime ? lambdaJavaEntry : lambdaEntry, sourceLambdaHandlerFunctionName, lambdaUseJavaRuntime, lambdaJarPath,
+                withEnvironment(Map.of(
                         "BUCKET_NAME", eventsBucket.getBucketName(),
                         "OBJECT_PREFIX", s3ObjectPrefix,
                         "REPLAY_QUEUE_URL", this.replayQueue.getQueueUrl(),
                         "OFFSETS_TABLE_NAME", this.offsetsTable.getTableName(),
                         "PROJECTIONS_TABLE_NAME", this.projectionsTable.getTableName(),
                         "DIGEST_QUEUE_URL", this.digestQueue.getQueueUrl()
-                ))
-                .functionName(sourceLambdaFunctionName)
-                .reservedConcurrentExecutions(1)
-                .timeout(sourceLambdaDuration)
-                .build();
+                ), withEnvironment(projectionValueEnvironment, withEnvironment(projectionWriteEnvironment,
+                        withEnvironment(replayIngestEnvironment, withEnvironment(digestEnvironment, offsetsEnvironment))))),
+                sourceLambdaProfile,
+                sourceReservedConcurrency);
+        this.sourceLambdaAlias = this.createAlias("SourceLambdaAlias", this.sourceLambda, lambdaUseJavaRuntime, sourceLambdaProfile);
         this.sourceLambdaLogGroup = new LogGroup(this, "SourceLambdaLogGroup", LogGroupProps.builder()
                 .logGroupName("/aws/lambda/" + this.sourceLambda.getFunctionName())
                 .retention(RetentionDays.THREE_DAYS)
@@ -436,29 +1044,61 @@ public class S3SqsBridgeStack extends Stack {
                 .build());
         this.sourceLambda.addToRolePolicy(getObjectPolicy);
         this.sourceLambda.addToRolePolicy(sqsSendMessageToDigestQueuePolicy);
+        if (digestSnapshots) {
+            this.sourceLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                    .actions(List.of("s3:PutObject"))
+                    .resources(List.of(this.eventsBucket.getBucketArn() + "/" + snapshotPrefix + "digest/*"))
+                    .build());
+        }
         this.offsetsTable.grantReadWriteData(this.sourceLambda);
         this.projectionsTable.grantReadWriteData(this.sourceLambda);
-        this.sourceLambda.addEventSource(new SqsEventSource(this.sourceQueue, SqsEventSourceProps.builder()
-                .batchSize(1)
-                .maxBatchingWindow(Duration.seconds(0))
-                .build()));
-
-        Duration replayBatchLambdaDuration = Duration.seconds(900);
-        this.replayBatchLambda = DockerImageFunction.Builder.create(this, "ReplayBatchLambda")
-                .code(DockerImageCode.fromImageAsset(".", AssetImageCodeProps.builder()
-                        .buildArgs(Map.of("HANDLER", lambdaEntry + replayBatchLambdaHandlerFunctionName))
-                        .build()))
-                .environment(Map.of(
+        if (sqsFifoQueues) {
+            this.invocationTarget(this.sourceLambda, this.sourceLambdaAlias).addEventSource(new SqsEventSource(this.orderedSourceQueue,
+                    this.sqsEventSourceProps(sourceBatchSize, sourceMaxBatchingWindowSeconds, sourceMaxConcurrency, sourceReportBatchItemFailures, true)));
+
+            // A single sequencer keeps the arrival order of the source queue when forwarding it.
+            this.sourceSequencerLambda = this.createHandlerFunction("SourceSequencerLambda", sourceSequencerLambdaFunctionName,
+                    lambdaJavaEntry, sourceSequencerLambdaHandlerFunctionName, true, lambdaJarPath,
+                    withEnvironment(Map.of(
+                            "BUCKET_NAME", this.eventsBucket.getBucketName(),
+                            "OBJECT_PREFIX", s3ObjectPrefix,
+                            "ORDERED_SOURCE_QUEUE_URL", this.orderedSourceQueue.getQueueUrl()
+                    ), messageGroupEnvironment),
+                    sourceSequencerLambdaProfile,
+                    1);
+            this.sourceSequencerLambdaAlias = this.createAlias("SourceSequencerLambdaAlias", this.sourceSequencerLambda, true, sourceSequencerLambdaProfile);
+            this.sourceSequencerLambdaLogGroup = new LogGroup(this, "SourceSequencerLambdaLogGroup", LogGroupProps.builder()
+                    .logGroupName("/aws/lambda/" + this.sourceSequencerLambda.getFunctionName())
+                    .retention(RetentionDays.THREE_DAYS)
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .build());
+            this.orderedSourceQueue.grantSendMessages(this.sourceSequencerLambda);
+            for (SourceRoute sourceRoute : sourceRoutes) {
+                this.invocationTarget(this.sourceSequencerLambda, this.sourceSequencerLambdaAlias).addEventSource(new SqsEventSource(this.sourceRouteQueues.get(sourceRoute.name()),
+                        this.sqsEventSourceProps(sourceRoute.batchSize(), sourceRoute.maxBatchingWindowSeconds(), 0, true, false)));
+            }
+        } else {
+            for (SourceRoute sourceRoute : sourceRoutes) {
+                this.invocationTarget(this.sourceLambda, this.sourceLambdaAlias).addEventSource(new SqsEventSource(this.sourceRouteQueues.get(sourceRoute.name()),
+                        this.sqsEventSourceProps(sourceRoute.batchSize(), sourceRoute.maxBatchingWindowSeconds(), sourceRoute.maxConcurrency(), sourceReportBatchItemFailures, false)));
+            }
+        }
+
+        this.replayBatchLambda = this.createHandlerFunction("ReplayBatchLambda", replayBatchLambdaFunctionName,
+                lambdaUseJavaRuntime ? lambdaJavaEntry : lambdaEntry, replayBatchLambdaHandlerFunctionName, lambdaUseJavaRuntime, lambdaJarPath,
+                withEnvironment(Map.of(
                         "BUCKET_NAME", this.eventsBucket.getBucketName(),
                         "OBJECT_PREFIX", s3ObjectPrefix,
                         "REPLAY_QUEUE_URL", this.replayQueue.getQueueUrl(),
                         "OFFSETS_TABLE_NAME", this.offsetsTable.getTableName(),
-                        "SOURCE_LAMBDA_FUNCTION_NAME", this.sourceLambda.getFunctionName()
-                ))
-                .functionName(replayBatchLambdaFunctionName)
-                .reservedConcurrentExecutions(1)
-                .timeout(replayBatchLambdaDuration)
-                .build();
+                        "SOURCE_LAMBDA_FUNCTION_NAME", this.sourceLambda.getFunctionName(),
+                        "PROJECTIONS_TABLE_NAME", this.projectionsTable.getTableName()
+                ), withEnvironment(messageGroupEnvironment, withEnvironment(replayShardEnvironment,
+                        withEnvironment(replaySnapshotEnvironment, withEnvironment(projectionWriteEnvironment,
+                                withEnvironment(replayIngestEnvironment, offsetsEnvironment)))))),
+                replayBatchLambdaProfile,
+                replayShards);
+        this.replayBatchLambdaAlias = this.createAlias("ReplayBatchLambdaAlias", this.replayBatchLambda, lambdaUseJavaRuntime, replayBatchLambdaProfile);
         this.replayBatchLambdaLogGroup = new LogGroup(this, "ReplayBatchLambdaLogGroup", LogGroupProps.builder()
                 .logGroupName("/aws/lambda/" + this.replayBatchLambda.getFunctionName())
                 .retention(RetentionDays.THREE_DAYS)
@@ -470,28 +1110,85 @@ public class S3SqsBridgeStack extends Stack {
         this.replayBatchLambda.addToRolePolicy(listMappingPolicy);
         this.replayBatchLambda.addToRolePolicy(updateMappingPolicy);
         this.offsetsTable.grantReadWriteData(this.replayBatchLambda);
-        Provider replayBatchOneOffJobProvider = Provider.Builder.create(this, "ReplayBatchOneOffJobProvider")
-                .onEventHandler(this.replayBatchLambda)
-                .build();
+        if (replayFromSnapshot) {
+            // Loading the latest snapshot writes the projections and rebuilds the digest index.
+            this.replayBatchLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                    .actions(List.of("s3:GetObject"))
+                    .resources(List.of(this.eventsBucket.getBucketArn() + "/" + snapshotPrefix + "*"))
+                    .build());
+            this.projectionsTable.grantReadWriteData(this.replayBatchLambda);
+        }
+        if (replayShards > 1) {
+            // The coordinator starts (or resumes) the run, replays the shards in concurrent invocations of the replay
+            // batch lambda, each retried from its checkpoint when it fails or times out, then completes the run.
+            IFunction replayBatchTarget = this.invocationTarget(this.replayBatchLambda, this.replayBatchLambdaAlias);
+            LambdaInvoke startReplay = LambdaInvoke.Builder.create(this, "StartReplay")
+                    .lambdaFunction(replayBatchTarget)
+                    .payload(TaskInput.fromObject(Map.of("action", "start", "shards", replayShards)))
+                    .payloadResponseOnly(true)
+                    .resultPath("$.start")
+                    .build();
+            LambdaInvoke replayShard = LambdaInvoke.Builder.create(this, "ReplayShard")
+                    .lambdaFunction(replayBatchTarget)
+                    .payload(TaskInput.fromObject(Map.of("action", "shard", "shard", JsonPath.numberAt("$.shard"), "shards", replayShards)))
+                    .payloadResponseOnly(true)
+                    .build();
+            replayShard.addRetry(RetryProps.builder()
+                    .errors(List.of(Errors.ALL))
+                    .interval(Duration.seconds(10))
+                    .backoffRate(2)
+                    .maxAttempts(10)
+                    .build());
+            software.amazon.awscdk.services.stepfunctions.Map replayShardsState = software.amazon.awscdk.services.stepfunctions.Map.Builder.create(this, "ReplayShards")
+                    .itemsPath("$.start.shards")
+                    .itemSelector(Map.of("shard", JsonPath.numberAt("$$.Map.Item.Value")))
+                    .maxConcurrency(replayShards)
+                    .resultPath(JsonPath.DISCARD)
+                    .build();
+            replayShardsState.itemProcessor(replayShard);
+            LambdaInvoke completeReplay = LambdaInvoke.Builder.create(this, "CompleteReplay")
+                    .lambdaFunction(replayBatchTarget)
+                    .payload(TaskInput.fromObject(Map.of("action", "complete", "shards", replayShards)))
+                    .payloadResponseOnly(true)
+                    .build();
+            this.replayStateMachine = StateMachine.Builder.create(this, "ReplayStateMachine")
+                    .definitionBody(DefinitionBody.fromChainable(startReplay.next(replayShardsState).next(completeReplay)))
+                    .timeout(Duration.hours(24))
+                    .build();
+            this.replayStateMachineExecution = AwsCustomResource.Builder.create(this, "ReplayStateMachineExecution")
+                    .onCreate(AwsSdkCall.builder()
+                            .service("SFN")
+                            .action("startExecution")
+                            .parameters(Map.of("stateMachineArn", this.replayStateMachine.getStateMachineArn()))
+                            .physicalResourceId(PhysicalResourceId.of("ReplayStateMachineExecution"))
+                            .build())
+                    .policy(AwsCustomResourcePolicy.fromStatements(List.of(PolicyStatement.Builder.create()
+                            .actions(List.of("states:StartExecution"))
+                            .resources(List.of(this.replayStateMachine.getStateMachineArn()))
+                            .build())))
+                    .build();
+        } else {
+            Provider replayBatchOneOffJobProvider = Provider.Builder.create(this, "ReplayBatchOneOffJobProvider")
+                    .onEventHandler(this.invocationTarget(this.replayBatchLambda, this.replayBatchLambdaAlias))
+                    .build();
 
-        this.replayBatchOneOffJobResource = CustomResource.Builder.create(this, "ReplayBatchOneOffJobResource")
-                .serviceToken(replayBatchOneOffJobProvider.getServiceToken())
-                .build();
+            this.replayBatchOneOffJobResource = CustomResource.Builder.create(this, "ReplayBatchOneOffJobResource")
+                    .serviceToken(replayBatchOneOffJobProvider.getServiceToken())
+                    .build();
+        }
 
-        this.replayLambda = DockerImageFunction.Builder.create(this, "ReplayLambda")
-                .code(DockerImageCode.fromImageAsset(".", AssetImageCodeProps.builder()
-                        .buildArgs(Map.of("HANDLER", lambdaEntry + replayLambdaHandlerFunctionName))
-                        .build()))
-                .environment(Map.of(
+        this.replayLambda = this.createHandlerFunction("ReplayLambda", replayLambdaFunctionName,
+                lambdaUseJavaRuntime ? lambdaJavaEntry : lambdaEntry, replayLambdaHandlerFunctionName, lambdaUseJavaRuntime, lambdaJarPath,
+                withEnvironment(Map.of(
                         "BUCKET_NAME", s3BucketName,
                         "OBJECT_PREFIX", s3ObjectPrefix,
                         "OFFSETS_TABLE_NAME", this.offsetsTable.getTableName(),
                         "PROJECTIONS_TABLE_NAME", this.projectionsTable.getTableName()
-                ))
-                .functionName(replayLambdaFunctionName)
-                .reservedConcurrentExecutions(1)
-                .timeout(replayLambdaDuration)
-                .build();
+                ), withEnvironment(projectionValueEnvironment, withEnvironment(projectionWriteEnvironment,
+                        withEnvironment(replayIngestEnvironment, offsetsEnvironment)))),
+                replayLambdaProfile,
+                replayReservedConcurrency);
+        this.replayLambdaAlias = this.createAlias("ReplayLambdaAlias", this.replayLambda, lambdaUseJavaRuntime, replayLambdaProfile);
         this.replayLambdaLogGroup = new LogGroup(this, "ReplayLambdaLogGroup", LogGroupProps.builder()
                 .logGroupName("/aws/lambda/" + this.replayLambda.getFunctionName())
                 .retention(RetentionDays.THREE_DAYS)
@@ -500,10 +1197,341 @@ public class S3SqsBridgeStack extends Stack {
         this.replayLambda.addToRolePolicy(getObjectPolicy);
         this.offsetsTable.grantReadWriteData(this.replayLambda);
         this.projectionsTable.grantReadWriteData(this.replayLambda);
-        this.replayLambda.addEventSource(new SqsEventSource(this.replayQueue, SqsEventSourceProps.builder()
-                .batchSize(1)
-                .maxBatchingWindow(Duration.seconds(0))
-                .build()));
+        this.invocationTarget(this.replayLambda, this.replayLambdaAlias).addEventSource(new SqsEventSource(this.replayQueue,
+                this.sqsEventSourceProps(replayBatchSize, replayMaxBatchingWindowSeconds, replayMaxConcurrency, replayReportBatchItemFailures, sqsFifoQueues)));
+
+        if (snapshotScheduleMinutes > 0) {
+            this.snapshotLambda = this.createHandlerFunction("SnapshotLambda", snapshotLambdaFunctionName,
+                    lambdaJavaEntry, snapshotLambdaHandlerFunctionName, true, lambdaJarPath,
+                    withEnvironment(Map.of(
+                            "BUCKET_NAME", this.eventsBucket.getBucketName(),
+                            "OBJECT_PREFIX", s3ObjectPrefix,
+                            "REPLAY_QUEUE_URL", this.replayQueue.getQueueUrl(),
+                            "OFFSETS_TABLE_NAME", this.offsetsTable.getTableName(),
+                            "PROJECTIONS_TABLE_NAME", this.projectionsTable.getTableName(),
+                            "SNAPSHOT_PREFIX", snapshotPrefix
+                    ), offsetsEnvironment),
+                    snapshotLambdaProfile,
+                    1);
+            this.snapshotLambdaAlias = this.createAlias("SnapshotLambdaAlias", this.snapshotLambda, true, snapshotLambdaProfile);
+            this.snapshotLambdaLogGroup = new LogGroup(this, "SnapshotLambdaLogGroup", LogGroupProps.builder()
+                    .logGroupName("/aws/lambda/" + this.snapshotLambda.getFunctionName())
+                    .retention(RetentionDays.THREE_DAYS)
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .build());
+            this.snapshotLambda.addToRolePolicy(PolicyStatement.Builder.create()
+                    .actions(List.of("s3:PutObject"))
+                    .resources(List.of(this.eventsBucket.getBucketArn() + "/" + snapshotPrefix + "*"))
+                    .build());
+            this.offsetsTable.grantReadData(this.snapshotLambda);
+            this.projectionsTable.grantReadData(this.snapshotLambda);
+            this.snapshotSchedule = Rule.Builder.create(this, "SnapshotSchedule")
+                    .schedule(Schedule.rate(Duration.minutes(snapshotScheduleMinutes)))
+                    .targets(List.of(new LambdaFunction(this.invocationTarget(this.snapshotLambda, this.snapshotLambdaAlias))))
+                    .build();
+        }
+
+        if (dlqRedriveEnabled) {
+            // Invoked on demand with the queue to redrive, see com.intentïon.S3SqsBridge.runtime.DlqRedriveLambdaHandler.
+            Map<String, IQueue[]> redrives = new LinkedHashMap<>();
+            redrives.put("SOURCE", new IQueue[]{this.sourceDLQ, this.sourceQueue});
+            redrives.put("ORDERED_SOURCE", new IQueue[]{this.orderedSourceQueueDLQ, this.orderedSourceQueue});
+            redrives.put("REPLAY", new IQueue[]{this.replayQueueDLQ, this.replayQueue});
+            redrives.put("DIGEST", new IQueue[]{this.digestQueueDLQ, this.digestQueue});
+            Map<String, String> dlqRedriveEnvironment = new HashMap<>();
+            for (Map.Entry<String, IQueue[]> redrive : redrives.entrySet()) {
+                if (redrive.getValue()[0] != null) {
+                    dlqRedriveEnvironment.put(redrive.getKey() + "_DLQ_URL", redrive.getValue()[0].getQueueUrl());
+                    dlqRedriveEnvironment.put(redrive.getKey() + "_QUEUE_URL", redrive.getValue()[1].getQueueUrl());
+                }
+            }
+            this.dlqRedriveLambda = this.createHandlerFunction("DlqRedriveLambda", dlqRedriveLambdaFunctionName,
+                    lambdaJavaEntry, dlqRedriveLambdaHandlerFunctionName, true, lambdaJarPath,
+                    withEnvironment(messageGroupEnvironment, dlqRedriveEnvironment),
+                    dlqRedriveLambdaProfile,
+                    1);
+            this.dlqRedriveLambdaAlias = this.createAlias("DlqRedriveLambdaAlias", this.dlqRedriveLambda, true, dlqRedriveLambdaProfile);
+            this.dlqRedriveLambdaLogGroup = new LogGroup(this, "DlqRedriveLambdaLogGroup", LogGroupProps.builder()
+                    .logGroupName("/aws/lambda/" + this.dlqRedriveLambda.getFunctionName())
+                    .retention(RetentionDays.THREE_DAYS)
+                    .removalPolicy(RemovalPolicy.DESTROY)
+                    .build());
+            for (IQueue[] redrive : redrives.values()) {
+                if (redrive[0] != null) {
+                    redrive[0].grantConsumeMessages(this.dlqRedriveLambda);
+                    redrive[1].grantSendMessages(this.dlqRedriveLambda);
+                }
+            }
+        }
+
+        this.createMonitoring(queueAgeAlarmSeconds, stageLatencyAlarmMillis);
+    }
+
+    // The stage latencies the handlers write as embedded metric format log lines, see
+    // com.intentïon.S3SqsBridge.runtime.StageMetrics, with the DbQuery stage of the Node handler in src/lib/main.js.
+    private static List<String> stageLatencyMetricNames() {
+        List<String> metricNames = new ArrayList<>();
+        for (StageMetrics.Stage stage : StageMetrics.Stage.values()) {
+            metricNames.add(stage.metricName());
+        }
+        metricNames.add("DbQueryLatency");
+        return metricNames;
+    }
+
+    // A dashboard of the age of the oldest message of each queue and the p50 and p99 stage latencies of each function,
+    // with alarms on both. A queue alarms when its oldest message is older than queueAgeAlarmSeconds and a DLQ as soon
+    // as it holds a message. A function alarms when the p99 of any of its stages exceeds stageLatencyAlarmMillis.
+    private void createMonitoring(int queueAgeAlarmSeconds, int stageLatencyAlarmMillis) {
+        Map<String, IQueue> queues = new LinkedHashMap<>();
+        for (Map.Entry<String, Queue> sourceRouteQueue : this.sourceRouteQueues.entrySet()) {
+            queues.put(sourceRouteQueue.getValue() == this.sourceQueue ? "SourceQueue" : sourceRouteQueueId(sourceRouteQueue.getKey()), sourceRouteQueue.getValue());
+        }
+        queues.put("OrderedSourceQueue", this.orderedSourceQueue);
+        queues.put("ReplayQueue", this.replayQueue);
+        queues.put("DigestQueue", this.digestQueue);
+        Map<String, IQueue> deadLetterQueues = new LinkedHashMap<>();
+        deadLetterQueues.put("SourceDLQ", this.sourceDLQ);
+        deadLetterQueues.put("OrderedSourceQueueDLQ", this.orderedSourceQueueDLQ);
+        deadLetterQueues.put("ReplayQueueDLQ", this.replayQueueDLQ);
+        deadLetterQueues.put("DigestQueueDLQ", this.digestQueueDLQ);
+        Map<String, Function> functions = new LinkedHashMap<>();
+        functions.put("SourceLambda", this.sourceLambda);
+        functions.put("SourceSequencerLambda", this.sourceSequencerLambda);
+        functions.put("ReplayBatchLambda", this.replayBatchLambda);
+        functions.put("ReplayLambda", this.replayLambda);
+        functions.put("SnapshotLambda", this.snapshotLambda);
+
+        this.dashboard = Dashboard.Builder.create(this, "Dashboard").build();
+        this.queueAgeAlarms = new LinkedHashMap<>();
+        List<IMetric> queueAges = new ArrayList<>();
+        List<IMetric> deadLetterQueueAges = new ArrayList<>();
+        for (Map.Entry<String, IQueue> queue : queues.entrySet()) {
+            if (queue.getValue() != null) {
+                queueAges.add(this.createQueueAgeAlarm(queue.getKey(), queue.getValue(), queueAgeAlarmSeconds));
+            }
+        }
+        for (Map.Entry<String, IQueue> queue : deadLetterQueues.entrySet()) {
+            if (queue.getValue() != null) {
+                deadLetterQueueAges.add(this.createQueueAgeAlarm(queue.getKey(), queue.getValue(), 0));
+            }
+        }
+        this.dashboard.addWidgets(
+                GraphWidget.Builder.create().title("Age of oldest message (s)").left(queueAges).width(12).build(),
+                GraphWidget.Builder.create().title("DLQ age of oldest message (s)").left(deadLetterQueueAges).width(12).build());
+
+        this.stageLatencyAlarms = new LinkedHashMap<>();
+        for (Map.Entry<String, Function> function : functions.entrySet()) {
+            if (function.getValue() == null) {
+                continue;
+            }
+            List<IMetric> p50 = new ArrayList<>();
+            List<IMetric> p99 = new ArrayList<>();
+            Map<String, IMetric> alarmMetrics = new LinkedHashMap<>();
+            for (String metricName : stageLatencyMetricNames()) {
+                p50.add(this.stageLatencyMetric(function.getValue(), metricName, "p50"));
+                Metric stageP99 = this.stageLatencyMetric(function.getValue(), metricName, "p99");
+                p99.add(stageP99);
+                alarmMetrics.put("m" + alarmMetrics.size(), stageP99);
+            }
+            this.dashboard.addWidgets(
+                    GraphWidget.Builder.create().title(function.getKey() + " stage latency p50 (ms)").left(p50).width(12).build(),
+                    GraphWidget.Builder.create().title(function.getKey() + " stage latency p99 (ms)").left(p99).width(12).build());
+            this.stageLatencyAlarms.put(function.getKey(), Alarm.Builder.create(this, function.getKey() + "StageLatencyAlarm")
+                    .alarmDescription("The p99 latency of a stage of " + function.getKey() + " exceeds " + stageLatencyAlarmMillis + " ms")
+                    .metric(MathExpression.Builder.create()
+                            .expression("MAX(METRICS())")
+                            .usingMetrics(alarmMetrics)
+                            .label("Slowest stage p99")
+                            .period(Duration.minutes(1))
+                            .build())
+                    .threshold(stageLatencyAlarmMillis)
+                    .comparisonOperator(ComparisonOperator.GREATER_THAN_THRESHOLD)
+                    .evaluationPeriods(5)
+                    .datapointsToAlarm(3)
+                    // A function that is not invoked writes no latencies.
+                    .treatMissingData(TreatMissingData.NOT_BREACHING)
+                    .build());
+        }
+    }
+
+    private IMetric createQueueAgeAlarm(String queueId, IQueue queue, int thresholdSeconds) {
+        IMetric age = queue.metricApproximateAgeOfOldestMessage(MetricOptions.builder()
+                .statistic("Maximum")
+                .period(Duration.minutes(1))
+                .label(queueId)
+                .build());
+        this.queueAgeAlarms.put(queueId, Alarm.Builder.create(this, queueId + "AgeAlarm")
+                .alarmDescription("The oldest message on " + queueId + " is older than " + thresholdSeconds + " s")
+                .metric(age)
+                .threshold(thresholdSeconds)
+                .comparisonOperator(ComparisonOperator.GREATER_THAN_THRESHOLD)
+                .evaluationPeriods(thresholdSeconds == 0 ? 1 : 3)
+                .treatMissingData(TreatMissingData.NOT_BREACHING)
+                .build());
+        return age;
+    }
+
+    private Metric stageLatencyMetric(Function function, String metricName, String statistic) {
+        return Metric.Builder.create()
+                .namespace(StageMetrics.NAMESPACE)
+                .metricName(metricName)
+                .dimensionsMap(Map.of(StageMetrics.DIMENSION, function.getFunctionName()))
+                .statistic(statistic)
+                .period(Duration.minutes(1))
+                .label(metricName)
+                .build();
+    }
+
+    // The Node functions share one image asset and select the handler with the image command (e.g.
+    // src/lib/main.sourceLambdaHandler), the command being function configuration rather than part of the image so the
+    // image is built and pushed once. The Java runtime maps the same handler name to its class (e.g.
+    // com.intentïon.S3SqsBridge.runtime.SourceLambdaHandler).
+    private Function createHandlerFunction(String id, String functionName, String entry, String handlerFunctionName, boolean useJavaRuntime, String jarPath, Map<String, String> environment, LambdaProfile profile, int reservedConcurrentExecutions) {
+        if (profile.provisionedConcurrency() > reservedConcurrentExecutions) {
+            throw new IllegalArgumentException("The provisioned concurrency " + profile.provisionedConcurrency() + " of " + functionName
+                    + " exceeds its reserved concurrency " + reservedConcurrentExecutions);
+        }
+        if (useJavaRuntime) {
+            Map<String, String> javaEnvironment = new HashMap<>(environment);
+            // Stop at C1 which is the usual trade for short-lived Lambda invocations.
+            javaEnvironment.put("JAVA_TOOL_OPTIONS", "-XX:+TieredCompilation -XX:TieredStopAtLevel=1");
+            String handlerClassName = Character.toUpperCase(handlerFunctionName.charAt(0)) + handlerFunctionName.substring(1);
+            Function.Builder javaFunction = Function.Builder.create(this, id)
+                    .runtime(Runtime.JAVA_21)
+                    .code(Code.fromAsset(jarPath))
+                    .handler(entry + handlerClassName + "::handleRequest")
+                    .memorySize(profile.memorySize() != null ? profile.memorySize() : 1024)
+                    .architecture(profile.arm64() ? Architecture.ARM_64 : Architecture.X86_64)
+                    .snapStart(SnapStartConf.ON_PUBLISHED_VERSIONS)
+                    .environment(javaEnvironment)
+                    .functionName(functionName)
+                    .reservedConcurrentExecutions(reservedConcurrentExecutions)
+                    .timeout(Duration.seconds(profile.timeoutSeconds()));
+            if (profile.ephemeralStorageMb() != null) {
+                javaFunction.ephemeralStorageSize(Size.mebibytes(profile.ephemeralStorageMb()));
+            }
+            return javaFunction.build();
+        } else {
+            // A function with a different architecture from the others gets an image built for its platform.
+            DockerImageFunction.Builder imageFunction = DockerImageFunction.Builder.create(this, id)
+                    .code(DockerImageCode.fromImageAsset(".", AssetImageCodeProps.builder()
+                            .target(this.lambdaImageTarget)
+                            .platform(profile.arm64() ? Platform.LINUX_ARM64 : Platform.LINUX_AMD64)
+                            .cmd(List.of(entry + handlerFunctionName))
+                            .build()))
+                    .architecture(profile.arm64() ? Architecture.ARM_64 : Architecture.X86_64)
+                    .environment(environment)
+                    .functionName(functionName)
+                    .reservedConcurrentExecutions(reservedConcurrentExecutions)
+                    .timeout(Duration.seconds(profile.timeoutSeconds()));
+            if (profile.memorySize() != null) {
+                imageFunction.memorySize(profile.memorySize());
+            }
+            if (profile.ephemeralStorageMb() != null) {
+                imageFunction.ephemeralStorageSize(Size.mebibytes(profile.ephemeralStorageMb()));
+            }
+            return imageFunction.build();
+        }
+    }
+
+    // SnapStart and provisioned concurrency only apply to published versions so invocations must go through an alias,
+    // null when the function needs neither.
+    private Alias createAlias(String id, Function function, boolean snapStart, LambdaProfile profile) {
+        if (!snapStart && profile.provisionedConcurrency() == 0) {
+            return null;
+        }
+        Alias.Builder alias = Alias.Builder.create(this, id)
+                .aliasName("live")
+                .version(function.getCurrentVersion());
+        if (profile.provisionedConcurrency() > 0) {
+            alias.provisionedConcurrentExecutions(profile.provisionedConcurrency());
+        }
+        return alias.build();
+    }
+
+    // Twice the consumer's timeout, so a message is not received again while an invocation may still be processing it,
+    // plus the batching window during which the event source mapping holds received messages before invoking.
+    private static Duration visibilityTimeout(LambdaProfile consumerProfile, int maxBatchingWindowSeconds) {
+        return Duration.seconds(consumerProfile.timeoutSeconds() * 2 + maxBatchingWindowSeconds);
+    }
+
+    // A maxConcurrency of 0 leaves the mapping unbounded (the function's reserved concurrency still applies), SQS
+    // requires at least 2 when it is set. Batch item failures need the handler to return SQSBatchResponse. FIFO queues
+    // do not support a batching window or batches of more than 10.
+    private SqsEventSourceProps sqsEventSourceProps(int batchSize, int maxBatchingWindowSeconds, int maxConcurrency, boolean reportBatchItemFailures, boolean fifo) {
+        SqsEventSourceProps.Builder props = SqsEventSourceProps.builder()
+                .batchSize(fifo ? Math.min(batchSize, 10) : batchSize)
+                .reportBatchItemFailures(reportBatchItemFailures);
+        if (!fifo) {
+            props.maxBatchingWindow(Duration.seconds(maxBatchingWindowSeconds));
+        }
+        if (maxConcurrency > 0) {
+            props.maxConcurrency(maxConcurrency);
+        }
+        return props.build();
+    }
+
+    private static String sourceRouteQueueId(String sourceRouteName) {
+        return "SourceQueue" + Character.toUpperCase(sourceRouteName.charAt(0)) + sourceRouteName.substring(1);
+    }
+
+    private static EventType objectCreatedEventType(String event) {
+        return switch (event) {
+            case SourceRoute.PUT -> EventType.OBJECT_CREATED_PUT;
+            case SourceRoute.POST -> EventType.OBJECT_CREATED_POST;
+            case SourceRoute.COPY -> EventType.OBJECT_CREATED_COPY;
+            case SourceRoute.COMPLETE_MULTIPART_UPLOAD -> EventType.OBJECT_CREATED_COMPLETE_MULTIPART_UPLOAD;
+            default -> throw new IllegalArgumentException("Unsupported source route event " + event);
+        };
+    }
+
+    private IFunction invocationTarget(Function function, Alias alias) {
+        return alias != null ? alias : function;
+    }
+
+    // FIFO queue names must end in .fifo, high throughput mode deduplicates and limits throughput per message group.
+    private Queue.Builder createQueue(String id, String queueName, boolean fifo) {
+        Queue.Builder queue = Queue.Builder.create(this, id);
+        if (fifo) {
+            queue.queueName(queueName + ".fifo")
+                    .fifo(true)
+                    .contentBasedDeduplication(false)
+                    .deduplicationScope(DeduplicationScope.MESSAGE_GROUP)
+                    .fifoThroughputLimit(FifoThroughputLimit.PER_MESSAGE_GROUP_ID);
+        } else {
+            queue.queueName(queueName);
+        }
+        return queue;
+    }
+
+    private static Map<String, String> withEnvironment(Map<String, String> environment, Map<String, String> additionalEnvironment) {
+        Map<String, String> merged = new HashMap<>(environment);
+        merged.putAll(additionalEnvironment);
+        return merged;
+    }
+
+    private LambdaProfile getLambdaProfile(LambdaProfile customProfile, String contextKey, LambdaProfile defaults) {
+        return LambdaProfile.parse(this.getConfigValue(toConfigString(customProfile), contextKey, "")).orElse(defaults);
+    }
+
+    private static String toConfigString(Object customValue) {
+        return customValue == null ? null : customValue.toString();
+    }
+
+    // As getConfigValue but falls back to the default when neither a custom value nor a context value is set.
+    private String getConfigValue(String customValue, String contextKey, String defaultValue) {
+        if (customValue == null || customValue.isEmpty()) {
+            Object contextValue = null;
+            try {
+                contextValue = this.getNode().tryGetContext(contextKey);
+            } catch (Exception e) {
+                // NOP
+            }
+            if (contextValue == null || contextValue.toString().isEmpty()) {
+                return defaultValue;
+            }
+        }
+        return this.getConfigValue(customValue, contextKey);
     }
 
     private String getConfigValue(String customValue, String contextKey) {
@@ -0,0 +1,51 @@
+package com.intentïon.S3SqsBridge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * The comma separated "name=value" form that {@link LambdaProfile} and {@link SourceRoute} are written in, in CDK context
+ * and environment variables. The description, e.g. "Lambda profile", names what is being parsed in errors.
+ */
+final class Settings {
+
+    private Settings() {
+    }
+
+    // Parses the settings in order, each name once.
+    static Map<String, String> parse(String description, String text) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (String setting : text.split(",")) {
+            String[] nameValue = setting.split("=", 2);
+            if (nameValue.length != 2 || nameValue[0].isBlank() || nameValue[1].isBlank()) {
+                throw new IllegalArgumentException(description + " setting \"" + setting.trim() + "\" in \"" + text + "\" is malformed");
+            }
+            settings.put(nameValue[0].trim(), nameValue[1].trim());
+        }
+        return settings;
+    }
+
+    // Rejects the settings left once the supported ones have been removed.
+    static void requireNoneLeft(String description, Map<String, String> settings, String text) {
+        if (!settings.isEmpty()) {
+            throw new IllegalArgumentException(description + " settings " + settings.keySet() + " in \"" + text + "\" are not supported");
+        }
+    }
+
+    static void append(StringJoiner settings, String name, Object value) {
+        if (value != null) {
+            settings.add(name + "=" + value);
+        }
+    }
+
+    static Integer intSetting(String value) {
+        return value == null ? null : Integer.valueOf(value);
+    }
+
+    static void requireRange(String description, String name, Integer value, int min, int max) {
+        if (value != null && (value < min || value > max)) {
+            throw new IllegalArgumentException(description + " " + name + " " + value + " is outside " + min + ".." + max);
+        }
+    }
+}
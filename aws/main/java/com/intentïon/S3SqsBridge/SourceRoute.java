@@ -0,0 +1,127 @@
+package com.intentïon.S3SqsBridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * A route of S3 object created notifications to a source queue of its own: the key prefix and suffix the notification
+ * is filtered on, the object created events it is sent for, and the batch size, batching window and maximum concurrency
+ * of the source function's mapping of the queue.
+ * <p>
+ * In CDK context and environment variables routes are written as comma separated settings, one route after another
+ * separated by semicolons, e.g. "name=branches,prefix=events/branches/,suffix=.json;name=tags,prefix=events/tags/".
+ * Events are separated by |, e.g. "events=put|completeMultipartUpload". A setting that is left out (null) takes the
+ * stack's default, see {@link #orElse(String, int, int, int)}.
+ */
+public record SourceRoute(String name, String prefix, String suffix, List<String> events, Integer batchSize,
+                          Integer maxBatchingWindowSeconds, Integer maxConcurrency) {
+
+    public static final String PUT = "put";
+    public static final String POST = "post";
+    public static final String COPY = "copy";
+    public static final String COMPLETE_MULTIPART_UPLOAD = "completeMultipartUpload";
+    public static final List<String> EVENTS = List.of(PUT, POST, COPY, COMPLETE_MULTIPART_UPLOAD);
+    // Objects larger than the single put limit only arrive as multipart uploads.
+    public static final List<String> DEFAULT_EVENTS = List.of(PUT, COMPLETE_MULTIPART_UPLOAD);
+
+    private static final String SETTINGS = "Source route";
+
+    public static final SourceRoute DEFAULT = new SourceRoute("default", null, null, null, null, null, null);
+
+    public SourceRoute {
+        if (name == null || !name.matches("[A-Za-z0-9]{1,40}")) {
+            throw new IllegalArgumentException("A source route name must be 1 to 40 letters or digits: " + name);
+        }
+        if (events != null) {
+            if (events.isEmpty()) {
+                throw new IllegalArgumentException("Source route " + name + " has no events");
+            }
+            for (String event : events) {
+                if (!EVENTS.contains(event)) {
+                    throw new IllegalArgumentException("Unsupported event " + event + " of source route " + name + ", expected one of " + EVENTS);
+                }
+            }
+            events = List.copyOf(events);
+        }
+        Settings.requireRange(SETTINGS, "batchSize", batchSize, 1, 10000);
+        Settings.requireRange(SETTINGS, "maxBatchingWindowSeconds", maxBatchingWindowSeconds, 0, 300);
+        Settings.requireRange(SETTINGS, "maxConcurrency", maxConcurrency, 0, 1000);
+        if (maxConcurrency != null && maxConcurrency == 1) {
+            throw new IllegalArgumentException("maxConcurrency of source route " + name + " must be 0 or at least 2");
+        }
+    }
+
+    // Parses the semicolon separated routes, null or an empty string being no routes.
+    public static List<SourceRoute> parseAll(String routes) {
+        List<SourceRoute> parsed = new ArrayList<>();
+        if (routes != null) {
+            for (String route : routes.split(";")) {
+                if (!route.isBlank()) {
+                    parsed.add(parse(route));
+                }
+            }
+        }
+        return parsed;
+    }
+
+    // Parses the comma separated form of one route, which must have a name.
+    public static SourceRoute parse(String route) {
+        Map<String, String> settings = Settings.parse(SETTINGS, route);
+        String events = settings.remove("events");
+        SourceRoute parsed = new SourceRoute(
+                settings.remove("name"),
+                settings.remove("prefix"),
+                settings.remove("suffix"),
+                events == null ? null : List.of(events.split("\\|")),
+                Settings.intSetting(settings.remove("batchSize")),
+                Settings.intSetting(settings.remove("maxBatchingWindowSeconds")),
+                Settings.intSetting(settings.remove("maxConcurrency")));
+        Settings.requireNoneLeft(SETTINGS, settings, route);
+        return parsed;
+    }
+
+    // The semicolon separated form, so that routes set on the Builder go through the same path as a context value.
+    public static String format(List<SourceRoute> routes) {
+        StringJoiner formatted = new StringJoiner(";");
+        for (SourceRoute route : routes) {
+            formatted.add(route.toString());
+        }
+        return formatted.toString();
+    }
+
+    // The settings of this route, with those that are not set taken from the object prefix, the default events and the
+    // source mapping settings. A route without a suffix matches every key under its prefix.
+    public SourceRoute orElse(String objectPrefix, int batchSize, int maxBatchingWindowSeconds, int maxConcurrency) {
+        return new SourceRoute(
+                this.name,
+                this.prefix != null ? this.prefix : objectPrefix,
+                this.suffix != null ? this.suffix : "",
+                this.events != null ? this.events : DEFAULT_EVENTS,
+                this.batchSize != null ? this.batchSize : batchSize,
+                this.maxBatchingWindowSeconds != null ? this.maxBatchingWindowSeconds : maxBatchingWindowSeconds,
+                this.maxConcurrency != null ? this.maxConcurrency : maxConcurrency);
+    }
+
+    // S3 rejects two notifications of the same event whose keys can both match, i.e. one prefix starts with the other
+    // and one suffix ends with the other. Both routes are resolved with orElse.
+    public boolean overlaps(SourceRoute other) {
+        return this.events.stream().anyMatch(other.events()::contains)
+                && (this.prefix.startsWith(other.prefix()) || other.prefix().startsWith(this.prefix))
+                && (this.suffix.endsWith(other.suffix()) || other.suffix().endsWith(this.suffix));
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner route = new StringJoiner(",");
+        Settings.append(route, "name", this.name);
+        Settings.append(route, "prefix", this.prefix == null || this.prefix.isEmpty() ? null : this.prefix);
+        Settings.append(route, "suffix", this.suffix == null || this.suffix.isEmpty() ? null : this.suffix);
+        Settings.append(route, "events", this.events == null ? null : String.join("|", this.events));
+        Settings.append(route, "batchSize", this.batchSize);
+        Settings.append(route, "maxBatchingWindowSeconds", this.maxBatchingWindowSeconds);
+        Settings.append(route, "maxConcurrency", this.maxConcurrency);
+        return route.toString();
+    }
+}
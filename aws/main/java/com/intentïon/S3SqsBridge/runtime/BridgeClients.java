@@ -0,0 +1,48 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.net.URI;
+
+/**
+ * The SDK clients used by the runtime. Handlers build these once per container (in static initialisers) so that with
+ * SnapStart the initialised clients are captured in the snapshot rather than rebuilt on every cold start.
+ * <p>
+ * The clients do not retry. Throttled and failed calls are retried by {@link FlowControl}, with jittered backoff and a
+ * retry budget, and by the callers' bounded attempts. SDK retries underneath would multiply every attempt and hide the
+ * throttles that cut the concurrency limit. A call not made through FlowControl fails on its first error and is retried
+ * by its caller or by the redelivery of the message that made it.
+ */
+public record BridgeClients(S3Client s3, SqsClient sqs, DynamoDbClient dynamodb) {
+
+    public static BridgeClients create(BridgeConfig config) {
+        URI endpoint = config.awsEndpoint() == null || config.awsEndpoint().isEmpty()
+                ? null
+                : URI.create(config.awsEndpoint());
+
+        ClientOverrideConfiguration noRetries = ClientOverrideConfiguration.builder()
+                .retryPolicy(RetryPolicy.none())
+                .build();
+        var s3Builder = S3Client.builder()
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .overrideConfiguration(noRetries)
+                .forcePathStyle(true);
+        var sqsBuilder = SqsClient.builder()
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .overrideConfiguration(noRetries);
+        var dynamodbBuilder = DynamoDbClient.builder()
+                .httpClientBuilder(UrlConnectionHttpClient.builder())
+                .overrideConfiguration(noRetries);
+        if (endpoint != null) {
+            s3Builder.endpointOverride(endpoint);
+            sqsBuilder.endpointOverride(endpoint);
+            dynamodbBuilder.endpointOverride(endpoint);
+        }
+        return new BridgeClients(s3Builder.build(), sqsBuilder.build(), dynamodbBuilder.build());
+    }
+}
@@ -0,0 +1,126 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import java.util.Map;
+
+/**
+ * Environment driven configuration for the Java projection runtime, mirroring the variables read by src/lib/main.js.
+ */
+public record BridgeConfig(
+        String bucketName,
+        String objectPrefix,
+        String replayQueueUrl,
+        String digestQueueUrl,
+        String orderedSourceQueueUrl,
+        String offsetsTableName,
+        String projectionsTableName,
+        String sourceLambdaFunctionName,
+        String awsEndpoint,
+        int replayMaxActiveKeys,
+        int replaySendConcurrency,
+        int replayCheckpointEvery,
+        long replayCheckpointIntervalMillis,
+        int digestShards,
+        String digestFormat,
+        int digestSnapshotEvery,
+        int messageGroupPrefixSegments,
+        int messageGroupHashBuckets,
+        String projectionValueEncodings,
+        int projectionInlineMaxBytes,
+        int projectionCompressedMaxBytes,
+        int s3FetchCacheBytes,
+        boolean projectionLatestOnly,
+        int replayShards,
+        String replayShardBy,
+        String snapshotPrefix,
+        boolean replayFromSnapshot,
+        long replaySnapshotOverlapMillis,
+        int offsetsShards,
+        String offsetsShardBy,
+        long offsetsTtlSeconds,
+        boolean projectionConditionalWrites,
+        int projectionIndexShards,
+        long projectionTtlSeconds,
+        boolean replayConcurrentIngest) {
+
+    public static final int DEFAULT_REPLAY_SEND_CONCURRENCY = 4;
+    public static final int DEFAULT_REPLAY_CHECKPOINT_EVERY = 1000;
+    public static final int DEFAULT_REPLAY_CHECKPOINT_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_REPLAY_SNAPSHOT_OVERLAP_MILLIS = 60000;
+
+    public static BridgeConfig fromEnvironment() {
+        return fromEnvironment(System.getenv());
+    }
+
+    public static BridgeConfig fromEnvironment(Map<String, String> env) {
+        return new BridgeConfig(
+                env.get("BUCKET_NAME"),
+                env.getOrDefault("OBJECT_PREFIX", ""),
+                env.get("REPLAY_QUEUE_URL"),
+                env.get("DIGEST_QUEUE_URL"),
+                env.get("ORDERED_SOURCE_QUEUE_URL"),
+                env.get("OFFSETS_TABLE_NAME"),
+                env.get("PROJECTIONS_TABLE_NAME"),
+                env.get("SOURCE_LAMBDA_FUNCTION_NAME"),
+                env.get("AWS_ENDPOINT"),
+                intValue(env, "REPLAY_MAX_ACTIVE_KEYS", ReplayPlanner.DEFAULT_MAX_ACTIVE_KEYS),
+                intValue(env, "REPLAY_SEND_CONCURRENCY", DEFAULT_REPLAY_SEND_CONCURRENCY),
+                intValue(env, "REPLAY_CHECKPOINT_EVERY", DEFAULT_REPLAY_CHECKPOINT_EVERY),
+                intValue(env, "REPLAY_CHECKPOINT_INTERVAL_MS", DEFAULT_REPLAY_CHECKPOINT_INTERVAL_MILLIS),
+                intValue(env, "DIGEST_SHARDS", DigestIndex.DEFAULT_SHARDS),
+                DigestPublisher.checkFormat(env.getOrDefault("DIGEST_FORMAT", DigestPublisher.FORMAT_DELTA)),
+                intValue(env, "DIGEST_SNAPSHOT_EVERY", DigestPublisher.DEFAULT_SNAPSHOT_EVERY),
+                intValue(env, "MESSAGE_GROUP_PREFIX_SEGMENTS", 0),
+                intValue(env, "MESSAGE_GROUP_HASH_BUCKETS", 0),
+                env.getOrDefault("PROJECTION_VALUE_ENCODINGS", ""),
+                intValue(env, "PROJECTION_INLINE_MAX_BYTES", ProjectionValueCodec.DEFAULT_INLINE_MAX_BYTES),
+                intValue(env, "PROJECTION_COMPRESSED_MAX_BYTES", ProjectionValueCodec.DEFAULT_COMPRESSED_MAX_BYTES),
+                intValue(env, "S3_FETCH_CACHE_BYTES", S3ObjectFetcher.DEFAULT_CACHE_MAX_BYTES),
+                Boolean.parseBoolean(env.getOrDefault("PROJECTION_LATEST_ONLY", "false")),
+                intValue(env, "REPLAY_SHARDS", 1),
+                env.getOrDefault("REPLAY_SHARD_BY", ReplayShard.BY_PREFIX),
+                env.getOrDefault("SNAPSHOT_PREFIX", ProjectionSnapshots.DEFAULT_PREFIX),
+                Boolean.parseBoolean(env.getOrDefault("REPLAY_FROM_SNAPSHOT", "false")),
+                intValue(env, "REPLAY_SNAPSHOT_OVERLAP_MS", DEFAULT_REPLAY_SNAPSHOT_OVERLAP_MILLIS),
+                intValue(env, "OFFSETS_SHARDS", 0),
+                env.getOrDefault("OFFSETS_SHARD_BY", OffsetShards.BY_HASH),
+                intValue(env, "OFFSETS_TTL_SECONDS", 0),
+                Boolean.parseBoolean(env.getOrDefault("PROJECTION_CONDITIONAL_WRITES", "false")),
+                intValue(env, "PROJECTION_INDEX_SHARDS", 0),
+                intValue(env, "PROJECTION_TTL_SECONDS", 0),
+                Boolean.parseBoolean(env.getOrDefault("REPLAY_CONCURRENT_INGEST", "false")));
+    }
+
+    // The offsets table id under which the last object processed from the bucket is tracked.
+    public String bucketOffsetId() {
+        return this.bucketName + "/" + this.objectPrefix;
+    }
+
+    // The offsets table id of the live lane, the source batches projected while a replay runs.
+    public String liveOffsetId() {
+        return bucketOffsetId() + "#live";
+    }
+
+    public OffsetShards offsetShards() {
+        return new OffsetShards(this.offsetsShards, this.offsetsShardBy);
+    }
+
+    public MessageGroups messageGroups() {
+        return new MessageGroups(this.messageGroupPrefixSegments, this.messageGroupHashBuckets);
+    }
+
+    // Replay beside live ingest needs the version guards so that neither lane overwrites a newer value of the other.
+    public ProjectionWriter.Options projectionWriterOptions() {
+        return new ProjectionWriter.Options(this.projectionConditionalWrites || this.replayConcurrentIngest,
+                this.projectionIndexShards, this.projectionTtlSeconds);
+    }
+
+    public ProjectionValueCodec projectionValueCodec() {
+        return new ProjectionValueCodec(ProjectionValueCodec.parseRules(this.projectionValueEncodings),
+                this.projectionInlineMaxBytes, this.projectionCompressedMaxBytes);
+    }
+
+    private static int intValue(Map<String, String> env, String name, int defaultValue) {
+        String value = env.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,36 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.time.Instant;
+
+/**
+ * Structured log lines in the same shape as logInfo/logError in src/lib/main.js.
+ */
+public final class BridgeLog {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private BridgeLog() {
+    }
+
+    public static void info(String message) {
+        System.out.println(line("info", message, null));
+    }
+
+    public static void error(String message, Throwable error) {
+        System.err.println(line("error", message, error));
+    }
+
+    private static String line(String level, String message, Throwable error) {
+        ObjectNode node = MAPPER.createObjectNode()
+                .put("level", level)
+                .put("timestamp", Instant.now().toString())
+                .put("message", message);
+        if (error != null) {
+            node.put("error", error.toString());
+        }
+        return node.toString();
+    }
+}
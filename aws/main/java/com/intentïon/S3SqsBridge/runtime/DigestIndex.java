@@ -0,0 +1,452 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.Delete;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.Put;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.Update;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Incrementally maintained digest of the projection ids, stored in the projections table beside the projections.
+ * <p>
+ * Each id in the digest has a small membership row "digest#id#&lt;id&gt;", and the shard rows
+ * "digest#0000".."digest#NNNN" hold only the count of their ids and the sum of the ids' 62 bit hashes. An insert or
+ * delete is one TransactWriteItems of the membership row, conditioned on whether it exists, and the counters of a single
+ * shard, so every row it writes stays under 1KB and maintaining the digest costs the same however many projections
+ * there are. Because the hash is a sum it does not depend on the order of updates, and the digest hash is the sum
+ * across shards modulo 2^64. The shard count is stored in "digest#shards" and an index with a different count refuses
+ * to update it until {@link #rebuild} has redistributed the counters.
+ * <p>
+ * The membership rows carry their shard as memberShard, the partition key of the sparse {@link #MEMBER_INDEX}, so the
+ * full id list is read with a Query of each shard's partition, which holds only keys, instead of a Scan of the
+ * projections and their values. {@link #idsMap} (the full digest format and the digest snapshots) and {@link #verify}
+ * read it this way, only {@link #rebuild} scans for every membership row. The index is eventually consistent: a shard
+ * whose ids do not add up to its counters is read again, and one that still does not falls back to a consistent Scan.
+ */
+public class DigestIndex {
+
+    public static final int DEFAULT_SHARDS = 64;
+    public static final String MEMBER_INDEX = "DigestMemberIndex";
+    private static final String SHARD_ID_PREFIX = ProjectionBridge.DIGEST_ID + "#";
+    private static final String MEMBER_ID_PREFIX = SHARD_ID_PREFIX + "id#";
+    private static final String SHARDS_ID = SHARD_ID_PREFIX + "shards";
+    private static final int MAX_BATCH_GET_KEYS = 100;
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    private static final int MAX_INDEX_READS = 3;
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 50;
+    private static final long INDEX_RETRY_DELAY_MILLIS = 100;
+    private static final BigInteger HASH_MODULUS = BigInteger.ONE.shiftLeft(64);
+
+    public record Summary(long count, String hash, int shards) {
+    }
+
+    public record Verification(Summary indexed, long scanned, Set<String> missing, Set<String> unexpected) {
+
+        public boolean consistent() {
+            return this.missing.isEmpty() && this.unexpected.isEmpty();
+        }
+    }
+
+    private final DynamoDbClient dynamodb;
+    private final FlowControl flowControl = FlowControl.of(FlowControl.DYNAMODB);
+    private final String tableName;
+    private final int shards;
+    // Whether the stored shard count has been checked against this index's, once per container.
+    private volatile boolean shardsChecked = false;
+
+    public DigestIndex(DynamoDbClient dynamodb, String tableName, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1 but was " + shards);
+        }
+        this.dynamodb = dynamodb;
+        this.tableName = tableName;
+        this.shards = shards;
+    }
+
+    // True for the digest rows which share the projections table but are not projections.
+    public static boolean isDigestId(String id) {
+        return ProjectionBridge.DIGEST_ID.equals(id) || id.startsWith(SHARD_ID_PREFIX);
+    }
+
+    public static String shardId(int shard) {
+        return String.format("%s%04d", SHARD_ID_PREFIX, shard);
+    }
+
+    static String memberId(String id) {
+        return MEMBER_ID_PREFIX + id;
+    }
+
+    public int shardOf(String id) {
+        return Math.floorMod(Long.hashCode(idHash(id)), this.shards);
+    }
+
+    // Adds the id to its shard, returning false when it was already present.
+    public boolean add(String id) {
+        return update(id, Put.builder()
+                .tableName(this.tableName)
+                .item(memberItem(id))
+                .conditionExpression("attribute_not_exists(id)")
+                .build(), null, 1);
+    }
+
+    // Removes the id from its shard, returning false when it was not present.
+    public boolean remove(String id) {
+        return update(id, null, Delete.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(memberId(id))))
+                .conditionExpression("attribute_exists(id)")
+                .build(), -1);
+    }
+
+    private boolean update(String id, Put put, Delete delete, int sign) {
+        checkShards();
+        Update counters = Update.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(shardId(shardOf(id)))))
+                .updateExpression("ADD idCount :count, idHash :hash")
+                .expressionAttributeValues(Map.of(
+                        ":count", AttributeValue.fromN(Integer.toString(sign)),
+                        ":hash", AttributeValue.fromN(Long.toString(sign * idHash(id)))))
+                .build();
+        try {
+            this.dynamodb.transactWriteItems(TransactWriteItemsRequest.builder()
+                    .transactItems(TransactWriteItem.builder().put(put).delete(delete).build(),
+                            TransactWriteItem.builder().update(counters).build())
+                    .build());
+            return true;
+        } catch (TransactionCanceledException e) {
+            // Only the membership row is conditioned, anything else (e.g. a conflicting transaction) fails the id for redelivery.
+            if (e.hasCancellationReasons() && e.cancellationReasons().stream()
+                    .map(CancellationReason::code)
+                    .anyMatch("ConditionalCheckFailed"::equals)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    // Stores the shard count on first use and refuses to go on with a different one, which would count ids in other
+    // shards than they were added to.
+    private void checkShards() {
+        if (this.shardsChecked) {
+            return;
+        }
+        Map<String, AttributeValue> stored = this.dynamodb.updateItem(UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(SHARDS_ID)))
+                .updateExpression("SET shards = if_not_exists(shards, :shards)")
+                .expressionAttributeValues(Map.of(":shards", AttributeValue.fromN(Integer.toString(this.shards))))
+                .returnValues(ReturnValue.ALL_NEW)
+                .build()).attributes();
+        int storedShards = numberValue(stored, "shards").intValueExact();
+        if (storedShards != this.shards) {
+            throw new IllegalStateException("The digest index has " + storedShards + " shards but " + this.shards
+                    + " are configured, rebuild the digest to change the shard count");
+        }
+        this.shardsChecked = true;
+    }
+
+    // The digest in the format sent to the digest queue: { <id>: { id: <id> } } in id order, read from the member index.
+    public Map<String, Map<String, String>> idsMap() {
+        Map<String, Map<String, String>> idsMap = new LinkedHashMap<>();
+        readMemberIds().forEach(id -> idsMap.put(id, Map.of("id", id)));
+        return idsMap;
+    }
+
+    public Summary summary() {
+        checkShards();
+        long count = 0;
+        BigInteger hash = BigInteger.ZERO;
+        for (Map<String, AttributeValue> shard : readShards()) {
+            count += numberValue(shard, "idCount").longValueExact();
+            hash = hash.add(numberValue(shard, "idHash"));
+        }
+        return new Summary(count, hashString(hash), this.shards);
+    }
+
+    // Overwrites the index from a full list of ids, e.g. the ids from a Scan of the projections table, in this index's
+    // shard count.
+    public Summary rebuild(Collection<String> ids) {
+        Set<String> members = new TreeSet<>();
+        ids.stream().filter(id -> !isDigestId(id)).forEach(members::add);
+        List<WriteRequest> writes = new ArrayList<>();
+        // Every membership row is written again, as its memberShard changes with the shard count.
+        Set<String> indexed = scanMemberIds();
+        for (String id : indexed) {
+            if (!members.contains(id)) {
+                writes.add(WriteRequest.builder().deleteRequest(DeleteRequest.builder()
+                        .key(Map.of("id", AttributeValue.fromS(memberId(id))))
+                        .build()).build());
+            }
+        }
+        for (String id : members) {
+            writes.add(WriteRequest.builder().putRequest(PutRequest.builder()
+                    .item(memberItem(id))
+                    .build()).build());
+        }
+        long[] counts = new long[this.shards];
+        BigInteger[] hashes = new BigInteger[this.shards];
+        Arrays.fill(hashes, BigInteger.ZERO);
+        for (String id : members) {
+            int shard = shardOf(id);
+            counts[shard]++;
+            hashes[shard] = hashes[shard].add(BigInteger.valueOf(idHash(id)));
+        }
+        for (int shard = 0; shard < this.shards; shard++) {
+            writes.add(WriteRequest.builder().putRequest(PutRequest.builder()
+                    .item(Map.of("id", AttributeValue.fromS(shardId(shard)),
+                            "idCount", AttributeValue.fromN(Long.toString(counts[shard])),
+                            "idHash", AttributeValue.fromN(hashes[shard].toString())))
+                    .build()).build());
+        }
+        // The shards of a larger previous count would be counted again if the count were raised later.
+        GetItemResponse previous = this.dynamodb.getItem(GetItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(SHARDS_ID)))
+                .consistentRead(true)
+                .build());
+        int previousShards = previous.hasItem() ? numberValue(previous.item(), "shards").intValueExact() : 0;
+        for (int shard = this.shards; shard < previousShards; shard++) {
+            writes.add(WriteRequest.builder().deleteRequest(DeleteRequest.builder()
+                    .key(Map.of("id", AttributeValue.fromS(shardId(shard))))
+                    .build()).build());
+        }
+        writes.add(WriteRequest.builder().putRequest(PutRequest.builder()
+                .item(Map.of("id", AttributeValue.fromS(SHARDS_ID), "shards", AttributeValue.fromN(Integer.toString(this.shards))))
+                .build()).build());
+        writeAll(writes);
+        this.shardsChecked = true;
+        Summary summary = summary();
+        BridgeLog.info("Rebuilt digest with " + summary.count() + " ids in " + this.shards + " shards, hash " + summary.hash());
+        return summary;
+    }
+
+    // Compares the membership rows against a full list of ids without changing either.
+    public Verification verify(Collection<String> ids) {
+        Set<String> scanned = new TreeSet<>();
+        ids.stream().filter(id -> !isDigestId(id)).forEach(scanned::add);
+        Set<String> indexed = readMemberIds();
+        Set<String> missing = new TreeSet<>(scanned);
+        missing.removeAll(indexed);
+        Set<String> unexpected = new TreeSet<>(indexed);
+        unexpected.removeAll(scanned);
+        return new Verification(summary(), scanned.size(), missing, unexpected);
+    }
+
+    // A sum of id hashes as the 16 hex digits of the sum modulo 2^64.
+    static String hashString(BigInteger hash) {
+        return String.format("%016x", hash.mod(HASH_MODULUS));
+    }
+
+    // The first 62 bits of the SHA-256 of the id, kept positive so that DynamoDB can sum them exactly.
+    static long idHash(String id) {
+        try {
+            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(sha256).getLong() >>> 2;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<Map<String, AttributeValue>> readShards() {
+        List<Map<String, AttributeValue>> items = new ArrayList<>(this.shards);
+        for (int first = 0; first < this.shards; first += MAX_BATCH_GET_KEYS) {
+            List<Map<String, AttributeValue>> keys = new ArrayList<>();
+            for (int shard = first; shard < Math.min(this.shards, first + MAX_BATCH_GET_KEYS); shard++) {
+                keys.add(Map.of("id", AttributeValue.fromS(shardId(shard))));
+            }
+            Map<String, KeysAndAttributes> requestItems = Map.of(this.tableName, KeysAndAttributes.builder()
+                    .keys(keys)
+                    // Using strong consistency in the read so that we see the most recent write.
+                    .consistentRead(true)
+                    .build());
+            while (!requestItems.isEmpty()) {
+                BatchGetItemResponse response = this.dynamodb.batchGetItem(BatchGetItemRequest.builder()
+                        .requestItems(requestItems)
+                        .build());
+                items.addAll(response.responses().getOrDefault(this.tableName, List.of()));
+                requestItems = response.hasUnprocessedKeys() ? response.unprocessedKeys() : Map.of();
+            }
+        }
+        return items;
+    }
+
+    private Map<String, AttributeValue> memberItem(String id) {
+        return Map.of("id", AttributeValue.fromS(memberId(id)),
+                "memberShard", AttributeValue.fromN(Integer.toString(shardOf(id))));
+    }
+
+    private Set<String> readMemberIds() {
+        checkShards();
+        Map<String, Map<String, AttributeValue>> counters = new HashMap<>();
+        for (Map<String, AttributeValue> shard : readShards()) {
+            counters.put(shard.get("id").s(), shard);
+        }
+        Set<String> ids = new TreeSet<>();
+        for (int shard = 0; shard < this.shards; shard++) {
+            Map<String, AttributeValue> counter = counters.getOrDefault(shardId(shard), Map.of());
+            Set<String> shardIds = queryMemberIds(shard);
+            for (int read = 1; !addsUp(shardIds, counter); read++) {
+                if (read == MAX_INDEX_READS) {
+                    // The index lags or the shard is being written, the Scan sees every id that has been added.
+                    BridgeLog.info("Digest shard " + shardId(shard) + " does not match the member index, scanning the table");
+                    return scanMemberIds();
+                }
+                sleep(INDEX_RETRY_DELAY_MILLIS * read);
+                counter = readShard(shard);
+                shardIds = queryMemberIds(shard);
+            }
+            ids.addAll(shardIds);
+        }
+        return ids;
+    }
+
+    private static boolean addsUp(Set<String> ids, Map<String, AttributeValue> counter) {
+        BigInteger hash = BigInteger.ZERO;
+        for (String id : ids) {
+            hash = hash.add(BigInteger.valueOf(idHash(id)));
+        }
+        return ids.size() == numberValue(counter, "idCount").longValueExact() && hash.equals(numberValue(counter, "idHash"));
+    }
+
+    private Set<String> queryMemberIds(int shard) {
+        Set<String> ids = new TreeSet<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            QueryRequest.Builder params = QueryRequest.builder()
+                    .tableName(this.tableName)
+                    .indexName(MEMBER_INDEX)
+                    .keyConditionExpression("memberShard = :shard")
+                    .expressionAttributeValues(Map.of(":shard", AttributeValue.fromN(Integer.toString(shard))));
+            if (lastEvaluatedKey != null) {
+                params.exclusiveStartKey(lastEvaluatedKey);
+            }
+            QueryResponse response = this.dynamodb.query(params.build());
+            for (Map<String, AttributeValue> item : response.items()) {
+                ids.add(item.get("id").s().substring(MEMBER_ID_PREFIX.length()));
+            }
+            lastEvaluatedKey = response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()
+                    ? response.lastEvaluatedKey()
+                    : null;
+        } while (lastEvaluatedKey != null);
+        return ids;
+    }
+
+    private Map<String, AttributeValue> readShard(int shard) {
+        GetItemResponse response = this.dynamodb.getItem(GetItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(shardId(shard))))
+                .consistentRead(true)
+                .build());
+        return response.hasItem() ? response.item() : Map.of();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Set<String> scanMemberIds() {
+        Set<String> ids = new TreeSet<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            ScanRequest.Builder params = ScanRequest.builder()
+                    .tableName(this.tableName)
+                    .projectionExpression("id")
+                    // Using strong consistency in the read so that we see the most recent write.
+                    .consistentRead(true);
+            if (lastEvaluatedKey != null) {
+                params.exclusiveStartKey(lastEvaluatedKey);
+            }
+            ScanResponse response = this.dynamodb.scan(params.build());
+            for (Map<String, AttributeValue> item : response.items()) {
+                String id = item.get("id").s();
+                if (id.startsWith(MEMBER_ID_PREFIX)) {
+                    ids.add(id.substring(MEMBER_ID_PREFIX.length()));
+                }
+            }
+            lastEvaluatedKey = response.hasLastEvaluatedKey() && !response.lastEvaluatedKey().isEmpty()
+                    ? response.lastEvaluatedKey()
+                    : null;
+        } while (lastEvaluatedKey != null);
+        return ids;
+    }
+
+    // Unprocessed items count as a throttle and are retried with full-jitter backoff while the retry budget lasts, as in
+    // ProjectionWriter. A rebuild that still has unwritten items fails, to be run again.
+    private void writeAll(List<WriteRequest> writes) {
+        for (int first = 0; first < writes.size(); first += MAX_BATCH_WRITE_ITEMS) {
+            List<WriteRequest> remaining = writes.subList(first, Math.min(writes.size(), first + MAX_BATCH_WRITE_ITEMS));
+            for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+                FlowControl.Outcome outcome = FlowControl.Outcome.TRANSIENT;
+                RuntimeException error = null;
+                try {
+                    List<WriteRequest> batch = remaining;
+                    BatchWriteItemResponse response = this.flowControl.call(() -> this.dynamodb.batchWriteItem(BatchWriteItemRequest.builder()
+                            .requestItems(Map.of(this.tableName, batch))
+                            .build()));
+                    remaining = response.hasUnprocessedItems() ? response.unprocessedItems().getOrDefault(this.tableName, List.of()) : List.of();
+                    if (!remaining.isEmpty()) {
+                        this.flowControl.onThrottle();
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                    outcome = FlowControl.classify(e);
+                }
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                if (attempt >= MAX_WRITE_ATTEMPTS || outcome == FlowControl.Outcome.FATAL || !this.flowControl.tryRetry()) {
+                    throw new IllegalStateException("Failed to write " + remaining.size() + " digest rows to DynamoDB table "
+                            + this.tableName + " after " + attempt + " attempts", error);
+                }
+                this.flowControl.backoff(RETRY_DELAY_MILLIS, attempt + 1);
+            }
+        }
+    }
+
+    private static BigInteger numberValue(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null || value.n() == null ? BigInteger.ZERO : new BigInteger(value.n());
+    }
+}
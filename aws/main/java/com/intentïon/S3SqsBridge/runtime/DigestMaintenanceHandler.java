@@ -0,0 +1,71 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Explicit maintenance job for the digest index, the only place the projections table is scanned in full.
+ * Invoked with { "action": "verify" } (the default) to compare the index with the table, { "action": "rebuild" } to
+ * overwrite the index from the table, or { "action": "snapshot" } to write a digest snapshot and send its pointer to
+ * the digest queue, see {@link DigestPublisher}.
+ */
+public class DigestMaintenanceHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private final ProjectionBridge bridge;
+
+    // The Lambda runtime constructs the handler during the init phase so the bridge is in the SnapStart snapshot.
+    public DigestMaintenanceHandler() {
+        this(ProjectionRuntime.bridge());
+    }
+
+    public DigestMaintenanceHandler(ProjectionBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> event, Context context) {
+        try {
+            return handle(event);
+        } finally {
+            this.bridge.metrics().emit(StageMetrics.functionName("digestMaintenanceHandler"));
+        }
+    }
+
+    private Map<String, Object> handle(Map<String, Object> event) {
+        BridgeLog.info("Digest Maintenance Lambda received event: " + event);
+        String action = event == null ? "verify" : String.valueOf(event.getOrDefault("action", "verify"));
+        Map<String, Object> response = new HashMap<>();
+        response.put("handler", getClass().getName() + "::handleRequest");
+        response.put("action", action);
+        DigestIndex.Summary summary;
+        switch (action) {
+            case "rebuild" -> summary = this.bridge.rebuildDigest();
+            case "snapshot" -> {
+                DigestPublisher.Snapshot snapshot = this.bridge.snapshotDigest();
+                summary = new DigestIndex.Summary(snapshot.count(), snapshot.hash(), this.bridge.getConfig().digestShards());
+                response.put("sequence", snapshot.sequence());
+                response.put("key", snapshot.key());
+            }
+            case "verify" -> {
+                DigestIndex.Verification verification = this.bridge.verifyDigest();
+                summary = verification.indexed();
+                response.put("consistent", verification.consistent());
+                response.put("scanned", verification.scanned());
+                response.put("missing", verification.missing());
+                response.put("unexpected", verification.unexpected());
+                // The running count and hash of the deltas only match the index when no batch is in flight.
+                DigestPublisher.Sequence sequence = this.bridge.digestSequence();
+                response.put("sequence", sequence.sequence());
+                response.put("deltasConsistent", sequence.count() == summary.count() && sequence.hash().equals(summary.hash()));
+            }
+            default -> throw new IllegalArgumentException("Unsupported digest action: " + action);
+        }
+        response.put("count", summary.count());
+        response.put("hash", summary.hash());
+        response.put("shards", summary.shards());
+        return response;
+    }
+}
@@ -0,0 +1,242 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Numbers the changes to the digest index and turns them into digest queue messages that do not grow with the table.
+ * <p>
+ * Each batch that changes the index adds one to the sequence of the "digest#delta" row of the projections table, in the
+ * same UpdateItem that adds the batch's changes to the row's running id count and hash. A delta message carries the ids
+ * the batch added, changed (projected again while already in the digest) and removed, with the sequence and the count
+ * and hash after the batch. Because the hash is the same sum as {@link DigestIndex}'s, a consumer that applies the
+ * deltas in sequence order can check its id set against them, and on a gap or a mismatch it loads the latest snapshot.
+ * <p>
+ * A snapshot is the full id list, gzipped JSON under "&lt;snapshotPrefix&gt;digest/", taken every snapshotEvery deltas,
+ * after a replay or rebuild has changed the index without deltas, or on request. Only a pointer to it is sent, in place
+ * of the delta of the batch that took it. The ids are read after the sequence is incremented, so a snapshot holds every
+ * delta up to its sequence and possibly some later ones, which are sets and so can be applied again. "latest.json"
+ * under the same prefix is the latest pointer.
+ */
+public class DigestPublisher {
+
+    public static final String FORMAT_DELTA = "delta";
+    public static final String FORMAT_FULL = "full";
+    public static final int DEFAULT_SNAPSHOT_EVERY = 1000;
+    public static final String SEQUENCE_ID = ProjectionBridge.DIGEST_ID + "#delta";
+    public static final String SNAPSHOT_PATH = "digest/";
+    // Well under the 256KB SQS limit, a larger delta (a huge batch with long keys) is replaced by a snapshot.
+    static final int MAX_DELTA_BYTES = 200_000;
+
+    public record Delta(long sequence, List<String> added, List<String> changed, List<String> removed, long count,
+                        String hash, boolean snapshotDue) {
+    }
+
+    public record Snapshot(long sequence, String bucket, String key, long count, String hash) {
+    }
+
+    public record Sequence(long sequence, long count, String hash) {
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final DynamoDbClient dynamodb;
+    private final S3Client s3;
+    private final DigestIndex digestIndex;
+    private final String tableName;
+    private final String bucket;
+    private final String prefix;
+    private final int snapshotEvery;
+
+    public DigestPublisher(DynamoDbClient dynamodb, S3Client s3, DigestIndex digestIndex, String tableName, String bucket,
+                           String snapshotPrefix, int snapshotEvery) {
+        if (snapshotEvery < 0) {
+            throw new IllegalArgumentException("snapshotEvery must not be negative but was " + snapshotEvery);
+        }
+        this.dynamodb = dynamodb;
+        this.s3 = s3;
+        this.digestIndex = digestIndex;
+        this.tableName = tableName;
+        this.bucket = bucket;
+        this.prefix = snapshotPrefix + SNAPSHOT_PATH;
+        this.snapshotEvery = snapshotEvery;
+    }
+
+    public static String checkFormat(String format) {
+        if (!FORMAT_DELTA.equals(format) && !FORMAT_FULL.equals(format)) {
+            throw new IllegalArgumentException("Unsupported digest format " + format + ", expected " + FORMAT_DELTA + " or " + FORMAT_FULL);
+        }
+        return format;
+    }
+
+    // Numbers a batch's changes to the index. Changes made without sending the delta (replay) mark a snapshot as due
+    // so that consumers can catch up with them.
+    public Delta record(Collection<String> added, Collection<String> changed, Collection<String> removed, boolean sent) {
+        BigInteger hash = BigInteger.ZERO;
+        for (String id : added) {
+            hash = hash.add(BigInteger.valueOf(DigestIndex.idHash(id)));
+        }
+        for (String id : removed) {
+            hash = hash.subtract(BigInteger.valueOf(DigestIndex.idHash(id)));
+        }
+        Map<String, AttributeValue> item = this.dynamodb.updateItem(UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(SEQUENCE_ID)))
+                .updateExpression(sent
+                        ? "ADD #sequence :one, idCount :count, idHash :hash"
+                        : "ADD #sequence :one, idCount :count, idHash :hash SET snapshotDue = :true")
+                .expressionAttributeNames(Map.of("#sequence", "sequence"))
+                .expressionAttributeValues(sent
+                        ? Map.of(":one", AttributeValue.fromN("1"),
+                                ":count", AttributeValue.fromN(Integer.toString(added.size() - removed.size())),
+                                ":hash", AttributeValue.fromN(hash.toString()))
+                        : Map.of(":one", AttributeValue.fromN("1"),
+                                ":count", AttributeValue.fromN(Integer.toString(added.size() - removed.size())),
+                                ":hash", AttributeValue.fromN(hash.toString()),
+                                ":true", AttributeValue.fromBool(true)))
+                .returnValues(ReturnValue.ALL_NEW)
+                .build()).attributes();
+        long sequence = numberValue(item, "sequence").longValueExact();
+        boolean snapshotDue = item.containsKey("snapshotDue")
+                || (this.snapshotEvery > 0 && sequence - numberValue(item, "snapshotSequence").longValueExact() >= this.snapshotEvery);
+        return new Delta(sequence, List.copyOf(added), List.copyOf(changed), List.copyOf(removed),
+                numberValue(item, "idCount").longValueExact(), DigestIndex.hashString(numberValue(item, "idHash")), snapshotDue);
+    }
+
+    // Resets the running count and hash to a rebuilt index, which consumers catch up with from the next snapshot.
+    public long reset(DigestIndex.Summary summary) {
+        Map<String, AttributeValue> item = this.dynamodb.updateItem(UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(SEQUENCE_ID)))
+                .updateExpression("ADD #sequence :one SET idCount = :count, idHash = :hash, snapshotDue = :true")
+                .expressionAttributeNames(Map.of("#sequence", "sequence"))
+                .expressionAttributeValues(Map.of(
+                        ":one", AttributeValue.fromN("1"),
+                        ":count", AttributeValue.fromN(Long.toString(summary.count())),
+                        ":hash", AttributeValue.fromN(new BigInteger(summary.hash(), 16).toString()),
+                        ":true", AttributeValue.fromBool(true)))
+                .returnValues(ReturnValue.ALL_NEW)
+                .build()).attributes();
+        return numberValue(item, "sequence").longValueExact();
+    }
+
+    // The last sequence with the running count and hash after it.
+    public Sequence current() {
+        GetItemResponse result = this.dynamodb.getItem(GetItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(SEQUENCE_ID)))
+                .consistentRead(true)
+                .build());
+        Map<String, AttributeValue> item = result.hasItem() ? result.item() : Map.of();
+        return new Sequence(numberValue(item, "sequence").longValueExact(), numberValue(item, "idCount").longValueExact(),
+                DigestIndex.hashString(numberValue(item, "idHash")));
+    }
+
+    // The current sequence, incremented so that the snapshot taken at it is ordered after every delta sent before.
+    public long nextSequence() {
+        Map<String, AttributeValue> item = this.dynamodb.updateItem(UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(Map.of("id", AttributeValue.fromS(SEQUENCE_ID)))
+                .updateExpression("ADD #sequence :one")
+                .expressionAttributeNames(Map.of("#sequence", "sequence"))
+                .expressionAttributeValues(Map.of(":one", AttributeValue.fromN("1")))
+                .returnValues(ReturnValue.ALL_NEW)
+                .build()).attributes();
+        return numberValue(item, "sequence").longValueExact();
+    }
+
+    // Writes the ids in the index as the snapshot at the sequence, points "latest.json" at it and clears snapshotDue.
+    public Snapshot snapshot(long sequence) {
+        Set<String> ids = this.digestIndex.idsMap().keySet();
+        BigInteger hash = BigInteger.ZERO;
+        ObjectNode body = this.mapper.createObjectNode();
+        ArrayNode idsNode = this.mapper.createArrayNode();
+        for (String id : ids) {
+            hash = hash.add(BigInteger.valueOf(DigestIndex.idHash(id)));
+            idsNode.add(id);
+        }
+        String key = this.prefix + String.format("digest-%019d.json.gz", sequence);
+        Snapshot snapshot = new Snapshot(sequence, this.bucket, key, ids.size(), DigestIndex.hashString(hash));
+        body.put("sequence", sequence).put("count", snapshot.count()).put("hash", snapshot.hash()).set("ids", idsNode);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to compress digest snapshot " + key, e);
+        }
+        this.s3.putObject(PutObjectRequest.builder()
+                .bucket(this.bucket)
+                .key(key)
+                .contentType("application/json")
+                .contentEncoding("gzip")
+                .build(), RequestBody.fromBytes(gzipped.toByteArray()));
+        try {
+            this.dynamodb.updateItem(UpdateItemRequest.builder()
+                    .tableName(this.tableName)
+                    .key(Map.of("id", AttributeValue.fromS(SEQUENCE_ID)))
+                    .updateExpression("SET snapshotSequence = :sequence REMOVE snapshotDue")
+                    .conditionExpression("attribute_not_exists(snapshotSequence) OR snapshotSequence < :sequence")
+                    .expressionAttributeValues(Map.of(":sequence", AttributeValue.fromN(Long.toString(sequence))))
+                    .build());
+            this.s3.putObject(PutObjectRequest.builder()
+                    .bucket(this.bucket)
+                    .key(this.prefix + ProjectionSnapshots.LATEST)
+                    .contentType("application/json")
+                    .build(), RequestBody.fromString(snapshotMessage(snapshot).toString()));
+        } catch (ConditionalCheckFailedException e) {
+            // A concurrent snapshot at a later sequence stays the latest.
+            BridgeLog.info("A digest snapshot after sequence " + sequence + " was already taken");
+        }
+        BridgeLog.info("Wrote digest snapshot of " + snapshot.count() + " ids at sequence " + sequence + " to " + key);
+        return snapshot;
+    }
+
+    // The delta message, or null when it would be too large and a snapshot should be sent instead.
+    public ObjectNode deltaMessage(Delta delta) {
+        ObjectNode message = this.mapper.createObjectNode()
+                .put("type", FORMAT_DELTA)
+                .put("sequence", delta.sequence())
+                .put("count", delta.count())
+                .put("hash", delta.hash());
+        delta.added().forEach(message.putArray("added")::add);
+        delta.changed().forEach(message.putArray("changed")::add);
+        delta.removed().forEach(message.putArray("removed")::add);
+        return message.toString().getBytes(StandardCharsets.UTF_8).length > MAX_DELTA_BYTES ? null : message;
+    }
+
+    public ObjectNode snapshotMessage(Snapshot snapshot) {
+        return this.mapper.createObjectNode()
+                .put("type", "snapshot")
+                .put("sequence", snapshot.sequence())
+                .put("count", snapshot.count())
+                .put("hash", snapshot.hash())
+                .put("bucket", snapshot.bucket())
+                .put("key", snapshot.key());
+    }
+
+    private static BigInteger numberValue(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null || value.n() == null ? BigInteger.ZERO : new BigInteger(value.n());
+    }
+}
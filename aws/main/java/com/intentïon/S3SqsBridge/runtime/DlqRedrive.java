@@ -0,0 +1,419 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Moves the messages of a dead-letter queue back to the queue they came from, with several workers each receiving up to
+ * 10 messages, sending them with SendMessageBatch and deleting them with DeleteMessageBatch.
+ * <p>
+ * A filter ("name=regex") redrives only the messages with a message attribute or system attribute of that name whose
+ * value matches, "body=regex" matching the message body. Messages that do not match, and in a dry run every message, stay
+ * on the dead-letter queue and reappear when their visibility timeout expires. maxMessagesPerSecond limits the sends
+ * across all workers.
+ * <p>
+ * A FIFO target receives each message in the message group of its object key (see {@link MessageGroups}), or in the
+ * group it had on a FIFO dead-letter queue. A send holds at most one message per group and once a message fails the rest
+ * of its group is left on the dead-letter queue, so each key's messages arrive in the order they were received.
+ * <p>
+ * Usage: DlqRedrive --source dlqUrl --target queueUrl [--concurrency 4] [--maxMessagesPerSecond 0] [--maxMessages 0]
+ * [--filter name=regex] [--dryRun false] [--visibilityTimeoutSeconds 300] [--waitTimeSeconds 1]
+ */
+public class DlqRedrive {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_VISIBILITY_TIMEOUT_SECONDS = 300;
+    public static final int DEFAULT_WAIT_TIME_SECONDS = 1;
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    // Short receives can come back empty while messages remain, so a worker stops after several in a row.
+    private static final int EMPTY_RECEIVES_TO_STOP = 2;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * maxMessages (0 for all), maxMessagesPerSecond (0 for no limit) and maxDurationMillis (0 for no limit) bound the
+     * run, messageGroups is used when the target is a FIFO queue.
+     */
+    public record Options(String sourceQueueUrl, String targetQueueUrl, int concurrency, int maxMessagesPerSecond,
+                          long maxMessages, String filter, boolean dryRun, int visibilityTimeoutSeconds,
+                          int waitTimeSeconds, long maxDurationMillis, MessageGroups messageGroups) {
+
+        public Options {
+            if (sourceQueueUrl == null || sourceQueueUrl.isEmpty() || targetQueueUrl == null || targetQueueUrl.isEmpty()) {
+                throw new IllegalArgumentException("A redrive needs a source and a target queue url");
+            }
+            if (sourceQueueUrl.equals(targetQueueUrl)) {
+                throw new IllegalArgumentException("The redrive source and target are the same queue: " + sourceQueueUrl);
+            }
+            if (concurrency < 1 || maxMessagesPerSecond < 0 || maxMessages < 0 || maxDurationMillis < 0) {
+                throw new IllegalArgumentException("Invalid redrive limits: concurrency " + concurrency + ", maxMessagesPerSecond "
+                        + maxMessagesPerSecond + ", maxMessages " + maxMessages + ", maxDurationMillis " + maxDurationMillis);
+            }
+            DlqRedrive.filter(filter);
+        }
+
+        public static Options of(String sourceQueueUrl, String targetQueueUrl) {
+            return new Options(sourceQueueUrl, targetQueueUrl, DEFAULT_CONCURRENCY, 0, 0, null, false,
+                    DEFAULT_VISIBILITY_TIMEOUT_SECONDS, DEFAULT_WAIT_TIME_SECONDS, 0, new MessageGroups(0, 0));
+        }
+
+        public Options withLimits(int concurrency, int maxMessagesPerSecond, long maxMessages, long maxDurationMillis) {
+            return new Options(this.sourceQueueUrl, this.targetQueueUrl, concurrency, maxMessagesPerSecond, maxMessages,
+                    this.filter, this.dryRun, this.visibilityTimeoutSeconds, this.waitTimeSeconds, maxDurationMillis, this.messageGroups);
+        }
+
+        public Options withFilter(String filter, boolean dryRun) {
+            return new Options(this.sourceQueueUrl, this.targetQueueUrl, this.concurrency, this.maxMessagesPerSecond, this.maxMessages,
+                    filter, dryRun, this.visibilityTimeoutSeconds, this.waitTimeSeconds, this.maxDurationMillis, this.messageGroups);
+        }
+
+        public Options withReceive(int visibilityTimeoutSeconds, int waitTimeSeconds) {
+            return new Options(this.sourceQueueUrl, this.targetQueueUrl, this.concurrency, this.maxMessagesPerSecond, this.maxMessages,
+                    this.filter, this.dryRun, visibilityTimeoutSeconds, waitTimeSeconds, this.maxDurationMillis, this.messageGroups);
+        }
+
+        public Options withMessageGroups(MessageGroups messageGroups) {
+            return new Options(this.sourceQueueUrl, this.targetQueueUrl, this.concurrency, this.maxMessagesPerSecond, this.maxMessages,
+                    this.filter, this.dryRun, this.visibilityTimeoutSeconds, this.waitTimeSeconds, this.maxDurationMillis, messageGroups);
+        }
+    }
+
+    // In a dry run redriven counts the messages that would have been redriven.
+    public record Result(long received, long redriven, long skipped, long failed, boolean dryRun) {
+    }
+
+    private final SqsClient sqs;
+    private final FlowControl flowControl = FlowControl.of(FlowControl.SQS);
+    private final Options options;
+    private final Predicate<Message> filter;
+    private final boolean fifoTarget;
+    private final LongSupplier clock;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong redriven = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong budget;
+    private long nextSendNanos;
+
+    public DlqRedrive(SqsClient sqs, Options options) {
+        this(sqs, options, System::currentTimeMillis);
+    }
+
+    public DlqRedrive(SqsClient sqs, Options options, LongSupplier clock) {
+        this.sqs = sqs;
+        this.options = options;
+        this.filter = filter(options.filter());
+        this.fifoTarget = MessageGroups.isFifoQueue(options.targetQueueUrl());
+        this.clock = clock;
+        this.budget = new AtomicLong(options.maxMessages() > 0 ? options.maxMessages() : Long.MAX_VALUE);
+    }
+
+    public Result run() {
+        long deadline = this.options.maxDurationMillis() > 0 ? this.clock.getAsLong() + this.options.maxDurationMillis() : Long.MAX_VALUE;
+        ExecutorService executor = Executors.newFixedThreadPool(this.options.concurrency());
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < this.options.concurrency(); i++) {
+                workers.add(executor.submit(() -> work(deadline)));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted redriving " + this.options.sourceQueueUrl(), e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed redriving " + this.options.sourceQueueUrl() + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        Result result = new Result(this.received.get(), this.redriven.get(), this.skipped.get(), this.failed.get(), this.options.dryRun());
+        BridgeLog.info((this.options.dryRun() ? "Dry run of redrive" : "Redrove") + " from " + this.options.sourceQueueUrl()
+                + " to " + this.options.targetQueueUrl() + ": " + result);
+        return result;
+    }
+
+    private void work(long deadline) {
+        int emptyReceives = 0;
+        while (emptyReceives < EMPTY_RECEIVES_TO_STOP && this.clock.getAsLong() < deadline) {
+            int reserved = reserve();
+            if (reserved == 0) {
+                return;
+            }
+            List<Message> messages = this.sqs.receiveMessage(ReceiveMessageRequest.builder()
+                    .queueUrl(this.options.sourceQueueUrl())
+                    .maxNumberOfMessages(reserved)
+                    .visibilityTimeout(this.options.visibilityTimeoutSeconds())
+                    .waitTimeSeconds(this.options.waitTimeSeconds())
+                    .messageAttributeNames("All")
+                    .messageSystemAttributeNamesWithStrings("All")
+                    .build()).messages();
+            this.budget.addAndGet(reserved - messages.size());
+            emptyReceives = messages.isEmpty() ? emptyReceives + 1 : 0;
+            this.received.addAndGet(messages.size());
+            List<Message> matching = new ArrayList<>();
+            for (Message message : messages) {
+                if (this.filter.test(message)) {
+                    matching.add(message);
+                } else {
+                    this.skipped.incrementAndGet();
+                }
+            }
+            if (this.options.dryRun()) {
+                this.redriven.addAndGet(matching.size());
+            } else if (!matching.isEmpty()) {
+                redrive(matching);
+            }
+        }
+    }
+
+    // Takes up to 10 messages from the maxMessages budget.
+    private int reserve() {
+        while (true) {
+            long remaining = this.budget.get();
+            int reserved = (int) Math.min(ReplaySender.MAX_BATCH_ENTRIES, remaining);
+            if (this.budget.compareAndSet(remaining, remaining - reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    private void redrive(List<Message> messages) {
+        Map<String, Message> entryMessages = new LinkedHashMap<>();
+        Map<String, String> entryGroupIds = new HashMap<>();
+        List<SendMessageBatchRequestEntry> pending = new ArrayList<>();
+        for (Message message : messages) {
+            String entryId = Integer.toString(pending.size());
+            SendMessageBatchRequestEntry.Builder entry = SendMessageBatchRequestEntry.builder()
+                    .id(entryId)
+                    .messageBody(message.body())
+                    .messageAttributes(message.messageAttributes());
+            if (this.fifoTarget) {
+                String messageGroupId = messageGroupId(message);
+                entry.messageGroupId(messageGroupId).messageDeduplicationId(deduplicationId(message));
+                entryGroupIds.put(entryId, messageGroupId);
+            }
+            pending.add(entry.build());
+            entryMessages.put(entryId, message);
+        }
+        List<Message> sent = new ArrayList<>();
+        Set<String> failedMessageGroups = new HashSet<>();
+        while (!pending.isEmpty()) {
+            List<SendMessageBatchRequestEntry> batch = new ArrayList<>();
+            Set<String> batchMessageGroups = new HashSet<>();
+            for (Iterator<SendMessageBatchRequestEntry> iterator = pending.iterator(); iterator.hasNext(); ) {
+                SendMessageBatchRequestEntry entry = iterator.next();
+                String messageGroupId = entryGroupIds.get(entry.id());
+                if (messageGroupId != null && failedMessageGroups.contains(messageGroupId)) {
+                    this.failed.incrementAndGet();
+                    iterator.remove();
+                } else if (messageGroupId == null || batchMessageGroups.add(messageGroupId)) {
+                    batch.add(entry);
+                    iterator.remove();
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            acquire(batch.size());
+            Set<String> failedEntryIds = new HashSet<>();
+            for (SendMessageBatchRequestEntry entry : send(batch)) {
+                failedEntryIds.add(entry.id());
+                if (entryGroupIds.containsKey(entry.id())) {
+                    failedMessageGroups.add(entryGroupIds.get(entry.id()));
+                }
+                this.failed.incrementAndGet();
+            }
+            batch.stream()
+                    .filter(entry -> !failedEntryIds.contains(entry.id()))
+                    .forEach(entry -> sent.add(entryMessages.get(entry.id())));
+        }
+        delete(sent);
+        this.redriven.addAndGet(sent.size());
+    }
+
+    // Sends the batch, retrying failed entries through the SQS flow control, and returns the entries that could not be
+    // sent. Entries failed by a sender fault are not retried.
+    private List<SendMessageBatchRequestEntry> send(List<SendMessageBatchRequestEntry> batch) {
+        List<SendMessageBatchRequestEntry> remaining = batch;
+        for (int attempt = 1; !remaining.isEmpty(); attempt++) {
+            Set<String> failedEntryIds = new HashSet<>();
+            boolean retryable = false;
+            boolean throttled = false;
+            try {
+                List<SendMessageBatchRequestEntry> entries = remaining;
+                SendMessageBatchResponse response = this.flowControl.call(() -> this.sqs.sendMessageBatch(SendMessageBatchRequest.builder()
+                        .queueUrl(this.options.targetQueueUrl())
+                        .entries(entries)
+                        .build()));
+                if (response.hasFailed()) {
+                    for (BatchResultErrorEntry failure : response.failed()) {
+                        FlowControl.Outcome outcome = FlowControl.classify(failure.code(), failure.senderFault());
+                        failedEntryIds.add(failure.id());
+                        retryable |= outcome != FlowControl.Outcome.FATAL;
+                        throttled |= outcome == FlowControl.Outcome.THROTTLE;
+                    }
+                }
+            } catch (RuntimeException e) {
+                BridgeLog.error("Failed to send " + remaining.size() + " messages to " + this.options.targetQueueUrl(), e);
+                remaining.forEach(entry -> failedEntryIds.add(entry.id()));
+                retryable = FlowControl.classify(e) != FlowControl.Outcome.FATAL;
+            }
+            if (throttled) {
+                this.flowControl.onThrottle();
+            }
+            remaining = remaining.stream().filter(entry -> failedEntryIds.contains(entry.id())).toList();
+            if (remaining.isEmpty() || attempt == MAX_SEND_ATTEMPTS || !retryable || !this.flowControl.tryRetry()) {
+                break;
+            }
+            this.flowControl.backoff(RETRY_DELAY_MILLIS, attempt);
+        }
+        return remaining;
+    }
+
+    private void delete(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+        for (Message message : messages) {
+            entries.add(DeleteMessageBatchRequestEntry.builder()
+                    .id(Integer.toString(entries.size()))
+                    .receiptHandle(message.receiptHandle())
+                    .build());
+        }
+        DeleteMessageBatchResponse response = this.sqs.deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                .queueUrl(this.options.sourceQueueUrl())
+                .entries(entries)
+                .build());
+        if (response.hasFailed() && !response.failed().isEmpty()) {
+            // The messages were sent, so they will be redriven again as duplicates when they reappear.
+            BridgeLog.info("Failed to delete " + response.failed().size() + " redriven messages from " + this.options.sourceQueueUrl());
+        }
+    }
+
+    // Spaces the sends of all workers to maxMessagesPerSecond.
+    private void acquire(int permits) {
+        if (this.options.maxMessagesPerSecond() <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            this.nextSendNanos = Math.max(this.nextSendNanos, now);
+            waitNanos = this.nextSendNanos - now;
+            this.nextSendNanos += permits * 1_000_000_000L / this.options.maxMessagesPerSecond();
+        }
+        if (waitNanos > 0) {
+            sleep(waitNanos / 1_000_000);
+        }
+    }
+
+    // The group the message had on a FIFO dead-letter queue, else the group of its object key, else a group of its own.
+    private String messageGroupId(Message message) {
+        String messageGroupId = message.attributesAsStrings().get("MessageGroupId");
+        if (messageGroupId != null) {
+            return messageGroupId;
+        }
+        JsonNode object = s3Object(message);
+        return object == null ? message.messageId() : this.options.messageGroups().groupId(object.path("key").asText());
+    }
+
+    private String deduplicationId(Message message) {
+        JsonNode object = s3Object(message);
+        return object == null
+                ? message.messageId()
+                : this.options.messageGroups().deduplicationId(object.path("key").asText(), object.path("versionId").asText(null));
+    }
+
+    private static JsonNode s3Object(Message message) {
+        try {
+            JsonNode object = MAPPER.readTree(message.body()).path("Records").path(0).path("s3").path("object");
+            return object.hasNonNull("key") ? object : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static Predicate<Message> filter(String filter) {
+        if (filter == null || filter.isBlank()) {
+            return message -> true;
+        }
+        String[] nameRegex = filter.split("=", 2);
+        if (nameRegex.length != 2 || nameRegex[0].isBlank()) {
+            throw new IllegalArgumentException("Malformed redrive filter \"" + filter + "\", expected name=regex");
+        }
+        String name = nameRegex[0].trim();
+        Pattern pattern = Pattern.compile(nameRegex[1]);
+        return message -> {
+            String value;
+            if ("body".equals(name)) {
+                value = message.body();
+            } else {
+                MessageAttributeValue attribute = message.messageAttributes().get(name);
+                value = attribute != null ? attribute.stringValue() : message.attributesAsStrings().get(name);
+            }
+            return value != null && pattern.matcher(value).find();
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while redriving", e);
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> arguments = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value pairs but found " + args[i]);
+            }
+            arguments.put(args[i].substring(2), args[++i]);
+        }
+        BridgeConfig config = BridgeConfig.fromEnvironment();
+        Options options = Options.of(arguments.get("source"), arguments.get("target"))
+                .withLimits(Integer.parseInt(arguments.getOrDefault("concurrency", Integer.toString(DEFAULT_CONCURRENCY))),
+                        Integer.parseInt(arguments.getOrDefault("maxMessagesPerSecond", "0")),
+                        Long.parseLong(arguments.getOrDefault("maxMessages", "0")),
+                        0)
+                .withFilter(arguments.get("filter"), Boolean.parseBoolean(arguments.getOrDefault("dryRun", "false")))
+                .withReceive(Integer.parseInt(arguments.getOrDefault("visibilityTimeoutSeconds", Integer.toString(DEFAULT_VISIBILITY_TIMEOUT_SECONDS))),
+                        Integer.parseInt(arguments.getOrDefault("waitTimeSeconds", Integer.toString(DEFAULT_WAIT_TIME_SECONDS))))
+                .withMessageGroups(config.messageGroups());
+        try (SqsClient sqs = BridgeClients.create(config).sqs()) {
+            new DlqRedrive(sqs, options).run();
+        }
+    }
+}
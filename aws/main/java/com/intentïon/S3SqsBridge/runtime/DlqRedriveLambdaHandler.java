@@ -0,0 +1,64 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Redrives a dead-letter queue of the stack back to its queue, see {@link DlqRedrive}. The event names the queue, one of
+ * source, orderedSource, replay or digest, whose urls are read from &lt;QUEUE&gt;_DLQ_URL and &lt;QUEUE&gt;_QUEUE_URL
+ * (e.g. ORDERED_SOURCE_DLQ_URL), and may set dryRun, filter, maxMessages, concurrency and maxMessagesPerSecond. The
+ * run stops a minute before the invocation times out, the rest of the queue being left for the next invocation.
+ */
+public class DlqRedriveLambdaHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private static final long TIMEOUT_MARGIN_MILLIS = 60_000;
+
+    private final SqsClient sqs;
+    private final Map<String, String> env;
+
+    public DlqRedriveLambdaHandler() {
+        this(BridgeClients.create(BridgeConfig.fromEnvironment()).sqs(), System.getenv());
+    }
+
+    public DlqRedriveLambdaHandler(SqsClient sqs, Map<String, String> env) {
+        this.sqs = sqs;
+        this.env = env;
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> event, Context context) {
+        BridgeLog.info("DLQ Redrive Lambda received event: " + event);
+        String queue = event == null ? null : (String) event.get("queue");
+        if (queue == null) {
+            throw new IllegalArgumentException("The redrive event must name the queue: source, orderedSource, replay or digest");
+        }
+        String envPrefix = queue.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+        long maxDurationMillis = context == null ? 0 : Math.max(1, context.getRemainingTimeInMillis() - TIMEOUT_MARGIN_MILLIS);
+        DlqRedrive.Options options = DlqRedrive.Options.of(this.env.get(envPrefix + "_DLQ_URL"), this.env.get(envPrefix + "_QUEUE_URL"))
+                .withLimits(intValue(event.get("concurrency"), intValue(this.env.get("REDRIVE_CONCURRENCY"), DlqRedrive.DEFAULT_CONCURRENCY)),
+                        intValue(event.get("maxMessagesPerSecond"), intValue(this.env.get("REDRIVE_MAX_MESSAGES_PER_SECOND"), 0)),
+                        intValue(event.get("maxMessages"), 0),
+                        maxDurationMillis)
+                .withFilter((String) event.get("filter"), Boolean.parseBoolean(String.valueOf(event.get("dryRun"))))
+                .withMessageGroups(BridgeConfig.fromEnvironment(this.env).messageGroups());
+        DlqRedrive.Result result = new DlqRedrive(this.sqs, options).run();
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("handler", getClass().getName() + "::handleRequest");
+        response.put("queue", queue);
+        response.put("dryRun", result.dryRun());
+        response.put("received", result.received());
+        response.put("redriven", result.redriven());
+        response.put("skipped", result.skipped());
+        response.put("failed", result.failed());
+        return response;
+    }
+
+    private static int intValue(Object value, int defaultValue) {
+        return value == null || value.toString().isEmpty() ? defaultValue : Integer.parseInt(value.toString());
+    }
+}
@@ -0,0 +1,238 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Client-side flow control shared by every call of the container to one downstream (dynamodb, s3, sqs).
+ * <p>
+ * Calls run under an AIMD concurrency limit: the limit grows by one per limit's worth of successful calls and is halved
+ * on a throttle, at most once per second so that a burst of throttled calls cuts it once. Retries wait a full-jitter
+ * delay, a uniformly random delay up to the exponential one, so calls throttled together do not retry together. They
+ * also draw on a retry budget: each successful call adds a tenth of a retry, up to 10, so under sustained throttling at
+ * most one call in ten is retried and the others fail at once instead of amplifying the overload.
+ * <p>
+ * The state of each downstream is written with the stage metrics as EMF lines with the FunctionName and Downstream
+ * dimensions: ConcurrencyLimit, InFlight, and the Throttles, Retries and RetriesRejected since the last line.
+ */
+public class FlowControl {
+
+    public static final String DYNAMODB = "dynamodb";
+    public static final String S3 = "s3";
+    public static final String SQS = "sqs";
+
+    static final int INITIAL_LIMIT = 16;
+    static final int MIN_LIMIT = 1;
+    static final int MAX_LIMIT = 256;
+    static final double DECREASE = 0.5;
+    static final long DECREASE_WINDOW_MILLIS = 1_000;
+    static final int RETRY_BUDGET = 10;
+    // A retry costs this many credits and a successful call earns one.
+    static final int RETRY_COST = 10;
+    static final long MAX_DELAY_MILLIS = 20_000;
+
+    // Error codes of throttling, as thrown by the SDK or returned for the failed entries of a batch.
+    private static final Set<String> THROTTLE_ERROR_CODES = Set.of("Throttling", "ThrottlingException", "ThrottledException",
+            "RequestLimitExceeded", "RequestThrottled", "RequestThrottledException", "TooManyRequestsException",
+            "ProvisionedThroughputExceededException", "SlowDown",
+            "KMS.ThrottlingException", "KmsThrottled");
+    private static final Map<String, FlowControl> DOWNSTREAMS = new TreeMap<>();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public enum Outcome { SUCCESS, THROTTLE, TRANSIENT, FATAL }
+
+    public record State(String downstream, int limit, int inFlight, long throttles, long retries, long retriesRejected) {
+    }
+
+    private final String downstream;
+    private final LongSupplier clock;
+    private final DoubleSupplier random;
+    private double limit = INITIAL_LIMIT;
+    private int inFlight;
+    private long retryCredits = (long) RETRY_BUDGET * RETRY_COST;
+    private long lastDecreaseMillis = Long.MIN_VALUE;
+    private long throttles;
+    private long retries;
+    private long retriesRejected;
+    private State emitted;
+
+    FlowControl(String downstream, LongSupplier clock, DoubleSupplier random) {
+        this.downstream = downstream;
+        this.clock = clock;
+        this.random = random;
+        this.emitted = new State(downstream, 0, 0, 0, 0, 0);
+    }
+
+    // The flow control of the downstream, shared by every caller in the container.
+    public static FlowControl of(String downstream) {
+        synchronized (DOWNSTREAMS) {
+            return DOWNSTREAMS.computeIfAbsent(downstream,
+                    name -> new FlowControl(name, System::currentTimeMillis, () -> ThreadLocalRandom.current().nextDouble()));
+        }
+    }
+
+    // Forgets the state of every downstream, for tests.
+    static void reset() {
+        synchronized (DOWNSTREAMS) {
+            DOWNSTREAMS.clear();
+        }
+    }
+
+    // Runs the call under the concurrency limit, a throttle cutting the limit and a success raising it.
+    public <T> T call(Supplier<T> operation) {
+        acquire();
+        Outcome outcome = Outcome.TRANSIENT;
+        try {
+            T result = operation.get();
+            outcome = Outcome.SUCCESS;
+            return result;
+        } catch (RuntimeException e) {
+            outcome = classify(e);
+            throw e;
+        } finally {
+            release(outcome);
+        }
+    }
+
+    public synchronized void acquire() {
+        while (this.inFlight >= (int) this.limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to call " + this.downstream, e);
+            }
+        }
+        this.inFlight++;
+    }
+
+    public synchronized void release(Outcome outcome) {
+        this.inFlight--;
+        if (outcome == Outcome.SUCCESS) {
+            onSuccess();
+        } else if (outcome == Outcome.THROTTLE) {
+            onThrottle();
+        }
+        notifyAll();
+    }
+
+    // A successful call, or a batch call of which some entries succeeded.
+    public synchronized void onSuccess() {
+        this.limit = Math.min(MAX_LIMIT, this.limit + 1.0 / (int) this.limit);
+        this.retryCredits = Math.min((long) RETRY_BUDGET * RETRY_COST, this.retryCredits + 1);
+    }
+
+    // A throttled call, or a batch call of which some entries were throttled.
+    public synchronized void onThrottle() {
+        this.throttles++;
+        long now = this.clock.getAsLong();
+        if (this.lastDecreaseMillis == Long.MIN_VALUE || now - this.lastDecreaseMillis >= DECREASE_WINDOW_MILLIS) {
+            this.limit = Math.max(MIN_LIMIT, Math.floor(this.limit * DECREASE));
+            this.lastDecreaseMillis = now;
+        }
+    }
+
+    // Takes a retry from the budget, or returns false when the budget is spent and the caller should give up.
+    public synchronized boolean tryRetry() {
+        if (this.retryCredits < RETRY_COST) {
+            this.retriesRejected++;
+            return false;
+        }
+        this.retryCredits -= RETRY_COST;
+        this.retries++;
+        return true;
+    }
+
+    // The full-jitter delay before retry number attempt (from 1): up to baseMillis * 2^(attempt - 1), at most 20 s.
+    public long backoffMillis(long baseMillis, int attempt) {
+        long exponential = Math.min(MAX_DELAY_MILLIS, baseMillis << Math.min(20, attempt - 1));
+        return (long) (this.random.getAsDouble() * exponential);
+    }
+
+    public void backoff(long baseMillis, int attempt) {
+        try {
+            Thread.sleep(backoffMillis(baseMillis, attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying a call to " + this.downstream, e);
+        }
+    }
+
+    public synchronized State state() {
+        return new State(this.downstream, (int) this.limit, this.inFlight, this.throttles, this.retries, this.retriesRejected);
+    }
+
+    /**
+     * Throttles are service exceptions the SDK reports as throttling or with a throttling code or status (429, 503),
+     * fatal errors are the other client-side (4xx) service exceptions, which fail the same way on every attempt, and
+     * everything else (server errors, timeouts, connection failures) is transient.
+     */
+    public static Outcome classify(Throwable error) {
+        if (error instanceof AwsServiceException serviceException) {
+            String errorCode = serviceException.awsErrorDetails() == null ? null : serviceException.awsErrorDetails().errorCode();
+            int status = serviceException.statusCode();
+            if (serviceException.isThrottlingException() || errorCode != null && THROTTLE_ERROR_CODES.contains(errorCode) || status == 429 || status == 503) {
+                return Outcome.THROTTLE;
+            }
+            return status >= 400 && status < 500 ? Outcome.FATAL : Outcome.TRANSIENT;
+        }
+        return Outcome.TRANSIENT;
+    }
+
+    // The outcome of a failed entry of a batch call, from its error code and sender fault flag.
+    public static Outcome classify(String errorCode, Boolean senderFault) {
+        if (errorCode != null && THROTTLE_ERROR_CODES.contains(errorCode)) {
+            return Outcome.THROTTLE;
+        }
+        return Boolean.TRUE.equals(senderFault) ? Outcome.FATAL : Outcome.TRANSIENT;
+    }
+
+    // The EMF lines of every downstream called in the container, counting throttles and retries since the last call.
+    public static List<String> drain(String functionName, long timestampMillis) {
+        List<FlowControl> flowControls;
+        synchronized (DOWNSTREAMS) {
+            flowControls = new ArrayList<>(DOWNSTREAMS.values());
+        }
+        List<String> emfLines = new ArrayList<>();
+        for (FlowControl flowControl : flowControls) {
+            emfLines.add(flowControl.drainLine(functionName, timestampMillis));
+        }
+        return emfLines;
+    }
+
+    synchronized String drainLine(String functionName, long timestampMillis) {
+        State state = state();
+        ObjectNode emf = MAPPER.createObjectNode();
+        ObjectNode directive = emf.putObject("_aws")
+                .put("Timestamp", timestampMillis)
+                .putArray("CloudWatchMetrics")
+                .addObject()
+                .put("Namespace", StageMetrics.NAMESPACE);
+        directive.putArray("Dimensions").addArray().add(StageMetrics.DIMENSION).add("Downstream");
+        ArrayNode metrics = directive.putArray("Metrics");
+        for (String name : List.of("ConcurrencyLimit", "InFlight", "Throttles", "Retries", "RetriesRejected")) {
+            metrics.addObject().put("Name", name).put("Unit", "Count");
+        }
+        emf.put(StageMetrics.DIMENSION, functionName)
+                .put("Downstream", this.downstream)
+                .put("ConcurrencyLimit", state.limit())
+                .put("InFlight", state.inFlight())
+                .put("Throttles", state.throttles() - this.emitted.throttles())
+                .put("Retries", state.retries() - this.emitted.retries())
+                .put("RetriesRejected", state.retriesRejected() - this.emitted.retriesRejected());
+        this.emitted = state;
+        return emf.toString();
+    }
+}
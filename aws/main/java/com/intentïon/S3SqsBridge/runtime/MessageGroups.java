@@ -0,0 +1,71 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Derives FIFO MessageGroupId and MessageDeduplicationId values for object events.
+ * <p>
+ * By default each object key is its own message group, so versions of a key are delivered in order while different keys
+ * are processed in parallel. prefixSegments groups keys on their first N "/" separated segments and hashBuckets hashes
+ * the group into a fixed number of groups, both coarser groupings that still keep every key's versions in order.
+ */
+public record MessageGroups(int prefixSegments, int hashBuckets) {
+
+    private static final int MAX_ID_LENGTH = 128;
+
+    public static boolean isFifoQueue(String queueUrl) {
+        return queueUrl != null && queueUrl.endsWith(".fifo");
+    }
+
+    public String groupId(String key) {
+        String group = prefix(key);
+        if (this.hashBuckets > 0) {
+            return "g" + Math.floorMod(Long.hashCode(DigestIndex.idHash(group)), this.hashBuckets);
+        }
+        return isValidId(group) ? group : sha256(group);
+    }
+
+    // The same version always has the same id so resends within the SQS deduplication interval are dropped.
+    public String deduplicationId(String key, String versionId) {
+        return sha256(key + " " + versionId);
+    }
+
+    private String prefix(String key) {
+        if (this.prefixSegments <= 0) {
+            return key;
+        }
+        int end = -1;
+        for (int segment = 0; segment < this.prefixSegments; segment++) {
+            end = key.indexOf('/', end + 1);
+            if (end < 0) {
+                return key;
+            }
+        }
+        return key.substring(0, end + 1);
+    }
+
+    // Group and deduplication ids are limited to 128 alphanumeric or punctuation characters.
+    private static boolean isValidId(String id) {
+        if (id.isEmpty() || id.length() > MAX_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '!' || c > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
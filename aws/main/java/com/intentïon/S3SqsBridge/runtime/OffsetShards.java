@@ -0,0 +1,51 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+/**
+ * The layout of the bucket offset in the offsets table, so that offset writes are spread over several items instead of
+ * all rewriting the one bucket/prefix item.
+ * <p>
+ * With count = 0 the table is keyed on id alone and every batch advances the bucket offset row. Otherwise the table has
+ * the sort key "shard": the bucket offset row (and every other row) is the shard "#", and each source batch advances
+ * the watermark row of every shard its keys fall in. With by = "hash" a key's shard is "hash-&lt;n&gt;", one of count
+ * shards. With by = "prefix" it is "prefix-&lt;sub-prefix&gt;" for the key prefix one level below the object prefix (e.g.
+ * prefix-2025/), keys directly under the object prefix being hashed.
+ */
+public record OffsetShards(int count, String by) {
+
+    public static final String BY_HASH = "hash";
+    public static final String BY_PREFIX = "prefix";
+    public static final String SORT_KEY = "shard";
+    public static final String HEAD = "#";
+
+    public OffsetShards {
+        if (count < 0) {
+            throw new IllegalArgumentException("Offsets shards must not be negative: " + count);
+        }
+        if (!BY_HASH.equals(by) && !BY_PREFIX.equals(by)) {
+            throw new IllegalArgumentException("Unsupported offsets shard by: " + by);
+        }
+    }
+
+    public static OffsetShards none() {
+        return new OffsetShards(0, BY_HASH);
+    }
+
+    public boolean sharded() {
+        return this.count > 0;
+    }
+
+    // The sort key value of the row whose watermark covers the key, the bucket offset row itself when not sharded.
+    public String shardOf(String objectPrefix, String key) {
+        if (!sharded()) {
+            return HEAD;
+        }
+        if (BY_PREFIX.equals(this.by) && key.startsWith(objectPrefix)) {
+            int slash = key.indexOf('/', objectPrefix.length());
+            if (slash >= 0) {
+                return BY_PREFIX + "-" + key.substring(objectPrefix.length(), slash + 1);
+            }
+        }
+        // String.hashCode is specified, so every container assigns a key to the same shard.
+        return BY_HASH + "-" + Math.floorMod(key.hashCode(), this.count);
+    }
+}
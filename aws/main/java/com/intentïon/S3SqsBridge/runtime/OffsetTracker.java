@@ -0,0 +1,295 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the offsets table rows in the warm container and advances them with conditional writes.
+ * <p>
+ * An offset only moves forward: {@link #advance} writes with the condition that the stored offset is behind the new
+ * one and that the row has not been reset since it was cached, so concurrent writers cannot move it backwards and no
+ * read is needed before the write. The row is only read again when it is not cached or a condition fails. Each
+ * {@link #reset} (the start of a replay) increments the row's replayGeneration so that containers still holding the
+ * offset from before the reset fail their next advance and re-read.
+ * <p>
+ * When the table is sharded (see {@link OffsetShards}) a row also has shard watermark rows under the same id, advanced
+ * by {@link #advance(String, String, String)} without reading them first. A shard row records the replay generation it
+ * was written in: a reset rewrites the existing shard rows into the new generation, so that a container still holding
+ * the old generation fails its next advance of any of them, and rows of an older generation are ignored until they are
+ * advanced again. Each shard advance refreshes the row's expiresAt, the table's TTL attribute, so that the rows of
+ * shards no longer written (e.g. an abandoned prefix) expire instead of holding the {@link #watermark} back for ever.
+ */
+public class OffsetTracker {
+
+    public record Offset(String lastOffsetProcessed, long replayGeneration) {
+    }
+
+    // low is the offset up to which every shard has processed, high the furthest any has, both null when none has. shards
+    // counts the live shard rows of the current replay generation.
+    public record Watermark(String low, String high, long replayGeneration, int shards) {
+    }
+
+    public static final String EXPIRES_AT = "expiresAt";
+
+    private final DynamoDbClient dynamodb;
+    private final String tableName;
+    private final OffsetShards shards;
+    private final long ttlSeconds;
+    private final Map<String, Offset> offsets = new ConcurrentHashMap<>();
+
+    public OffsetTracker(DynamoDbClient dynamodb, String tableName) {
+        this(dynamodb, tableName, OffsetShards.none(), 0);
+    }
+
+    // ttlSeconds is how long a shard row outlives its last advance, 0 for no expiry.
+    public OffsetTracker(DynamoDbClient dynamodb, String tableName, OffsetShards shards, long ttlSeconds) {
+        if (ttlSeconds < 0) {
+            throw new IllegalArgumentException("Offsets TTL must not be negative: " + ttlSeconds);
+        }
+        this.dynamodb = dynamodb;
+        this.tableName = tableName;
+        this.shards = shards;
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public OffsetShards shards() {
+        return this.shards;
+    }
+
+    // The key of the row with the id, which is the shard "#" of a sharded table.
+    public Map<String, AttributeValue> key(String id) {
+        return key(id, OffsetShards.HEAD);
+    }
+
+    public Map<String, AttributeValue> key(String id, String shard) {
+        return this.shards.sharded()
+                ? Map.of("id", AttributeValue.fromS(id), OffsetShards.SORT_KEY, AttributeValue.fromS(shard))
+                : Map.of("id", AttributeValue.fromS(id));
+    }
+
+    // The cached offset, read from the table when it is not cached.
+    public Offset read(String id) {
+        Offset offset = this.offsets.get(id);
+        return offset != null ? offset : refresh(id);
+    }
+
+    public Offset refresh(String id) {
+        Offset offset = find(id);
+        if (offset == null) {
+            throw new IllegalStateException("Item with id \"" + id + "\" not found in table " + this.tableName + ".");
+        }
+        return offset;
+    }
+
+    // As refresh, but null when there is no row with the id.
+    public Offset find(String id) {
+        GetItemResponse result = this.dynamodb.getItem(GetItemRequest.builder()
+                .tableName(this.tableName)
+                .key(key(id))
+                // Using strong consistency in the read so that we see the most recent write.
+                .consistentRead(true)
+                .build());
+        if (!result.hasItem() || result.item().isEmpty()) {
+            this.offsets.remove(id);
+            return null;
+        }
+        Offset offset = offset(result.item());
+        this.offsets.put(id, offset);
+        return offset;
+    }
+
+    public void invalidate(String id) {
+        this.offsets.remove(id);
+    }
+
+    // Sets the offset unconditionally (null removes it) and starts a new replay generation, clearing the shard rows.
+    public void reset(String id, String lastOffsetProcessed) {
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":zero", AttributeValue.fromN("0"));
+        values.put(":one", AttributeValue.fromN("1"));
+        String updateExpression = "SET replayGeneration = if_not_exists(replayGeneration, :zero) + :one";
+        if (lastOffsetProcessed == null) {
+            updateExpression += " REMOVE lastOffsetProcessed";
+        } else {
+            updateExpression += ", lastOffsetProcessed = :offset";
+            values.put(":offset", AttributeValue.fromS(lastOffsetProcessed));
+        }
+        Map<String, AttributeValue> reset = this.dynamodb.updateItem(UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(key(id))
+                .updateExpression(updateExpression)
+                .expressionAttributeValues(values)
+                .returnValues(ReturnValue.ALL_NEW)
+                .build()).attributes();
+        this.offsets.remove(id);
+        if (this.shards.sharded()) {
+            AttributeValue generation = reset.get("replayGeneration");
+            for (Map<String, AttributeValue> row : shardRows(id)) {
+                try {
+                    this.dynamodb.updateItem(UpdateItemRequest.builder()
+                            .tableName(this.tableName)
+                            .key(key(id, row.get(OffsetShards.SORT_KEY).s()))
+                            .updateExpression("SET replayGeneration = :generation REMOVE lastOffsetProcessed")
+                            // A container that has already read the new generation may have advanced the row.
+                            .conditionExpression("attribute_not_exists(replayGeneration) OR replayGeneration < :generation")
+                            .expressionAttributeValues(Map.of(":generation", generation))
+                            .build());
+                } catch (ConditionalCheckFailedException e) {
+                    BridgeLog.info("Offset " + id + " shard " + row.get(OffsetShards.SORT_KEY).s() + " was already advanced in replay generation " + generation.n());
+                }
+            }
+        }
+        BridgeLog.info("Reset offset " + id + " to " + lastOffsetProcessed + " in DynamoDB table " + this.tableName);
+    }
+
+    // Writes the offset if it is ahead of the stored offset in the cached replay generation. Returns false, with the
+    // cached offset refreshed, when the stored offset is already at or ahead of it or the row was reset.
+    public boolean advance(String id, String lastOffsetProcessed) {
+        // The cached offset is not compared here, it may be from before a reset which only the condition detects.
+        Offset cached = read(id);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":offset", AttributeValue.fromS(lastOffsetProcessed));
+        String generationCondition;
+        if (cached.replayGeneration() == 0) {
+            generationCondition = "attribute_not_exists(replayGeneration)";
+        } else {
+            generationCondition = "replayGeneration = :generation";
+            values.put(":generation", AttributeValue.fromN(Long.toString(cached.replayGeneration())));
+        }
+        try {
+            this.dynamodb.updateItem(UpdateItemRequest.builder()
+                    .tableName(this.tableName)
+                    .key(key(id))
+                    .updateExpression("SET lastOffsetProcessed = :offset")
+                    .conditionExpression("attribute_exists(id) AND " + generationCondition
+                            + " AND (attribute_not_exists(lastOffsetProcessed) OR lastOffsetProcessed < :offset)")
+                    .expressionAttributeValues(values)
+                    .build());
+        } catch (ConditionalCheckFailedException e) {
+            Offset current = refresh(id);
+            BridgeLog.info("Offset " + id + " was not advanced to " + lastOffsetProcessed + ", it is at " + current.lastOffsetProcessed()
+                    + " in replay generation " + current.replayGeneration());
+            return false;
+        }
+        this.offsets.put(id, new Offset(lastOffsetProcessed, cached.replayGeneration()));
+        BridgeLog.info("Successfully wrote offset " + lastOffsetProcessed + " to DynamoDB table " + this.tableName);
+        return true;
+    }
+
+    // Writes the offset to the shard row if it is ahead of the row's offset in the cached replay generation of the row
+    // with the id, creating the row in that generation if it is missing or older. Returns false, with the cached offset
+    // of the row with the id refreshed, when the shard row is already at or ahead of it or was reset by a newer
+    // generation. The shard "#" is the row with the id itself.
+    public boolean advance(String id, String shard, String lastOffsetProcessed) {
+        if (OffsetShards.HEAD.equals(shard)) {
+            return advance(id, lastOffsetProcessed);
+        }
+        Offset cached = read(id);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":offset", AttributeValue.fromS(lastOffsetProcessed));
+        values.put(":generation", AttributeValue.fromN(Long.toString(cached.replayGeneration())));
+        String updateExpression = "SET lastOffsetProcessed = :offset, replayGeneration = :generation";
+        if (this.ttlSeconds > 0) {
+            updateExpression += ", " + EXPIRES_AT + " = :expiresAt";
+            values.put(":expiresAt", AttributeValue.fromN(Long.toString(System.currentTimeMillis() / 1000 + this.ttlSeconds)));
+        }
+        try {
+            this.dynamodb.updateItem(UpdateItemRequest.builder()
+                    .tableName(this.tableName)
+                    .key(key(id, shard))
+                    .updateExpression(updateExpression)
+                    .conditionExpression("attribute_not_exists(replayGeneration) OR replayGeneration < :generation"
+                            + " OR (replayGeneration = :generation AND (attribute_not_exists(lastOffsetProcessed) OR lastOffsetProcessed < :offset))")
+                    .expressionAttributeValues(values)
+                    .build());
+        } catch (ConditionalCheckFailedException e) {
+            Offset current = refresh(id);
+            BridgeLog.info("Offset " + id + " shard " + shard + " was not advanced to " + lastOffsetProcessed + " in replay generation "
+                    + cached.replayGeneration() + ", the offset is in replay generation " + current.replayGeneration());
+            return false;
+        }
+        return true;
+    }
+
+    // The low and high watermarks of the id's shard rows in its current replay generation, read with one Query (a
+    // GetItem when the table is not sharded) and ignoring rows that have expired but not yet been deleted. With no live
+    // shard row both are the offset of the row with the id, which also caches that row.
+    public Watermark watermark(String id) {
+        if (!this.shards.sharded()) {
+            Offset offset = refresh(id);
+            return new Watermark(offset.lastOffsetProcessed(), offset.lastOffsetProcessed(), offset.replayGeneration(), 0);
+        }
+        Offset head = null;
+        List<Offset> shardOffsets = new ArrayList<>();
+        long now = System.currentTimeMillis() / 1000;
+        for (Map<String, AttributeValue> row : rows(id)) {
+            if (OffsetShards.HEAD.equals(row.get(OffsetShards.SORT_KEY).s())) {
+                head = offset(row);
+            } else if (row.get(EXPIRES_AT) == null || Long.parseLong(row.get(EXPIRES_AT).n()) > now) {
+                shardOffsets.add(offset(row));
+            }
+        }
+        if (head == null) {
+            this.offsets.remove(id);
+            throw new IllegalStateException("Item with id \"" + id + "\" not found in table " + this.tableName + ".");
+        }
+        this.offsets.put(id, head);
+        String low = null;
+        String high = head.lastOffsetProcessed();
+        int live = 0;
+        for (Offset offset : shardOffsets) {
+            if (offset.replayGeneration() != head.replayGeneration() || offset.lastOffsetProcessed() == null) {
+                continue;
+            }
+            live++;
+            low = low == null || offset.lastOffsetProcessed().compareTo(low) < 0 ? offset.lastOffsetProcessed() : low;
+            high = high == null || offset.lastOffsetProcessed().compareTo(high) > 0 ? offset.lastOffsetProcessed() : high;
+        }
+        return new Watermark(live == 0 ? head.lastOffsetProcessed() : low, high, head.replayGeneration(), live);
+    }
+
+    private List<Map<String, AttributeValue>> shardRows(String id) {
+        return rows(id).stream().filter(row -> !OffsetShards.HEAD.equals(row.get(OffsetShards.SORT_KEY).s())).toList();
+    }
+
+    private List<Map<String, AttributeValue>> rows(String id) {
+        List<Map<String, AttributeValue>> rows = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            QueryRequest.Builder request = QueryRequest.builder()
+                    .tableName(this.tableName)
+                    .keyConditionExpression("id = :id")
+                    .expressionAttributeValues(Map.of(":id", AttributeValue.fromS(id)))
+                    // Using strong consistency in the read so that we see the most recent write.
+                    .consistentRead(true);
+            if (lastEvaluatedKey != null) {
+                request.exclusiveStartKey(lastEvaluatedKey);
+            }
+            QueryResponse result = this.dynamodb.query(request.build());
+            rows.addAll(result.items());
+            lastEvaluatedKey = result.hasLastEvaluatedKey() && !result.lastEvaluatedKey().isEmpty() ? result.lastEvaluatedKey() : null;
+        } while (lastEvaluatedKey != null);
+        return rows;
+    }
+
+    private static Offset offset(Map<String, AttributeValue> item) {
+        AttributeValue lastOffsetProcessed = item.get("lastOffsetProcessed");
+        AttributeValue replayGeneration = item.get("replayGeneration");
+        return new Offset(
+                lastOffsetProcessed == null ? null : lastOffsetProcessed.s(),
+                replayGeneration == null ? 0 : Long.parseLong(replayGeneration.n()));
+    }
+}
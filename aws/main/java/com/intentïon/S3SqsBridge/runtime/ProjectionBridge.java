@@ -0,0 +1,943 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Java port of the S3 SQS Bridge projection functions (replay, projections, offsets and digest) behind the
+ * sourceLambdaHandler, replayLambdaHandler and replayBatchLambdaHandler contracts.
+ */
+public class ProjectionBridge {
+
+    public static final String DIGEST_ID = "digest";
+    // The object created events a source route can be notified of, each of which leaves a complete object version.
+    public static final Set<String> OBJECT_CREATED_EVENT_NAMES = Set.of("ObjectCreated:Put", "ObjectCreated:Post",
+            "ObjectCreated:Copy", "ObjectCreated:CompleteMultipartUpload");
+
+    // Offsets are compared as strings so timestamps must have the fixed width of JavaScript's toISOString().
+    private static final DateTimeFormatter ISO_MILLIS = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    public record ReplayResult(int versions, int eventsReplayed, String lastOffsetProcessed) {
+    }
+
+    // The key through which the replay listing had emitted every version when the given number of events had been sent.
+    private record ListingPosition(long sent, String listedThrough) {
+    }
+
+    public record S3ObjectContent(GetObjectResponse objectMetaData, String object) {
+    }
+
+    public record ProjectionValue(GetObjectResponse objectMetaData, Map<String, AttributeValue> valueAttributes) {
+    }
+
+    public record ProjectionChange(String id, String lastModified, String versionId) {
+    }
+
+    protected final ObjectMapper mapper = new ObjectMapper();
+    protected final BridgeConfig config;
+    protected final BridgeClients clients;
+    protected final DigestIndex digestIndex;
+    protected final DigestPublisher digestPublisher;
+    protected final OffsetTracker offsets;
+    protected final S3ObjectFetcher fetcher;
+    protected final ReplayCheckpoints replayCheckpoints;
+    protected final ProjectionSnapshots snapshots;
+    protected final StageMetrics metrics = new StageMetrics();
+    // The replay generation of the bucket offset in which the source handler last found replay complete, -1 if not yet.
+    private volatile long sourceReadyReplayGeneration = -1;
+    // Whether the live lane's offset row has been found or created by this container.
+    private volatile boolean liveOffsetFound = false;
+
+    public ProjectionBridge(BridgeConfig config, BridgeClients clients) {
+        this.config = config;
+        this.clients = clients;
+        this.digestIndex = new DigestIndex(clients.dynamodb(), config.projectionsTableName(), config.digestShards());
+        this.digestPublisher = new DigestPublisher(clients.dynamodb(), clients.s3(), this.digestIndex, config.projectionsTableName(),
+                config.bucketName(), config.snapshotPrefix(), config.digestSnapshotEvery());
+        this.offsets = new OffsetTracker(clients.dynamodb(), config.offsetsTableName(), config.offsetShards(), config.offsetsTtlSeconds());
+        this.replayCheckpoints = new ReplayCheckpoints(clients.dynamodb(), config.offsetsTableName(), config.replayQueueUrl(), config.offsetShards());
+        this.snapshots = new ProjectionSnapshots(clients.s3(), clients.dynamodb(), config.bucketName(), config.snapshotPrefix(), config.projectionsTableName());
+        this.fetcher = new S3ObjectFetcher(clients.s3(), config.projectionValueCodec(), config.s3FetchCacheBytes());
+    }
+
+    public BridgeConfig getConfig() {
+        return this.config;
+    }
+
+    // The stage latencies recorded since the handler last emitted them.
+    public StageMetrics metrics() {
+        return this.metrics;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // AWS Utility functions
+    // -----------------------------------------------------------------------------------------------------------------
+
+    // Lazily lists the bucket prefix one ListObjectVersions page at a time.
+    public Iterable<ListObjectVersionsResponse> listObjectVersionPages() {
+        return ReplayShard.listing(this.clients.s3(), ListObjectVersionsRequest.builder()
+                .bucket(this.config.bucketName())
+                .prefix(this.config.objectPrefix()));
+    }
+
+    // Every version in the bucket prefix in exact LastModified order (unbounded merge window), for small listings.
+    public List<ReplayPlanner.ReplayEvent> listAllObjectVersionsOldestFirst() {
+        List<ReplayPlanner.ReplayEvent> versions = new ArrayList<>();
+        new ReplayPlanner(Integer.MAX_VALUE).plan(listObjectVersionPages(), versions::add);
+        return versions;
+    }
+
+    public void sendToSqs(JsonNode body, String sqsQueueUrl) {
+        SendMessageRequest params = SendMessageRequest.builder()
+                .queueUrl(sqsQueueUrl)
+                .messageBody(body.toString())
+                .build();
+        try {
+            SendMessageResponse result = this.metrics.time(StageMetrics.Stage.SQS_SEND, () -> this.clients.sqs().sendMessage(params));
+            BridgeLog.info("Sent message to SQS queue " + sqsQueueUrl + ", MessageId: " + result.messageId());
+        } catch (RuntimeException e) {
+            BridgeLog.error("Failed to send message to SQS queue " + sqsQueueUrl, e);
+            throw e;
+        }
+    }
+
+    public void writeLastOffsetProcessedToOffsetsTable(String id, String lastOffsetProcessed) {
+        Map<String, AttributeValue> item = new HashMap<>(this.offsets.key(id));
+        if (lastOffsetProcessed != null) {
+            item.put("lastOffsetProcessed", AttributeValue.fromS(lastOffsetProcessed));
+        }
+        this.metrics.time(StageMetrics.Stage.OFFSET_WRITE, () -> writeToTable(PutItemRequest.builder()
+                .tableName(this.config.offsetsTableName())
+                .item(item)
+                .build()));
+        this.offsets.invalidate(id);
+        BridgeLog.info("Successfully wrote offset " + lastOffsetProcessed + " to DynamoDB table " + this.config.offsetsTableName());
+    }
+
+    public String readLastOffsetProcessedFromOffsetsTableById(String id) {
+        return this.offsets.refresh(id).lastOffsetProcessed();
+    }
+
+    public void writeValueToProjectionsTable(String id, String value) {
+        writeValueToProjectionsTable(id, value == null ? Map.of() : Map.of("value", AttributeValue.fromS(value)));
+    }
+
+    public void writeValueToProjectionsTable(String id, Map<String, AttributeValue> valueAttributes) {
+        Map<String, AttributeValue> item = new HashMap<>(valueAttributes);
+        item.put("id", AttributeValue.fromS(id));
+        this.metrics.time(StageMetrics.Stage.PROJECTION_WRITE, () -> writeToTable(PutItemRequest.builder()
+                .tableName(this.config.projectionsTableName())
+                .item(item)
+                .build()));
+        BridgeLog.info("Successfully wrote value for " + id + " to DynamoDB table " + this.config.projectionsTableName());
+    }
+
+    protected void writeToTable(PutItemRequest params) {
+        try {
+            this.clients.dynamodb().putItem(params);
+        } catch (RuntimeException e) {
+            BridgeLog.error("Error writing to DynamoDB table " + params.tableName(), e);
+            throw e;
+        }
+    }
+
+    public ObjectNode createS3EventFromVersion(String key, String versionId, String lastModified) {
+        ObjectNode s3Event = this.mapper.createObjectNode();
+        ObjectNode record = s3Event.putArray("Records").addObject()
+                .put("eventVersion", "2.0")
+                .put("eventSource", "aws:s3")
+                .put("eventTime", lastModified)
+                .put("eventName", "ObjectCreated:Put");
+        ObjectNode s3 = record.putObject("s3").put("s3SchemaVersion", "1.0");
+        s3.putObject("bucket")
+                .put("name", this.config.bucketName())
+                .put("arn", "arn:aws:s3:::" + this.config.bucketName());
+        s3.putObject("object")
+                .put("key", key)
+                .put("versionId", versionId);
+        return s3Event;
+    }
+
+    public S3ObjectContent getS3ObjectWithContent(String s3BucketName, String key, String versionId) {
+        ResponseBytes<GetObjectResponse> objectBytes = this.clients.s3().getObjectAsBytes(GetObjectRequest.builder()
+                .bucket(s3BucketName)
+                .key(key)
+                .versionId(versionId)
+                .build());
+        return new S3ObjectContent(objectBytes.response(), objectBytes.asString(StandardCharsets.UTF_8));
+    }
+
+    // Fetches the object version with a single GET, a HEAD for a pointer, or from the warm container's cache when it was
+    // fetched recently.
+    public ProjectionValue getS3ObjectProjectionValue(String s3BucketName, JsonNode s3PutEventRecord) {
+        JsonNode object = s3PutEventRecord.path("s3").path("object");
+        Long size = object.hasNonNull("size") ? Long.valueOf(object.path("size").asLong()) : null;
+        return this.metrics.time(StageMetrics.Stage.S3_FETCH, () -> this.fetcher.fetch(s3BucketName, object.path("key").asText(),
+                object.path("versionId").asText(null), object.path("eTag").asText(null), size));
+    }
+
+    // Streams the projected value of the id whichever way it was encoded, or returns null if there is no projection.
+    public InputStream openProjectionValue(String id) {
+        GetItemResponse result = this.clients.dynamodb().getItem(GetItemRequest.builder()
+                .tableName(this.config.projectionsTableName())
+                .key(Map.of("id", AttributeValue.fromS(id)))
+                .build());
+        if (!result.hasItem() || result.item().isEmpty()) {
+            return null;
+        }
+        return ProjectionValueCodec.decode(result.item(), this.clients.s3());
+    }
+
+    // Scan through all pages in the projections table and return a map { <id>: { id: <id> } } for each projection.
+    // This reads the whole table and is only used to rebuild or verify the digest index.
+    public Map<String, Map<String, String>> getProjectionIdsMap(Collection<String> ignoreKeys) {
+        Map<String, Map<String, String>> idsMap = new LinkedHashMap<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            ScanRequest.Builder params = ScanRequest.builder()
+                    .tableName(this.config.projectionsTableName())
+                    .projectionExpression("id")
+                    // Using strong consistency in the read so that we see the most recent write.
+                    .consistentRead(true);
+            if (lastEvaluatedKey != null) {
+                params.exclusiveStartKey(lastEvaluatedKey);
+            }
+            ScanResponse result = this.clients.dynamodb().scan(params.build());
+            for (Map<String, AttributeValue> item : result.items()) {
+                String id = item.get("id").s();
+                if (DigestIndex.isDigestId(id) || (ignoreKeys != null && ignoreKeys.contains(id))) {
+                    continue;
+                }
+                idsMap.put(id, Map.of("id", id));
+            }
+            lastEvaluatedKey = result.hasLastEvaluatedKey() && !result.lastEvaluatedKey().isEmpty()
+                    ? result.lastEvaluatedKey()
+                    : null;
+        } while (lastEvaluatedKey != null);
+        return idsMap;
+    }
+
+    // The projections written from versions last modified after since (an ISO timestamp), oldest first, read with a Query
+    // of each changeShard of the lastModified index instead of a Scan. The index is eventually consistent, so a reader
+    // polling for changes should overlap its since with the previous poll by a few seconds.
+    public List<ProjectionChange> changedSince(String since) {
+        int shards = this.config.projectionIndexShards();
+        if (shards == 0) {
+            throw new IllegalStateException("The projections table has no lastModified index (PROJECTION_INDEX_SHARDS is 0)");
+        }
+        List<ProjectionChange> changes = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            Map<String, AttributeValue> lastEvaluatedKey = null;
+            do {
+                QueryRequest.Builder params = QueryRequest.builder()
+                        .tableName(this.config.projectionsTableName())
+                        .indexName(ProjectionWriter.LAST_MODIFIED_INDEX)
+                        .keyConditionExpression("changeShard = :shard AND lastModified > :since")
+                        .expressionAttributeValues(Map.of(
+                                ":shard", AttributeValue.fromN(Integer.toString(shard)),
+                                ":since", AttributeValue.fromS(since)));
+                if (lastEvaluatedKey != null) {
+                    params.exclusiveStartKey(lastEvaluatedKey);
+                }
+                QueryResponse result = this.clients.dynamodb().query(params.build());
+                for (Map<String, AttributeValue> item : result.items()) {
+                    AttributeValue versionId = item.get("versionId");
+                    changes.add(new ProjectionChange(item.get("id").s(), item.get("lastModified").s(), versionId == null ? null : versionId.s()));
+                }
+                lastEvaluatedKey = result.hasLastEvaluatedKey() && !result.lastEvaluatedKey().isEmpty()
+                        ? result.lastEvaluatedKey()
+                        : null;
+            } while (lastEvaluatedKey != null);
+        }
+        changes.sort(Comparator.comparing(ProjectionChange::lastModified).thenComparing(ProjectionChange::id));
+        return changes;
+    }
+
+    public static String toIsoString(Instant instant) {
+        return ISO_MILLIS.format(instant);
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // Replay functions
+    // -----------------------------------------------------------------------------------------------------------------
+
+    // Replays the whole bucket prefix as a single shard in this invocation, resuming a run that was interrupted.
+    public ReplayResult replay() {
+        startReplay(1, false);
+        ReplayResult result = replayShard(ReplayShard.all(this.config.replayShardBy()));
+        return new ReplayResult(result.versions(), result.eventsReplayed(), completeReplay(1));
+    }
+
+    // Starts a replay run in the given number of shards, or resumes the run in progress with the same shards unless
+    // restart is set. Returns the shard indexes for the coordinator to fan out.
+    public List<Integer> startReplay(int shards, boolean restart) {
+        String shardBy = this.config.replayShardBy();
+        if (!restart && this.replayCheckpoints.resumable(shards, shardBy)) {
+            BridgeLog.info("Resuming replay job for bucket " + this.config.bucketName() + " prefix " + this.config.objectPrefix() + " in " + shards + " shards");
+        } else {
+            BridgeLog.info("Starting replay job for bucket " + this.config.bucketName() + " prefix " + this.config.objectPrefix() + " in " + shards + " shards");
+            // The live lane is emptied before the bucket offset reset sends source containers to it.
+            if (this.config.replayConcurrentIngest()) {
+                this.offsets.reset(this.config.liveOffsetId(), null);
+            }
+            // The reset starts a new replay generation so that source containers find the replay on their next advance.
+            this.offsets.reset(this.config.bucketOffsetId(), null);
+            writeLastOffsetProcessedToOffsetsTable(this.config.replayQueueUrl(), null);
+            this.replayCheckpoints.begin(shards, shardBy, this.config.replayFromSnapshot() ? loadLatestSnapshot() : null);
+        }
+        List<Integer> indexes = new ArrayList<>();
+        for (int index = 0; index < shards; index++) {
+            indexes.add(index);
+        }
+        return indexes;
+    }
+
+    // Loads the latest snapshot into the projections table and returns the offset after which versions must still be
+    // replayed, or null to replay every version when there is no snapshot. The overlap covers versions uploaded before
+    // the snapshot's offset that were still being projected when it was taken.
+    private String loadLatestSnapshot() {
+        ProjectionSnapshots.Snapshot snapshot = this.snapshots.latest();
+        if (snapshot == null || snapshot.lastOffsetProcessed() == null) {
+            BridgeLog.info("No snapshot found under " + this.config.snapshotPrefix() + ", replaying every version.");
+            return null;
+        }
+        Set<String> ids = this.snapshots.load(snapshot);
+        this.digestIndex.rebuild(ids);
+        String fromOffset = snapshot.lastOffsetProcessed();
+        if (this.config.replaySnapshotOverlapMillis() > 0) {
+            String snapshotTime = fromOffset.split(" ", 2)[0];
+            fromOffset = toIsoString(Instant.parse(snapshotTime).minusMillis(this.config.replaySnapshotOverlapMillis()));
+        }
+        BridgeLog.info("Loaded snapshot " + snapshot.key() + " of " + ids.size() + " projections, replaying versions after " + fromOffset);
+        return fromOffset;
+    }
+
+    // Writes a snapshot of the projections table as of the bucket offset (the low watermark of its shards), or returns
+    // null while a replay is incomplete.
+    public ProjectionSnapshots.Snapshot writeSnapshot() {
+        String replayQueueLastOffsetProcessed = this.offsets.refresh(this.config.replayQueueUrl()).lastOffsetProcessed();
+        // Read before the Scan so that every version up to the offset is in the snapshot. The watermark also refreshes the
+        // bucket offset row, which replayed batches advance.
+        OffsetTracker.Watermark watermark = this.offsets.watermark(this.config.bucketOffsetId());
+        String bucketLastOffsetProcessed = this.offsets.read(this.config.bucketOffsetId()).lastOffsetProcessed();
+        if (bucketLastOffsetProcessed == null
+                || (replayQueueLastOffsetProcessed != null && bucketLastOffsetProcessed.compareTo(replayQueueLastOffsetProcessed) < 0)) {
+            BridgeLog.info("Bucket offset processed " + bucketLastOffsetProcessed + " is behind replay queue offset processed " + replayQueueLastOffsetProcessed + ". Skipping snapshot.");
+            return null;
+        }
+        return this.snapshots.write(watermark.low());
+    }
+
+    // Sends the shard's versions to the replay queue from its last checkpoint. Shards run concurrently, each advancing
+    // the replay queue offset only forwards.
+    public ReplayResult replayShard(ReplayShard shard) {
+        ReplayCheckpoints.ShardState state = this.replayCheckpoints.shard(shard);
+        if (state.complete()) {
+            BridgeLog.info("Replay shard " + shard.index() + " of " + shard.count() + " is already complete");
+            return new ReplayResult(0, 0, state.lastOffsetProcessed());
+        }
+        // A listing out of exact order is resumed after the last key of which every version was sent.
+        ReplayPlanner.Plan plan = new ReplayPlanner(this.config.replayMaxActiveKeys()).events(
+                shard.pages(this.clients.s3(), this.config.bucketName(), this.config.objectPrefix(), state.listedThrough()),
+                state.listedThrough());
+        String fromOffset = this.replayCheckpoints.fromOffset();
+        long inSnapshot = 0;
+        String lastOffsetProcessed;
+        int eventsReplayed;
+        long skipped = 0;
+        long sent = 0;
+        Deque<ListingPosition> positions = new ArrayDeque<>();
+        String listedThrough = state.listedThrough();
+        String senderCheckpoint = null;
+        // The listing already carries LastModified so events are built without fetching each version.
+        try (ReplaySender sender = new ReplaySender(
+                this.clients.sqs(),
+                this.config.replayQueueUrl(),
+                this.config.replaySendConcurrency(),
+                this.config.replayCheckpointEvery(),
+                this.config.replayCheckpointIntervalMillis(),
+                version -> createS3EventFromVersion(version.key(), version.versionId(), version.lastModified()).toString(),
+                offset -> {
+                    this.offsets.advance(this.config.replayQueueUrl(), offset);
+                    // Only an exact order makes "every event up to the offset was sent" true, and resumable.
+                    if (plan.exact()) {
+                        this.replayCheckpoints.checkpoint(shard, offset);
+                    }
+                },
+                MessageGroups.isFifoQueue(this.config.replayQueueUrl()) ? this.config.messageGroups() : null,
+                System::currentTimeMillis,
+                this.metrics)) {
+            while (plan.hasNext()) {
+                ReplayPlanner.ReplayEvent event = plan.next();
+                if (fromOffset != null && event.offset().compareTo(fromOffset) <= 0) {
+                    inSnapshot++;
+                } else if (state.lastOffsetProcessed() != null && plan.exact() && event.offset().compareTo(state.lastOffsetProcessed()) <= 0) {
+                    skipped++;
+                } else {
+                    sender.send(event);
+                    sent++;
+                }
+                if (plan.exact()) {
+                    continue;
+                }
+                // The listing position is checkpointed with the sender's checkpoints, once the events sent before the
+                // plan reached it are acknowledged.
+                String position = plan.listedThrough();
+                if (position != null && !position.equals(positions.isEmpty() ? listedThrough : positions.peekLast().listedThrough())) {
+                    positions.add(new ListingPosition(sent, position));
+                }
+                if (!Objects.equals(sender.checkpointedOffset(), senderCheckpoint)) {
+                    senderCheckpoint = sender.checkpointedOffset();
+                    String acknowledgedThrough = null;
+                    while (!positions.isEmpty() && positions.peekFirst().sent() <= sender.acknowledged()) {
+                        acknowledgedThrough = positions.poll().listedThrough();
+                    }
+                    if (acknowledgedThrough != null) {
+                        this.replayCheckpoints.checkpointListing(shard, acknowledgedThrough);
+                        listedThrough = acknowledgedThrough;
+                    }
+                }
+            }
+            lastOffsetProcessed = sender.finish();
+            eventsReplayed = (int) sender.acknowledged();
+            BridgeLog.info("Sent " + eventsReplayed + " replay events in " + sender.batchesSent() + " batches listed after "
+                    + state.listedThrough() + ", skipped " + skipped + " sent before the checkpoint at "
+                    + state.lastOffsetProcessed() + " and " + inSnapshot + " in the snapshot up to " + fromOffset + ".");
+        }
+        this.replayCheckpoints.complete(shard);
+        ReplayPlanner.Stats stats = plan.stats();
+        BridgeLog.info("replay shard " + shard.index() + " of " + shard.count() + " complete, " + stats.versionsListed()
+                + " versions listed with at most " + stats.maxActiveKeys() + " active keys.");
+        return new ReplayResult((int) stats.versionsListed(), eventsReplayed, lastOffsetProcessed);
+    }
+
+    // Completes the run once every shard is complete and returns the replay queue offset.
+    public String completeReplay(int shards) {
+        List<Integer> incomplete = this.replayCheckpoints.incompleteShards(shards, this.config.replayShardBy());
+        if (!incomplete.isEmpty()) {
+            throw new IllegalStateException("Replay shards " + incomplete + " of " + shards + " are not complete.");
+        }
+        String lastOffsetProcessed = this.offsets.refresh(this.config.replayQueueUrl()).lastOffsetProcessed();
+        if (lastOffsetProcessed == null) {
+            BridgeLog.info("No versions found to process.");
+            lastOffsetProcessed = toIsoString(Instant.now()) + " No versions found to replay";
+            writeLastOffsetProcessedToOffsetsTable(this.config.replayQueueUrl(), lastOffsetProcessed);
+            this.offsets.advance(this.config.bucketOffsetId(), lastOffsetProcessed);
+        }
+        this.replayCheckpoints.finish();
+        BridgeLog.info("replay job complete in " + shards + " shards up to offset " + lastOffsetProcessed);
+        return lastOffsetProcessed;
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // Projection functions
+    // -----------------------------------------------------------------------------------------------------------------
+
+    // The S3 event's records, all of which must be object created events.
+    public List<JsonNode> putEventRecords(JsonNode s3Event) {
+        List<JsonNode> putEventRecords = new ArrayList<>();
+        for (JsonNode s3EventRecord : s3Event.path("Records")) {
+            String eventName = s3EventRecord.path("eventName").asText();
+            if (!OBJECT_CREATED_EVENT_NAMES.contains(eventName)) {
+                throw new IllegalArgumentException("Unsupported event name: " + eventName);
+            }
+            putEventRecords.add(s3EventRecord);
+        }
+        return putEventRecords;
+    }
+
+    // Returns the offset of the version, which is not projected when the table holds a newer version.
+    public String createProjection(JsonNode s3PutEventRecord) {
+        String id = s3PutEventRecord.path("s3").path("object").path("key").asText();
+        String versionId = s3PutEventRecord.path("s3").path("object").path("versionId").asText(null);
+        ProjectionValue value = getS3ObjectProjectionValue(this.config.bucketName(), s3PutEventRecord);
+        ProjectionWriter writer = new ProjectionWriter(this.clients.dynamodb(), this.config.projectionsTableName(), this.config.projectionWriterOptions());
+        writer.put(id, value.valueAttributes(), projectionVersion(value, s3PutEventRecord));
+        if (!this.metrics.time(StageMetrics.Stage.PROJECTION_WRITE, writer::flush).isEmpty()) {
+            throw new IllegalStateException("Failed to write the projection of " + id + " version " + versionId);
+        }
+        if (!writer.stale().isEmpty()) {
+            BridgeLog.info("Skipping " + id + " version " + versionId + " which is older than the projected version");
+        } else if (this.metrics.time(StageMetrics.Stage.DIGEST, () -> this.digestIndex.add(id))) {
+            BridgeLog.info("Added " + id + " to digest shard " + DigestIndex.shardId(this.digestIndex.shardOf(id)));
+        }
+        return toIsoString(value.objectMetaData().lastModified()) + " " + id + " " + versionId;
+    }
+
+    private static ProjectionWriter.Version projectionVersion(ProjectionValue value, JsonNode s3PutEventRecord) {
+        JsonNode object = s3PutEventRecord.path("s3").path("object");
+        return new ProjectionWriter.Version(toIsoString(value.objectMetaData().lastModified()),
+                object.path("versionId").asText(null), object.path("sequencer").asText(null));
+    }
+
+    // Advances the bucket offset with a conditional write rather than a read, compare and write. Returns false when a
+    // replay has reset the bucket offset since this container cached it.
+    public boolean advanceBucketOffset(String lastOffsetProcessed) {
+        return advanceBucketOffsets(Map.of(OffsetShards.HEAD, lastOffsetProcessed));
+    }
+
+    // Advances each offsets shard to its offset (see OffsetShards), the shard "#" being the bucket offset itself.
+    public boolean advanceBucketOffsets(Map<String, String> shardOffsets) {
+        return this.metrics.time(StageMetrics.Stage.OFFSET_WRITE, () -> advanceBucketOffsetsConditionally(shardOffsets));
+    }
+
+    private boolean advanceBucketOffsetsConditionally(Map<String, String> shardOffsets) {
+        long replayGeneration = this.offsets.read(this.config.bucketOffsetId()).replayGeneration();
+        for (Map.Entry<String, String> shardOffset : shardOffsets.entrySet()) {
+            String lastOffsetProcessed = shardOffset.getValue();
+            if (!this.offsets.advance(this.config.bucketOffsetId(), shardOffset.getKey(), lastOffsetProcessed)) {
+                OffsetTracker.Offset bucketOffset = this.offsets.read(this.config.bucketOffsetId());
+                if (bucketOffset.replayGeneration() != replayGeneration) {
+                    return false;
+                }
+                BridgeLog.error("Bucket offset shard " + shardOffset.getKey() + " is already at or ahead of this object's offset at " + lastOffsetProcessed + ". Skipping offset update.", null);
+            }
+        }
+        return true;
+    }
+
+    // Advances the live lane's offset, creating the row for a replay started before concurrent ingest was enabled. A row
+    // reset by a new replay is advanced again in its new generation.
+    private void advanceLiveOffset(String lastOffsetProcessed) {
+        String liveOffsetId = this.config.liveOffsetId();
+        this.metrics.time(StageMetrics.Stage.OFFSET_WRITE, () -> {
+            if (!this.liveOffsetFound && this.offsets.find(liveOffsetId) == null) {
+                this.offsets.reset(liveOffsetId, null);
+            }
+            this.liveOffsetFound = true;
+            long replayGeneration = this.offsets.read(liveOffsetId).replayGeneration();
+            if (!this.offsets.advance(liveOffsetId, lastOffsetProcessed)
+                    && this.offsets.read(liveOffsetId).replayGeneration() != replayGeneration) {
+                this.offsets.advance(liveOffsetId, lastOffsetProcessed);
+            }
+        });
+    }
+
+    // Merges the live lane into the bucket offset once the replay lane has reached its frontier, so that the bucket offset
+    // covers the versions projected beside the replay. Returns false when a new replay has reset the bucket offset since.
+    private boolean handOverLiveOffset() {
+        OffsetTracker.Offset liveOffset = this.metrics.time(StageMetrics.Stage.OFFSET_READ,
+                () -> this.offsets.find(this.config.liveOffsetId()));
+        if (liveOffset == null || liveOffset.lastOffsetProcessed() == null) {
+            return true;
+        }
+        BridgeLog.info("Handing over the live lane at " + liveOffset.lastOffsetProcessed() + " to the bucket offset");
+        return advanceBucketOffset(liveOffset.lastOffsetProcessed());
+    }
+
+    private static String maxOffset(String a, String b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.compareTo(b) >= 0 ? a : b;
+    }
+
+    public void deleteProjection(String id) {
+        this.clients.dynamodb().deleteItem(DeleteItemRequest.builder()
+                .tableName(this.config.projectionsTableName())
+                .key(Map.of("id", AttributeValue.fromS(id)))
+                .build());
+        if (this.digestIndex.remove(id)) {
+            BridgeLog.info("Removed " + id + " from digest shard " + DigestIndex.shardId(this.digestIndex.shardOf(id)));
+            DigestPublisher.Delta delta = this.digestPublisher.record(List.of(), List.of(), List.of(id), this.config.digestQueueUrl() != null);
+            if (this.config.digestQueueUrl() != null) {
+                sendDigest(delta);
+            }
+        }
+    }
+
+    // Reads the digest from the index shards rather than scanning the projections table.
+    public Map<String, Map<String, String>> computeDigest() {
+        return this.metrics.time(StageMetrics.Stage.DIGEST, this.digestIndex::idsMap);
+    }
+
+    // Sends the batch's delta, or the pointer to a new snapshot when one is due, or in the full format the digest.
+    protected void sendDigest(DigestPublisher.Delta delta) {
+        if (DigestPublisher.FORMAT_FULL.equals(this.config.digestFormat())) {
+            sendToSqs(this.mapper.valueToTree(computeDigest()), this.config.digestQueueUrl());
+            return;
+        }
+        JsonNode message = delta.snapshotDue() ? null : this.digestPublisher.deltaMessage(delta);
+        if (message != null) {
+            sendToSqs(message, this.config.digestQueueUrl());
+        } else {
+            // A snapshot at the delta's sequence replaces the delta.
+            DigestPublisher.Snapshot snapshot = this.metrics.time(StageMetrics.Stage.DIGEST, () -> this.digestPublisher.snapshot(delta.sequence()));
+            sendToSqs(this.digestPublisher.snapshotMessage(snapshot), this.config.digestQueueUrl());
+        }
+    }
+
+    // Writes a digest snapshot and, when there is a digest queue, sends the pointer to it.
+    public DigestPublisher.Snapshot snapshotDigest() {
+        return sendDigestSnapshot(this.digestPublisher.nextSequence());
+    }
+
+    private DigestPublisher.Snapshot sendDigestSnapshot(long sequence) {
+        DigestPublisher.Snapshot snapshot = this.digestPublisher.snapshot(sequence);
+        if (this.config.digestQueueUrl() != null) {
+            sendToSqs(this.digestPublisher.snapshotMessage(snapshot), this.config.digestQueueUrl());
+        }
+        return snapshot;
+    }
+
+    // Rebuilding changes the index without deltas, so the running count and hash are reset and a snapshot is sent.
+    public DigestIndex.Summary rebuildDigest() {
+        DigestIndex.Summary summary = this.digestIndex.rebuild(getProjectionIdsMap(List.of()).keySet());
+        sendDigestSnapshot(this.digestPublisher.reset(summary));
+        return summary;
+    }
+
+    public DigestIndex.Verification verifyDigest() {
+        return this.digestIndex.verify(getProjectionIdsMap(List.of()).keySet());
+    }
+
+    public DigestPublisher.Sequence digestSequence() {
+        return this.digestPublisher.current();
+    }
+
+    // -----------------------------------------------------------------------------------------------------------------
+    // SQS Lambda Handlers
+    // -----------------------------------------------------------------------------------------------------------------
+
+    public SQSBatchResponse sourceLambdaHandler(SQSEvent sqsEvent) {
+        // If the latest bucket offset processed is null or behind the latest queue offset processed, replay is needed. Once
+        // replay is complete the offsets are not read again until an advance finds that a new replay has reset them.
+        // Replayed batches advance the bucket offset row itself, so the check reads that row even when source batches
+        // advance offsets shards. With concurrent ingest the batch is projected in the live lane instead until the run has
+        // completed and its replayed batches have reached the replay queue offset, then the live lane is handed over.
+        if (this.sourceReadyReplayGeneration < 0) {
+            String replayQueueLastOffsetProcessed = this.metrics.time(StageMetrics.Stage.OFFSET_READ,
+                    () -> this.offsets.refresh(this.config.replayQueueUrl())).lastOffsetProcessed();
+            OffsetTracker.Offset bucketOffset = this.metrics.time(StageMetrics.Stage.OFFSET_READ,
+                    () -> this.offsets.refresh(this.config.bucketOffsetId()));
+            String bucketLastOffsetProcessed = bucketOffset.lastOffsetProcessed();
+            boolean behind = bucketLastOffsetProcessed == null
+                    || (replayQueueLastOffsetProcessed != null && bucketLastOffsetProcessed.compareTo(replayQueueLastOffsetProcessed) < 0);
+            if (this.config.replayConcurrentIngest()) {
+                if (behind || this.replayCheckpoints.running() || !handOverLiveOffset()) {
+                    return processRecords(sqsEvent, true, true);
+                }
+            } else if (behind) {
+                throw new IllegalStateException("Bucket offset processed " + bucketLastOffsetProcessed + " is behind replay queue offset processed " + replayQueueLastOffsetProcessed + ". Replay needed.");
+            }
+            this.sourceReadyReplayGeneration = bucketOffset.replayGeneration();
+        }
+        return processRecords(sqsEvent, true);
+    }
+
+    // Forwards S3 events from the standard source queue (S3 cannot notify a FIFO queue) to the ordered source queue with
+    // a message group per key, one S3 record per message. Records of a group that failed are not forwarded after it.
+    public SQSBatchResponse sourceSequencerLambdaHandler(SQSEvent sqsEvent) {
+        MessageGroups messageGroups = this.config.messageGroups();
+        List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>();
+        Set<String> failedMessageGroups = new HashSet<>();
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>();
+        Map<String, String> entryMessageIds = new HashMap<>();
+        Map<String, String> entryGroupIds = new HashMap<>();
+        for (SQSEvent.SQSMessage sqsEventRecord : sqsEvent.getRecords()) {
+            try {
+                for (JsonNode s3EventRecord : this.mapper.readTree(sqsEventRecord.getBody()).path("Records")) {
+                    String key = s3EventRecord.path("s3").path("object").path("key").asText();
+                    String versionId = s3EventRecord.path("s3").path("object").path("versionId").asText(null);
+                    String entryId = Integer.toString(entries.size());
+                    ObjectNode s3Event = this.mapper.createObjectNode();
+                    s3Event.putArray("Records").add(s3EventRecord);
+                    entries.add(SendMessageBatchRequestEntry.builder()
+                            .id(entryId)
+                            .messageBody(s3Event.toString())
+                            .messageGroupId(messageGroups.groupId(key))
+                            .messageDeduplicationId(messageGroups.deduplicationId(key, versionId))
+                            .build());
+                    entryMessageIds.put(entryId, sqsEventRecord.getMessageId());
+                    entryGroupIds.put(entryId, messageGroups.groupId(key));
+                }
+            } catch (Exception e) {
+                BridgeLog.error("Error reading record " + sqsEventRecord.getMessageId() + ": " + e.getMessage(), e);
+                batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(sqsEventRecord.getMessageId()));
+            }
+        }
+        // A batch holds at most one entry per message group so that a failed entry is never overtaken by a later entry
+        // of its group, and once an entry fails the rest of its group is held back for redelivery.
+        Set<String> failedMessageIds = new HashSet<>();
+        List<SendMessageBatchRequestEntry> pending = new ArrayList<>(entries);
+        while (!pending.isEmpty()) {
+            List<SendMessageBatchRequestEntry> batch = new ArrayList<>();
+            Set<String> batchMessageGroups = new HashSet<>();
+            for (Iterator<SendMessageBatchRequestEntry> iterator = pending.iterator(); iterator.hasNext(); ) {
+                SendMessageBatchRequestEntry entry = iterator.next();
+                String messageGroupId = entryGroupIds.get(entry.id());
+                if (failedMessageGroups.contains(messageGroupId)) {
+                    failedMessageIds.add(entryMessageIds.get(entry.id()));
+                    iterator.remove();
+                } else if (batch.size() < ReplaySender.MAX_BATCH_ENTRIES && batchMessageGroups.add(messageGroupId)) {
+                    batch.add(entry);
+                    iterator.remove();
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            Set<String> failedEntryIds = new HashSet<>();
+            try {
+                SendMessageBatchRequest request = SendMessageBatchRequest.builder()
+                        .queueUrl(this.config.orderedSourceQueueUrl())
+                        .entries(batch)
+                        .build();
+                SendMessageBatchResponse response = this.metrics.time(StageMetrics.Stage.SQS_SEND, () -> this.clients.sqs().sendMessageBatch(request));
+                if (response.hasFailed()) {
+                    response.failed().forEach(failed -> failedEntryIds.add(failed.id()));
+                }
+            } catch (RuntimeException e) {
+                BridgeLog.error("Failed to send messages to SQS queue " + this.config.orderedSourceQueueUrl(), e);
+                batch.forEach(entry -> failedEntryIds.add(entry.id()));
+            }
+            for (SendMessageBatchRequestEntry entry : batch) {
+                if (failedEntryIds.contains(entry.id())) {
+                    failedMessageGroups.add(entryGroupIds.get(entry.id()));
+                    failedMessageIds.add(entryMessageIds.get(entry.id()));
+                }
+            }
+        }
+        failedMessageIds.forEach(messageId -> batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(messageId)));
+        BridgeLog.info("Sequenced " + entries.size() + " S3 records to " + this.config.orderedSourceQueueUrl() + " with " + batchItemFailures.size() + " failed messages");
+        return new SQSBatchResponse(batchItemFailures);
+    }
+
+    // S3 orders the events of a key by sequencer, compared at equal length. Without both sequencers the later eventTime
+    // decides, then the versionId, and last the batch order.
+    static boolean isNewerVersion(JsonNode putEventRecord, JsonNode current) {
+        JsonNode object = putEventRecord.path("s3").path("object");
+        JsonNode currentObject = current.path("s3").path("object");
+        String sequencer = object.path("sequencer").asText("");
+        String currentSequencer = currentObject.path("sequencer").asText("");
+        int order = 0;
+        if (!sequencer.isEmpty() && !currentSequencer.isEmpty()) {
+            order = ProjectionWriter.paddedSequencer(sequencer).compareTo(ProjectionWriter.paddedSequencer(currentSequencer));
+        }
+        if (order == 0) {
+            order = putEventRecord.path("eventTime").asText("").compareTo(current.path("eventTime").asText(""));
+        }
+        if (order == 0) {
+            order = object.path("versionId").asText("").compareTo(currentObject.path("versionId").asText(""));
+        }
+        return order >= 0;
+    }
+
+    public SQSBatchResponse replayLambdaHandler(SQSEvent sqsEvent) {
+        // NOTE: Replay does not send the digest via SQS, see DigestPublisher.
+        return processRecords(sqsEvent, false);
+    }
+
+    // A batch is projected as a whole: only the last version of each key in the batch is fetched and written, the values
+    // are written with BatchWriteItem, then the bucket offset is advanced once and, from the source queue, the digest
+    // delta sent once. Records whose keys failed are returned as batch item failures so that only they are redelivered. From a
+    // FIFO queue the records after a failure in the same message group are returned as failures too, so the group is
+    // redelivered in order. A source batch that finds the bucket offset reset by a new replay fails as a whole, to be
+    // redelivered once replay completes, or with concurrent ingest moves its offset to the live lane.
+    protected SQSBatchResponse processRecords(SQSEvent sqsEvent, boolean fromSource) {
+        return processRecords(sqsEvent, fromSource, false);
+    }
+
+    // The live lane projects source batches beside a replay: the values are written with the version guards and the
+    // offset advances the live lane's row rather than the bucket offset the replay is advancing.
+    private SQSBatchResponse processRecords(SQSEvent sqsEvent, boolean fromSource, boolean liveLane) {
+        Set<String> failedMessageIds = new HashSet<>();
+        Map<String, List<String>> messageKeys = new HashMap<>();
+        // Standard queues do not keep the order of the versions of a key, so only the newest one is written.
+        Map<String, JsonNode> lastPutEventRecords = new LinkedHashMap<>();
+        int versions = 0;
+        for (SQSEvent.SQSMessage sqsEventRecord : sqsEvent.getRecords()) {
+            try {
+                List<String> keys = new ArrayList<>();
+                for (JsonNode putEventRecord : putEventRecords(this.mapper.readTree(sqsEventRecord.getBody()))) {
+                    String key = putEventRecord.path("s3").path("object").path("key").asText();
+                    JsonNode current = lastPutEventRecords.get(key);
+                    if (current == null || isNewerVersion(putEventRecord, current)) {
+                        lastPutEventRecords.put(key, putEventRecord);
+                    }
+                    keys.add(key);
+                    versions++;
+                }
+                messageKeys.put(sqsEventRecord.getMessageId(), keys);
+            } catch (Exception e) {
+                BridgeLog.error("Error processing record " + sqsEventRecord.getMessageId() + ": " + e.getMessage(), e);
+                failedMessageIds.add(sqsEventRecord.getMessageId());
+            }
+        }
+
+        ProjectionWriter writer = new ProjectionWriter(this.clients.dynamodb(), this.config.projectionsTableName(), this.config.projectionWriterOptions());
+        Map<String, String> keyOffsets = new HashMap<>();
+        Set<String> failedKeys = new HashSet<>();
+        int stale = 0;
+        for (Map.Entry<String, JsonNode> lastPutEventRecord : lastPutEventRecords.entrySet()) {
+            String id = lastPutEventRecord.getKey();
+            String versionId = lastPutEventRecord.getValue().path("s3").path("object").path("versionId").asText(null);
+            try {
+                // An older version is left for the event of the newer one to project, and does not move the offset.
+                if (this.config.projectionLatestOnly()
+                        && !this.metrics.time(StageMetrics.Stage.S3_FETCH, () -> this.fetcher.isLatest(this.config.bucketName(), id, versionId))) {
+                    BridgeLog.info("Skipping " + id + " version " + versionId + " which is no longer the latest version");
+                    stale++;
+                    continue;
+                }
+                ProjectionValue value = getS3ObjectProjectionValue(this.config.bucketName(), lastPutEventRecord.getValue());
+                writer.put(id, value.valueAttributes(), projectionVersion(value, lastPutEventRecord.getValue()));
+                keyOffsets.put(id, toIsoString(value.objectMetaData().lastModified()) + " " + id + " " + versionId);
+            } catch (Exception e) {
+                BridgeLog.error("Error projecting " + id + " version " + versionId + ": " + e.getMessage(), e);
+                failedKeys.add(id);
+            }
+        }
+        failedKeys.addAll(this.metrics.time(StageMetrics.Stage.PROJECTION_WRITE, writer::flush));
+        // A version older than the stored one was rejected by the conditional write, as the latest-only check would have.
+        // Beside live ingest a replayed version superseded by a live one still moves the offset, so that the replay lane
+        // reaches the replay queue offset it was sent up to.
+        Set<String> supersededIds = new HashSet<>();
+        for (String id : writer.stale()) {
+            BridgeLog.info("Skipping " + id + " version " + lastPutEventRecords.get(id).path("s3").path("object").path("versionId").asText(null)
+                    + " which is older than the projected version");
+            if (!fromSource && this.config.replayConcurrentIngest()) {
+                supersededIds.add(id);
+            } else {
+                keyOffsets.remove(id);
+            }
+            stale++;
+        }
+        List<String> addedIds = new ArrayList<>();
+        List<String> changedIds = new ArrayList<>();
+        for (String id : keyOffsets.keySet()) {
+            if (failedKeys.contains(id) || supersededIds.contains(id)) {
+                continue;
+            }
+            try {
+                if (this.metrics.time(StageMetrics.Stage.DIGEST, () -> this.digestIndex.add(id))) {
+                    BridgeLog.info("Added " + id + " to digest shard " + DigestIndex.shardId(this.digestIndex.shardOf(id)));
+                    addedIds.add(id);
+                } else {
+                    changedIds.add(id);
+                }
+            } catch (RuntimeException e) {
+                BridgeLog.error("Error adding " + id + " to the digest: " + e.getMessage(), e);
+                failedKeys.add(id);
+            }
+        }
+
+        List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>();
+        Set<String> failedMessageGroups = new HashSet<>();
+        // Source batches advance the offsets shards of their keys, replayed batches the bucket offset the replay reset.
+        OffsetShards offsetShards = fromSource && !liveLane ? this.config.offsetShards() : OffsetShards.none();
+        Map<String, String> shardOffsets = new TreeMap<>();
+        String lastOffsetProcessed = null;
+        int projected = 0;
+        for (SQSEvent.SQSMessage sqsEventRecord : sqsEvent.getRecords()) {
+            String messageId = sqsEventRecord.getMessageId();
+            String messageGroupId = sqsEventRecord.getAttributes() == null ? null : sqsEventRecord.getAttributes().get("MessageGroupId");
+            List<String> keys = messageKeys.getOrDefault(messageId, List.of());
+            if (failedMessageIds.contains(messageId)
+                    || keys.stream().anyMatch(failedKeys::contains)
+                    || (messageGroupId != null && failedMessageGroups.contains(messageGroupId))) {
+                batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+                if (messageGroupId != null) {
+                    failedMessageGroups.add(messageGroupId);
+                }
+                continue;
+            }
+            for (String key : keys) {
+                String offset = keyOffsets.get(key);
+                if (offset != null) {
+                    lastOffsetProcessed = maxOffset(lastOffsetProcessed, offset);
+                    shardOffsets.merge(offsetShards.shardOf(this.config.objectPrefix(), key), offset, ProjectionBridge::maxOffset);
+                }
+            }
+            projected++;
+        }
+        if (liveLane) {
+            if (lastOffsetProcessed != null) {
+                advanceLiveOffset(lastOffsetProcessed);
+            }
+        } else if (!shardOffsets.isEmpty() && !advanceBucketOffsets(shardOffsets)) {
+            if (fromSource) {
+                this.sourceReadyReplayGeneration = -1;
+                if (!this.config.replayConcurrentIngest()) {
+                    throw new IllegalStateException("Bucket offset was reset by a replay while projecting up to " + lastOffsetProcessed + ". Replay needed.");
+                }
+                // The values were written with the version guards, so the batch joins the live lane of the new replay.
+                advanceLiveOffset(lastOffsetProcessed);
+            } else if (!advanceBucketOffsets(shardOffsets)) {
+                // The first attempt refreshed the cached generation, a second reset means a newer replay covers this batch.
+                BridgeLog.error("Bucket offset was reset again by a replay while replaying up to " + lastOffsetProcessed + ". Skipping offset update.", null);
+            }
+        }
+        // Replayed changes are numbered but not sent, the next source batch sends a snapshot instead.
+        if (!addedIds.isEmpty() || !changedIds.isEmpty()) {
+            DigestPublisher.Delta delta = null;
+            try {
+                delta = this.metrics.time(StageMetrics.Stage.DIGEST,
+                        () -> this.digestPublisher.record(addedIds, changedIds, List.of(), fromSource));
+            } catch (RuntimeException e) {
+                // The projections and index are written, only the running count and hash drift until the digest is rebuilt.
+                BridgeLog.error("Error numbering the digest delta of " + (addedIds.size() + changedIds.size()) + " ids: " + e.getMessage(), e);
+            }
+            if (fromSource && (delta != null || DigestPublisher.FORMAT_FULL.equals(this.config.digestFormat()))) {
+                sendDigest(delta);
+            }
+        }
+        BridgeLog.info("Projected " + projected + " of " + sqsEvent.getRecords().size() + " records (" + versions + " versions of "
+                + lastPutEventRecords.size() + " keys, " + stale + " stale, " + this.fetcher.cacheHits() + " cache hits) up to offset "
+                + lastOffsetProcessed);
+        return new SQSBatchResponse(batchItemFailures);
+    }
+
+    protected String toJson(Object value) {
+        try {
+            return this.mapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+/**
+ * Holds the single ProjectionBridge per container, shared by whichever handlers the container constructs.
+ */
+public final class ProjectionRuntime {
+
+    private static volatile ProjectionBridge bridge;
+
+    private ProjectionRuntime() {
+    }
+
+    public static ProjectionBridge bridge() {
+        if (bridge == null) {
+            synchronized (ProjectionRuntime.class) {
+                if (bridge == null) {
+                    BridgeConfig config = BridgeConfig.fromEnvironment();
+                    bridge = new ProjectionBridge(config, BridgeClients.create(config));
+                }
+            }
+        }
+        return bridge;
+    }
+}
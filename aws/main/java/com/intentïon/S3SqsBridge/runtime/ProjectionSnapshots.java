@@ -0,0 +1,322 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshots of the projections table in S3, so that a replay loads the latest snapshot and replays only the versions
+ * uploaded since rather than every version from the start.
+ * <p>
+ * A snapshot is a gzipped JSON Lines object under the snapshot prefix, one projection per line sorted by id with its
+ * attributes in DynamoDB JSON, taken after reading the bucket offset so that every version up to that offset is in it.
+ * The "latest.json" object under the prefix points at the most recent snapshot and its offset. The digest index rows
+ * are not included, the digest is rebuilt from the loaded ids.
+ * <p>
+ * The table need not fit on the heap. It is sorted in runs of up to runMaxChars of JSON, and when there is more than one
+ * run they are written to Lambda's /tmp, gzipped, and merged into the snapshot holding one projection per run.
+ */
+public class ProjectionSnapshots {
+
+    public static final String DEFAULT_PREFIX = "snapshots/";
+    public static final String LATEST = "latest.json";
+    // Loaded projections are flushed with BatchWriteItem in chunks of this many items to bound memory.
+    private static final int LOAD_FLUSH_EVERY = 1000;
+    public static final long DEFAULT_RUN_MAX_CHARS = 8L * 1024 * 1024;
+
+    public record Snapshot(String key, String lastOffsetProcessed, long projections) {
+    }
+
+    // The next projection of a sorted run being merged.
+    private record RunHead(String id, String line, BufferedReader in) {
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final S3Client s3;
+    private final DynamoDbClient dynamodb;
+    private final String bucket;
+    private final String prefix;
+    private final String projectionsTableName;
+    private final long runMaxChars;
+
+    public ProjectionSnapshots(S3Client s3, DynamoDbClient dynamodb, String bucket, String prefix, String projectionsTableName) {
+        this(s3, dynamodb, bucket, prefix, projectionsTableName, DEFAULT_RUN_MAX_CHARS);
+    }
+
+    public ProjectionSnapshots(S3Client s3, DynamoDbClient dynamodb, String bucket, String prefix, String projectionsTableName,
+                               long runMaxChars) {
+        this.s3 = s3;
+        this.dynamodb = dynamodb;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.projectionsTableName = projectionsTableName;
+        this.runMaxChars = runMaxChars;
+    }
+
+    // Writes a snapshot of the projections table as of the given bucket offset and points "latest.json" at it.
+    public Snapshot write(String lastOffsetProcessed) {
+        String key = this.prefix + "projections-" + ProjectionBridge.toIsoString(Instant.now()) + ".jsonl.gz";
+        List<Path> runs = new ArrayList<>();
+        Path file = null;
+        long projections = 0;
+        try {
+            TreeMap<String, String> run = new TreeMap<>();
+            long runChars = 0;
+            Map<String, AttributeValue> lastEvaluatedKey = null;
+            do {
+                ScanRequest.Builder params = ScanRequest.builder()
+                        .tableName(this.projectionsTableName)
+                        .consistentRead(true);
+                if (lastEvaluatedKey != null) {
+                    params.exclusiveStartKey(lastEvaluatedKey);
+                }
+                ScanResponse result = this.dynamodb.scan(params.build());
+                for (Map<String, AttributeValue> item : result.items()) {
+                    String id = item.get("id").s();
+                    if (!DigestIndex.isDigestId(id) && !ProjectionBridge.DIGEST_ID.equals(id)) {
+                        String line = toJson(item).toString();
+                        run.put(id, line);
+                        projections++;
+                        runChars += id.length() + line.length();
+                        if (runChars >= this.runMaxChars) {
+                            spill(run, runs);
+                            run.clear();
+                            runChars = 0;
+                        }
+                    }
+                }
+                lastEvaluatedKey = result.hasLastEvaluatedKey() && !result.lastEvaluatedKey().isEmpty()
+                        ? result.lastEvaluatedKey()
+                        : null;
+            } while (lastEvaluatedKey != null);
+
+            // Lambda's /tmp holds the compressed snapshot so it is not buffered on the heap a second time.
+            file = Files.createTempFile("projections-", ".jsonl.gz");
+            try (Writer out = gzipWriter(file)) {
+                if (runs.isEmpty()) {
+                    for (String line : run.values()) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                } else {
+                    if (!run.isEmpty()) {
+                        spill(run, runs);
+                    }
+                    merge(runs, out);
+                }
+            }
+            this.s3.putObject(PutObjectRequest.builder()
+                    .bucket(this.bucket)
+                    .key(key)
+                    .contentType("application/x-ndjson")
+                    .contentEncoding("gzip")
+                    .build(), RequestBody.fromFile(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write snapshot " + key, e);
+        } finally {
+            if (file != null) {
+                file.toFile().delete();
+            }
+            runs.forEach(run -> run.toFile().delete());
+        }
+        Snapshot snapshot = new Snapshot(key, lastOffsetProcessed, projections);
+        ObjectNode latest = this.mapper.createObjectNode()
+                .put("key", snapshot.key())
+                .put("lastOffsetProcessed", snapshot.lastOffsetProcessed())
+                .put("projections", snapshot.projections());
+        this.s3.putObject(PutObjectRequest.builder()
+                .bucket(this.bucket)
+                .key(this.prefix + LATEST)
+                .contentType("application/json")
+                .build(), RequestBody.fromString(latest.toString()));
+        BridgeLog.info("Wrote snapshot of " + snapshot.projections() + " projections up to offset " + lastOffsetProcessed + " to " + key);
+        return snapshot;
+    }
+
+    // The most recent snapshot, or null if none has been written.
+    public Snapshot latest() {
+        JsonNode latest;
+        try (InputStream in = this.s3.getObject(GetObjectRequest.builder()
+                .bucket(this.bucket)
+                .key(this.prefix + LATEST)
+                .build())) {
+            latest = this.mapper.readTree(in);
+        } catch (NoSuchKeyException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + this.prefix + LATEST, e);
+        }
+        return new Snapshot(latest.path("key").asText(), latest.path("lastOffsetProcessed").asText(null), latest.path("projections").asLong());
+    }
+
+    // Writes every projection in the snapshot to the projections table and returns the loaded ids.
+    public Set<String> load(Snapshot snapshot) {
+        ProjectionWriter writer = new ProjectionWriter(this.dynamodb, this.projectionsTableName);
+        Set<String> ids = new HashSet<>();
+        int pending = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(this.s3.getObject(GetObjectRequest.builder()
+                .bucket(this.bucket)
+                .key(snapshot.key())
+                .build())), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                Map<String, AttributeValue> item = fromJson(this.mapper.readTree(line));
+                String id = item.get("id").s();
+                writer.put(id, item);
+                ids.add(id);
+                if (++pending == LOAD_FLUSH_EVERY) {
+                    flush(writer);
+                    pending = 0;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load snapshot " + snapshot.key(), e);
+        }
+        flush(writer);
+        BridgeLog.info("Loaded " + ids.size() + " projections from snapshot " + snapshot.key());
+        return ids;
+    }
+
+    // Writes the sorted run to /tmp, each projection as its id in JSON on one line and its snapshot line on the next.
+    private void spill(TreeMap<String, String> run, List<Path> runs) throws IOException {
+        Path file = Files.createTempFile("projections-run-", ".gz");
+        runs.add(file);
+        try (Writer out = gzipWriter(file)) {
+            for (Map.Entry<String, String> projection : run.entrySet()) {
+                out.write(this.mapper.writeValueAsString(projection.getKey()));
+                out.write('\n');
+                out.write(projection.getValue());
+                out.write('\n');
+            }
+        }
+    }
+
+    // Writes the lines of the sorted runs in id order. An id is in only one run, as the scan returns each item once.
+    private void merge(List<Path> runs, Writer out) throws IOException {
+        PriorityQueue<RunHead> heads = new PriorityQueue<>(Comparator.comparing(RunHead::id));
+        List<BufferedReader> readers = new ArrayList<>();
+        try {
+            for (Path run : runs) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(run)), StandardCharsets.UTF_8));
+                readers.add(in);
+                RunHead head = next(in);
+                if (head != null) {
+                    heads.add(head);
+                }
+            }
+            while (!heads.isEmpty()) {
+                RunHead head = heads.poll();
+                out.write(head.line());
+                out.write('\n');
+                RunHead next = next(head.in());
+                if (next != null) {
+                    heads.add(next);
+                }
+            }
+        } finally {
+            for (BufferedReader in : readers) {
+                in.close();
+            }
+        }
+    }
+
+    private RunHead next(BufferedReader in) throws IOException {
+        String id = in.readLine();
+        return id == null ? null : new RunHead(this.mapper.readValue(id, String.class), in.readLine(), in);
+    }
+
+    private static Writer gzipWriter(Path file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8));
+    }
+
+    private static void flush(ProjectionWriter writer) {
+        Set<String> failedIds = writer.flush();
+        if (!failedIds.isEmpty()) {
+            throw new IllegalStateException("Failed to load " + failedIds.size() + " projections from the snapshot, e.g. " + failedIds.iterator().next());
+        }
+    }
+
+    // DynamoDB JSON for the attribute types projections use.
+    private ObjectNode toJson(Map<String, AttributeValue> item) {
+        ObjectNode json = this.mapper.createObjectNode();
+        for (Map.Entry<String, AttributeValue> attribute : new TreeMap<>(item).entrySet()) {
+            AttributeValue value = attribute.getValue();
+            ObjectNode typed = json.putObject(attribute.getKey());
+            if (value.s() != null) {
+                typed.put("S", value.s());
+            } else if (value.n() != null) {
+                typed.put("N", value.n());
+            } else if (value.b() != null) {
+                typed.put("B", Base64.getEncoder().encodeToString(value.b().asByteArray()));
+            } else if (value.bool() != null) {
+                typed.put("BOOL", value.bool());
+            } else if (value.hasSs()) {
+                ArrayNode strings = typed.putArray("SS");
+                value.ss().forEach(strings::add);
+            } else {
+                throw new IllegalArgumentException("Unsupported attribute type in projection attribute " + attribute.getKey());
+            }
+        }
+        return json;
+    }
+
+    private static Map<String, AttributeValue> fromJson(JsonNode json) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        json.fields().forEachRemaining(attribute -> {
+            JsonNode typed = attribute.getValue();
+            AttributeValue value;
+            if (typed.has("S")) {
+                value = AttributeValue.fromS(typed.get("S").asText());
+            } else if (typed.has("N")) {
+                value = AttributeValue.fromN(typed.get("N").asText());
+            } else if (typed.has("B")) {
+                value = AttributeValue.fromB(SdkBytes.fromByteArray(Base64.getDecoder().decode(typed.get("B").asText())));
+            } else if (typed.has("BOOL")) {
+                value = AttributeValue.fromBool(typed.get("BOOL").asBoolean());
+            } else if (typed.has("SS")) {
+                List<String> strings = new ArrayList<>();
+                typed.get("SS").forEach(s -> strings.add(s.asText()));
+                value = AttributeValue.fromSs(strings);
+            } else {
+                throw new IllegalArgumentException("Unsupported attribute type in snapshot attribute " + attribute.getKey());
+            }
+            item.put(attribute.getKey(), value);
+        });
+        return item;
+    }
+}
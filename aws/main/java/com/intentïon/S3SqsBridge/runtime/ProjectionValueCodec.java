@@ -0,0 +1,194 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Chooses how a projection value is stored in the projections table so that no object is too large for a DynamoDB item.
+ * <p>
+ * A value is stored in one of three ways:
+ * <ul>
+ *     <li>inline: the UTF-8 string in "value", as before.</li>
+ *     <li>gzip: the compressed bytes in "valueGzip".</li>
+ *     <li>s3: a pointer to the exact object version in "valueS3Bucket", "valueS3Key" and "valueS3VersionId". The value
+ *     itself is not read.</li>
+ * </ul>
+ * The encoding is chosen per key prefix, the longest matching rule winning. "auto" (the default) stores values up to
+ * inlineMaxBytes inline, compresses larger values and falls back to a pointer when the compressed value would exceed
+ * compressedMaxBytes. Any encoding falls back to a pointer rather than fail on an object too large for an item. Values
+ * are compressed from the S3 stream and decoded as a stream, so only the compressed bytes are held in memory. Whether a
+ * value is a pointer is decided before the object is opened when the key or the size in the event tells.
+ * A pointer to an object in an unversioned bucket has no version id and reads the current object.
+ */
+public class ProjectionValueCodec {
+
+    public static final int DEFAULT_INLINE_MAX_BYTES = 4 * 1024;
+    // DynamoDB items are limited to 400KB including attribute names and the id.
+    public static final int DEFAULT_COMPRESSED_MAX_BYTES = 350 * 1024;
+    // Objects this many times larger than compressedMaxBytes are not expected to compress to fit and are not read.
+    private static final int MAX_COMPRESSION_RATIO = 20;
+
+    public enum Encoding {
+        AUTO, INLINE, GZIP, S3;
+
+        public static Encoding of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+
+        public String attributeValue() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public record Rule(String prefix, Encoding encoding) {
+    }
+
+    private final List<Rule> rules;
+    private final int inlineMaxBytes;
+    private final int compressedMaxBytes;
+
+    public ProjectionValueCodec(List<Rule> rules, int inlineMaxBytes, int compressedMaxBytes) {
+        this.rules = new ArrayList<>(rules);
+        this.rules.sort(Comparator.comparingInt((Rule rule) -> rule.prefix().length()).reversed());
+        this.inlineMaxBytes = inlineMaxBytes;
+        this.compressedMaxBytes = compressedMaxBytes;
+    }
+
+    // Parses rules of the form "events/large/=s3,events/=gzip", a rule without a prefix applying to every key.
+    public static List<Rule> parseRules(String rules) {
+        List<Rule> parsed = new ArrayList<>();
+        if (rules == null || rules.isBlank()) {
+            return parsed;
+        }
+        for (String rule : rules.split(",")) {
+            int separator = rule.lastIndexOf('=');
+            if (separator < 0) {
+                parsed.add(new Rule("", Encoding.of(rule)));
+            } else {
+                parsed.add(new Rule(rule.substring(0, separator).trim(), Encoding.of(rule.substring(separator + 1))));
+            }
+        }
+        return parsed;
+    }
+
+    public Encoding encodingFor(String key) {
+        for (Rule rule : this.rules) {
+            if (key.startsWith(rule.prefix())) {
+                return rule.encoding();
+            }
+        }
+        return Encoding.AUTO;
+    }
+
+    // Whether the value is stored as a pointer without reading the object, from its key and its size if known.
+    public boolean storesPointer(String key, Long size) {
+        return encodingFor(key) == Encoding.S3 || (size != null && size > (long) this.compressedMaxBytes * MAX_COMPRESSION_RATIO);
+    }
+
+    // Reads as much of the object version as its encoding needs and returns the item attributes holding its value.
+    public Map<String, AttributeValue> encode(String bucket, String key, String versionId, ResponseInputStream<GetObjectResponse> object) {
+        Encoding encoding = encodingFor(key);
+        Long contentLength = object.response().contentLength();
+        try (object) {
+            if (storesPointer(key, contentLength)) {
+                object.abort();
+                return pointer(bucket, key, versionId);
+            }
+            boolean inline = encoding == Encoding.INLINE
+                    || (encoding == Encoding.AUTO && contentLength != null && contentLength <= this.inlineMaxBytes);
+            if (inline && (contentLength == null || contentLength <= this.compressedMaxBytes)) {
+                byte[] value = readAtMost(object, this.compressedMaxBytes);
+                if (value != null) {
+                    return Map.of("value", AttributeValue.fromS(new String(value, StandardCharsets.UTF_8)));
+                }
+                object.abort();
+                return pointer(bucket, key, versionId);
+            }
+            byte[] compressed = compress(object, this.compressedMaxBytes);
+            if (compressed == null) {
+                object.abort();
+                return pointer(bucket, key, versionId);
+            }
+            return Map.of(
+                    "valueEncoding", AttributeValue.fromS(Encoding.GZIP.attributeValue()),
+                    "valueGzip", AttributeValue.fromB(SdkBytes.fromByteArray(compressed)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + key + " version " + versionId, e);
+        }
+    }
+
+    // Streams the value held by the item's value attributes, fetching it from S3 for a pointer.
+    public static InputStream decode(Map<String, AttributeValue> item, S3Client s3) {
+        AttributeValue encoding = item.get("valueEncoding");
+        if (encoding == null) {
+            AttributeValue value = item.get("value");
+            return new ByteArrayInputStream(value == null ? new byte[0] : value.s().getBytes(StandardCharsets.UTF_8));
+        }
+        try {
+            AttributeValue versionId = item.get("valueS3VersionId");
+            return switch (Encoding.of(encoding.s())) {
+                case GZIP -> new GZIPInputStream(item.get("valueGzip").b().asInputStream());
+                case S3 -> s3.getObject(GetObjectRequest.builder()
+                        .bucket(item.get("valueS3Bucket").s())
+                        .key(item.get("valueS3Key").s())
+                        .versionId(versionId == null ? null : versionId.s())
+                        .build());
+                default -> throw new IllegalArgumentException("Unsupported value encoding: " + encoding.s());
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Map<String, AttributeValue> pointer(String bucket, String key, String versionId) {
+        Map<String, AttributeValue> attributes = new HashMap<>();
+        attributes.put("valueEncoding", AttributeValue.fromS(Encoding.S3.attributeValue()));
+        attributes.put("valueS3Bucket", AttributeValue.fromS(bucket));
+        attributes.put("valueS3Key", AttributeValue.fromS(key));
+        if (versionId != null) {
+            attributes.put("valueS3VersionId", AttributeValue.fromS(versionId));
+        }
+        return attributes;
+    }
+
+    // The whole stream, or null if it is longer than maxBytes.
+    private static byte[] readAtMost(InputStream in, int maxBytes) throws IOException {
+        byte[] value = in.readNBytes(maxBytes + 1);
+        return value.length > maxBytes ? null : value;
+    }
+
+    // The gzip of the whole stream, or null as soon as the compressed bytes exceed maxBytes.
+    private static byte[] compress(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                gzip.write(buffer, 0, read);
+                if (compressed.size() > maxBytes) {
+                    return null;
+                }
+            }
+        }
+        return compressed.size() > maxBytes ? null : compressed.toByteArray();
+    }
+}
@@ -0,0 +1,230 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the projection values written while processing a batch and flushes them with BatchWriteItem.
+ * <p>
+ * Only the last value put for an id is written, so a key that is rewritten several times within a batch costs one write
+ * instead of one per version. Writes go through the DynamoDB {@link FlowControl}: items DynamoDB returns as unprocessed
+ * count as a throttle and are retried with full-jitter backoff while the retry budget lasts.
+ * <p>
+ * A value put with its object {@link Version} carries lastModified, versionId and the S3 event's sequencer. With
+ * conditional writes each such item is written with its own PutItem (BatchWriteItem takes no condition) on the
+ * condition that the stored item is from an older version, so a stale replay or a redelivery is rejected by DynamoDB
+ * without a read and reported by {@link #stale()}. lastModified has one-second precision, so versions of the same
+ * second are ordered by sequencer, stored left-padded to one width so that DynamoDB compares them as strings; the
+ * versionId only tells a redelivery apart when a version has no sequencer. With index shards the item also gets
+ * changeShard, the partition key of the lastModified index, and with a TTL expiresAt.
+ */
+public class ProjectionWriter {
+
+    // indexShards is the number of changeShard partitions of the lastModified index, 0 without the index, and
+    // ttlSeconds how long an item outlives its write, 0 for no expiry.
+    public record Options(boolean conditional, int indexShards, long ttlSeconds) {
+
+        public static final Options NONE = new Options(false, 0, 0);
+
+        public Options {
+            if (indexShards < 0 || ttlSeconds < 0) {
+                throw new IllegalArgumentException("Projection index shards and TTL must not be negative: " + indexShards + ", " + ttlSeconds);
+            }
+        }
+    }
+
+    // lastModified is the ISO timestamp of the object version, versionId and sequencer are null when not known.
+    public record Version(String lastModified, String versionId, String sequencer) {
+    }
+
+    public static final String LAST_MODIFIED_INDEX = "LastModifiedIndex";
+    public static final int MAX_BATCH_WRITE_ITEMS = 25;
+    // S3 sequencers are hexadecimal of varying length, well below this width.
+    static final int SEQUENCER_WIDTH = 32;
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 50;
+
+    private final DynamoDbClient dynamodb;
+    private final FlowControl flowControl = FlowControl.of(FlowControl.DYNAMODB);
+    private final String tableName;
+    private final Options options;
+    private final Map<String, Map<String, AttributeValue>> pending = new LinkedHashMap<>();
+    private final Set<String> stale = new LinkedHashSet<>();
+    private int coalesced;
+
+    public ProjectionWriter(DynamoDbClient dynamodb, String tableName) {
+        this(dynamodb, tableName, Options.NONE);
+    }
+
+    public ProjectionWriter(DynamoDbClient dynamodb, String tableName, Options options) {
+        this.dynamodb = dynamodb;
+        this.tableName = tableName;
+        this.options = options;
+    }
+
+    // Replaces any value already pending for the id.
+    public void put(String id, String value) {
+        put(id, value == null ? Map.of() : Map.of("value", AttributeValue.fromS(value)));
+    }
+
+    // Replaces any value already pending for the id with the value attributes from a ProjectionValueCodec.
+    public void put(String id, Map<String, AttributeValue> valueAttributes) {
+        put(id, valueAttributes, null);
+    }
+
+    // As put(id, valueAttributes) for the value of the object version, which is recorded with it.
+    public void put(String id, Map<String, AttributeValue> valueAttributes, Version version) {
+        Map<String, AttributeValue> item = new HashMap<>(valueAttributes);
+        item.put("id", AttributeValue.fromS(id));
+        if (version != null) {
+            item.put("lastModified", AttributeValue.fromS(version.lastModified()));
+            if (version.versionId() != null) {
+                item.put("versionId", AttributeValue.fromS(version.versionId()));
+            }
+            if (version.sequencer() != null) {
+                item.put("sequencer", AttributeValue.fromS(paddedSequencer(version.sequencer())));
+            }
+            if (this.options.indexShards() > 0) {
+                // String.hashCode is specified, so an id is always written to the same index partition.
+                item.put("changeShard", AttributeValue.fromN(Integer.toString(Math.floorMod(id.hashCode(), this.options.indexShards()))));
+            }
+        }
+        if (this.options.ttlSeconds() > 0) {
+            item.put("expiresAt", AttributeValue.fromN(Long.toString(System.currentTimeMillis() / 1000 + this.options.ttlSeconds())));
+        }
+        if (this.pending.put(id, item) != null) {
+            this.coalesced++;
+        }
+    }
+
+    // The number of puts replaced by a later put for the same id before being written.
+    public int coalesced() {
+        return this.coalesced;
+    }
+
+    // The ids whose values were not written because the table already held a value from the same or a newer version.
+    public Set<String> stale() {
+        return this.stale;
+    }
+
+    // Writes the pending values in batches of 25, or conditionally one by one, and returns the ids that could not be
+    // written.
+    public Set<String> flush() {
+        List<WriteRequest> requests = new ArrayList<>();
+        Set<String> failedIds = new LinkedHashSet<>();
+        int stale = this.stale.size();
+        for (Map<String, AttributeValue> item : this.pending.values()) {
+            if (this.options.conditional() && item.containsKey("lastModified")) {
+                writeConditionally(item, failedIds);
+            } else {
+                requests.add(WriteRequest.builder()
+                        .putRequest(PutRequest.builder().item(item).build())
+                        .build());
+            }
+        }
+        int written = this.pending.size();
+        this.pending.clear();
+        for (int first = 0; first < requests.size(); first += MAX_BATCH_WRITE_ITEMS) {
+            failedIds.addAll(writeBatch(requests.subList(first, Math.min(requests.size(), first + MAX_BATCH_WRITE_ITEMS))));
+        }
+        stale = this.stale.size() - stale;
+        BridgeLog.info("Wrote " + (written - failedIds.size() - stale) + " values to DynamoDB table " + this.tableName
+                + " (" + this.coalesced + " coalesced, " + stale + " stale, " + failedIds.size() + " failed)");
+        return failedIds;
+    }
+
+    static String paddedSequencer(String sequencer) {
+        String digits = sequencer.toUpperCase(Locale.ROOT);
+        return digits.length() >= SEQUENCER_WIDTH ? digits : "0".repeat(SEQUENCER_WIDTH - digits.length()) + digits;
+    }
+
+    private void writeConditionally(Map<String, AttributeValue> item, Set<String> failedIds) {
+        String id = item.get("id").s();
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":lastModified", item.get("lastModified"));
+        List<String> sameSecond = new ArrayList<>();
+        if (item.containsKey("sequencer")) {
+            // Within a second only a greater sequencer is newer, an equal one is a redelivery.
+            sameSecond.add("sequencer < :sequencer");
+            values.put(":sequencer", item.get("sequencer"));
+        }
+        if (item.containsKey("versionId")) {
+            // Without a stored sequencer any version of the same second but the stored one is written in arrival order.
+            sameSecond.add("(attribute_not_exists(sequencer) AND versionId <> :versionId)");
+            values.put(":versionId", item.get("versionId"));
+        } else {
+            // Without a version id a redelivery cannot be told from another write in the same second.
+            sameSecond.add("attribute_not_exists(sequencer)");
+        }
+        String condition = "attribute_not_exists(lastModified) OR lastModified < :lastModified"
+                + " OR (lastModified = :lastModified AND (" + String.join(" OR ", sameSecond) + "))";
+        PutItemRequest request = PutItemRequest.builder()
+                .tableName(this.tableName)
+                .item(item)
+                .conditionExpression(condition)
+                .expressionAttributeValues(values)
+                .build();
+        for (int attempt = 1; ; attempt++) {
+            FlowControl.Outcome outcome;
+            try {
+                this.flowControl.call(() -> this.dynamodb.putItem(request));
+                return;
+            } catch (ConditionalCheckFailedException e) {
+                this.stale.add(id);
+                return;
+            } catch (RuntimeException e) {
+                BridgeLog.error("Error writing " + id + " to DynamoDB table " + this.tableName, e);
+                outcome = FlowControl.classify(e);
+            }
+            if (attempt >= MAX_WRITE_ATTEMPTS || outcome == FlowControl.Outcome.FATAL || !this.flowControl.tryRetry()) {
+                failedIds.add(id);
+                return;
+            }
+            this.flowControl.backoff(RETRY_DELAY_MILLIS, attempt + 1);
+        }
+    }
+
+    private Set<String> writeBatch(List<WriteRequest> requests) {
+        List<WriteRequest> remaining = requests;
+        for (int attempt = 1; ; attempt++) {
+            FlowControl.Outcome outcome = FlowControl.Outcome.TRANSIENT;
+            try {
+                List<WriteRequest> batch = remaining;
+                BatchWriteItemResponse response = this.flowControl.call(() -> this.dynamodb.batchWriteItem(BatchWriteItemRequest.builder()
+                        .requestItems(Map.of(this.tableName, batch))
+                        .build()));
+                remaining = response.hasUnprocessedItems() ? response.unprocessedItems().getOrDefault(this.tableName, List.of()) : List.of();
+                if (!remaining.isEmpty()) {
+                    this.flowControl.onThrottle();
+                }
+            } catch (RuntimeException e) {
+                BridgeLog.error("Error writing to DynamoDB table " + this.tableName, e);
+                outcome = FlowControl.classify(e);
+            }
+            if (remaining.isEmpty()) {
+                return Set.of();
+            }
+            if (attempt >= MAX_WRITE_ATTEMPTS || outcome == FlowControl.Outcome.FATAL || !this.flowControl.tryRetry()) {
+                Set<String> failedIds = new LinkedHashSet<>();
+                remaining.forEach(request -> failedIds.add(request.putRequest().item().get("id").s()));
+                return failedIds;
+            }
+            this.flowControl.backoff(RETRY_DELAY_MILLIS, attempt + 1);
+        }
+    }
+}
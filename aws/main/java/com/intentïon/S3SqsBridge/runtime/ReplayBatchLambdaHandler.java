@@ -0,0 +1,75 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java equivalent of src/lib/main.replayBatchLambdaHandler: invoked by the ReplayBatchOneOffJobResource custom resource
+ * to replay every object version in the bucket to the replay queue.
+ * <p>
+ * A sharded replay is coordinated by the replay state machine, which invokes the handler with an "action": "start"
+ * begins or resumes the run and returns the shards, "shard" replays one shard from its checkpoint and "complete"
+ * completes the run once every shard is complete.
+ */
+public class ReplayBatchLambdaHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private final ProjectionBridge bridge;
+
+    // The Lambda runtime constructs the handler during the init phase so the bridge is in the SnapStart snapshot.
+    public ReplayBatchLambdaHandler() {
+        this(ProjectionRuntime.bridge());
+    }
+
+    public ReplayBatchLambdaHandler(ProjectionBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> event, Context context) {
+        try {
+            return handle(event);
+        } finally {
+            this.bridge.metrics().emit(StageMetrics.functionName("replayBatchLambdaHandler"));
+        }
+    }
+
+    private Map<String, Object> handle(Map<String, Object> event) {
+        BridgeLog.info("Replay Batch Lambda received event: " + event);
+        Object action = event == null ? null : event.get("action");
+        Map<String, Object> response = new HashMap<>();
+        response.put("handler", getClass().getName() + "::handleRequest");
+        if (action == null) {
+            putResult(response, this.bridge.replay());
+            return response;
+        }
+        int shards = intValue(event.get("shards"), this.bridge.getConfig().replayShards());
+        switch (action.toString()) {
+            case "start" -> {
+                boolean restart = Boolean.parseBoolean(String.valueOf(event.get("restart")));
+                response.put("shards", this.bridge.startReplay(shards, restart));
+            }
+            case "shard" -> putResult(response, this.bridge.replayShard(
+                    new ReplayShard(intValue(event.get("shard"), 0), shards, this.bridge.getConfig().replayShardBy())));
+            case "complete" -> response.put("lastOffsetProcessed", this.bridge.completeReplay(shards));
+            default -> throw new IllegalArgumentException("Unsupported replay action: " + action);
+        }
+        return response;
+    }
+
+    private static void putResult(Map<String, Object> response, ProjectionBridge.ReplayResult result) {
+        response.put("versions", result.versions());
+        response.put("eventsReplayed", result.eventsReplayed());
+        response.put("lastOffsetProcessed", result.lastOffsetProcessed());
+    }
+
+    // Step Functions passes numbers through as JSON numbers, which may be deserialized as any Number.
+    private static int intValue(Object value, int defaultValue) {
+        if (value instanceof Number number) {
+            return number.intValue();
+        }
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+}
@@ -0,0 +1,170 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The progress of a replay run in the offsets table, so that a replay interrupted by a timeout resumes where it stopped.
+ * <p>
+ * The run row "&lt;replayQueueUrl&gt;#replay" records the shard layout and whether the run is still running. Each shard
+ * row "&lt;replayQueueUrl&gt;#shard-i-of-n" records the offset up to which the shard has sent every event and whether the
+ * shard is complete. A shard replayed out of exact LastModified order has no such offset and records instead the key
+ * through which its listing has sent every version, see {@link ReplayPlanner.Plan#listedThrough()}. A run is resumed rather than restarted while it is running with the same shard layout. A run that
+ * started from a snapshot records the offset up to which the snapshot already holds the projections. In a sharded
+ * offsets table (see {@link OffsetShards}) these are all rows of the shard "#".
+ */
+public class ReplayCheckpoints {
+
+    public record ShardState(String lastOffsetProcessed, boolean complete, String listedThrough) {
+    }
+
+    private static final String RUNNING = "running";
+    private static final String COMPLETE = "complete";
+
+    private final DynamoDbClient dynamodb;
+    private final String tableName;
+    private final String replayQueueUrl;
+    private final OffsetShards offsetShards;
+
+    public ReplayCheckpoints(DynamoDbClient dynamodb, String tableName, String replayQueueUrl) {
+        this(dynamodb, tableName, replayQueueUrl, OffsetShards.none());
+    }
+
+    public ReplayCheckpoints(DynamoDbClient dynamodb, String tableName, String replayQueueUrl, OffsetShards offsetShards) {
+        this.dynamodb = dynamodb;
+        this.tableName = tableName;
+        this.replayQueueUrl = replayQueueUrl;
+        this.offsetShards = offsetShards;
+    }
+
+    public String runId() {
+        return this.replayQueueUrl + "#replay";
+    }
+
+    // Whether a run with this shard layout was started and has not completed.
+    public boolean resumable(int shards, String by) {
+        Map<String, AttributeValue> run = read(runId());
+        return run != null
+                && RUNNING.equals(stringValue(run, "status"))
+                && Integer.toString(shards).equals(run.get("shards") == null ? null : run.get("shards").n())
+                && by.equals(stringValue(run, "shardBy"));
+    }
+
+    // Whether a run was started and has not completed, whatever its shard layout.
+    public boolean running() {
+        Map<String, AttributeValue> run = read(runId());
+        return run != null && RUNNING.equals(stringValue(run, "status"));
+    }
+
+    // Starts a run from the beginning, clearing the checkpoints of every shard. Versions up to fromOffset, if not null,
+    // are not replayed.
+    public void begin(int shards, String by, String fromOffset) {
+        for (int index = 0; index < shards; index++) {
+            put(key(new ReplayShard(index, shards, by).checkpointId(this.replayQueueUrl)));
+        }
+        Map<String, AttributeValue> run = new HashMap<>(key(runId()));
+        run.put("shards", AttributeValue.fromN(Integer.toString(shards)));
+        run.put("shardBy", AttributeValue.fromS(by));
+        run.put("status", AttributeValue.fromS(RUNNING));
+        if (fromOffset != null) {
+            run.put("fromOffset", AttributeValue.fromS(fromOffset));
+        }
+        put(run);
+    }
+
+    // The offset after which the run replays versions, null to replay every version.
+    public String fromOffset() {
+        Map<String, AttributeValue> run = read(runId());
+        return run == null ? null : stringValue(run, "fromOffset");
+    }
+
+    public ShardState shard(ReplayShard shard) {
+        Map<String, AttributeValue> item = read(shard.checkpointId(this.replayQueueUrl));
+        if (item == null) {
+            return new ShardState(null, false, null);
+        }
+        AttributeValue complete = item.get("complete");
+        return new ShardState(stringValue(item, "lastOffsetProcessed"), complete != null && Boolean.TRUE.equals(complete.bool()),
+                stringValue(item, "listedThrough"));
+    }
+
+    public void checkpoint(ReplayShard shard, String lastOffsetProcessed) {
+        update(shard.checkpointId(this.replayQueueUrl), "SET lastOffsetProcessed = :offset",
+                Map.of(), Map.of(":offset", AttributeValue.fromS(lastOffsetProcessed)));
+    }
+
+    public void checkpointListing(ReplayShard shard, String listedThrough) {
+        update(shard.checkpointId(this.replayQueueUrl), "SET listedThrough = :key",
+                Map.of(), Map.of(":key", AttributeValue.fromS(listedThrough)));
+    }
+
+    public void complete(ReplayShard shard) {
+        update(shard.checkpointId(this.replayQueueUrl), "SET complete = :complete",
+                Map.of(), Map.of(":complete", AttributeValue.fromBool(true)));
+        BridgeLog.info("Replay shard " + shard.index() + " of " + shard.count() + " complete");
+    }
+
+    public List<Integer> incompleteShards(int shards, String by) {
+        List<Integer> incomplete = new ArrayList<>();
+        for (int index = 0; index < shards; index++) {
+            if (!shard(new ReplayShard(index, shards, by)).complete()) {
+                incomplete.add(index);
+            }
+        }
+        return incomplete;
+    }
+
+    public void finish() {
+        // status is a DynamoDB reserved word.
+        update(runId(), "SET #status = :status", Map.of("#status", "status"), Map.of(":status", AttributeValue.fromS(COMPLETE)));
+    }
+
+    private Map<String, AttributeValue> read(String id) {
+        GetItemResponse result = this.dynamodb.getItem(GetItemRequest.builder()
+                .tableName(this.tableName)
+                .key(key(id))
+                // Using strong consistency in the read so that we see the most recent write.
+                .consistentRead(true)
+                .build());
+        return result.hasItem() && !result.item().isEmpty() ? result.item() : null;
+    }
+
+    private void put(Map<String, AttributeValue> item) {
+        this.dynamodb.putItem(PutItemRequest.builder()
+                .tableName(this.tableName)
+                .item(item)
+                .build());
+    }
+
+    private void update(String id, String updateExpression, Map<String, String> names, Map<String, AttributeValue> values) {
+        UpdateItemRequest.Builder request = UpdateItemRequest.builder()
+                .tableName(this.tableName)
+                .key(key(id))
+                .updateExpression(updateExpression)
+                .expressionAttributeValues(values);
+        if (!names.isEmpty()) {
+            request.expressionAttributeNames(names);
+        }
+        this.dynamodb.updateItem(request.build());
+    }
+
+    private Map<String, AttributeValue> key(String id) {
+        return this.offsetShards.sharded()
+                ? Map.of("id", AttributeValue.fromS(id), OffsetShards.SORT_KEY, AttributeValue.fromS(OffsetShards.HEAD))
+                : Map.of("id", AttributeValue.fromS(id));
+    }
+
+    private static String stringValue(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null ? null : value.s();
+    }
+}
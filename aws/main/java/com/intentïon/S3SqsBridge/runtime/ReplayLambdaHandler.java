@@ -0,0 +1,33 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+/**
+ * Java equivalent of src/lib/main.replayLambdaHandler: projects the S3 put events sent to the replay queue.
+ */
+public class ReplayLambdaHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    private final ProjectionBridge bridge;
+
+    // The Lambda runtime constructs the handler during the init phase so the bridge is in the SnapStart snapshot.
+    public ReplayLambdaHandler() {
+        this(ProjectionRuntime.bridge());
+    }
+
+    public ReplayLambdaHandler(ProjectionBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent sqsEvent, Context context) {
+        BridgeLog.info("Replay Lambda received " + sqsEvent.getRecords().size() + " records");
+        try {
+            return this.bridge.replayLambdaHandler(sqsEvent);
+        } finally {
+            this.bridge.metrics().emit(StageMetrics.functionName("replayLambdaHandler"));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectVersion;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Streams ListObjectVersions pages into replay events, oldest first, without materialising the listing.
+ * <p>
+ * S3 lists versions grouped by key (keys ascending, each key's versions newest first). Each key's versions are buffered
+ * as a compact run of pre-parsed epoch timestamps until the listing moves to the next key, then the run joins a min-heap
+ * keyed on its oldest unreplayed version. Events are emitted from the heap as it exceeds maxActiveKeys runs and the
+ * remainder is drained when the listing ends, so memory is bounded by the active keys rather than the total versions.
+ * <p>
+ * Versions of one key are always emitted in upload order. Across keys the order is exact by LastModified when the
+ * bucket has no more than maxActiveKeys keys, beyond that it is LastModified order within the window of active keys.
+ * <p>
+ * The plan tracks the last key in listing order up to which every key's versions have been emitted, so that a replay
+ * can list again after that key rather than from the start, see {@link ReplayShard#pages}.
+ */
+public class ReplayPlanner {
+
+    public static final int DEFAULT_MAX_ACTIVE_KEYS = 100_000;
+
+    public record ReplayEvent(String key, String versionId, long lastModifiedEpochMilli) {
+
+        public String lastModified() {
+            return ProjectionBridge.toIsoString(Instant.ofEpochMilli(this.lastModifiedEpochMilli));
+        }
+
+        // The offset format used in the offsets table: "<lastModified> <key> <versionId>".
+        public String offset() {
+            return lastModified() + " " + this.key + " " + this.versionId;
+        }
+    }
+
+    public record Stats(long versionsListed, long eventsEmitted, int maxActiveKeys) {
+    }
+
+    private static final class KeyRun {
+        final String key;
+        final long[] epochs;
+        final String[] versionIds;
+        // The key listed before this one.
+        final String previousKey;
+        int head;
+
+        KeyRun(String key, long[] epochs, String[] versionIds, String previousKey) {
+            this.key = key;
+            this.epochs = epochs;
+            this.versionIds = versionIds;
+            this.previousKey = previousKey;
+        }
+
+        long headEpoch() {
+            return this.epochs[this.head];
+        }
+
+        boolean exhausted() {
+            return this.head >= this.epochs.length;
+        }
+    }
+
+    private static final Comparator<KeyRun> OLDEST_HEAD_FIRST = Comparator
+            .comparingLong(KeyRun::headEpoch)
+            .thenComparing(run -> run.key);
+
+    private final int maxActiveKeys;
+
+    public ReplayPlanner() {
+        this(DEFAULT_MAX_ACTIVE_KEYS);
+    }
+
+    public ReplayPlanner(int maxActiveKeys) {
+        if (maxActiveKeys < 1) {
+            throw new IllegalArgumentException("maxActiveKeys must be at least 1 but was " + maxActiveKeys);
+        }
+        this.maxActiveKeys = maxActiveKeys;
+    }
+
+    public Stats plan(Iterable<ListObjectVersionsResponse> pages, Consumer<ReplayEvent> emit) {
+        Plan plan = events(pages);
+        while (plan.hasNext()) {
+            emit.accept(plan.next());
+        }
+        return plan.stats();
+    }
+
+    public Plan events(Iterable<ListObjectVersionsResponse> pages) {
+        return events(pages, null);
+    }
+
+    // The plan of a listing that starts after the key listedThrough, if not null.
+    public Plan events(Iterable<ListObjectVersionsResponse> pages, String listedThrough) {
+        return new Plan(pages.iterator(), this.maxActiveKeys, listedThrough);
+    }
+
+    /**
+     * Pull-based view of the merge: pages are only listed as far as needed to produce the next event.
+     */
+    public static final class Plan implements Iterator<ReplayEvent> {
+
+        private final Iterator<ListObjectVersionsResponse> pages;
+        private final int maxActiveKeys;
+        private final PriorityQueue<KeyRun> heap = new PriorityQueue<>(OLDEST_HEAD_FIRST);
+        // The runs of the heap in listing order.
+        private final LinkedHashSet<KeyRun> unemitted = new LinkedHashSet<>();
+        private String lastListedKey;
+        private Iterator<ObjectVersion> versions = Collections.emptyIterator();
+        private boolean listingDone;
+        private boolean emittedWhileListing;
+        private long versionsListed;
+        private long eventsEmitted;
+        private int maxActive;
+
+        // Buffer for the key currently being listed, newest first as S3 returns it.
+        private String currentKey;
+        private long[] epochs = new long[16];
+        private String[] versionIds = new String[16];
+        private int size;
+
+        private Plan(Iterator<ListObjectVersionsResponse> pages, int maxActiveKeys, String listedThrough) {
+            this.pages = pages;
+            this.maxActiveKeys = maxActiveKeys;
+            this.lastListedKey = listedThrough;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !this.heap.isEmpty();
+        }
+
+        @Override
+        public ReplayEvent next() {
+            fill();
+            KeyRun run = this.heap.poll();
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            if (!this.listingDone) {
+                this.emittedWhileListing = true;
+            }
+            ReplayEvent event = new ReplayEvent(run.key, run.versionIds[run.head], run.epochs[run.head]);
+            run.head++;
+            if (run.exhausted()) {
+                this.unemitted.remove(run);
+            } else {
+                this.heap.add(run);
+            }
+            this.eventsEmitted++;
+            return event;
+        }
+
+        public Stats stats() {
+            return new Stats(this.versionsListed, this.eventsEmitted, this.maxActive);
+        }
+
+        // Whether the events so far were emitted once the whole listing fit in the window, so in exact LastModified
+        // order. Known from the first event: the window either held the listing then or it never will.
+        public boolean exact() {
+            return !this.emittedWhileListing;
+        }
+
+        // The last key in listing order up to which every key's versions have been emitted, or the key the listing
+        // started after if no key has been. A key not yet listed in full is never included.
+        public String listedThrough() {
+            return this.unemitted.isEmpty() ? this.lastListedKey : this.unemitted.getFirst().previousKey;
+        }
+
+        // List until the heap holds more than maxActiveKeys runs or the listing is exhausted.
+        private void fill() {
+            while (!this.listingDone && this.heap.size() <= this.maxActiveKeys) {
+                while (!this.versions.hasNext() && this.pages.hasNext()) {
+                    this.versions = this.pages.next().versions().iterator();
+                }
+                if (!this.versions.hasNext()) {
+                    this.listingDone = true;
+                    closeCurrentKey();
+                    return;
+                }
+                ObjectVersion version = this.versions.next();
+                if (!version.key().equals(this.currentKey)) {
+                    closeCurrentKey();
+                    this.currentKey = version.key();
+                }
+                if (this.size == this.epochs.length) {
+                    this.epochs = Arrays.copyOf(this.epochs, this.size * 2);
+                    this.versionIds = Arrays.copyOf(this.versionIds, this.size * 2);
+                }
+                this.epochs[this.size] = version.lastModified().toEpochMilli();
+                this.versionIds[this.size] = version.versionId();
+                this.size++;
+                this.versionsListed++;
+            }
+        }
+
+        private void closeCurrentKey() {
+            if (this.currentKey != null && this.size > 0) {
+                KeyRun run = toRun(this.currentKey, this.epochs, this.versionIds, this.size, this.lastListedKey);
+                this.heap.add(run);
+                this.unemitted.add(run);
+                this.lastListedKey = this.currentKey;
+                this.maxActive = Math.max(this.maxActive, this.heap.size());
+            }
+            this.size = 0;
+        }
+    }
+
+    // Reverses the newest-first buffer into an upload-order run sized to its key.
+    private static KeyRun toRun(String key, long[] epochs, String[] versionIds, int size, String previousKey) {
+        long[] runEpochs = new long[size];
+        String[] runVersionIds = new String[size];
+        for (int i = 0; i < size; i++) {
+            runEpochs[i] = epochs[size - 1 - i];
+            runVersionIds[i] = versionIds[size - 1 - i];
+        }
+        return new KeyRun(key, runEpochs, runVersionIds, previousKey);
+    }
+}
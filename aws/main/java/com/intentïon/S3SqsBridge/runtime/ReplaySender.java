@@ -0,0 +1,243 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Sends replay events to the replay queue with SendMessageBatch (10 entries per batch) with several batches in flight,
+ * and checkpoints the replay queue offset every checkpointEvery messages or checkpointIntervalMillis.
+ * <p>
+ * Batches complete in any order but are only acknowledged in dispatch order, so a checkpoint only ever covers messages
+ * that have all been sent and the offset is never ahead of the queue. A batch is not dispatched while an earlier batch
+ * holding the same key is still in flight, which keeps the send order of each key's versions.
+ * <p>
+ * With messageGroups set (for a FIFO replay queue) each entry carries a MessageGroupId and MessageDeduplicationId, and
+ * batches are serialised per message group instead of per key so that SQS receives each group in replay order.
+ */
+public class ReplaySender implements AutoCloseable {
+
+    public static final int MAX_BATCH_ENTRIES = 10;
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private record InFlightBatch(CompletableFuture<Void> future, Set<String> orderingKeys, String maxOffset, int size) {
+    }
+
+    private final SqsClient sqs;
+    private final FlowControl flowControl = FlowControl.of(FlowControl.SQS);
+    private final String queueUrl;
+    private final int concurrency;
+    private final int checkpointEvery;
+    private final long checkpointIntervalMillis;
+    private final Function<ReplayPlanner.ReplayEvent, String> messageBody;
+    private final MessageGroups messageGroups;
+    private final Consumer<String> checkpoint;
+    private final LongSupplier clock;
+    private final StageMetrics metrics;
+    private final ExecutorService executor;
+
+    private final Deque<InFlightBatch> inFlight = new ArrayDeque<>();
+    private final Map<String, Integer> inFlightOrderingKeys = new HashMap<>();
+    private final List<ReplayPlanner.ReplayEvent> pending = new ArrayList<>(MAX_BATCH_ENTRIES);
+
+    private String acknowledgedOffset;
+    private String checkpointedOffset;
+    private long acknowledged;
+    private long acknowledgedAtLastCheckpoint;
+    private long lastCheckpointAt;
+    private long batchesSent;
+
+    public ReplaySender(SqsClient sqs, String queueUrl, int concurrency, int checkpointEvery, long checkpointIntervalMillis,
+                        Function<ReplayPlanner.ReplayEvent, String> messageBody, Consumer<String> checkpoint) {
+        this(sqs, queueUrl, concurrency, checkpointEvery, checkpointIntervalMillis, messageBody, checkpoint, null, System::currentTimeMillis, new StageMetrics());
+    }
+
+    public ReplaySender(SqsClient sqs, String queueUrl, int concurrency, int checkpointEvery, long checkpointIntervalMillis,
+                        Function<ReplayPlanner.ReplayEvent, String> messageBody, Consumer<String> checkpoint,
+                        MessageGroups messageGroups, LongSupplier clock, StageMetrics metrics) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+        this.concurrency = Math.max(1, concurrency);
+        this.checkpointEvery = Math.max(1, checkpointEvery);
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        this.messageBody = messageBody;
+        this.checkpoint = checkpoint;
+        this.messageGroups = messageGroups;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.executor = Executors.newFixedThreadPool(this.concurrency);
+        this.lastCheckpointAt = clock.getAsLong();
+    }
+
+    public void send(ReplayPlanner.ReplayEvent event) {
+        this.pending.add(event);
+        if (this.pending.size() == MAX_BATCH_ENTRIES) {
+            dispatch();
+        }
+        acknowledgeCompleted();
+    }
+
+    // Sends what is buffered, waits for every batch and writes the final checkpoint, returning the offset written.
+    public String finish() {
+        if (!this.pending.isEmpty()) {
+            dispatch();
+        }
+        while (!this.inFlight.isEmpty()) {
+            acknowledgeOldest();
+        }
+        if (this.acknowledgedOffset != null && !this.acknowledgedOffset.equals(this.checkpointedOffset)) {
+            writeCheckpoint();
+        }
+        return this.checkpointedOffset;
+    }
+
+    public long acknowledged() {
+        return this.acknowledged;
+    }
+
+    public long batchesSent() {
+        return this.batchesSent;
+    }
+
+    // The offset of the last checkpoint written, null before the first.
+    public String checkpointedOffset() {
+        return this.checkpointedOffset;
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    private void dispatch() {
+        List<ReplayPlanner.ReplayEvent> batch = new ArrayList<>(this.pending);
+        this.pending.clear();
+        Set<String> orderingKeys = new HashSet<>();
+        String maxOffset = null;
+        List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (ReplayPlanner.ReplayEvent event : batch) {
+            String offset = event.offset();
+            if (maxOffset == null || offset.compareTo(maxOffset) > 0) {
+                maxOffset = offset;
+            }
+            SendMessageBatchRequestEntry.Builder entry = SendMessageBatchRequestEntry.builder()
+                    .id(Integer.toString(entries.size()))
+                    .messageBody(this.messageBody.apply(event));
+            if (this.messageGroups != null) {
+                String groupId = this.messageGroups.groupId(event.key());
+                orderingKeys.add(groupId);
+                entry.messageGroupId(groupId)
+                        .messageDeduplicationId(this.messageGroups.deduplicationId(event.key(), event.versionId()));
+            } else {
+                orderingKeys.add(event.key());
+            }
+            entries.add(entry.build());
+        }
+        while (this.inFlight.size() >= this.concurrency || sharesInFlightOrderingKey(orderingKeys)) {
+            acknowledgeOldest();
+        }
+        orderingKeys.forEach(key -> this.inFlightOrderingKeys.merge(key, 1, Integer::sum));
+        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> sendBatch(entries), this.executor);
+        this.inFlight.addLast(new InFlightBatch(future, orderingKeys, maxOffset, batch.size()));
+        this.batchesSent++;
+    }
+
+    private boolean sharesInFlightOrderingKey(Set<String> orderingKeys) {
+        for (String key : orderingKeys) {
+            if (this.inFlightOrderingKeys.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void acknowledgeCompleted() {
+        while (!this.inFlight.isEmpty() && this.inFlight.peekFirst().future().isDone()) {
+            acknowledgeOldest();
+        }
+    }
+
+    private void acknowledgeOldest() {
+        InFlightBatch batch = this.inFlight.pollFirst();
+        try {
+            batch.future().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+        for (String key : batch.orderingKeys()) {
+            this.inFlightOrderingKeys.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1);
+        }
+        this.acknowledged += batch.size();
+        if (this.acknowledgedOffset == null || batch.maxOffset().compareTo(this.acknowledgedOffset) > 0) {
+            this.acknowledgedOffset = batch.maxOffset();
+        }
+        long now = this.clock.getAsLong();
+        if (this.acknowledged - this.acknowledgedAtLastCheckpoint >= this.checkpointEvery
+                || now - this.lastCheckpointAt >= this.checkpointIntervalMillis) {
+            writeCheckpoint();
+        }
+    }
+
+    private void writeCheckpoint() {
+        this.checkpoint.accept(this.acknowledgedOffset);
+        this.checkpointedOffset = this.acknowledgedOffset;
+        this.acknowledgedAtLastCheckpoint = this.acknowledged;
+        this.lastCheckpointAt = this.clock.getAsLong();
+    }
+
+    // Resends only the entries SQS reports as failed, giving up on sender faults, FIFO queues, after MAX_SEND_ATTEMPTS or
+    // when the SQS flow control's retry budget is spent.
+    private void sendBatch(List<SendMessageBatchRequestEntry> entries) {
+        List<SendMessageBatchRequestEntry> remaining = entries;
+        for (int attempt = 1; ; attempt++) {
+            SendMessageBatchRequest request = SendMessageBatchRequest.builder()
+                    .queueUrl(this.queueUrl)
+                    .entries(remaining)
+                    .build();
+            SendMessageBatchResponse response = this.metrics.time(StageMetrics.Stage.SQS_SEND,
+                    () -> this.flowControl.call(() -> this.sqs.sendMessageBatch(request)));
+            if (!response.hasFailed() || response.failed().isEmpty()) {
+                return;
+            }
+            Set<String> failedIds = new HashSet<>();
+            boolean throttled = false;
+            for (BatchResultErrorEntry failed : response.failed()) {
+                FlowControl.Outcome outcome = FlowControl.classify(failed.code(), failed.senderFault());
+                throttled |= outcome == FlowControl.Outcome.THROTTLE;
+                // On a FIFO queue later entries of the group may already be accepted, so a resend would reorder it.
+                if (outcome == FlowControl.Outcome.FATAL || attempt >= MAX_SEND_ATTEMPTS || this.messageGroups != null) {
+                    throw new IllegalStateException("Failed to send replay message " + failed.id() + " to " + this.queueUrl + ": " + failed.code() + " " + failed.message());
+                }
+                failedIds.add(failed.id());
+            }
+            if (throttled) {
+                this.flowControl.onThrottle();
+            }
+            if (!this.flowControl.tryRetry()) {
+                throw new IllegalStateException("Failed to send " + failedIds.size() + " replay messages to " + this.queueUrl
+                        + ": the SQS retry budget is spent");
+            }
+            remaining = remaining.stream().filter(entry -> failedIds.contains(entry.id())).toList();
+            this.flowControl.backoff(RETRY_DELAY_MILLIS, attempt + 1);
+        }
+    }
+}
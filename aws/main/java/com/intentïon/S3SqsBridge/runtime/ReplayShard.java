@@ -0,0 +1,169 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectVersion;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * One of count disjoint parts of the bucket prefix, replayed by its own worker invocation.
+ * <p>
+ * Every key belongs to exactly one shard, so each shard replays all the versions of its keys in upload order and the
+ * per-key order holds however the shards interleave on the replay queue. With by = "prefix" the key prefixes one level
+ * below the object prefix (e.g. events/2025/) are hashed to shards and each shard lists only its own prefixes, keys
+ * directly under the object prefix being hashed individually. With by = "hash" every key is hashed, which spreads keys
+ * evenly whatever their prefixes but has every shard list the whole prefix.
+ * <p>
+ * The pages of a shard come in a fixed key order, so a listing can resume after the last key whose versions were all
+ * replayed. By prefix, the keys directly under the object prefix come first and then the keys of each owned prefix; a
+ * resumed listing still lists the top level for its common prefixes but starts the prefixes from the key.
+ */
+public record ReplayShard(int index, int count, String by) {
+
+    public static final String BY_PREFIX = "prefix";
+    public static final String BY_HASH = "hash";
+
+    public ReplayShard {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Replay shard " + index + " of " + count + " is out of range");
+        }
+        if (!BY_PREFIX.equals(by) && !BY_HASH.equals(by)) {
+            throw new IllegalArgumentException("Unsupported replay shard by: " + by);
+        }
+    }
+
+    public static ReplayShard all(String by) {
+        return new ReplayShard(0, 1, by);
+    }
+
+    // String.hashCode is specified, so every worker assigns a key or prefix to the same shard.
+    public boolean owns(String keyOrPrefix) {
+        return this.count == 1 || Math.floorMod(keyOrPrefix.hashCode(), this.count) == this.index;
+    }
+
+    // The offsets table id under which the shard's replay progress is checkpointed.
+    public String checkpointId(String replayQueueUrl) {
+        return replayQueueUrl + "#shard-" + this.index + "-of-" + this.count;
+    }
+
+    // The shard's versions as ListObjectVersions pages, each key's versions contiguous and newest first.
+    public Iterable<ListObjectVersionsResponse> pages(S3Client s3, String bucket, String objectPrefix) {
+        return pages(s3, bucket, objectPrefix, null);
+    }
+
+    // The shard's pages after listedThrough, a key from an earlier listing of the shard, or all of them if it is null.
+    public Iterable<ListObjectVersionsResponse> pages(S3Client s3, String bucket, String objectPrefix, String listedThrough) {
+        ListObjectVersionsRequest.Builder all = ListObjectVersionsRequest.builder()
+                .bucket(bucket)
+                .prefix(objectPrefix)
+                .keyMarker(listedThrough);
+        if (this.count == 1) {
+            return listing(s3, all);
+        }
+        if (BY_HASH.equals(this.by)) {
+            return () -> new Iterator<>() {
+                private final Iterator<ListObjectVersionsResponse> pages = listing(s3, all).iterator();
+
+                @Override
+                public boolean hasNext() {
+                    return this.pages.hasNext();
+                }
+
+                @Override
+                public ListObjectVersionsResponse next() {
+                    return ownVersions(this.pages.next(), key -> true);
+                }
+            };
+        }
+        int slash = listedThrough == null ? -1 : listedThrough.indexOf('/', objectPrefix.length());
+        // The prefix listedThrough is in, or null if it is directly under the object prefix.
+        String listedPrefix = slash < 0 ? null : listedThrough.substring(0, slash + 1);
+        return () -> new Iterator<>() {
+            private final Iterator<ListObjectVersionsResponse> topLevel = listing(s3, ListObjectVersionsRequest.builder()
+                    .bucket(bucket)
+                    .prefix(objectPrefix)
+                    .delimiter("/")).iterator();
+            private final Deque<String> ownedPrefixes = new ArrayDeque<>();
+            private Iterator<ListObjectVersionsResponse> prefixPages = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                if (this.topLevel.hasNext()) {
+                    return true;
+                }
+                while (!this.prefixPages.hasNext() && !this.ownedPrefixes.isEmpty()) {
+                    String prefix = this.ownedPrefixes.poll();
+                    this.prefixPages = listing(s3, ListObjectVersionsRequest.builder()
+                            .bucket(bucket)
+                            .prefix(prefix)
+                            .keyMarker(prefix.equals(listedPrefix) ? listedThrough : null)).iterator();
+                }
+                return this.prefixPages.hasNext();
+            }
+
+            @Override
+            public ListObjectVersionsResponse next() {
+                if (this.topLevel.hasNext()) {
+                    ListObjectVersionsResponse page = this.topLevel.next();
+                    for (CommonPrefix commonPrefix : page.commonPrefixes()) {
+                        if (owns(commonPrefix.prefix()) && (listedPrefix == null || commonPrefix.prefix().compareTo(listedPrefix) >= 0)) {
+                            this.ownedPrefixes.add(commonPrefix.prefix());
+                        }
+                    }
+                    // The keys directly under the object prefix are listed before the keys in prefixes.
+                    return ownVersions(page, key -> listedThrough == null || (listedPrefix == null && key.compareTo(listedThrough) > 0));
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.prefixPages.next();
+            }
+        };
+    }
+
+    // Lazily lists one ListObjectVersions page at a time, following the markers.
+    public static Iterable<ListObjectVersionsResponse> listing(S3Client s3, ListObjectVersionsRequest.Builder params) {
+        return () -> new Iterator<>() {
+            private boolean more = true;
+
+            @Override
+            public boolean hasNext() {
+                return this.more;
+            }
+
+            @Override
+            public ListObjectVersionsResponse next() {
+                if (!this.more) {
+                    throw new NoSuchElementException();
+                }
+                ListObjectVersionsResponse response = s3.listObjectVersions(params.build());
+                // A delimited page may hold only common prefixes, so the markers rather than the versions tell if there are more.
+                this.more = Boolean.TRUE.equals(response.isTruncated()) && response.nextKeyMarker() != null;
+                params.keyMarker(response.nextKeyMarker()).versionIdMarker(response.nextVersionIdMarker());
+                return response;
+            }
+        };
+    }
+
+    // The page's versions of the keys the shard owns that are still to be listed.
+    private ListObjectVersionsResponse ownVersions(ListObjectVersionsResponse page, Predicate<String> unlisted) {
+        List<ObjectVersion> versions = page.versions().stream()
+                .filter(version -> owns(version.key()) && unlisted.test(version.key()))
+                .toList();
+        return ListObjectVersionsResponse.builder()
+                .name(page.name())
+                .prefix(page.prefix())
+                .versions(versions)
+                .isTruncated(page.isTruncated())
+                .build();
+    }
+}
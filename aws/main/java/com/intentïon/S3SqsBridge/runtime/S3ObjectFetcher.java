@@ -0,0 +1,143 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Fetches object versions for projection with a single GET that returns both the metadata and the body, the body being
+ * encoded by the {@link ProjectionValueCodec} as it is read. A version the codec stores as a pointer is read with a HEAD
+ * instead, as its body is not needed.
+ * <p>
+ * Object versions never change, so the encoded values of recently fetched versions are kept in a small LRU cache in the
+ * warm container. A redelivered SQS message for a version is projected from the cache without downloading it again. An
+ * entry is only used when the ETag in the event, if there is one, matches the ETag it was fetched with. Whether the
+ * version is still the latest is checked with a HEAD request, and only by callers that ask for it.
+ */
+public class S3ObjectFetcher {
+
+    public static final int DEFAULT_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+
+    private record CachedValue(ProjectionBridge.ProjectionValue value, String eTag, long bytes) {
+    }
+
+    private final S3Client s3;
+    private final FlowControl flowControl = FlowControl.of(FlowControl.S3);
+    private final ProjectionValueCodec codec;
+    private final long cacheMaxBytes;
+    // Least recently used first.
+    private final LinkedHashMap<String, CachedValue> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+    private long cacheHits;
+
+    public S3ObjectFetcher(S3Client s3, ProjectionValueCodec codec, long cacheMaxBytes) {
+        this.s3 = s3;
+        this.codec = codec;
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    // The encoded value and metadata of the object version. The eTag and size from the event notification may be null.
+    public ProjectionBridge.ProjectionValue fetch(String bucket, String key, String versionId, String eTag, Long size) {
+        String cacheKey = bucket + "/" + key + " " + versionId;
+        if (versionId != null) {
+            CachedValue cached = cached(cacheKey);
+            if (cached != null && (eTag == null || Objects.equals(normalizeETag(eTag), cached.eTag()))) {
+                return cached.value();
+            }
+        }
+        ProjectionBridge.ProjectionValue value;
+        if (this.codec.storesPointer(key, size)) {
+            value = pointerTo(bucket, key, versionId);
+        } else {
+            // The object is read under the S3 flow control, as its body is streamed after getObject returns.
+            value = this.flowControl.call(() -> {
+                ResponseInputStream<GetObjectResponse> object = this.s3.getObject(GetObjectRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .versionId(versionId)
+                        .build());
+                return new ProjectionBridge.ProjectionValue(object.response(), this.codec.encode(bucket, key, versionId, object));
+            });
+        }
+        if (versionId != null) {
+            cache(cacheKey, new CachedValue(value, normalizeETag(value.objectMetaData().eTag()), sizeOf(value.valueAttributes())));
+        }
+        return value;
+    }
+
+    // A pointer needs only the metadata of the version.
+    private ProjectionBridge.ProjectionValue pointerTo(String bucket, String key, String versionId) {
+        HeadObjectResponse head = this.flowControl.call(() -> this.s3.headObject(HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .versionId(versionId)
+                .build()));
+        GetObjectResponse metaData = GetObjectResponse.builder()
+                .versionId(head.versionId())
+                .lastModified(head.lastModified())
+                .eTag(head.eTag())
+                .contentLength(head.contentLength())
+                .contentEncoding(head.contentEncoding())
+                .contentType(head.contentType())
+                .metadata(head.metadata())
+                .build();
+        return new ProjectionBridge.ProjectionValue(metaData, ProjectionValueCodec.pointer(bucket, key, head.versionId()));
+    }
+
+    // Whether the version is the current version of the key, with a HEAD request rather than a GET.
+    public boolean isLatest(String bucket, String key, String versionId) {
+        HeadObjectResponse latest = this.flowControl.call(() -> this.s3.headObject(HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build()));
+        return versionId == null || versionId.equals(latest.versionId());
+    }
+
+    public synchronized long cacheHits() {
+        return this.cacheHits;
+    }
+
+    private synchronized CachedValue cached(String cacheKey) {
+        CachedValue cached = this.cache.get(cacheKey);
+        if (cached != null) {
+            this.cacheHits++;
+        }
+        return cached;
+    }
+
+    private synchronized void cache(String cacheKey, CachedValue value) {
+        if (value.bytes() > this.cacheMaxBytes) {
+            return;
+        }
+        CachedValue replaced = this.cache.put(cacheKey, value);
+        this.cacheBytes += value.bytes() - (replaced == null ? 0 : replaced.bytes());
+        Iterator<Map.Entry<String, CachedValue>> eldest = this.cache.entrySet().iterator();
+        while (this.cacheBytes > this.cacheMaxBytes && eldest.hasNext()) {
+            this.cacheBytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+        }
+    }
+
+    // Event notifications carry the ETag without the quotes GetObject returns it with.
+    private static String normalizeETag(String eTag) {
+        return eTag == null ? null : eTag.replace("\"", "");
+    }
+
+    private static long sizeOf(Map<String, AttributeValue> valueAttributes) {
+        long bytes = 0;
+        for (Map.Entry<String, AttributeValue> attribute : valueAttributes.entrySet()) {
+            AttributeValue value = attribute.getValue();
+            bytes += attribute.getKey().length() + (value.s() != null ? value.s().length() : value.b() != null ? value.b().asByteArray().length : 0);
+        }
+        return bytes;
+    }
+}
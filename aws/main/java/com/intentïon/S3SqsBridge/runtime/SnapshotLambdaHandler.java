@@ -0,0 +1,48 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scheduled job writing a snapshot of the projections table to the snapshot prefix, see {@link ProjectionSnapshots}.
+ * A replay with REPLAY_FROM_SNAPSHOT loads the latest snapshot and replays only the versions uploaded since.
+ */
+public class SnapshotLambdaHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private final ProjectionBridge bridge;
+
+    // The Lambda runtime constructs the handler during the init phase so the bridge is in the SnapStart snapshot.
+    public SnapshotLambdaHandler() {
+        this(ProjectionRuntime.bridge());
+    }
+
+    public SnapshotLambdaHandler(ProjectionBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> event, Context context) {
+        try {
+            return handle(event);
+        } finally {
+            this.bridge.metrics().emit(StageMetrics.functionName("snapshotLambdaHandler"));
+        }
+    }
+
+    private Map<String, Object> handle(Map<String, Object> event) {
+        BridgeLog.info("Snapshot Lambda received event: " + event);
+        ProjectionSnapshots.Snapshot snapshot = this.bridge.writeSnapshot();
+        Map<String, Object> response = new HashMap<>();
+        response.put("handler", getClass().getName() + "::handleRequest");
+        response.put("written", snapshot != null);
+        if (snapshot != null) {
+            response.put("key", snapshot.key());
+            response.put("lastOffsetProcessed", snapshot.lastOffsetProcessed());
+            response.put("projections", snapshot.projections());
+        }
+        return response;
+    }
+}
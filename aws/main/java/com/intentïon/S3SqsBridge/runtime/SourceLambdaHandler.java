@@ -0,0 +1,34 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+/**
+ * Java equivalent of src/lib/main.sourceLambdaHandler: projects S3 put events from the source queue and sends the
+ * digest to the digest queue.
+ */
+public class SourceLambdaHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    private final ProjectionBridge bridge;
+
+    // The Lambda runtime constructs the handler during the init phase so the bridge is in the SnapStart snapshot.
+    public SourceLambdaHandler() {
+        this(ProjectionRuntime.bridge());
+    }
+
+    public SourceLambdaHandler(ProjectionBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent sqsEvent, Context context) {
+        BridgeLog.info("Source Lambda received " + sqsEvent.getRecords().size() + " records");
+        try {
+            return this.bridge.sourceLambdaHandler(sqsEvent);
+        } finally {
+            this.bridge.metrics().emit(StageMetrics.functionName("sourceLambdaHandler"));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+/**
+ * FIFO mode entry point: forwards S3 events from the standard source queue to the ordered FIFO source queue with a
+ * message group per key, where SourceLambdaHandler consumes them with per-key ordering.
+ */
+public class SourceSequencerLambdaHandler implements RequestHandler<SQSEvent, SQSBatchResponse> {
+
+    private final ProjectionBridge bridge;
+
+    // The Lambda runtime constructs the handler during the init phase so the bridge is in the SnapStart snapshot.
+    public SourceSequencerLambdaHandler() {
+        this(ProjectionRuntime.bridge());
+    }
+
+    public SourceSequencerLambdaHandler(ProjectionBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent sqsEvent, Context context) {
+        BridgeLog.info("Source Sequencer Lambda received " + sqsEvent.getRecords().size() + " records");
+        try {
+            return this.bridge.sourceSequencerLambdaHandler(sqsEvent);
+        } finally {
+            this.bridge.metrics().emit(StageMetrics.functionName("sourceSequencerLambdaHandler"));
+        }
+    }
+}
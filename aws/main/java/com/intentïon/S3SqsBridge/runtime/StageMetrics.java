@@ -0,0 +1,152 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Per-stage latency histograms of one invocation, written to the log as CloudWatch Embedded Metric Format (EMF) lines
+ * when the invocation ends so that no PutMetricData call is made on the hot path.
+ * <p>
+ * Latencies are counted in log-scale buckets (each 25% wider than the last, from 0.1 ms) and each recorded latency is
+ * reported as its bucket's upper bound, so CloudWatch computes percentiles to within a bucket. EMF allows 100 values
+ * per metric in a line, an invocation with more samples of a stage is written as several lines. The metrics are
+ * "&lt;Stage&gt;Latency" in milliseconds in the S3SqsBridge namespace with the FunctionName dimension.
+ */
+public class StageMetrics {
+
+    public static final String NAMESPACE = "S3SqsBridge";
+    public static final String DIMENSION = "FunctionName";
+    static final int MAX_VALUES_PER_LINE = 100;
+
+    private static final double MIN_MILLIS = 0.1;
+    private static final double GROWTH = 1.25;
+    // Up to 15 minutes, the Lambda timeout.
+    private static final int BUCKETS = (int) Math.ceil(Math.log(900_000 / MIN_MILLIS) / Math.log(GROWTH)) + 1;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public enum Stage {
+        OFFSET_READ("OffsetRead"),
+        OFFSET_WRITE("OffsetWrite"),
+        S3_FETCH("S3Fetch"),
+        PROJECTION_WRITE("ProjectionWrite"),
+        DIGEST("Digest"),
+        SQS_SEND("SqsSend");
+
+        private final String metricName;
+
+        Stage(String name) {
+            this.metricName = name + "Latency";
+        }
+
+        public String metricName() {
+            return this.metricName;
+        }
+    }
+
+    private final Map<Stage, long[]> histograms = new EnumMap<>(Stage.class);
+
+    public <T> T time(Stage stage, Supplier<T> operation) {
+        long start = System.nanoTime();
+        try {
+            return operation.get();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    public void time(Stage stage, Runnable operation) {
+        long start = System.nanoTime();
+        try {
+            operation.run();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    // Replay sends batches from several threads, so recording is synchronised.
+    public synchronized void record(Stage stage, long nanos) {
+        this.histograms.computeIfAbsent(stage, s -> new long[BUCKETS])[bucket(nanos / 1_000_000.0)]++;
+    }
+
+    public synchronized long count(Stage stage) {
+        long count = 0;
+        for (long bucketCount : this.histograms.getOrDefault(stage, new long[0])) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    // The EMF lines of what was recorded since the last call, which clears the histograms.
+    public synchronized List<String> drain(String functionName, long timestampMillis) {
+        Map<Stage, List<Double>> stageValues = new EnumMap<>(Stage.class);
+        int lines = 0;
+        for (Map.Entry<Stage, long[]> histogram : this.histograms.entrySet()) {
+            List<Double> latencies = new ArrayList<>();
+            long[] counts = histogram.getValue();
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                for (long i = 0; i < counts[bucket]; i++) {
+                    latencies.add(upperBoundMillis(bucket));
+                }
+            }
+            stageValues.put(histogram.getKey(), latencies);
+            lines = Math.max(lines, (latencies.size() + MAX_VALUES_PER_LINE - 1) / MAX_VALUES_PER_LINE);
+        }
+        this.histograms.clear();
+        List<String> emfLines = new ArrayList<>();
+        for (int line = 0; line < lines; line++) {
+            ObjectNode emf = MAPPER.createObjectNode();
+            ObjectNode directive = emf.putObject("_aws")
+                    .put("Timestamp", timestampMillis)
+                    .putArray("CloudWatchMetrics")
+                    .addObject()
+                    .put("Namespace", NAMESPACE);
+            directive.putArray("Dimensions").addArray().add(DIMENSION);
+            ArrayNode metrics = directive.putArray("Metrics");
+            emf.put(DIMENSION, functionName);
+            for (Map.Entry<Stage, List<Double>> stage : stageValues.entrySet()) {
+                List<Double> latencies = stage.getValue();
+                int from = line * MAX_VALUES_PER_LINE;
+                if (from >= latencies.size()) {
+                    continue;
+                }
+                metrics.addObject().put("Name", stage.getKey().metricName()).put("Unit", "Milliseconds");
+                ArrayNode lineValues = emf.putArray(stage.getKey().metricName());
+                latencies.subList(from, Math.min(latencies.size(), from + MAX_VALUES_PER_LINE)).forEach(lineValues::add);
+            }
+            emfLines.add(emf.toString());
+        }
+        return emfLines;
+    }
+
+    // Writes the invocation's EMF lines and those of the flow control (see FlowControl) to stdout, which the Lambda
+    // runtime sends to CloudWatch Logs.
+    public void emit(String functionName) {
+        long timestampMillis = System.currentTimeMillis();
+        drain(functionName, timestampMillis).forEach(System.out::println);
+        FlowControl.drain(functionName, timestampMillis).forEach(System.out::println);
+    }
+
+    // The deployed function name, or the given name when running outside Lambda.
+    public static String functionName(String defaultName) {
+        String functionName = System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        return functionName == null || functionName.isEmpty() ? defaultName : functionName;
+    }
+
+    static int bucket(double millis) {
+        if (millis <= MIN_MILLIS) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, (int) Math.ceil(Math.log(millis / MIN_MILLIS) / Math.log(GROWTH)));
+    }
+
+    static double upperBoundMillis(int bucket) {
+        return Math.round(MIN_MILLIS * Math.pow(GROWTH, bucket) * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.intentïon.S3SqsBridge;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intentïon.S3SqsBridge.runtime.InMemoryAwsEnvironment;
+import com.intentïon.S3SqsBridge.runtime.PipelineLoadDriver;
+import org.junit.jupiter.api.Test;
+import software.amazon.awscdk.App;
+import software.amazon.awscdk.assertions.Template;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives a load through the Java runtime stack's pipeline in memory and fails the build when the sustained throughput is
+ * below load.minThroughput objects per second. The load is set with load.objectsPerSecond and load.durationSeconds, e.g.
+ * mvn test -Dtest=S3SqsBridgeLoadTest -Dload.objectsPerSecond=500 -Dload.durationSeconds=30 -Dload.minThroughput=400
+ */
+public class S3SqsBridgeLoadTest {
+
+    @Test
+    public void testSustainedThroughputOfTheJavaRuntimePipeline() throws Exception {
+        App app = new App();
+
+        S3SqsBridgeStack stack = S3SqsBridgeStack.Builder.create(app, "S3SqsBridgeLoadStack")
+                .s3WriterArnPrinciple("arn:aws:iam::123456789012:user/test")
+                .s3WriterRoleName("s3-sqs-bridge-bucket-writer-role-test")
+                .s3BucketName("s3-sqs-bridge-bucket-test")
+                .cloudTrailEnabled(false)
+                .s3ObjectPrefix("test/")
+                .s3UseExistingBucket(false)
+                .s3RetainBucket(false)
+                .sqsSourceQueueName("s3-sqs-bridge-source-queue-test")
+                .sqsReplayQueueName("s3-sqs-bridge-replay-queue-test")
+                .sqsDigestQueueName("s3-sqs-bridge-digest-queue-test")
+                .sqsDigestQueueArn("arn:aws:sqs:eu-west-2:123456789012:s3-sqs-bridge-digest-queue-test")
+                .sqsUseExistingDigestQueue(false)
+                .sqsRetainDigestQueue(false)
+                .offsetsTableName("s3-sqs-bridge-offsets-table-test")
+                .projectionsTableName("s3-sqs-bridge-projections-table-test")
+                .lambdaEntry("src/lib/main.")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .replayBatchLambdaFunctionName("s3-sqs-bridge-replay-batch-function")
+                .replayBatchLambdaHandlerFunctionName("replayBatchLambdaHandler")
+                .sourceLambdaFunctionName("s3-sqs-bridge-source-function")
+                .sourceLambdaHandlerFunctionName("sourceLambdaHandler")
+                .replayLambdaFunctionName("s3-sqs-bridge-replay-function")
+                .replayLambdaHandlerFunctionName("replayLambdaHandler")
+                .build();
+
+        JsonNode template = new ObjectMapper().valueToTree(Template.fromStack(stack).toJSON());
+        InMemoryAwsEnvironment environment = InMemoryAwsEnvironment.fromTemplate(template, PipelineLoadDriver.DEFAULT_VISIBILITY_TIMEOUT_SCALE);
+        int objectsPerSecond = Integer.getInteger("load.objectsPerSecond", 100);
+        PipelineLoadDriver.Options options = new PipelineLoadDriver.Options(objectsPerSecond,
+                Integer.getInteger("load.durationSeconds", 3) * 1000L, 2, 30_000);
+        double minThroughput = Double.parseDouble(System.getProperty("load.minThroughput", Double.toString(objectsPerSecond / 2.0)));
+
+        PipelineLoadDriver.Report report = new PipelineLoadDriver(environment, options).run();
+
+        System.out.println(report.summary());
+        assertEquals(report.objects(), report.announced(), report.summary());
+        assertTrue(report.deadLetters().values().stream().allMatch(count -> count == 0), report.summary());
+        assertTrue(report.throughputPerSecond() >= minThroughput, report.summary());
+    }
+}
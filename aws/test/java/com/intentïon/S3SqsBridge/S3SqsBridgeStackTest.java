@@ -2,8 +2,17 @@ package com.intentïon.S3SqsBridge;
 
 import org.junit.jupiter.api.Test;
 import software.amazon.awscdk.App;
+import software.amazon.awscdk.assertions.Match;
 import software.amazon.awscdk.assertions.Template;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
 public class S3SqsBridgeStackTest {
 
     @Test
@@ -40,4 +49,419 @@ public class S3SqsBridgeStackTest {
         template.resourceCountIs("AWS::SQS::Queue", 6);
         template.resourceCountIs("AWS::Lambda::Function", 6);
     }
+
+    @Test
+    public void testDashboardAndAlarmsOnQueueAgeAndStageLatency() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeMonitoredStack")
+                .queueAgeAlarmSeconds(120)
+                .stageLatencyAlarmMillis(500)
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.resourceCountIs("AWS::CloudWatch::Dashboard", 1);
+        // Source, replay and digest queues and their DLQs, and the source, replay batch and replay functions.
+        template.resourceCountIs("AWS::CloudWatch::Alarm", 9);
+        assertEquals(Set.of("SourceQueue", "ReplayQueue", "DigestQueue", "SourceDLQ", "ReplayQueueDLQ", "DigestQueueDLQ"),
+                stack.queueAgeAlarms.keySet());
+        assertEquals(Set.of("SourceLambda", "ReplayBatchLambda", "ReplayLambda"), stack.stageLatencyAlarms.keySet());
+        template.hasResourceProperties("AWS::CloudWatch::Alarm", Map.of(
+                "MetricName", "ApproximateAgeOfOldestMessage",
+                "Threshold", 120,
+                "Statistic", "Maximum"));
+        template.hasResourceProperties("AWS::CloudWatch::Alarm", Map.of(
+                "MetricName", "ApproximateAgeOfOldestMessage",
+                "Threshold", 0));
+        template.hasResourceProperties("AWS::CloudWatch::Alarm", Map.of(
+                "Threshold", 500,
+                "Metrics", Match.arrayWith(List.of(Match.objectLike(Map.of(
+                        "Id", "m0",
+                        "MetricStat", Match.objectLike(Map.of(
+                                "Metric", Match.objectLike(Map.of(
+                                        "Namespace", "S3SqsBridge",
+                                        "MetricName", "OffsetReadLatency")),
+                                "Stat", "p99")),
+                        "ReturnData", false))))));
+    }
+
+    @Test
+    public void testJavaRuntimeStackResources() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeJavaRuntimeStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                // The shaded jar only exists after package, the compiled classes stand in for it here.
+                .lambdaJarPath("target/classes")
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.resourceCountIs("AWS::Lambda::Alias", 3);
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "Runtime", "java21",
+                "Handler", "com.intentïon.S3SqsBridge.runtime.SourceLambdaHandler::handleRequest",
+                "SnapStart", Map.of("ApplyOn", "PublishedVersions"),
+                "Environment", Map.of("Variables", Match.objectLike(Map.of(
+                        "DIGEST_FORMAT", "delta",
+                        "DIGEST_SNAPSHOT_EVERY", "1000",
+                        "SNAPSHOT_PREFIX", "snapshots/")))
+        ));
+    }
+
+    @Test
+    public void testBatchedEventSourceMappings() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeBatchedStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .sourceBatchSize(10)
+                .sourceMaxBatchingWindowSeconds(2)
+                .sourceMaxConcurrency(2)
+                .sourceReportBatchItemFailures(true)
+                .projectionConditionalWrites(true)
+                .replayBatchSize(100)
+                .replayMaxBatchingWindowSeconds(5)
+                .replayReportBatchItemFailures(true)
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.hasResourceProperties("AWS::Lambda::EventSourceMapping", Map.of(
+                "BatchSize", 10,
+                "MaximumBatchingWindowInSeconds", 2,
+                "FunctionResponseTypes", List.of("ReportBatchItemFailures"),
+                "ScalingConfig", Map.of("MaximumConcurrency", 2)
+        ));
+        template.hasResourceProperties("AWS::Lambda::EventSourceMapping", Map.of(
+                "BatchSize", 100,
+                "MaximumBatchingWindowInSeconds", 5,
+                "FunctionResponseTypes", List.of("ReportBatchItemFailures")
+        ));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-source-function",
+                "ReservedConcurrentExecutions", 2
+        ));
+    }
+
+    @Test
+    public void testFilteredSourceRoutesEachGetAQueue() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeSourceRoutesStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .sourceBatchSize(10)
+                .sourceMaxConcurrency(2)
+                .projectionConditionalWrites(true)
+                .sourceRoutes(SourceRoute.parseAll("name=branches,prefix=test/branches/,suffix=.json,maxConcurrency=4;"
+                        + "name=tags,prefix=test/tags/,events=put,batchSize=50"))
+                .build();
+
+        Template template = Template.fromStack(stack);
+        // The source queue of the first route, the tags queue and the shared DLQ.
+        template.hasResourceProperties("AWS::SQS::Queue", Map.of("QueueName", "s3-sqs-bridge-source-queue-test"));
+        template.hasResourceProperties("AWS::SQS::Queue", Map.of("QueueName", "s3-sqs-bridge-source-queue-test-tags"));
+        template.resourceCountIs("AWS::SQS::Queue", 7);
+        template.hasResourceProperties("Custom::S3BucketNotifications", Map.of(
+                "NotificationConfiguration", Map.of("QueueConfigurations", Match.arrayWith(List.of(
+                        Match.objectLike(Map.of(
+                                "Events", List.of("s3:ObjectCreated:CompleteMultipartUpload"),
+                                "Filter", Map.of("Key", Map.of("FilterRules", List.of(
+                                        Map.of("Name", "suffix", "Value", ".json"),
+                                        Map.of("Name", "prefix", "Value", "test/branches/")))))),
+                        Match.objectLike(Map.of(
+                                "Events", List.of("s3:ObjectCreated:Put"),
+                                "Filter", Map.of("Key", Map.of("FilterRules", List.of(
+                                        Map.of("Name", "prefix", "Value", "test/tags/")))))))))
+        ));
+        template.hasResourceProperties("AWS::Lambda::EventSourceMapping", Map.of(
+                "BatchSize", 10,
+                "ScalingConfig", Map.of("MaximumConcurrency", 4)
+        ));
+        template.hasResourceProperties("AWS::Lambda::EventSourceMapping", Map.of(
+                "BatchSize", 50,
+                "ScalingConfig", Map.of("MaximumConcurrency", 2)
+        ));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-source-function",
+                "ReservedConcurrentExecutions", 6
+        ));
+        assertEquals(List.of("branches", "tags"), List.copyOf(stack.sourceRouteQueues.keySet()));
+
+        assertThrows(IllegalArgumentException.class, () -> defaultBuilder(app, "S3SqsBridgeOverlappingRoutesStack")
+                .sourceRoutes(List.of(new SourceRoute("all", null, null, null, null, null, null),
+                        new SourceRoute("json", "test/", ".json", null, null, null, null)))
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> SourceRoute.parse("name=deletes,events=delete"));
+    }
+
+    @Test
+    public void testFifoQueuesWithSourceSequencer() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeFifoStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .sourceMaxBatchingWindowSeconds(2)
+                .sqsFifoQueues(true)
+                .messageGroupPrefixSegments(1)
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.hasResourceProperties("AWS::SQS::Queue", Map.of(
+                "QueueName", "s3-sqs-bridge-replay-queue-test.fifo",
+                "FifoQueue", true,
+                "DeduplicationScope", "messageGroup",
+                "FifoThroughputLimit", "perMessageGroupId"
+        ));
+        template.hasResourceProperties("AWS::SQS::Queue", Map.of(
+                "QueueName", "s3-sqs-bridge-source-queue-test-ordered.fifo",
+                "FifoQueue", true
+        ));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-source-function-sequencer",
+                "Handler", "com.intentïon.S3SqsBridge.runtime.SourceSequencerLambdaHandler::handleRequest",
+                "ReservedConcurrentExecutions", 1
+        ));
+        template.resourceCountIs("AWS::Lambda::Alias", 4);
+        // The sequencer on the standard source queue batches, the FIFO mappings cannot.
+        template.resourceCountIs("AWS::Lambda::EventSourceMapping", 3);
+        template.hasResourceProperties("AWS::Lambda::EventSourceMapping", Map.of(
+                "MaximumBatchingWindowInSeconds", 2
+        ));
+    }
+
+    @Test
+    public void testDlqRedriveFunction() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeDlqRedriveStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .sqsFifoQueues(true)
+                .dlqRedriveEnabled(true)
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-replay-function-dlq-redrive",
+                "Handler", "com.intentïon.S3SqsBridge.runtime.DlqRedriveLambdaHandler::handleRequest",
+                "ReservedConcurrentExecutions", 1,
+                "Timeout", 900,
+                "Environment", Map.of("Variables", Match.objectLike(Map.of(
+                        "SOURCE_DLQ_URL", Match.anyValue(),
+                        "ORDERED_SOURCE_DLQ_URL", Match.anyValue(),
+                        "ORDERED_SOURCE_QUEUE_URL", Match.anyValue(),
+                        "REPLAY_DLQ_URL", Match.anyValue(),
+                        "DIGEST_DLQ_URL", Match.anyValue())))
+        ));
+        // The redrive function is invoked on demand, it has no event source.
+        template.resourceCountIs("AWS::Lambda::EventSourceMapping", 3);
+    }
+
+    @Test
+    public void testShardedReplayCoordinatorAndSnapshots() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeShardedReplayStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .replayShards(4)
+                .replayShardBy("hash")
+                .offsetsShards(16)
+                .projectionConditionalWrites(true)
+                .projectionsIndexShards(4)
+                .projectionsTtlDays(30)
+                .snapshotScheduleMinutes(60)
+                .replayFromSnapshot(true)
+                .replayConcurrentIngest(true)
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.resourceCountIs("AWS::StepFunctions::StateMachine", 1);
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-replay-batch-function",
+                "ReservedConcurrentExecutions", 4,
+                "Environment", Map.of("Variables", Match.objectLike(Map.of(
+                        "REPLAY_SHARDS", "4",
+                        "REPLAY_SHARD_BY", "hash",
+                        "REPLAY_CONCURRENT_INGEST", "true")))
+        ));
+        // The state machine execution replaces the one-off replay custom resource.
+        template.resourceCountIs("AWS::CloudFormation::CustomResource", 0);
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-replay-function-snapshot",
+                "Handler", "com.intentïon.S3SqsBridge.runtime.SnapshotLambdaHandler::handleRequest"
+        ));
+        template.hasResourceProperties("AWS::Events::Rule", Map.of(
+                "ScheduleExpression", "rate(1 hour)"
+        ));
+        template.hasResourceProperties("AWS::DynamoDB::Table", Map.of(
+                "TableName", "s3-sqs-bridge-offsets-table-test",
+                "KeySchema", List.of(
+                        Map.of("AttributeName", "id", "KeyType", "HASH"),
+                        Map.of("AttributeName", "shard", "KeyType", "RANGE")),
+                "TimeToLiveSpecification", Map.of("AttributeName", "expiresAt", "Enabled", true)
+        ));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-source-function",
+                "Environment", Map.of("Variables", Match.objectLike(Map.of(
+                        "OFFSETS_SHARDS", "16",
+                        "OFFSETS_SHARD_BY", "hash",
+                        "OFFSETS_TTL_SECONDS", "2592000",
+                        "PROJECTION_CONDITIONAL_WRITES", "true",
+                        "PROJECTION_INDEX_SHARDS", "4",
+                        "PROJECTION_TTL_SECONDS", "2592000",
+                        "REPLAY_CONCURRENT_INGEST", "true")))
+        ));
+        template.hasResourceProperties("AWS::DynamoDB::Table", Map.of(
+                "TableName", "s3-sqs-bridge-projections-table-test",
+                "GlobalSecondaryIndexes", List.of(Map.of(
+                        "IndexName", "LastModifiedIndex",
+                        "KeySchema", List.of(
+                                Map.of("AttributeName", "changeShard", "KeyType", "HASH"),
+                                Map.of("AttributeName", "lastModified", "KeyType", "RANGE")),
+                        "Projection", Map.of("ProjectionType", "INCLUDE", "NonKeyAttributes", List.of("versionId"))), Map.of(
+                        "IndexName", "DigestMemberIndex",
+                        "KeySchema", List.of(
+                                Map.of("AttributeName", "memberShard", "KeyType", "HASH"),
+                                Map.of("AttributeName", "id", "KeyType", "RANGE")),
+                        "Projection", Map.of("ProjectionType", "KEYS_ONLY"))),
+                "TimeToLiveSpecification", Map.of("AttributeName", "expiresAt", "Enabled", true)
+        ));
+    }
+
+    @Test
+    public void testSharedArm64LambdaImage() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeSharedImageStack")
+                .lambdaArchitecture("arm64")
+                .lambdaSlimImage(true)
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-source-function",
+                "Architectures", List.of("arm64"),
+                "ImageConfig", Map.of("Command", List.of("src/lib/main.sourceLambdaHandler"))
+        ));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-replay-function",
+                "Architectures", List.of("arm64"),
+                "ImageConfig", Map.of("Command", List.of("src/lib/main.replayLambdaHandler"))
+        ));
+        // Every handler function runs the same image.
+        Map<String, Map<String, Object>> imageFunctions = template.findResources("AWS::Lambda::Function", Map.of(
+                "Properties", Map.of("PackageType", "Image")));
+        assertEquals(3, imageFunctions.size());
+        Set<Object> imageUris = new HashSet<>();
+        for (Map<String, Object> function : imageFunctions.values()) {
+            Map<?, ?> properties = (Map<?, ?>) function.get("Properties");
+            imageUris.add(((Map<?, ?>) properties.get("Code")).get("ImageUri"));
+        }
+        assertEquals(1, imageUris.size());
+    }
+
+    @Test
+    public void testLambdaProfilesSizeFunctionsAndQueues() {
+        App app = new App();
+
+        S3SqsBridgeStack stack = defaultBuilder(app, "S3SqsBridgeLambdaProfileStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .sourceMaxConcurrency(2)
+                .projectionConditionalWrites(true)
+                .replayMaxBatchingWindowSeconds(5)
+                .sourceLambdaProfile(LambdaProfile.parse("memorySize=2048,timeoutSeconds=30,ephemeralStorageMb=1024,provisionedConcurrency=2,maxReceiveCount=3"))
+                .replayLambdaProfile(LambdaProfile.UNSET.withArchitecture(LambdaProfile.ARM_64).withTimeoutSeconds(10))
+                .build();
+
+        Template template = Template.fromStack(stack);
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-source-function",
+                "MemorySize", 2048,
+                "Timeout", 30,
+                "EphemeralStorage", Map.of("Size", 1024)
+        ));
+        template.hasResourceProperties("AWS::Lambda::Alias", Map.of(
+                "Name", "live",
+                "ProvisionedConcurrencyConfig", Map.of("ProvisionedConcurrentExecutions", 2)
+        ));
+        template.hasResourceProperties("AWS::SQS::Queue", Map.of(
+                "QueueName", "s3-sqs-bridge-source-queue-test",
+                "VisibilityTimeout", 60,
+                "RedrivePolicy", Match.objectLike(Map.of("maxReceiveCount", 3))
+        ));
+        template.hasResourceProperties("AWS::Lambda::Function", Map.of(
+                "FunctionName", "s3-sqs-bridge-replay-function",
+                "MemorySize", 1024,
+                "Timeout", 10,
+                "Architectures", List.of("arm64")
+        ));
+        // Twice the timeout plus the batching window.
+        template.hasResourceProperties("AWS::SQS::Queue", Map.of(
+                "QueueName", "s3-sqs-bridge-replay-queue-test",
+                "VisibilityTimeout", 25,
+                "RedrivePolicy", Match.objectLike(Map.of("maxReceiveCount", 5))
+        ));
+    }
+
+    @Test
+    public void testProvisionedConcurrencyMustNotExceedReservedConcurrency() {
+        App app = new App();
+
+        assertThrows(IllegalArgumentException.class, () -> defaultBuilder(app, "S3SqsBridgeOverProvisionedStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .replayLambdaProfile(LambdaProfile.parse("provisionedConcurrency=2"))
+                .build());
+    }
+
+    @Test
+    public void testConcurrencyAboveOneRequiresFifoQueuesOrConditionalWrites() {
+        App app = new App();
+
+        assertThrows(IllegalArgumentException.class, () -> defaultBuilder(app, "S3SqsBridgeUnorderedStack")
+                .lambdaUseJavaRuntime(true)
+                .lambdaJavaEntry("com.intentïon.S3SqsBridge.runtime.")
+                .lambdaJarPath("target/classes")
+                .sourceMaxConcurrency(2)
+                .build());
+    }
+
+    // The names and settings every test stack shares, each test sets the options it checks.
+    private static S3SqsBridgeStack.Builder defaultBuilder(App app, String id) {
+        return S3SqsBridgeStack.Builder.create(app, id)
+                .s3WriterArnPrinciple("arn:aws:iam::123456789012:user/test")
+                .s3WriterRoleName("s3-sqs-bridge-bucket-writer-role-test")
+                .s3BucketName("s3-sqs-bridge-bucket-test")
+                .cloudTrailEnabled(false)
+                .s3ObjectPrefix("test/")
+                .s3UseExistingBucket(false)
+                .s3RetainBucket(false)
+                .sqsSourceQueueName("s3-sqs-bridge-source-queue-test")
+                .sqsReplayQueueName("s3-sqs-bridge-replay-queue-test")
+                .sqsDigestQueueName("s3-sqs-bridge-digest-queue-test")
+                .sqsDigestQueueArn("arn:aws:sqs:eu-west-2:123456789012:s3-sqs-bridge-digest-queue-test")
+                .sqsUseExistingDigestQueue(false)
+                .sqsRetainDigestQueue(false)
+                .offsetsTableName("s3-sqs-bridge-offsets-table-test")
+                .projectionsTableName("s3-sqs-bridge-projections-table-test")
+                .lambdaEntry("src/lib/main.")
+                .replayBatchLambdaFunctionName("s3-sqs-bridge-replay-batch-function")
+                .replayBatchLambdaHandlerFunctionName("replayBatchLambdaHandler")
+                .sourceLambdaFunctionName("s3-sqs-bridge-source-function")
+                .sourceLambdaHandlerFunctionName("sourceLambdaHandler")
+                .replayLambdaFunctionName("s3-sqs-bridge-replay-function")
+                .replayLambdaHandlerFunctionName("replayLambdaHandler");
+    }
 }
@@ -0,0 +1,160 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DigestIndexTest {
+
+    private static final String TABLE = ProjectionBridgeTest.CONFIG.projectionsTableName();
+
+    private InMemoryS3Client s3;
+    private InMemoryDynamoDbClient dynamodb;
+    private ProjectionBridge bridge;
+
+    @BeforeEach
+    public void setUp() {
+        this.s3 = new InMemoryS3Client();
+        this.dynamodb = new InMemoryDynamoDbClient();
+        this.dynamodb.globalSecondaryIndex(TABLE, DigestIndex.MEMBER_INDEX, "memberShard", "id");
+        this.bridge = new ProjectionBridge(ProjectionBridgeTest.CONFIG, new BridgeClients(this.s3, new InMemorySqsClient(), this.dynamodb));
+    }
+
+    @Test
+    public void testAddAndRemoveMaintainAnOrderIndependentHash() {
+        DigestIndex index = new DigestIndex(this.dynamodb, TABLE, 4);
+        assertTrue(index.add("events/a.json"));
+        assertTrue(index.add("events/b.json"));
+        assertFalse(index.add("events/a.json"));
+        DigestIndex.Summary ab = index.summary();
+        assertEquals(2, ab.count());
+
+        DigestIndex reordered = new DigestIndex(new InMemoryDynamoDbClient(), TABLE, 4);
+        reordered.add("events/b.json");
+        reordered.add("events/a.json");
+        assertEquals(ab, reordered.summary());
+
+        assertTrue(index.add("events/c.json"));
+        assertNotEquals(ab.hash(), index.summary().hash());
+        assertTrue(index.remove("events/c.json"));
+        assertFalse(index.remove("events/c.json"));
+        assertEquals(ab, index.summary());
+        assertEquals(Map.of("events/a.json", Map.of("id", "events/a.json"), "events/b.json", Map.of("id", "events/b.json")), index.idsMap());
+    }
+
+    @Test
+    public void testProjectionCostDoesNotGrowWithTheTable() {
+        int objects = 300;
+        for (int i = 0; i < objects; i++) {
+            this.s3.putObject(ProjectionBridgeTest.CONFIG.bucketName(), String.format("events/%04d.json", i), "{\"i\":" + i + "}");
+        }
+        this.bridge.replay();
+        InMemorySqsClient sqs = (InMemorySqsClient) this.bridge.clients.sqs();
+        new ReplayLambdaHandler(this.bridge).handleRequest(sqs.drainAsSqsEvent(ProjectionBridgeTest.CONFIG.replayQueueUrl(), objects), null);
+
+        // One transaction of a membership row and a single shard's counters per object and no table scans. The updates
+        // are the bucket offset's reset and advance, the replay's queue offset, shard checkpoint, shard completion and
+        // run completion, the stored shard count and the batch's digest sequence.
+        assertEquals(0, this.dynamodb.operationCount("Scan"));
+        assertEquals(objects, this.dynamodb.operationCount("TransactWriteItems"));
+        assertEquals(8, this.dynamodb.operationCount("UpdateItem"));
+        // The shard rows hold only counters, so they do not grow with the table.
+        Map<String, AttributeValue> shard = this.dynamodb.item(TABLE, DigestIndex.shardId(0));
+        assertEquals(Set.of("id", "idCount", "idHash"), shard.keySet());
+        // The full id list is a Query of each shard's partition of the member index, still without a Scan.
+        assertEquals(objects, this.bridge.computeDigest().size());
+        assertEquals(0, this.dynamodb.operationCount("Scan"));
+        assertEquals(DigestIndex.DEFAULT_SHARDS, this.dynamodb.operationCount("Query"));
+        assertTrue(this.dynamodb.itemCount(TABLE) <= 2 * objects + DigestIndex.DEFAULT_SHARDS + 2);
+        assertNull(this.dynamodb.item(TABLE, ProjectionBridge.DIGEST_ID));
+    }
+
+    @Test
+    public void testADifferentShardCountIsRefusedUntilRebuilt() {
+        DigestIndex index = new DigestIndex(this.dynamodb, TABLE, 4);
+        index.add("events/a.json");
+        index.add("events/b.json");
+        DigestIndex.Summary summary = index.summary();
+
+        DigestIndex resharded = new DigestIndex(this.dynamodb, TABLE, 8);
+        assertThrows(IllegalStateException.class, () -> resharded.add("events/c.json"));
+        assertThrows(IllegalStateException.class, resharded::summary);
+
+        DigestIndex.Summary rebuilt = resharded.rebuild(List.of("events/a.json", "events/b.json"));
+        assertEquals(new DigestIndex.Summary(summary.count(), summary.hash(), 8), rebuilt);
+        assertTrue(resharded.add("events/c.json"));
+        assertThrows(IllegalStateException.class, () -> new DigestIndex(this.dynamodb, TABLE, 4).add("events/d.json"));
+
+        // Shrinking removes the shard rows the smaller count no longer reads.
+        new DigestIndex(this.dynamodb, TABLE, 2).rebuild(List.of("events/a.json"));
+        assertNull(this.dynamodb.item(TABLE, DigestIndex.shardId(7)));
+        assertEquals(Map.of("events/a.json", Map.of("id", "events/a.json")), new DigestIndex(this.dynamodb, TABLE, 2).idsMap());
+    }
+
+    @Test
+    public void testVerifyDetectsDriftAndRebuildRepairsIt() {
+        DigestMaintenanceHandler handler = new DigestMaintenanceHandler(this.bridge);
+        this.bridge.writeValueToProjectionsTable("events/a.json", "{}");
+        this.bridge.writeValueToProjectionsTable("events/b.json", "{}");
+        this.bridge.digestIndex.add("events/a.json");
+        this.bridge.digestIndex.add("events/stale.json");
+
+        Map<String, Object> verify = handler.handleRequest(Map.of("action", "verify"), null);
+        assertEquals(false, verify.get("consistent"));
+        assertEquals(Set.of("events/b.json"), verify.get("missing"));
+        assertEquals(Set.of("events/stale.json"), verify.get("unexpected"));
+
+        Map<String, Object> rebuild = handler.handleRequest(Map.of("action", "rebuild"), null);
+        assertEquals(2L, rebuild.get("count"));
+        Map<String, Object> rebuilt = handler.handleRequest(Map.of(), null);
+        assertEquals(true, rebuilt.get("consistent"));
+        assertEquals(true, rebuilt.get("deltasConsistent"));
+        assertEquals(List.of("events/a.json", "events/b.json"), List.copyOf(this.bridge.computeDigest().keySet()));
+
+        this.bridge.deleteProjection("events/a.json");
+        assertEquals(List.of("events/b.json"), List.copyOf(this.bridge.computeDigest().keySet()));
+        Map<String, Object> deleted = handler.handleRequest(Map.of(), null);
+        assertEquals(true, deleted.get("consistent"));
+        assertEquals(true, deleted.get("deltasConsistent"));
+    }
+
+    @Test
+    public void testIdsMissingFromTheMemberIndexAreReadWithAScan() {
+        DigestIndex index = new DigestIndex(this.dynamodb, TABLE, 4);
+        index.add("events/a.json");
+        index.add("events/b.json");
+        // The index has not caught up with b yet.
+        this.dynamodb.updateItem(UpdateItemRequest.builder()
+                .tableName(TABLE)
+                .key(Map.of("id", AttributeValue.fromS(DigestIndex.memberId("events/b.json"))))
+                .updateExpression("REMOVE memberShard")
+                .build());
+
+        assertEquals(List.of("events/a.json", "events/b.json"), List.copyOf(index.idsMap().keySet()));
+        assertEquals(1, this.dynamodb.operationCount("Scan"));
+    }
+
+    @Test
+    public void testUnprocessedRebuildWritesAreRetriedABoundedNumberOfTimes() {
+        DigestIndex index = new DigestIndex(this.dynamodb, TABLE, 4);
+        this.dynamodb.leaveUnprocessed(request -> true);
+
+        assertThrows(IllegalStateException.class, () -> index.rebuild(List.of("events/a.json")));
+        assertEquals(5, this.dynamodb.operationCount("BatchWriteItem"));
+
+        this.dynamodb.leaveUnprocessed(request -> false);
+        assertEquals(1L, index.rebuild(List.of("events/a.json")).count());
+    }
+}
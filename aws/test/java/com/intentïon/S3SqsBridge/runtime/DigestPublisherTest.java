@@ -0,0 +1,122 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DigestPublisherTest {
+
+    private static final BridgeConfig CONFIG = ProjectionBridgeTest.CONFIG;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private InMemoryS3Client s3;
+    private InMemoryDynamoDbClient dynamodb;
+    private DigestIndex index;
+
+    @BeforeEach
+    public void setUp() {
+        this.s3 = new InMemoryS3Client();
+        this.dynamodb = new InMemoryDynamoDbClient();
+        this.dynamodb.globalSecondaryIndex(CONFIG.projectionsTableName(), DigestIndex.MEMBER_INDEX, "memberShard", "id");
+        this.index = new DigestIndex(this.dynamodb, CONFIG.projectionsTableName(), 4);
+    }
+
+    private DigestPublisher publisher(int snapshotEvery) {
+        return new DigestPublisher(this.dynamodb, this.s3, this.index, CONFIG.projectionsTableName(), CONFIG.bucketName(),
+                CONFIG.snapshotPrefix(), snapshotEvery);
+    }
+
+    private DigestPublisher.Delta add(DigestPublisher publisher, String... ids) {
+        List<String> added = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
+        for (String id : ids) {
+            (this.index.add(id) ? added : changed).add(id);
+        }
+        return publisher.record(added, changed, List.of(), true);
+    }
+
+    @Test
+    public void testDeltasAreNumberedAndCarryTheRunningCountAndHash() {
+        DigestPublisher publisher = publisher(0);
+        Set<String> consumer = new TreeSet<>();
+        for (int batch = 0; batch < 20; batch++) {
+            DigestPublisher.Delta delta = add(publisher, "events/" + batch + ".json", "events/" + (batch / 2) + ".json");
+            JsonNode message = publisher.deltaMessage(delta);
+            assertEquals(batch + 1, message.path("sequence").asLong());
+            assertFalse(delta.snapshotDue());
+            message.path("added").forEach(id -> consumer.add(id.asText()));
+            message.path("removed").forEach(id -> consumer.remove(id.asText()));
+            // The message holds the batch's ids only, however many ids there are.
+            assertTrue(message.toString().length() < 200);
+            assertEquals(consumer.size(), message.path("count").asLong());
+            assertEquals(hash(consumer), message.path("hash").asText());
+        }
+        assertTrue(this.index.remove("events/3.json"));
+        DigestPublisher.Delta removed = publisher.record(List.of(), List.of(), List.of("events/3.json"), true);
+        assertEquals(List.of("events/3.json"), removed.removed());
+        assertEquals(this.index.summary().count(), removed.count());
+        assertEquals(this.index.summary().hash(), removed.hash());
+        assertEquals(new DigestPublisher.Sequence(21, 19, this.index.summary().hash()), publisher.current());
+    }
+
+    @Test
+    public void testSnapshotsAreDueAtIntervalsAndAfterUnsentChanges() throws Exception {
+        DigestPublisher publisher = publisher(3);
+        assertFalse(add(publisher, "events/a.json").snapshotDue());
+        assertFalse(add(publisher, "events/b.json").snapshotDue());
+        DigestPublisher.Delta third = add(publisher, "events/c.json");
+        assertTrue(third.snapshotDue());
+
+        DigestPublisher.Snapshot snapshot = publisher.snapshot(third.sequence());
+        assertEquals(CONFIG.snapshotPrefix() + "digest/digest-0000000000000000003.json.gz", snapshot.key());
+        assertEquals(third.hash(), snapshot.hash());
+        JsonNode latest = this.mapper.readTree(this.s3.findVersion(CONFIG.bucketName(), CONFIG.snapshotPrefix() + "digest/latest.json", null).content());
+        assertEquals(publisher.snapshotMessage(snapshot).toString(), latest.toString());
+        assertFalse(add(publisher, "events/d.json").snapshotDue());
+
+        // Replayed changes are numbered without being sent, so the next batch is due a snapshot.
+        this.index.add("events/e.json");
+        assertTrue(publisher.record(List.of("events/e.json"), List.of(), List.of(), false).snapshotDue());
+        assertTrue(add(publisher, "events/f.json").snapshotDue());
+        publisher.snapshot(publisher.nextSequence());
+        assertFalse(add(publisher, "events/g.json").snapshotDue());
+
+        // An older snapshot does not replace the latest pointer.
+        publisher.snapshot(2);
+        latest = this.mapper.readTree(this.s3.findVersion(CONFIG.bucketName(), CONFIG.snapshotPrefix() + "digest/latest.json", null).content());
+        assertEquals(7, latest.path("sequence").asLong());
+    }
+
+    @Test
+    public void testOversizedDeltaIsReplacedBySnapshot() {
+        DigestPublisher publisher = publisher(0);
+        String[] ids = new String[500];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "events/" + "x".repeat(500) + "/" + i + ".json";
+        }
+        assertNull(publisher.deltaMessage(add(publisher, ids)));
+        assertThrows(IllegalArgumentException.class, () -> DigestPublisher.checkFormat("compact"));
+        assertThrows(IllegalArgumentException.class, () -> publisher(-1));
+    }
+
+    private static String hash(Set<String> ids) {
+        BigInteger hash = BigInteger.ZERO;
+        for (String id : ids) {
+            hash = hash.add(BigInteger.valueOf(DigestIndex.idHash(id)));
+        }
+        return DigestIndex.hashString(hash);
+    }
+}
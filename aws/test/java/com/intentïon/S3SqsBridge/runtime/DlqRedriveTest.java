@@ -0,0 +1,153 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DlqRedriveTest {
+
+    private static final String DLQ_URL = "https://sqs.eu-west-2.amazonaws.com/000000000000/replay-dlq";
+    private static final String QUEUE_URL = "https://sqs.eu-west-2.amazonaws.com/000000000000/replay";
+    private static final String FIFO_QUEUE_URL = "https://sqs.eu-west-2.amazonaws.com/000000000000/replay.fifo";
+
+    private InMemorySqsClient sqs;
+
+    @BeforeEach
+    public void setUp() {
+        this.sqs = new InMemorySqsClient();
+        FlowControl.reset();
+    }
+
+    private void deadLetter(String key, String versionId, String errorCode) {
+        this.sqs.sendMessage(SendMessageRequest.builder()
+                .queueUrl(DLQ_URL)
+                .messageBody("{\"Records\":[{\"s3\":{\"object\":{\"key\":\"" + key + "\",\"versionId\":\"" + versionId + "\"}}}]}")
+                .messageAttributes(Map.of("ErrorCode", MessageAttributeValue.builder().dataType("String").stringValue(errorCode).build()))
+                .build());
+    }
+
+    private DlqRedrive.Options options(String targetQueueUrl) {
+        return DlqRedrive.Options.of(DLQ_URL, targetQueueUrl).withReceive(30, 0);
+    }
+
+    @Test
+    public void testRedrivesEveryMessageWithParallelWorkers() {
+        for (int i = 0; i < 95; i++) {
+            deadLetter("events/" + i, "v1", "Throttled");
+        }
+
+        DlqRedrive.Result result = new DlqRedrive(this.sqs, options(QUEUE_URL).withLimits(3, 0, 0, 0)).run();
+
+        assertEquals(new DlqRedrive.Result(95, 95, 0, 0, false), result);
+        assertTrue(this.sqs.messages(DLQ_URL).isEmpty());
+        this.sqs.expireInFlight(DLQ_URL);
+        assertTrue(this.sqs.messages(DLQ_URL).isEmpty());
+        List<Message> redriven = this.sqs.messages(QUEUE_URL);
+        assertEquals(95, redriven.size());
+        assertEquals("Throttled", redriven.get(0).messageAttributes().get("ErrorCode").stringValue());
+        assertTrue(this.sqs.operationCount("SendMessageBatch") >= 10);
+        assertTrue(this.sqs.operationCount("DeleteMessageBatch") >= 10);
+    }
+
+    @Test
+    public void testDryRunAndFilterLeaveMessagesOnTheDeadLetterQueue() {
+        for (int i = 0; i < 12; i++) {
+            deadLetter("events/" + i, "v1", i % 3 == 0 ? "Throttled" : "ValidationError");
+        }
+
+        DlqRedrive.Result dryRun = new DlqRedrive(this.sqs, options(QUEUE_URL).withFilter("ErrorCode=^Thrott", true)).run();
+        assertEquals(new DlqRedrive.Result(12, 4, 8, 0, true), dryRun);
+        assertEquals(0, this.sqs.operationCount("SendMessageBatch"));
+        this.sqs.expireInFlight(DLQ_URL);
+        assertEquals(12, this.sqs.messages(DLQ_URL).size());
+
+        DlqRedrive.Result result = new DlqRedrive(this.sqs, options(QUEUE_URL).withFilter("ErrorCode=^Thrott", false)).run();
+        assertEquals(new DlqRedrive.Result(12, 4, 8, 0, false), result);
+        assertEquals(4, this.sqs.messages(QUEUE_URL).size());
+        this.sqs.expireInFlight(DLQ_URL);
+        assertEquals(8, this.sqs.messages(DLQ_URL).size());
+        assertTrue(this.sqs.messages(DLQ_URL).stream()
+                .allMatch(message -> "ValidationError".equals(message.messageAttributes().get("ErrorCode").stringValue())));
+
+        assertThrows(IllegalArgumentException.class, () -> options(QUEUE_URL).withFilter("=x", false));
+        assertThrows(IllegalArgumentException.class, () -> DlqRedrive.Options.of(DLQ_URL, DLQ_URL));
+    }
+
+    @Test
+    public void testMaxMessagesBoundsTheRun() {
+        for (int i = 0; i < 25; i++) {
+            deadLetter("events/" + i, "v1", "Throttled");
+        }
+
+        DlqRedrive.Result result = new DlqRedrive(this.sqs, options(QUEUE_URL).withLimits(4, 0, 13, 0)).run();
+
+        assertEquals(13, result.received());
+        assertEquals(13, this.sqs.messages(QUEUE_URL).size());
+        assertEquals(12, this.sqs.messages(DLQ_URL).size());
+    }
+
+    @Test
+    public void testFifoTargetKeepsTheOrderOfEachKeyAndHoldsBackAFailedGroup() {
+        for (int version = 1; version <= 4; version++) {
+            deadLetter("events/a", "v" + version, "Throttled");
+            deadLetter("events/b", "v" + version, "Throttled");
+        }
+        this.sqs.failEntries(entry -> entry.messageBody().contains("\"events/b\",\"versionId\":\"v2\""));
+
+        DlqRedrive.Result result = new DlqRedrive(this.sqs, options(FIFO_QUEUE_URL).withLimits(1, 0, 0, 0)).run();
+
+        // b v2 fails on every attempt, b v3 and v4 are held back behind it.
+        assertEquals(new DlqRedrive.Result(8, 5, 0, 3, false), result);
+        List<String> bodies = this.sqs.messages(FIFO_QUEUE_URL).stream().map(Message::body).toList();
+        assertEquals(List.of("v1", "v1", "v2", "v3", "v4"), bodies.stream()
+                .map(body -> body.replaceAll(".*\"versionId\":\"(v\\d)\".*", "$1"))
+                .toList());
+        assertTrue(bodies.get(1).contains("events/b"));
+        this.sqs.expireInFlight(DLQ_URL);
+        assertEquals(3, this.sqs.messages(DLQ_URL).size());
+        assertTrue(this.sqs.messages(DLQ_URL).stream().allMatch(message -> message.body().contains("events/b")));
+    }
+
+    @Test
+    public void testMaxMessagesPerSecondSpacesTheSends() {
+        for (int i = 0; i < 30; i++) {
+            deadLetter("events/" + i, "v1", "Throttled");
+        }
+
+        long start = System.nanoTime();
+        DlqRedrive.Result result = new DlqRedrive(this.sqs, options(QUEUE_URL).withLimits(2, 100, 0, 0)).run();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(30, result.redriven());
+        // The first 10 are sent at once and the other 20 take 200 ms at 100 messages per second.
+        assertTrue(elapsedMillis >= 180, "Redrive took " + elapsedMillis + " ms");
+    }
+
+    @Test
+    public void testHandlerRedrivesTheNamedQueue() {
+        deadLetter("events/a", "v1", "Throttled");
+        DlqRedriveLambdaHandler handler = new DlqRedriveLambdaHandler(this.sqs, Map.of(
+                "REPLAY_DLQ_URL", DLQ_URL,
+                "REPLAY_QUEUE_URL", QUEUE_URL));
+
+        Map<String, Object> response = handler.handleRequest(Map.of("queue", "replay", "dryRun", true), null);
+        assertEquals(1L, response.get("redriven"));
+        assertEquals(true, response.get("dryRun"));
+        assertTrue(this.sqs.messages(QUEUE_URL).isEmpty());
+
+        this.sqs.expireInFlight(DLQ_URL);
+        response = handler.handleRequest(Map.of("queue", "replay"), null);
+        assertEquals(1L, response.get("redriven"));
+        assertEquals(1, this.sqs.messages(QUEUE_URL).size());
+        assertThrows(IllegalArgumentException.class, () -> handler.handleRequest(Map.of("queue", "orderedSource"), null));
+    }
+}
@@ -0,0 +1,159 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FlowControlTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @BeforeEach
+    public void setUp() {
+        FlowControl.reset();
+    }
+
+    @Test
+    public void testLimitGrowsAdditivelyAndIsCutOncePerThrottlingBurst() {
+        FlowControl flowControl = new FlowControl("dynamodb", this.now::get, () -> 0.5);
+        for (int i = 0; i < FlowControl.INITIAL_LIMIT; i++) {
+            assertEquals("ok", flowControl.call(() -> "ok"));
+        }
+        assertEquals(FlowControl.INITIAL_LIMIT + 1, flowControl.state().limit());
+
+        flowControl.onThrottle();
+        flowControl.onThrottle();
+        this.now.addAndGet(FlowControl.DECREASE_WINDOW_MILLIS - 1);
+        flowControl.onThrottle();
+        assertEquals((FlowControl.INITIAL_LIMIT + 1) / 2, flowControl.state().limit());
+        this.now.addAndGet(1);
+        flowControl.onThrottle();
+        assertEquals(new FlowControl.State("dynamodb", 4, 0, 4, 0, 0), flowControl.state());
+        for (int i = 0; i < 10; i++) {
+            flowControl.onThrottle();
+            this.now.addAndGet(FlowControl.DECREASE_WINDOW_MILLIS);
+        }
+        assertEquals(FlowControl.MIN_LIMIT, flowControl.state().limit());
+    }
+
+    @Test
+    public void testRetriesAreJitteredAndBudgeted() {
+        FlowControl flowControl = new FlowControl("sqs", this.now::get, () -> 0.5);
+        assertEquals(50, flowControl.backoffMillis(100, 1));
+        assertEquals(200, flowControl.backoffMillis(100, 3));
+        assertEquals(FlowControl.MAX_DELAY_MILLIS / 2, flowControl.backoffMillis(100, 40));
+
+        int retries = 0;
+        while (flowControl.tryRetry()) {
+            retries++;
+        }
+        assertEquals(FlowControl.RETRY_BUDGET, retries);
+        // Ten successful calls earn one more retry.
+        for (int i = 0; i < FlowControl.RETRY_COST; i++) {
+            flowControl.onSuccess();
+        }
+        assertTrue(flowControl.tryRetry());
+        assertFalse(flowControl.tryRetry());
+        assertEquals(2, flowControl.state().retriesRejected());
+    }
+
+    @Test
+    public void testCallsBeyondTheLimitWaitAndThrottledCallsCutIt() throws Exception {
+        FlowControl flowControl = new FlowControl("s3", this.now::get, () -> 0.5);
+        int calls = FlowControl.INITIAL_LIMIT * 3;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(FlowControl.INITIAL_LIMIT);
+        CountDownLatch proceed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(calls);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < calls; i++) {
+                results.add(executor.submit(() -> flowControl.call(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    started.countDown();
+                    await(proceed);
+                    running.decrementAndGet();
+                    return "ok";
+                })));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            assertEquals(FlowControl.INITIAL_LIMIT, flowControl.state().inFlight());
+            proceed.countDown();
+            for (Future<String> result : results) {
+                assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(FlowControl.INITIAL_LIMIT, maxRunning.get());
+        assertEquals(0, flowControl.state().inFlight());
+
+        IllegalStateException failure = assertThrows(IllegalStateException.class,
+                () -> flowControl.call(() -> { throw new IllegalStateException("Connection reset"); }));
+        assertEquals("Connection reset", failure.getMessage());
+        assertEquals(0, flowControl.state().throttles());
+    }
+
+    @Test
+    public void testClassifiesBatchEntryFailures() {
+        assertEquals(FlowControl.Outcome.THROTTLE, FlowControl.classify("RequestThrottled", false));
+        assertEquals(FlowControl.Outcome.THROTTLE, FlowControl.classify("ProvisionedThroughputExceededException", null));
+        assertEquals(FlowControl.Outcome.FATAL, FlowControl.classify("InvalidParameterValue", true));
+        assertEquals(FlowControl.Outcome.TRANSIENT, FlowControl.classify("InternalError", false));
+        assertEquals(FlowControl.Outcome.TRANSIENT, FlowControl.classify(null, null));
+        assertEquals(FlowControl.Outcome.TRANSIENT, FlowControl.classify(new IllegalStateException("timeout")));
+    }
+
+    @Test
+    public void testDrainsTheStateOfEachDownstreamAsEmf() throws Exception {
+        FlowControl sqs = FlowControl.of(FlowControl.SQS);
+        assertTrue(sqs == FlowControl.of(FlowControl.SQS));
+        FlowControl.of(FlowControl.DYNAMODB).call(() -> "ok");
+        sqs.onThrottle();
+        sqs.tryRetry();
+
+        List<String> lines = FlowControl.drain("replay", 1_700_000_000_000L);
+        assertEquals(2, lines.size());
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode line = mapper.readTree(lines.get(1));
+        assertEquals("S3SqsBridge", line.at("/_aws/CloudWatchMetrics/0/Namespace").asText());
+        assertEquals("[[\"FunctionName\",\"Downstream\"]]", line.at("/_aws/CloudWatchMetrics/0/Dimensions").toString());
+        assertEquals("replay", line.path("FunctionName").asText());
+        assertEquals("sqs", line.path("Downstream").asText());
+        assertEquals(FlowControl.INITIAL_LIMIT / 2, line.path("ConcurrencyLimit").asInt());
+        assertEquals(1, line.path("Throttles").asInt());
+        assertEquals(1, line.path("Retries").asInt());
+
+        // Throttles and retries are counted from the last line.
+        line = mapper.readTree(FlowControl.drain("replay", 1_700_000_000_000L).get(1));
+        assertEquals(0, line.path("Throttles").asInt());
+        assertEquals(0, line.path("Retries").asInt());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
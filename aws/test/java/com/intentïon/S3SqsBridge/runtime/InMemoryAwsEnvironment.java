@@ -0,0 +1,298 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The in-memory stand-ins configured from a synthesised S3SqsBridgeStack template, so that the pipeline runs offline
+ * against the queues, tables, bucket notifications, functions and event source mappings the stack deploys.
+ * <p>
+ * Each queue gets the url https://sqs.eu-west-2.amazonaws.com/000000000000/&lt;QueueName&gt;, its visibility timeout
+ * (scaled by visibilityTimeoutScale, so that redelivery does not take minutes) and its redrive policy. Function
+ * environments are resolved as CloudFormation would: a Ref to a queue is its url, to a table or bucket its name, a
+ * Fn::GetAtt Arn its arn, and variables that cannot be resolved are left out. Tables and their global secondary
+ * indexes are keyed as their key schemas declare. Each bucket notification of puts to a queue sends the S3 event of
+ * every put matching its key filter to the queue, the other object created events are not simulated.
+ */
+public class InMemoryAwsEnvironment {
+
+    private static final String QUEUE_URL_PREFIX = "https://sqs.eu-west-2.amazonaws.com/000000000000/";
+    private static final String ARN_PREFIX = "arn:aws:sqs:eu-west-2:000000000000:";
+
+    public record Queue(String logicalId, String url, long visibilityTimeoutSeconds, String deadLetterQueueUrl, int maxReceiveCount) {
+    }
+
+    // handler is the Java handler class name, or null for a function of another runtime.
+    public record Function(String logicalId, String handler, Map<String, String> environment) {
+    }
+
+    // maximumConcurrency is 0 when the mapping does not limit its concurrency.
+    public record EventSourceMapping(String queueUrl, String functionLogicalId, int batchSize, boolean reportBatchItemFailures,
+                                     int maximumConcurrency) {
+    }
+
+    public record Notification(String bucket, String queueUrl, String prefix, String suffix) {
+    }
+
+    private final InMemoryS3Client s3;
+    private final InMemorySqsClient sqs;
+    private final InMemoryDynamoDbClient dynamodb;
+    private final JsonNode resources;
+    private final Map<String, Queue> queues = new LinkedHashMap<>();
+    private final Map<String, Function> functions = new LinkedHashMap<>();
+    private final List<EventSourceMapping> eventSourceMappings = new ArrayList<>();
+    private final List<Notification> notifications = new ArrayList<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private InMemoryAwsEnvironment(JsonNode template, double visibilityTimeoutScale) {
+        this.resources = template.path("Resources");
+        this.s3 = new InMemoryS3Client();
+        this.sqs = new InMemorySqsClient();
+        this.dynamodb = new InMemoryDynamoDbClient();
+        this.resources.fields().forEachRemaining(resource -> {
+            if ("AWS::SQS::Queue".equals(resource.getValue().path("Type").asText())) {
+                JsonNode properties = resource.getValue().path("Properties");
+                JsonNode redrivePolicy = properties.path("RedrivePolicy");
+                this.queues.put(resource.getKey(), new Queue(resource.getKey(), queueUrl(resource.getKey()),
+                        properties.path("VisibilityTimeout").asLong(30),
+                        redrivePolicy.isMissingNode() ? null : resolve(redrivePolicy.path("deadLetterTargetArn")),
+                        redrivePolicy.path("maxReceiveCount").asInt(0)));
+            }
+        });
+        // The dead-letter targets resolve to arns, which are mapped back to the urls of the queues.
+        Map<String, String> urlsByArn = new HashMap<>();
+        this.queues.values().forEach(queue -> urlsByArn.put(ARN_PREFIX + queue.url().substring(QUEUE_URL_PREFIX.length()), queue.url()));
+        this.queues.replaceAll((logicalId, queue) -> new Queue(logicalId, queue.url(), queue.visibilityTimeoutSeconds(),
+                urlsByArn.get(queue.deadLetterQueueUrl()), queue.maxReceiveCount()));
+        for (Queue queue : this.queues.values()) {
+            this.sqs.configureQueue(queue.url(), Math.round(queue.visibilityTimeoutSeconds() * 1000 * visibilityTimeoutScale),
+                    queue.deadLetterQueueUrl(), queue.maxReceiveCount());
+        }
+
+        this.resources.fields().forEachRemaining(resource -> {
+            JsonNode properties = resource.getValue().path("Properties");
+            switch (resource.getValue().path("Type").asText()) {
+                case "AWS::Lambda::Function" -> {
+                    Map<String, String> environment = new LinkedHashMap<>();
+                    properties.path("Environment").path("Variables").fields().forEachRemaining(variable -> {
+                        String value = resolve(variable.getValue());
+                        if (value != null) {
+                            environment.put(variable.getKey(), value);
+                        }
+                    });
+                    String handler = properties.path("Handler").asText();
+                    this.functions.put(resource.getKey(), new Function(resource.getKey(),
+                            handler.contains("::") ? handler.substring(0, handler.indexOf("::")) : null, environment));
+                }
+                case "AWS::Lambda::EventSourceMapping" -> {
+                    String queueUrl = urlsByArn.get(resolve(properties.path("EventSourceArn")));
+                    if (queueUrl != null) {
+                        boolean reportBatchItemFailures = false;
+                        for (JsonNode responseType : properties.path("FunctionResponseTypes")) {
+                            reportBatchItemFailures |= "ReportBatchItemFailures".equals(responseType.asText());
+                        }
+                        this.eventSourceMappings.add(new EventSourceMapping(queueUrl, functionLogicalId(properties.path("FunctionName")),
+                                properties.path("BatchSize").asInt(10), reportBatchItemFailures,
+                                properties.path("ScalingConfig").path("MaximumConcurrency").asInt(0)));
+                    }
+                }
+                case "AWS::DynamoDB::Table" -> {
+                    String tableName = properties.path("TableName").asText(resource.getKey());
+                    String sortKey = keyAttribute(properties.path("KeySchema"), "RANGE");
+                    if (sortKey != null) {
+                        this.dynamodb.sortKey(tableName, sortKey);
+                    }
+                    for (JsonNode index : properties.path("GlobalSecondaryIndexes")) {
+                        String indexSortKey = keyAttribute(index.path("KeySchema"), "RANGE");
+                        if (indexSortKey != null) {
+                            this.dynamodb.globalSecondaryIndex(tableName, index.path("IndexName").asText(),
+                                    keyAttribute(index.path("KeySchema"), "HASH"), indexSortKey);
+                        }
+                    }
+                }
+                case "Custom::S3BucketNotifications" -> {
+                    String bucket = resolve(properties.path("BucketName"));
+                    for (JsonNode configuration : properties.path("NotificationConfiguration").path("QueueConfigurations")) {
+                        if (!notifiesPuts(configuration.path("Events"))) {
+                            continue;
+                        }
+                        String prefix = "";
+                        String suffix = "";
+                        for (JsonNode rule : configuration.path("Filter").path("Key").path("FilterRules")) {
+                            if ("prefix".equalsIgnoreCase(rule.path("Name").asText())) {
+                                prefix = rule.path("Value").asText();
+                            } else if ("suffix".equalsIgnoreCase(rule.path("Name").asText())) {
+                                suffix = rule.path("Value").asText();
+                            }
+                        }
+                        this.notifications.add(new Notification(bucket, urlsByArn.get(resolve(configuration.path("QueueArn"))), prefix, suffix));
+                    }
+                }
+                default -> {
+                }
+            }
+        });
+        this.s3.onPut(this::notify);
+    }
+
+    public static InMemoryAwsEnvironment fromTemplate(JsonNode template, double visibilityTimeoutScale) {
+        if (!template.path("Resources").isObject()) {
+            throw new IllegalArgumentException("The template has no Resources");
+        }
+        if (!(visibilityTimeoutScale > 0)) {
+            throw new IllegalArgumentException("The visibility timeout scale must be positive: " + visibilityTimeoutScale);
+        }
+        return new InMemoryAwsEnvironment(template, visibilityTimeoutScale);
+    }
+
+    public InMemoryS3Client s3() {
+        return this.s3;
+    }
+
+    public InMemorySqsClient sqs() {
+        return this.sqs;
+    }
+
+    public InMemoryDynamoDbClient dynamodb() {
+        return this.dynamodb;
+    }
+
+    public BridgeClients clients() {
+        return new BridgeClients(this.s3, this.sqs, this.dynamodb);
+    }
+
+    public Map<String, Queue> queues() {
+        return this.queues;
+    }
+
+    public Map<String, Function> functions() {
+        return this.functions;
+    }
+
+    public List<EventSourceMapping> eventSourceMappings() {
+        return this.eventSourceMappings;
+    }
+
+    public List<Notification> notifications() {
+        return this.notifications;
+    }
+
+    // The queue whose CDK construct id is the given id, e.g. SourceQueue, ignoring the hash CDK appends to logical ids.
+    public Queue queue(String constructId) {
+        return this.queues.entrySet().stream()
+                .filter(queue -> queue.getKey().matches(constructId + "[0-9A-F]{8}"))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("The template has no queue " + constructId));
+    }
+
+    // The url of a Ref to a queue, the name of a Ref to a table or bucket, the arn of a queue's Fn::GetAtt Arn and the
+    // joined parts of a Fn::Join, or null when the value is none of these.
+    String resolve(JsonNode value) {
+        if (value.isTextual() || value.isNumber() || value.isBoolean()) {
+            return value.asText();
+        }
+        if (value.has("Ref")) {
+            String logicalId = value.path("Ref").asText();
+            JsonNode resource = this.resources.path(logicalId);
+            return switch (resource.path("Type").asText()) {
+                case "AWS::SQS::Queue" -> queueUrl(logicalId);
+                case "AWS::DynamoDB::Table" -> resource.path("Properties").path("TableName").asText(logicalId);
+                case "AWS::S3::Bucket" -> resource.path("Properties").path("BucketName").asText(logicalId.toLowerCase());
+                case "AWS::Lambda::Function" -> resource.path("Properties").path("FunctionName").asText(logicalId);
+                default -> null;
+            };
+        }
+        if (value.has("Fn::GetAtt") && "Arn".equals(value.path("Fn::GetAtt").path(1).asText())
+                && "AWS::SQS::Queue".equals(this.resources.path(value.path("Fn::GetAtt").path(0).asText()).path("Type").asText())) {
+            return ARN_PREFIX + queueUrl(value.path("Fn::GetAtt").path(0).asText()).substring(QUEUE_URL_PREFIX.length());
+        }
+        if (value.has("Fn::Join")) {
+            StringBuilder joined = new StringBuilder();
+            String separator = value.path("Fn::Join").path(0).asText();
+            for (JsonNode part : value.path("Fn::Join").path(1)) {
+                String resolved = resolve(part);
+                if (resolved == null) {
+                    return null;
+                }
+                joined.append(joined.isEmpty() ? "" : separator).append(resolved);
+            }
+            return joined.toString();
+        }
+        return null;
+    }
+
+    private String queueUrl(String logicalId) {
+        JsonNode properties = this.resources.path(logicalId).path("Properties");
+        String name = properties.path("QueueName").asText(logicalId);
+        if (properties.path("FifoQueue").asBoolean(false) && !name.endsWith(".fifo")) {
+            name += ".fifo";
+        }
+        return QUEUE_URL_PREFIX + name;
+    }
+
+    private static String keyAttribute(JsonNode keySchema, String keyType) {
+        for (JsonNode key : keySchema) {
+            if (keyType.equals(key.path("KeyType").asText())) {
+                return key.path("AttributeName").asText();
+            }
+        }
+        return null;
+    }
+
+    // A mapping targets a function or one of its aliases.
+    private String functionLogicalId(JsonNode functionName) {
+        String logicalId = functionName.path("Ref").asText();
+        JsonNode resource = this.resources.path(logicalId);
+        if ("AWS::Lambda::Alias".equals(resource.path("Type").asText())) {
+            return resource.path("Properties").path("FunctionName").path("Ref").asText();
+        }
+        return logicalId;
+    }
+
+    private static boolean notifiesPuts(JsonNode events) {
+        for (JsonNode event : events) {
+            if ("s3:ObjectCreated:Put".equals(event.asText()) || "s3:ObjectCreated:*".equals(event.asText())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void notify(String bucket, InMemoryS3Client.StoredVersion version) {
+        for (Notification notification : this.notifications) {
+            if (notification.bucket().equals(bucket) && notification.queueUrl() != null
+                    && version.key().startsWith(notification.prefix()) && version.key().endsWith(notification.suffix())) {
+                this.sqs.sendMessage(SendMessageRequest.builder()
+                        .queueUrl(notification.queueUrl())
+                        .messageBody(s3Event(bucket, version))
+                        .build());
+            }
+        }
+    }
+
+    private String s3Event(String bucket, InMemoryS3Client.StoredVersion version) {
+        ObjectNode s3Event = this.mapper.createObjectNode();
+        ObjectNode record = s3Event.putArray("Records").addObject()
+                .put("eventVersion", "2.1")
+                .put("eventSource", "aws:s3")
+                .put("eventTime", version.lastModified().toString())
+                .put("eventName", "ObjectCreated:Put");
+        ObjectNode s3 = record.putObject("s3").put("s3SchemaVersion", "1.0");
+        s3.putObject("bucket").put("name", bucket).put("arn", "arn:aws:s3:::" + bucket);
+        s3.putObject("object")
+                .put("key", version.key())
+                .put("size", version.content().length)
+                .put("eTag", version.eTag().replace("\"", ""))
+                .put("versionId", version.versionId());
+        return s3Event.toString();
+    }
+}
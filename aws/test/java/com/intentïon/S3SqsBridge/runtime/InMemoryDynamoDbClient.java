@@ -0,0 +1,415 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.CancellationReason;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.GetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItem;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsRequest;
+import software.amazon.awssdk.services.dynamodb.model.TransactWriteItemsResponse;
+import software.amazon.awssdk.services.dynamodb.model.TransactionCanceledException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-memory stand-in for the DynamoDB operations used by the projection runtime. Tables are keyed on the "id" string
+ * attribute, and on a string sort key for tables given one with {@link #sortKey}, and counted per operation so tests
+ * can assert on the number of round trips. Condition and update expressions are evaluated by
+ * {@link InMemoryDynamoDbExpressions}. A Query of a table only supports the key condition "id = :id", and a Query of an
+ * index declared with {@link #globalSecondaryIndex} evaluates its key condition against every item that has the index
+ * keys, returning them in sort key order. A TransactWriteItems must write to a single table, and when a condition fails
+ * none of its items are written.
+ */
+public class InMemoryDynamoDbClient implements DynamoDbClient {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final Map<String, NavigableMap<String, Map<String, AttributeValue>>> tables = new ConcurrentHashMap<>();
+    private final Map<String, String> sortKeys = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> indexes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> operationCounts = new ConcurrentHashMap<>();
+    private volatile Predicate<WriteRequest> leaveUnprocessed = request -> false;
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        count("PutItem");
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        synchronized (table) {
+            String id = storageKey(request.tableName(), request.item());
+            checkCondition(request.conditionExpression(), request.expressionAttributeNames(), request.expressionAttributeValues(), table.get(id));
+            table.put(id, new HashMap<>(request.item()));
+        }
+        return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        count("UpdateItem");
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        synchronized (table) {
+            String id = storageKey(request.tableName(), request.key());
+            Map<String, AttributeValue> existing = table.get(id);
+            checkCondition(request.conditionExpression(), request.expressionAttributeNames(), request.expressionAttributeValues(), existing);
+            Map<String, AttributeValue> item = existing == null ? new HashMap<>(request.key()) : new HashMap<>(existing);
+            new InMemoryDynamoDbExpressions(request.expressionAttributeNames(), request.expressionAttributeValues())
+                    .update(request.updateExpression(), item);
+            table.put(id, item);
+            return UpdateItemResponse.builder().attributes(new HashMap<>(item)).build();
+        }
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        count("DeleteItem");
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        synchronized (table) {
+            String id = storageKey(request.tableName(), request.key());
+            checkCondition(request.conditionExpression(), request.expressionAttributeNames(), request.expressionAttributeValues(), table.get(id));
+            table.remove(id);
+        }
+        return DeleteItemResponse.builder().build();
+    }
+
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        count("BatchGetItem");
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        request.requestItems().forEach((tableName, keysAndAttributes) -> {
+            if (keysAndAttributes.keys().size() > 100) {
+                throw new IllegalArgumentException("Too many items requested for the BatchGetItem call");
+            }
+            NavigableMap<String, Map<String, AttributeValue>> table = table(tableName);
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            synchronized (table) {
+                for (Map<String, AttributeValue> key : keysAndAttributes.keys()) {
+                    Map<String, AttributeValue> item = table.get(storageKey(tableName, key));
+                    if (item != null) {
+                        items.add(project(item, keysAndAttributes.projectionExpression()));
+                    }
+                }
+            }
+            responses.put(tableName, items);
+        });
+        return BatchGetItemResponse.builder().responses(responses).unprocessedKeys(Map.of()).build();
+    }
+
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        count("TransactWriteItems");
+        List<String> tableNames = request.transactItems().stream().map(InMemoryDynamoDbClient::tableName).distinct().toList();
+        if (tableNames.size() != 1) {
+            throw new IllegalArgumentException("A transaction must write to a single table but wrote to " + tableNames);
+        }
+        String tableName = tableNames.get(0);
+        NavigableMap<String, Map<String, AttributeValue>> table = table(tableName);
+        synchronized (table) {
+            List<CancellationReason> reasons = new ArrayList<>();
+            boolean cancelled = false;
+            for (TransactWriteItem item : request.transactItems()) {
+                boolean matches;
+                if (item.put() != null) {
+                    matches = matches(item.put().conditionExpression(), item.put().expressionAttributeNames(), item.put().expressionAttributeValues(),
+                            table.get(storageKey(tableName, item.put().item())));
+                } else if (item.update() != null) {
+                    matches = matches(item.update().conditionExpression(), item.update().expressionAttributeNames(), item.update().expressionAttributeValues(),
+                            table.get(storageKey(tableName, item.update().key())));
+                } else {
+                    matches = matches(item.delete().conditionExpression(), item.delete().expressionAttributeNames(), item.delete().expressionAttributeValues(),
+                            table.get(storageKey(tableName, item.delete().key())));
+                }
+                reasons.add(CancellationReason.builder().code(matches ? "None" : "ConditionalCheckFailed").build());
+                cancelled |= !matches;
+            }
+            if (cancelled) {
+                throw TransactionCanceledException.builder()
+                        .message("Transaction cancelled, please refer cancellation reasons for specific reasons")
+                        .cancellationReasons(reasons)
+                        .build();
+            }
+            for (TransactWriteItem item : request.transactItems()) {
+                if (item.put() != null) {
+                    table.put(storageKey(tableName, item.put().item()), new HashMap<>(item.put().item()));
+                } else if (item.update() != null) {
+                    String id = storageKey(tableName, item.update().key());
+                    Map<String, AttributeValue> existing = table.get(id);
+                    Map<String, AttributeValue> updated = existing == null ? new HashMap<>(item.update().key()) : new HashMap<>(existing);
+                    new InMemoryDynamoDbExpressions(item.update().expressionAttributeNames(), item.update().expressionAttributeValues())
+                            .update(item.update().updateExpression(), updated);
+                    table.put(id, updated);
+                } else {
+                    table.remove(storageKey(tableName, item.delete().key()));
+                }
+            }
+        }
+        return TransactWriteItemsResponse.builder().build();
+    }
+
+    private static String tableName(TransactWriteItem item) {
+        if (item.put() != null) {
+            return item.put().tableName();
+        }
+        return item.update() != null ? item.update().tableName() : item.delete().tableName();
+    }
+
+    // Write requests matching leaveUnprocessed are returned as unprocessed items (as when throttled) instead of written.
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+        count("BatchWriteItem");
+        Map<String, List<WriteRequest>> unprocessedItems = new HashMap<>();
+        int requests = request.requestItems().values().stream().mapToInt(List::size).sum();
+        if (requests > 25) {
+            throw new IllegalArgumentException("Too many items requested for the BatchWriteItem call");
+        }
+        request.requestItems().forEach((tableName, writeRequests) -> {
+            NavigableMap<String, Map<String, AttributeValue>> table = table(tableName);
+            synchronized (table) {
+                for (WriteRequest writeRequest : writeRequests) {
+                    if (this.leaveUnprocessed.test(writeRequest)) {
+                        unprocessedItems.computeIfAbsent(tableName, t -> new ArrayList<>()).add(writeRequest);
+                    } else if (writeRequest.putRequest() != null) {
+                        Map<String, AttributeValue> item = writeRequest.putRequest().item();
+                        table.put(storageKey(tableName, item), new HashMap<>(item));
+                    } else {
+                        table.remove(storageKey(tableName, writeRequest.deleteRequest().key()));
+                    }
+                }
+            }
+        });
+        return BatchWriteItemResponse.builder().unprocessedItems(unprocessedItems).build();
+    }
+
+    public void leaveUnprocessed(Predicate<WriteRequest> leaveUnprocessed) {
+        this.leaveUnprocessed = leaveUnprocessed;
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        count("GetItem");
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        Map<String, AttributeValue> item;
+        synchronized (table) {
+            item = table.get(storageKey(request.tableName(), request.key()));
+        }
+        return item == null
+                ? GetItemResponse.builder().build()
+                : GetItemResponse.builder().item(new HashMap<>(item)).build();
+    }
+
+    @Override
+    public ScanResponse scan(ScanRequest request) {
+        count("Scan");
+        int limit = request.limit() == null ? 100 : request.limit();
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        String lastKey = null;
+        synchronized (table) {
+            NavigableMap<String, Map<String, AttributeValue>> remaining = request.hasExclusiveStartKey()
+                    ? table.tailMap(storageKey(request.tableName(), request.exclusiveStartKey()), false)
+                    : table;
+            for (Map.Entry<String, Map<String, AttributeValue>> entry : remaining.entrySet()) {
+                if (items.size() == limit) {
+                    break;
+                }
+                items.add(project(entry.getValue(), request.projectionExpression()));
+                lastKey = entry.getKey();
+            }
+            boolean more = lastKey != null && table.higherKey(lastKey) != null && items.size() == limit;
+            ScanResponse.Builder response = ScanResponse.builder().items(items).count(items.size());
+            if (more) {
+                response.lastEvaluatedKey(key(request.tableName(), table.get(lastKey)));
+            }
+            return response.build();
+        }
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        count("Query");
+        if (request.indexName() != null) {
+            return queryIndex(request);
+        }
+        if (!"id = :id".equals(request.keyConditionExpression())) {
+            throw new IllegalArgumentException("Unsupported key condition: " + request.keyConditionExpression());
+        }
+        int limit = request.limit() == null ? 100 : request.limit();
+        String id = request.expressionAttributeValues().get(":id").s();
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        String lastKey = null;
+        synchronized (table) {
+            NavigableMap<String, Map<String, AttributeValue>> partition = this.sortKeys.containsKey(request.tableName())
+                    ? table.subMap(id + SEPARATOR, true, id + SEPARATOR + Character.MAX_VALUE, true)
+                    : table.subMap(id, true, id, true);
+            NavigableMap<String, Map<String, AttributeValue>> remaining = request.hasExclusiveStartKey()
+                    ? partition.tailMap(storageKey(request.tableName(), request.exclusiveStartKey()), false)
+                    : partition;
+            for (Map.Entry<String, Map<String, AttributeValue>> entry : remaining.entrySet()) {
+                if (items.size() == limit) {
+                    break;
+                }
+                items.add(project(entry.getValue(), request.projectionExpression()));
+                lastKey = entry.getKey();
+            }
+            boolean more = lastKey != null && partition.higherKey(lastKey) != null && items.size() == limit;
+            QueryResponse.Builder response = QueryResponse.builder().items(items).count(items.size());
+            if (more) {
+                response.lastEvaluatedKey(key(request.tableName(), table.get(lastKey)));
+            }
+            return response.build();
+        }
+    }
+
+    private QueryResponse queryIndex(QueryRequest request) {
+        List<String> indexKeys = this.indexes.get(request.tableName() + "/" + request.indexName());
+        if (indexKeys == null) {
+            throw new IllegalArgumentException("The table " + request.tableName() + " has no index " + request.indexName());
+        }
+        String partitionKey = indexKeys.get(0);
+        String sortKey = indexKeys.get(1);
+        int limit = request.limit() == null ? 100 : request.limit();
+        InMemoryDynamoDbExpressions keyCondition = new InMemoryDynamoDbExpressions(request.expressionAttributeNames(), request.expressionAttributeValues());
+        NavigableMap<String, Map<String, AttributeValue>> table = table(request.tableName());
+        // Index entries sort by the index sort key, then by the table key.
+        NavigableMap<String, Map<String, AttributeValue>> index = new TreeMap<>();
+        synchronized (table) {
+            table.forEach((key, item) -> {
+                if (item.containsKey(partitionKey) && item.containsKey(sortKey) && keyCondition.matches(request.keyConditionExpression(), item)) {
+                    index.put(item.get(sortKey).s() + SEPARATOR + key, new HashMap<>(item));
+                }
+            });
+        }
+        NavigableMap<String, Map<String, AttributeValue>> remaining = request.hasExclusiveStartKey()
+                ? index.tailMap(request.exclusiveStartKey().get(sortKey).s() + SEPARATOR + storageKey(request.tableName(), request.exclusiveStartKey()), false)
+                : index;
+        List<Map<String, AttributeValue>> items = new ArrayList<>();
+        String lastKey = null;
+        for (Map.Entry<String, Map<String, AttributeValue>> entry : remaining.entrySet()) {
+            if (items.size() == limit) {
+                break;
+            }
+            items.add(project(entry.getValue(), request.projectionExpression()));
+            lastKey = entry.getKey();
+        }
+        QueryResponse.Builder response = QueryResponse.builder().items(items).count(items.size());
+        if (lastKey != null && index.higherKey(lastKey) != null && items.size() == limit) {
+            Map<String, AttributeValue> last = index.get(lastKey);
+            Map<String, AttributeValue> lastEvaluatedKey = new HashMap<>(key(request.tableName(), last));
+            lastEvaluatedKey.put(partitionKey, last.get(partitionKey));
+            lastEvaluatedKey.put(sortKey, last.get(sortKey));
+            response.lastEvaluatedKey(lastEvaluatedKey);
+        }
+        return response.build();
+    }
+
+    // Keys the table on "id" and the string sort key attribute, as a table created with a sort key.
+    public void sortKey(String tableName, String attribute) {
+        this.sortKeys.put(tableName, attribute);
+    }
+
+    // Declares a global secondary index of the table on the partition key attribute and the string sort key attribute.
+    public void globalSecondaryIndex(String tableName, String indexName, String partitionKey, String sortKey) {
+        this.indexes.put(tableName + "/" + indexName, List.of(partitionKey, sortKey));
+    }
+
+    public Map<String, AttributeValue> item(String tableName, String id) {
+        NavigableMap<String, Map<String, AttributeValue>> table = table(tableName);
+        synchronized (table) {
+            return table.get(id);
+        }
+    }
+
+    public Map<String, AttributeValue> item(String tableName, String id, String sortKey) {
+        NavigableMap<String, Map<String, AttributeValue>> table = table(tableName);
+        synchronized (table) {
+            return table.get(id + SEPARATOR + sortKey);
+        }
+    }
+
+    public int itemCount(String tableName) {
+        NavigableMap<String, Map<String, AttributeValue>> table = table(tableName);
+        synchronized (table) {
+            return table.size();
+        }
+    }
+
+    public long operationCount(String operation) {
+        return this.operationCounts.getOrDefault(operation, new AtomicLong()).get();
+    }
+
+    private static void checkCondition(String conditionExpression, Map<String, String> names, Map<String, AttributeValue> values, Map<String, AttributeValue> existing) {
+        if (!matches(conditionExpression, names, values, existing)) {
+            throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+        }
+    }
+
+    private static boolean matches(String conditionExpression, Map<String, String> names, Map<String, AttributeValue> values, Map<String, AttributeValue> existing) {
+        return new InMemoryDynamoDbExpressions(names, values).matches(conditionExpression, existing == null ? Map.of() : existing);
+    }
+
+    // Items sort by id then sort key, as within a DynamoDB partition.
+    private String storageKey(String tableName, Map<String, AttributeValue> key) {
+        String sortKey = this.sortKeys.get(tableName);
+        return sortKey == null ? key.get("id").s() : key.get("id").s() + SEPARATOR + key.get(sortKey).s();
+    }
+
+    private Map<String, AttributeValue> key(String tableName, Map<String, AttributeValue> item) {
+        String sortKey = this.sortKeys.get(tableName);
+        return sortKey == null ? Map.of("id", item.get("id")) : Map.of("id", item.get("id"), sortKey, item.get(sortKey));
+    }
+
+    private NavigableMap<String, Map<String, AttributeValue>> table(String tableName) {
+        return this.tables.computeIfAbsent(tableName, t -> new TreeMap<>());
+    }
+
+    private void count(String operation) {
+        this.operationCounts.computeIfAbsent(operation, o -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item, String projectionExpression) {
+        if (projectionExpression == null) {
+            return new HashMap<>(item);
+        }
+        Map<String, AttributeValue> projected = new HashMap<>();
+        for (String attribute : projectionExpression.split(",")) {
+            AttributeValue value = item.get(attribute.trim());
+            if (value != null) {
+                projected.put(attribute.trim(), value);
+            }
+        }
+        return projected;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,312 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+
+/**
+ * Evaluates the subset of DynamoDB condition and update expressions used by the projection runtime against an
+ * in-memory item: comparisons, AND/OR/NOT, attribute_exists, attribute_not_exists, contains and begins_with conditions,
+ * and SET (with + and - and if_not_exists), REMOVE, ADD and DELETE update actions on top level attributes.
+ */
+public class InMemoryDynamoDbExpressions {
+
+    private final Map<String, String> names;
+    private final Map<String, AttributeValue> values;
+    private List<String> tokens;
+    private int position;
+
+    public InMemoryDynamoDbExpressions(Map<String, String> names, Map<String, AttributeValue> values) {
+        this.names = names == null ? Map.of() : names;
+        this.values = values == null ? Map.of() : values;
+    }
+
+    public boolean matches(String conditionExpression, Map<String, AttributeValue> item) {
+        if (conditionExpression == null || conditionExpression.isBlank()) {
+            return true;
+        }
+        start(conditionExpression);
+        boolean result = or(item);
+        expectEnd();
+        return result;
+    }
+
+    public void update(String updateExpression, Map<String, AttributeValue> item) {
+        start(updateExpression);
+        String action = null;
+        while (this.position < this.tokens.size()) {
+            String token = this.tokens.get(this.position);
+            if (isAction(token)) {
+                action = token.toUpperCase();
+                this.position++;
+            } else if (",".equals(token)) {
+                this.position++;
+            } else if (action == null) {
+                throw new IllegalArgumentException("Expected an update action at " + token);
+            }
+            String attribute = name(next());
+            switch (action) {
+                case "SET" -> {
+                    expect("=");
+                    item.put(attribute, setValue(item));
+                }
+                case "REMOVE" -> item.remove(attribute);
+                case "ADD" -> add(item, attribute, operand(item));
+                case "DELETE" -> delete(item, attribute, operand(item));
+                default -> throw new IllegalArgumentException("Unsupported update action " + action);
+            }
+        }
+    }
+
+    private boolean or(Map<String, AttributeValue> item) {
+        boolean result = and(item);
+        while (acceptKeyword("OR")) {
+            result = and(item) | result;
+        }
+        return result;
+    }
+
+    private boolean and(Map<String, AttributeValue> item) {
+        boolean result = not(item);
+        while (acceptKeyword("AND")) {
+            result = not(item) & result;
+        }
+        return result;
+    }
+
+    private boolean not(Map<String, AttributeValue> item) {
+        if (acceptKeyword("NOT")) {
+            return !not(item);
+        }
+        return primary(item);
+    }
+
+    private boolean primary(Map<String, AttributeValue> item) {
+        if (accept("(")) {
+            boolean result = or(item);
+            expect(")");
+            return result;
+        }
+        String token = next();
+        switch (token.toLowerCase()) {
+            case "attribute_exists" -> {
+                expect("(");
+                String attribute = name(next());
+                expect(")");
+                return item.containsKey(attribute);
+            }
+            case "attribute_not_exists" -> {
+                expect("(");
+                String attribute = name(next());
+                expect(")");
+                return !item.containsKey(attribute);
+            }
+            case "contains" -> {
+                expect("(");
+                AttributeValue container = operand(item);
+                expect(",");
+                AttributeValue element = operand(item);
+                expect(")");
+                if (container == null || element == null) {
+                    return false;
+                }
+                return container.hasSs() ? container.ss().contains(element.s()) : container.s() != null && container.s().contains(element.s());
+            }
+            case "begins_with" -> {
+                expect("(");
+                AttributeValue value = operand(item);
+                expect(",");
+                AttributeValue prefix = operand(item);
+                expect(")");
+                return value != null && value.s() != null && prefix != null && value.s().startsWith(prefix.s());
+            }
+            default -> {
+                this.position--;
+                AttributeValue left = operand(item);
+                String comparator = next();
+                AttributeValue right = operand(item);
+                return compare(left, comparator, right);
+            }
+        }
+    }
+
+    private AttributeValue setValue(Map<String, AttributeValue> item) {
+        AttributeValue value = operand(item);
+        if (accept("+")) {
+            return arithmetic(value, operand(item), BigDecimal::add);
+        } else if (accept("-")) {
+            return arithmetic(value, operand(item), BigDecimal::subtract);
+        }
+        return value;
+    }
+
+    private AttributeValue operand(Map<String, AttributeValue> item) {
+        String token = next();
+        if (token.startsWith(":")) {
+            AttributeValue value = this.values.get(token);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing expression attribute value " + token);
+            }
+            return value;
+        }
+        if ("if_not_exists".equalsIgnoreCase(token)) {
+            expect("(");
+            AttributeValue existing = item.get(name(next()));
+            expect(",");
+            AttributeValue fallback = operand(item);
+            expect(")");
+            return existing != null ? existing : fallback;
+        }
+        return item.get(name(token));
+    }
+
+    private String name(String token) {
+        if (token.startsWith("#")) {
+            String name = this.names.get(token);
+            if (name == null) {
+                throw new IllegalArgumentException("Missing expression attribute name " + token);
+            }
+            return name;
+        }
+        return token;
+    }
+
+    private static boolean compare(AttributeValue left, String comparator, AttributeValue right) {
+        if (left == null || right == null) {
+            return "<>".equals(comparator) && left != right;
+        }
+        int comparison;
+        if (left.n() != null && right.n() != null) {
+            comparison = new BigDecimal(left.n()).compareTo(new BigDecimal(right.n()));
+        } else if (left.s() != null && right.s() != null) {
+            comparison = left.s().compareTo(right.s());
+        } else {
+            return "<>".equals(comparator) != left.equals(right);
+        }
+        return switch (comparator) {
+            case "=" -> comparison == 0;
+            case "<>" -> comparison != 0;
+            case "<" -> comparison < 0;
+            case "<=" -> comparison <= 0;
+            case ">" -> comparison > 0;
+            case ">=" -> comparison >= 0;
+            default -> throw new IllegalArgumentException("Unsupported comparator " + comparator);
+        };
+    }
+
+    private static AttributeValue arithmetic(AttributeValue left, AttributeValue right, BinaryOperator<BigDecimal> operator) {
+        if (left == null || right == null || left.n() == null || right.n() == null) {
+            throw new IllegalArgumentException("An operand in the update expression has an incorrect data type");
+        }
+        return AttributeValue.fromN(operator.apply(new BigDecimal(left.n()), new BigDecimal(right.n())).toPlainString());
+    }
+
+    private static void add(Map<String, AttributeValue> item, String attribute, AttributeValue value) {
+        AttributeValue existing = item.get(attribute);
+        if (value.n() != null) {
+            item.put(attribute, existing == null ? value : arithmetic(existing, value, BigDecimal::add));
+        } else if (value.hasSs()) {
+            Set<String> set = new LinkedHashSet<>(existing == null ? List.of() : existing.ss());
+            set.addAll(value.ss());
+            item.put(attribute, AttributeValue.fromSs(new ArrayList<>(set)));
+        } else {
+            throw new IllegalArgumentException("ADD only supports numbers and sets");
+        }
+    }
+
+    private static void delete(Map<String, AttributeValue> item, String attribute, AttributeValue value) {
+        AttributeValue existing = item.get(attribute);
+        if (existing == null) {
+            return;
+        }
+        Set<String> set = new LinkedHashSet<>(existing.ss());
+        set.removeAll(value.ss());
+        // DynamoDB does not store empty sets, the attribute is removed instead.
+        if (set.isEmpty()) {
+            item.remove(attribute);
+        } else {
+            item.put(attribute, AttributeValue.fromSs(new ArrayList<>(set)));
+        }
+    }
+
+    private static boolean isAction(String token) {
+        return switch (token.toUpperCase()) {
+            case "SET", "REMOVE", "ADD", "DELETE" -> true;
+            default -> false;
+        };
+    }
+
+    private void start(String expression) {
+        this.tokens = tokenize(expression);
+        this.position = 0;
+    }
+
+    private String next() {
+        if (this.position >= this.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected end of expression");
+        }
+        return this.tokens.get(this.position++);
+    }
+
+    private boolean accept(String token) {
+        if (this.position < this.tokens.size() && this.tokens.get(this.position).equals(token)) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (this.position < this.tokens.size() && this.tokens.get(this.position).equalsIgnoreCase(keyword)) {
+            this.position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw new IllegalArgumentException("Expected " + token + " at token " + this.position + " of " + this.tokens);
+        }
+    }
+
+    private void expectEnd() {
+        if (this.position != this.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected token " + this.tokens.get(this.position));
+        }
+    }
+
+    private static List<String> tokenize(String expression) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < expression.length()) {
+            char c = expression.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '<' || c == '>') {
+                boolean twoChars = i + 1 < expression.length() && (expression.charAt(i + 1) == '=' || (c == '<' && expression.charAt(i + 1) == '>'));
+                tokens.add(expression.substring(i, twoChars ? i + 2 : i + 1));
+                i += twoChars ? 2 : 1;
+            } else if ("(),=+-".indexOf(c) >= 0) {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else {
+                int start = i;
+                while (i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i)) || "_#:.".indexOf(expression.charAt(i)) >= 0)) {
+                    i++;
+                }
+                if (start == i) {
+                    throw new IllegalArgumentException("Unexpected character " + c + " in " + expression);
+                }
+                tokens.add(expression.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,221 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectVersion;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Versioned in-memory stand-in for the S3 operations used by the projection runtime. Each put creates a new version with
+ * a strictly increasing LastModified so that replay ordering is deterministic. Listeners registered with {@link #onPut}
+ * are called with each new version in version order, as an event notification would be sent.
+ */
+public class InMemoryS3Client implements S3Client {
+
+    public record StoredVersion(String key, String versionId, Instant lastModified, byte[] content) {
+        String eTag() {
+            return "\"" + Integer.toHexString(Arrays.hashCode(this.content)) + "\"";
+        }
+    }
+
+    // bucket -> key -> versions, newest first (the order ListObjectVersions returns them in)
+    private final Map<String, NavigableMap<String, List<StoredVersion>>> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong versionSequence = new AtomicLong();
+    private final AtomicLong getObjectCount = new AtomicLong();
+    private final AtomicLong headObjectCount = new AtomicLong();
+    private final List<BiConsumer<String, StoredVersion>> putListeners = new CopyOnWriteArrayList<>();
+    private Instant clock = Instant.parse("2025-01-01T00:00:00.000Z");
+
+    // The listener is called with the bucket and version of every put that follows.
+    public void onPut(BiConsumer<String, StoredVersion> listener) {
+        this.putListeners.add(listener);
+    }
+
+    public synchronized String putObject(String bucket, String key, String content) {
+        return putObject(PutObjectRequest.builder().bucket(bucket).key(key).build(), RequestBody.fromString(content)).versionId();
+    }
+
+    @Override
+    public synchronized PutObjectResponse putObject(PutObjectRequest putObjectRequest, RequestBody requestBody) {
+        byte[] content;
+        try (InputStream in = requestBody.contentStreamProvider().newStream()) {
+            content = in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.clock = this.clock.plusMillis(1);
+        String versionId = String.format("v%012d", this.versionSequence.incrementAndGet());
+        StoredVersion version = new StoredVersion(putObjectRequest.key(), versionId, this.clock, content);
+        this.buckets.computeIfAbsent(putObjectRequest.bucket(), b -> new TreeMap<>())
+                .computeIfAbsent(putObjectRequest.key(), k -> new ArrayList<>())
+                .add(0, version);
+        this.putListeners.forEach(listener -> listener.accept(putObjectRequest.bucket(), version));
+        return PutObjectResponse.builder()
+                .versionId(versionId)
+                .eTag(version.eTag())
+                .build();
+    }
+
+    @Override
+    public synchronized ListObjectVersionsResponse listObjectVersions(ListObjectVersionsRequest request) {
+        int maxKeys = request.maxKeys() == null ? 1000 : request.maxKeys();
+        String prefix = request.prefix() == null ? "" : request.prefix();
+        NavigableMap<String, List<StoredVersion>> keys = this.buckets.getOrDefault(request.bucket(), new TreeMap<>());
+        NavigableMap<String, List<StoredVersion>> remaining = request.keyMarker() == null
+                ? keys
+                : keys.tailMap(request.keyMarker(), true);
+
+        List<ObjectVersion> page = new ArrayList<>();
+        List<CommonPrefix> commonPrefixes = new ArrayList<>();
+        String nextKeyMarker = null;
+        String nextVersionIdMarker = null;
+        boolean truncated = false;
+        for (Map.Entry<String, List<StoredVersion>> entry : remaining.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+            // Keys below the delimiter roll up into one common prefix, which counts as one key towards maxKeys.
+            int delimiterAt = request.delimiter() == null ? -1 : entry.getKey().indexOf(request.delimiter(), prefix.length());
+            if (delimiterAt >= 0) {
+                String commonPrefix = entry.getKey().substring(0, delimiterAt + request.delimiter().length());
+                if (commonPrefix.equals(nextKeyMarker) || commonPrefix.equals(request.keyMarker())) {
+                    continue;
+                }
+                if (page.size() + commonPrefixes.size() == maxKeys) {
+                    truncated = true;
+                    break;
+                }
+                commonPrefixes.add(CommonPrefix.builder().prefix(commonPrefix).build());
+                nextKeyMarker = commonPrefix;
+                nextVersionIdMarker = null;
+                continue;
+            }
+            List<StoredVersion> versions = entry.getValue();
+            int start = 0;
+            if (entry.getKey().equals(request.keyMarker())) {
+                // Resume after the marker version, or skip the whole key when only a key marker was given.
+                start = versions.size();
+                for (int i = 0; i < versions.size() && request.versionIdMarker() != null; i++) {
+                    if (versions.get(i).versionId().equals(request.versionIdMarker())) {
+                        start = i + 1;
+                    }
+                }
+            }
+            for (int i = start; i < versions.size(); i++) {
+                if (page.size() + commonPrefixes.size() == maxKeys) {
+                    truncated = true;
+                    break;
+                }
+                StoredVersion version = versions.get(i);
+                page.add(ObjectVersion.builder()
+                        .key(version.key())
+                        .versionId(version.versionId())
+                        .lastModified(version.lastModified())
+                        .isLatest(i == 0)
+                        .eTag(version.eTag())
+                        .size((long) version.content().length)
+                        .build());
+                nextKeyMarker = version.key();
+                nextVersionIdMarker = version.versionId();
+            }
+            if (truncated) {
+                break;
+            }
+        }
+        ListObjectVersionsResponse.Builder response = ListObjectVersionsResponse.builder()
+                .name(request.bucket())
+                .prefix(prefix)
+                .versions(page)
+                .commonPrefixes(commonPrefixes)
+                .isTruncated(truncated);
+        if (truncated) {
+            response.nextKeyMarker(nextKeyMarker).nextVersionIdMarker(nextVersionIdMarker);
+        }
+        return response.build();
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(GetObjectRequest request, ResponseTransformer<GetObjectResponse, ReturnT> responseTransformer) {
+        this.getObjectCount.incrementAndGet();
+        StoredVersion version = findVersion(request.bucket(), request.key(), request.versionId());
+        GetObjectResponse response = GetObjectResponse.builder()
+                .versionId(version.versionId())
+                .lastModified(version.lastModified())
+                .eTag(version.eTag())
+                .contentLength((long) version.content().length)
+                .build();
+        try {
+            return responseTransformer.transform(response, AbortableInputStream.create(new ByteArrayInputStream(version.content())));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getObjectCount() {
+        return this.getObjectCount.get();
+    }
+
+    @Override
+    public HeadObjectResponse headObject(HeadObjectRequest request) {
+        this.headObjectCount.incrementAndGet();
+        StoredVersion version = findVersion(request.bucket(), request.key(), request.versionId());
+        return HeadObjectResponse.builder()
+                .versionId(version.versionId())
+                .lastModified(version.lastModified())
+                .eTag(version.eTag())
+                .contentLength((long) version.content().length)
+                .build();
+    }
+
+    public long headObjectCount() {
+        return this.headObjectCount.get();
+    }
+
+    public synchronized StoredVersion findVersion(String bucket, String key, String versionId) {
+        List<StoredVersion> versions = this.buckets.getOrDefault(bucket, new TreeMap<>()).get(key);
+        if (versions != null) {
+            for (StoredVersion version : versions) {
+                if (versionId == null || version.versionId().equals(versionId)) {
+                    return version;
+                }
+            }
+        }
+        throw NoSuchKeyException.builder().message("No such key " + key + " version " + versionId).build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
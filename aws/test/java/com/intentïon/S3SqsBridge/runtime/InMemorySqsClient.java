@@ -0,0 +1,374 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * In-memory stand-in for the SQS operations used by the projection runtime, one FIFO deque per queue URL.
+ * <p>
+ * Queue URLs ending in .fifo behave like FIFO queues: sends with a deduplication id already seen are dropped, and
+ * {@link #receiveAsSqsEvent} does not return messages from a message group while an earlier receive of the group is in
+ * flight, until {@link #complete} deletes or returns its messages.
+ * <p>
+ * {@link #receiveMessage} keeps the received messages in flight under their receipt handles until
+ * {@link #deleteMessageBatch} deletes them or {@link #expireInFlight} returns them as their visibility timeout would.
+ * A queue given a visibility timeout with {@link #configureQueue} also returns them once the timeout has passed on the
+ * client's clock, and a queue given a dead-letter queue moves a message there instead once it has been received
+ * maxReceiveCount times, as an SQS redrive policy does.
+ */
+public class InMemorySqsClient implements SqsClient {
+
+    private record StoredMessage(Message message, String messageGroupId, int receiveCount, long visibleAtMillis) {
+        StoredMessage(Message message, String messageGroupId) {
+            this(message, messageGroupId, 0, Long.MAX_VALUE);
+        }
+    }
+
+    private record QueueSettings(long visibilityTimeoutMillis, String deadLetterQueueUrl, int maxReceiveCount) {
+    }
+
+    private final Map<String, Deque<StoredMessage>> queues = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> deduplicationIds = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> inFlightGroups = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, StoredMessage>> inFlightMessages = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> operationCounts = new ConcurrentHashMap<>();
+    private final Map<String, QueueSettings> settings = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private volatile Predicate<SendMessageBatchRequestEntry> failEntry = entry -> false;
+
+    public InMemorySqsClient() {
+        this(System::currentTimeMillis);
+    }
+
+    public InMemorySqsClient(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    // A visibilityTimeoutMillis of 0 leaves received messages in flight until expireInFlight, a null deadLetterQueueUrl
+    // keeps returning them to the queue however often they are received.
+    public void configureQueue(String queueUrl, long visibilityTimeoutMillis, String deadLetterQueueUrl, int maxReceiveCount) {
+        if (visibilityTimeoutMillis < 0 || (deadLetterQueueUrl != null && maxReceiveCount < 1)) {
+            throw new IllegalArgumentException("Invalid settings for queue " + queueUrl + ": visibility timeout "
+                    + visibilityTimeoutMillis + " ms, maxReceiveCount " + maxReceiveCount);
+        }
+        this.settings.put(queueUrl, new QueueSettings(visibilityTimeoutMillis, deadLetterQueueUrl, maxReceiveCount));
+    }
+
+    @Override
+    public SendMessageResponse sendMessage(SendMessageRequest request) {
+        count("SendMessage");
+        String messageId = enqueue(request.queueUrl(), request.messageBody(), request.messageAttributes(), request.messageGroupId(), request.messageDeduplicationId());
+        return SendMessageResponse.builder().messageId(messageId).build();
+    }
+
+    // Entries matching failEntry are reported as failed (a retryable server fault) instead of being enqueued.
+    @Override
+    public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest request) {
+        count("SendMessageBatch");
+        if (request.entries().size() > 10) {
+            throw new IllegalArgumentException("Too many entries in batch: " + request.entries().size());
+        }
+        List<SendMessageBatchResultEntry> successful = new ArrayList<>();
+        List<BatchResultErrorEntry> failed = new ArrayList<>();
+        for (SendMessageBatchRequestEntry entry : request.entries()) {
+            if (this.failEntry.test(entry)) {
+                failed.add(BatchResultErrorEntry.builder()
+                        .id(entry.id())
+                        .code("InternalError")
+                        .message("Injected failure")
+                        .senderFault(false)
+                        .build());
+            } else {
+                String messageId = enqueue(request.queueUrl(), entry.messageBody(), entry.messageAttributes(), entry.messageGroupId(), entry.messageDeduplicationId());
+                successful.add(SendMessageBatchResultEntry.builder().id(entry.id()).messageId(messageId).build());
+            }
+        }
+        return SendMessageBatchResponse.builder().successful(successful).failed(failed).build();
+    }
+
+    public void failEntries(Predicate<SendMessageBatchRequestEntry> failEntry) {
+        this.failEntry = failEntry;
+    }
+
+    public long operationCount(String operation) {
+        return this.operationCounts.getOrDefault(operation, new AtomicLong()).get();
+    }
+
+    private void count(String operation) {
+        this.operationCounts.computeIfAbsent(operation, o -> new AtomicLong()).incrementAndGet();
+    }
+
+    private String enqueue(String queueUrl, String body, Map<String, MessageAttributeValue> messageAttributes,
+                           String messageGroupId, String messageDeduplicationId) {
+        String messageId = UUID.randomUUID().toString();
+        Message message = Message.builder()
+                .messageId(messageId)
+                .receiptHandle(messageId)
+                .body(body)
+                .messageAttributes(messageAttributes)
+                .build();
+        boolean fifo = MessageGroups.isFifoQueue(queueUrl);
+        if (fifo && (messageGroupId == null || messageDeduplicationId == null)) {
+            throw new IllegalArgumentException("FIFO queue " + queueUrl + " requires a message group id and deduplication id");
+        }
+        Deque<StoredMessage> queue = queue(queueUrl);
+        synchronized (queue) {
+            if (fifo && !this.deduplicationIds.computeIfAbsent(queueUrl, q -> new HashSet<>()).add(messageDeduplicationId)) {
+                return messageId;
+            }
+            queue.addLast(new StoredMessage(message, fifo ? messageGroupId : null));
+        }
+        return messageId;
+    }
+
+    private Deque<StoredMessage> queue(String queueUrl) {
+        return this.queues.computeIfAbsent(queueUrl, q -> new ArrayDeque<>());
+    }
+
+    public List<Message> messages(String queueUrl) {
+        Deque<StoredMessage> queue = queue(queueUrl);
+        synchronized (queue) {
+            return queue.stream().map(StoredMessage::message).toList();
+        }
+    }
+
+    // Removes up to maxMessages from the head of the queue and wraps them as the SQS event a Lambda mapping would deliver.
+    public SQSEvent drainAsSqsEvent(String queueUrl, int maxMessages) {
+        Deque<StoredMessage> queue = queue(queueUrl);
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        synchronized (queue) {
+            while (!queue.isEmpty() && records.size() < maxMessages) {
+                records.add(toRecord(queue.pollFirst()));
+            }
+        }
+        return toSqsEvent(records);
+    }
+
+    // Receives up to maxMessages in queue order, skipping message groups that are in flight from an earlier receive. The
+    // returned groups stay in flight until the event is passed to complete().
+    public SQSEvent receiveAsSqsEvent(String queueUrl, int maxMessages) {
+        Deque<StoredMessage> queue = queue(queueUrl);
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        synchronized (queue) {
+            Set<String> inFlight = this.inFlightGroups.computeIfAbsent(queueUrl, q -> new HashSet<>());
+            Set<String> received = new HashSet<>();
+            Iterator<StoredMessage> messages = queue.iterator();
+            while (messages.hasNext() && records.size() < maxMessages) {
+                StoredMessage message = messages.next();
+                String group = message.messageGroupId();
+                if (group != null && inFlight.contains(group) && !received.contains(group)) {
+                    continue;
+                }
+                messages.remove();
+                if (group != null) {
+                    inFlight.add(group);
+                    received.add(group);
+                }
+                records.add(toRecord(message));
+            }
+        }
+        return toSqsEvent(records);
+    }
+
+    // Receives up to maxNumberOfMessages in queue order like receiveAsSqsEvent, each under a new receipt handle.
+    @Override
+    public ReceiveMessageResponse receiveMessage(ReceiveMessageRequest request) {
+        count("ReceiveMessage");
+        int maxMessages = request.maxNumberOfMessages() == null ? 1 : request.maxNumberOfMessages();
+        Deque<StoredMessage> queue = queue(request.queueUrl());
+        QueueSettings settings = this.settings.get(request.queueUrl());
+        long now = this.clock.getAsLong();
+        List<Message> messages = new ArrayList<>();
+        synchronized (queue) {
+            returnInFlight(request.queueUrl(), message -> message.visibleAtMillis() <= now);
+            Set<String> inFlight = this.inFlightGroups.computeIfAbsent(request.queueUrl(), q -> new HashSet<>());
+            Map<String, StoredMessage> inFlightMessages = this.inFlightMessages.computeIfAbsent(request.queueUrl(), q -> new LinkedHashMap<>());
+            Set<String> received = new HashSet<>();
+            Iterator<StoredMessage> storedMessages = queue.iterator();
+            while (storedMessages.hasNext() && messages.size() < maxMessages) {
+                StoredMessage storedMessage = storedMessages.next();
+                String group = storedMessage.messageGroupId();
+                if (group != null && inFlight.contains(group) && !received.contains(group)) {
+                    continue;
+                }
+                storedMessages.remove();
+                if (group != null) {
+                    inFlight.add(group);
+                    received.add(group);
+                }
+                String receiptHandle = UUID.randomUUID().toString();
+                int receiveCount = storedMessage.receiveCount() + 1;
+                long visibleAtMillis = settings == null || settings.visibilityTimeoutMillis() == 0
+                        ? Long.MAX_VALUE
+                        : now + settings.visibilityTimeoutMillis();
+                inFlightMessages.put(receiptHandle, new StoredMessage(storedMessage.message(), group, receiveCount, visibleAtMillis));
+                Map<String, String> attributes = new HashMap<>();
+                if (group != null) {
+                    attributes.put("MessageGroupId", group);
+                }
+                attributes.put("ApproximateReceiveCount", Integer.toString(receiveCount));
+                messages.add(storedMessage.message().toBuilder()
+                        .receiptHandle(receiptHandle)
+                        .attributesWithStrings(attributes)
+                        .build());
+            }
+        }
+        return ReceiveMessageResponse.builder().messages(messages).build();
+    }
+
+    @Override
+    public DeleteMessageBatchResponse deleteMessageBatch(DeleteMessageBatchRequest request) {
+        count("DeleteMessageBatch");
+        Deque<StoredMessage> queue = queue(request.queueUrl());
+        List<DeleteMessageBatchResultEntry> successful = new ArrayList<>();
+        synchronized (queue) {
+            Map<String, StoredMessage> inFlightMessages = this.inFlightMessages.computeIfAbsent(request.queueUrl(), q -> new LinkedHashMap<>());
+            for (DeleteMessageBatchRequestEntry entry : request.entries()) {
+                inFlightMessages.remove(entry.receiptHandle());
+                successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+            }
+            releaseGroups(request.queueUrl(), inFlightMessages);
+        }
+        return DeleteMessageBatchResponse.builder().successful(successful).failed(List.of()).build();
+    }
+
+    // Returns the messages received and not deleted to the head of the queue in their original order, as if their
+    // visibility timeout had expired.
+    public void expireInFlight(String queueUrl) {
+        Deque<StoredMessage> queue = queue(queueUrl);
+        synchronized (queue) {
+            returnInFlight(queueUrl, message -> true);
+        }
+    }
+
+    // Returns the expired in-flight messages to the head of the queue in their original order, or moves those received
+    // maxReceiveCount times to the dead-letter queue. Called holding the queue's lock.
+    private void returnInFlight(String queueUrl, Predicate<StoredMessage> expired) {
+        Map<String, StoredMessage> inFlightMessages = this.inFlightMessages.computeIfAbsent(queueUrl, q -> new LinkedHashMap<>());
+        QueueSettings settings = this.settings.get(queueUrl);
+        List<StoredMessage> returned = new ArrayList<>();
+        for (Iterator<StoredMessage> messages = inFlightMessages.values().iterator(); messages.hasNext(); ) {
+            StoredMessage message = messages.next();
+            if (expired.test(message)) {
+                messages.remove();
+                returned.add(message);
+            }
+        }
+        if (returned.isEmpty()) {
+            return;
+        }
+        Deque<StoredMessage> queue = queue(queueUrl);
+        for (int i = returned.size() - 1; i >= 0; i--) {
+            StoredMessage message = returned.get(i);
+            if (settings != null && settings.deadLetterQueueUrl() != null && message.receiveCount() >= settings.maxReceiveCount()) {
+                deadLetter(settings.deadLetterQueueUrl(), message);
+            } else {
+                queue.addFirst(new StoredMessage(message.message(), message.messageGroupId(), message.receiveCount(), Long.MAX_VALUE));
+            }
+        }
+        releaseGroups(queueUrl, inFlightMessages);
+    }
+
+    // Appends the message to the dead-letter queue with its receive count reset, keeping its message group on a FIFO queue.
+    private void deadLetter(String deadLetterQueueUrl, StoredMessage message) {
+        count("DeadLetter");
+        Deque<StoredMessage> deadLetterQueue = queue(deadLetterQueueUrl);
+        synchronized (deadLetterQueue) {
+            deadLetterQueue.addLast(new StoredMessage(message.message(),
+                    MessageGroups.isFifoQueue(deadLetterQueueUrl) ? message.messageGroupId() : null));
+        }
+    }
+
+    // A message group stays in flight while any of its received messages is.
+    private void releaseGroups(String queueUrl, Map<String, StoredMessage> inFlightMessages) {
+        Set<String> stillInFlight = new HashSet<>();
+        inFlightMessages.values().forEach(message -> stillInFlight.add(message.messageGroupId()));
+        this.inFlightGroups.computeIfAbsent(queueUrl, q -> new HashSet<>()).retainAll(stillInFlight);
+    }
+
+    // Deletes the received messages that succeeded and returns the batch item failures to the head of the queue in their
+    // original order, as if their visibility timeout had expired, then releases the event's message groups.
+    public void complete(String queueUrl, SQSEvent sqsEvent, SQSBatchResponse response) {
+        Set<String> failedMessageIds = new HashSet<>();
+        if (response != null && response.getBatchItemFailures() != null) {
+            response.getBatchItemFailures().forEach(failure -> failedMessageIds.add(failure.getItemIdentifier()));
+        }
+        Deque<StoredMessage> queue = queue(queueUrl);
+        synchronized (queue) {
+            List<SQSEvent.SQSMessage> records = sqsEvent.getRecords();
+            for (int i = records.size() - 1; i >= 0; i--) {
+                SQSEvent.SQSMessage record = records.get(i);
+                if (failedMessageIds.contains(record.getMessageId())) {
+                    queue.addFirst(new StoredMessage(Message.builder()
+                            .messageId(record.getMessageId())
+                            .receiptHandle(record.getReceiptHandle())
+                            .body(record.getBody())
+                            .build(), record.getAttributes().get("MessageGroupId")));
+                }
+            }
+            Set<String> inFlight = this.inFlightGroups.computeIfAbsent(queueUrl, q -> new HashSet<>());
+            records.forEach(record -> inFlight.remove(record.getAttributes().get("MessageGroupId")));
+        }
+    }
+
+    private static SQSEvent.SQSMessage toRecord(StoredMessage storedMessage) {
+        Message message = storedMessage.message();
+        SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+        record.setMessageId(message.messageId());
+        record.setReceiptHandle(message.receiptHandle());
+        record.setBody(message.body());
+        Map<String, String> attributes = new HashMap<>();
+        if (storedMessage.messageGroupId() != null) {
+            attributes.put("MessageGroupId", storedMessage.messageGroupId());
+        }
+        record.setAttributes(attributes);
+        return record;
+    }
+
+    private static SQSEvent toSqsEvent(List<SQSEvent.SQSMessage> records) {
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(records);
+        return sqsEvent;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,46 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageGroupsTest {
+
+    @Test
+    public void testGroupIdsFollowTheConfiguredGranularity() {
+        MessageGroups perKey = new MessageGroups(0, 0);
+        assertEquals("events/a.json", perKey.groupId("events/a.json"));
+        // Keys that are not valid group ids (spaces, non-ASCII or too long) are hashed.
+        assertEquals(64, perKey.groupId("events/with space.json").length());
+        assertEquals(64, perKey.groupId("events/" + "x".repeat(200)).length());
+        assertNotEquals(perKey.groupId("events/a b.json"), perKey.groupId("events/a c.json"));
+
+        MessageGroups perPrefix = new MessageGroups(2, 0);
+        assertEquals("events/tenant-1/", perPrefix.groupId("events/tenant-1/a.json"));
+        assertEquals(perPrefix.groupId("events/tenant-1/a.json"), perPrefix.groupId("events/tenant-1/b.json"));
+        assertEquals("events/a.json", perPrefix.groupId("events/a.json"));
+
+        MessageGroups hashed = new MessageGroups(0, 4);
+        Set<String> groups = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            groups.add(hashed.groupId("events/" + i + ".json"));
+        }
+        assertEquals(Set.of("g0", "g1", "g2", "g3"), groups);
+        assertEquals(hashed.groupId("events/1.json"), hashed.groupId("events/1.json"));
+    }
+
+    @Test
+    public void testDeduplicationIdsIdentifyAVersion() {
+        MessageGroups messageGroups = new MessageGroups(0, 0);
+        assertEquals(messageGroups.deduplicationId("events/a.json", "v1"), messageGroups.deduplicationId("events/a.json", "v1"));
+        assertNotEquals(messageGroups.deduplicationId("events/a.json", "v1"), messageGroups.deduplicationId("events/a.json", "v2"));
+        assertTrue(MessageGroups.isFifoQueue("https://sqs.eu-west-2.amazonaws.com/000000000000/replay.fifo"));
+        assertFalse(MessageGroups.isFifoQueue("https://sqs.eu-west-2.amazonaws.com/000000000000/replay"));
+    }
+}
@@ -0,0 +1,151 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffsetTrackerTest {
+
+    private static final String TABLE = ProjectionBridgeTest.CONFIG.offsetsTableName();
+    private static final String SHARDED_TABLE = TABLE + "-sharded";
+    private static final String ID = "bucket";
+
+    private InMemoryDynamoDbClient dynamodb;
+
+    @BeforeEach
+    public void setUp() {
+        this.dynamodb = new InMemoryDynamoDbClient();
+        this.dynamodb.putItem(PutItemRequest.builder()
+                .tableName(TABLE)
+                .item(Map.of("id", AttributeValue.fromS(ID)))
+                .build());
+    }
+
+    @Test
+    public void testAdvanceOnlyReadsWhenTheConditionFails() {
+        OffsetTracker tracker = new OffsetTracker(this.dynamodb, TABLE);
+        assertTrue(tracker.advance(ID, "2025-01-01T00:00:00.002Z b v2"));
+        assertTrue(tracker.advance(ID, "2025-01-01T00:00:00.003Z c v3"));
+        assertFalse(tracker.advance(ID, "2025-01-01T00:00:00.001Z a v1"));
+        assertEquals(2, this.dynamodb.operationCount("GetItem"));
+        assertEquals("2025-01-01T00:00:00.003Z c v3", tracker.read(ID).lastOffsetProcessed());
+        assertEquals(2, this.dynamodb.operationCount("GetItem"));
+
+        assertThrows(IllegalStateException.class, () -> tracker.advance("missing", "2025-01-01T00:00:00.001Z a v1"));
+        assertNull(tracker.find("missing"));
+    }
+
+    @Test
+    public void testResetIsDetectedByContainersHoldingTheOldOffset() {
+        OffsetTracker source = new OffsetTracker(this.dynamodb, TABLE);
+        OffsetTracker replay = new OffsetTracker(this.dynamodb, TABLE);
+        assertTrue(source.advance(ID, "2025-01-01T00:00:00.005Z e v5"));
+        long generation = source.read(ID).replayGeneration();
+
+        replay.reset(ID, null);
+        assertTrue(replay.advance(ID, "2025-01-01T00:00:00.001Z a v1"));
+
+        // The source container's write is refused even though its offset is ahead, and it re-reads the reset row.
+        assertFalse(source.advance(ID, "2025-01-01T00:00:00.006Z f v6"));
+        assertEquals(generation + 1, source.read(ID).replayGeneration());
+        assertEquals("2025-01-01T00:00:00.001Z a v1", source.read(ID).lastOffsetProcessed());
+        assertTrue(source.advance(ID, "2025-01-01T00:00:00.006Z f v6"));
+    }
+
+    @Test
+    public void testConcurrentAdvancesNeverMoveTheOffsetBackwards() throws Exception {
+        int writers = 8;
+        int offsetsPerWriter = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int writer = 0; writer < writers; writer++) {
+            int first = writer;
+            // Each writer is a separate container with its own cache.
+            OffsetTracker tracker = new OffsetTracker(this.dynamodb, TABLE);
+            futures.add(executor.submit(() -> {
+                for (int i = first; i < writers * offsetsPerWriter; i += writers) {
+                    tracker.advance(ID, String.format("2025-01-01T00:00:%02d.%03dZ key v", i / 1000, i % 1000));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        int last = writers * offsetsPerWriter - 1;
+        assertEquals(String.format("2025-01-01T00:00:%02d.%03dZ key v", last / 1000, last % 1000),
+                new OffsetTracker(this.dynamodb, TABLE).read(ID).lastOffsetProcessed());
+    }
+
+    @Test
+    public void testShardAdvancesAreAggregatedIntoWatermarks() {
+        OffsetTracker tracker = shardedTracker();
+        OffsetShards shards = tracker.shards();
+        assertEquals("hash-" + Math.floorMod("a".hashCode(), 4), shards.shardOf("", "a"));
+        assertEquals(OffsetShards.HEAD, OffsetShards.none().shardOf("", "a"));
+        assertEquals("prefix-2025/", new OffsetShards(4, OffsetShards.BY_PREFIX).shardOf("events/", "events/2025/a.json"));
+        assertEquals("hash-" + Math.floorMod("events/a.json".hashCode(), 4), new OffsetShards(4, OffsetShards.BY_PREFIX).shardOf("events/", "events/a.json"));
+        assertThrows(IllegalArgumentException.class, () -> new OffsetShards(-1, OffsetShards.BY_HASH));
+
+        assertEquals(new OffsetTracker.Watermark(null, null, 0, 0), tracker.watermark(ID));
+        assertTrue(tracker.advance(ID, "hash-0", "2025-01-01T00:00:00.002Z b v2"));
+        assertTrue(tracker.advance(ID, "hash-1", "2025-01-01T00:00:00.005Z e v5"));
+        assertFalse(tracker.advance(ID, "hash-0", "2025-01-01T00:00:00.001Z a v1"));
+        // A shard no longer written has expired but not yet been deleted.
+        this.dynamodb.putItem(PutItemRequest.builder()
+                .tableName(SHARDED_TABLE)
+                .item(Map.of("id", AttributeValue.fromS(ID), OffsetShards.SORT_KEY, AttributeValue.fromS("hash-2"),
+                        "lastOffsetProcessed", AttributeValue.fromS("2024-01-01T00:00:00.000Z z v0"),
+                        "replayGeneration", AttributeValue.fromN("0"),
+                        OffsetTracker.EXPIRES_AT, AttributeValue.fromN("1")))
+                .build());
+
+        long queries = this.dynamodb.operationCount("Query");
+        assertEquals(new OffsetTracker.Watermark("2025-01-01T00:00:00.002Z b v2", "2025-01-01T00:00:00.005Z e v5", 0, 2), tracker.watermark(ID));
+        assertEquals(queries + 1, this.dynamodb.operationCount("Query"));
+        long expiresAt = Long.parseLong(this.dynamodb.item(SHARDED_TABLE, ID, "hash-0").get(OffsetTracker.EXPIRES_AT).n());
+        assertTrue(expiresAt > System.currentTimeMillis() / 1000 + 3000);
+    }
+
+    @Test
+    public void testResetMovesShardRowsIntoTheNewGeneration() {
+        OffsetTracker source = shardedTracker();
+        OffsetTracker replay = shardedTracker();
+        assertTrue(source.advance(ID, "hash-0", "2025-01-01T00:00:00.005Z e v5"));
+
+        replay.reset(ID, null);
+        assertEquals(new OffsetTracker.Watermark(null, null, 1, 0), replay.watermark(ID));
+        assertTrue(replay.advance(ID, OffsetShards.HEAD, "2025-01-01T00:00:00.001Z a v1"));
+
+        // The source container's write is refused even though its offset is ahead, and it re-reads the reset row.
+        assertFalse(source.advance(ID, "hash-0", "2025-01-01T00:00:00.006Z f v6"));
+        assertEquals(1, source.read(ID).replayGeneration());
+        assertTrue(source.advance(ID, "hash-0", "2025-01-01T00:00:00.006Z f v6"));
+        assertEquals(new OffsetTracker.Watermark("2025-01-01T00:00:00.006Z f v6", "2025-01-01T00:00:00.006Z f v6", 1, 1), replay.watermark(ID));
+    }
+
+    private OffsetTracker shardedTracker() {
+        this.dynamodb.sortKey(SHARDED_TABLE, OffsetShards.SORT_KEY);
+        if (this.dynamodb.item(SHARDED_TABLE, ID, OffsetShards.HEAD) == null) {
+            this.dynamodb.putItem(PutItemRequest.builder()
+                    .tableName(SHARDED_TABLE)
+                    .item(Map.of("id", AttributeValue.fromS(ID), OffsetShards.SORT_KEY, AttributeValue.fromS(OffsetShards.HEAD)))
+                    .build());
+        }
+        return new OffsetTracker(this.dynamodb, SHARDED_TABLE, new OffsetShards(4, OffsetShards.BY_HASH), 3600);
+    }
+}
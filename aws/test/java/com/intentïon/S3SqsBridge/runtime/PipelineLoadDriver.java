@@ -0,0 +1,323 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Drives a load through the pipeline of a synthesised stack in an {@link InMemoryAwsEnvironment}: objects are put at a
+ * steady rate, each bucket notification is delivered to the source queue, and every event source mapping is polled by
+ * its function's Java handler, as Lambda would, until the digest queue has announced every object.
+ * <p>
+ * The report gives the sustained throughput (objects announced per second from the first put to the last announcement),
+ * the percentiles of the lag from an object's put to its announcement in a digest delta or snapshot, the messages in
+ * each dead-letter queue and the calls made to each service. Run it against a cdk.out template with
+ * <pre>
+ * java ... PipelineLoadDriver --template cdk.out/S3SqsBridgeStack.template.json --objects-per-second 200 --duration-seconds 10 --min-throughput 150
+ * </pre>
+ * which exits with status 1 when the throughput is below the minimum.
+ */
+public class PipelineLoadDriver {
+
+    // Visibility timeouts are scaled down so that a batch that failed is redelivered within the run.
+    public static final double DEFAULT_VISIBILITY_TIMEOUT_SCALE = 0.01;
+    private static final long IDLE_POLL_MILLIS = 5;
+
+    public record Options(int objectsPerSecond, long durationMillis, int pollers, long drainTimeoutMillis) {
+        public Options {
+            if (objectsPerSecond < 1 || durationMillis < 1 || pollers < 1 || drainTimeoutMillis < 0) {
+                throw new IllegalArgumentException("Invalid load options: " + objectsPerSecond + " objects/s for "
+                        + durationMillis + " ms with " + pollers + " pollers, draining for " + drainTimeoutMillis + " ms");
+            }
+        }
+
+        public long objects() {
+            return Math.max(1, this.objectsPerSecond * this.durationMillis / 1000);
+        }
+    }
+
+    public record Report(long objects, long announced, double throughputPerSecond, long lagP50Millis, long lagP90Millis,
+                         long lagP99Millis, long lagMaxMillis, Map<String, Integer> deadLetters, Map<String, Long> operations) {
+
+        public String summary() {
+            return String.format("%d/%d objects announced, %.1f objects/s, lag p50 %d ms p90 %d ms p99 %d ms max %d ms, dead letters %s, operations %s",
+                    this.announced, this.objects, this.throughputPerSecond, this.lagP50Millis, this.lagP90Millis,
+                    this.lagP99Millis, this.lagMaxMillis, this.deadLetters, this.operations);
+        }
+    }
+
+    private final InMemoryAwsEnvironment environment;
+    private final Options options;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Long> putNanos = new ConcurrentHashMap<>();
+    private final Map<String, Long> lagNanos = new ConcurrentHashMap<>();
+    private final AtomicLong lastAnnouncedNanos = new AtomicLong();
+    private volatile boolean stopped;
+
+    public PipelineLoadDriver(InMemoryAwsEnvironment environment, Options options) {
+        this.environment = environment;
+        this.options = options;
+    }
+
+    public Report run() throws InterruptedException {
+        List<InMemoryAwsEnvironment.EventSourceMapping> mappings = this.environment.eventSourceMappings();
+        if (mappings.isEmpty()) {
+            throw new IllegalArgumentException("The template has no event source mappings to drive");
+        }
+        // The source function's configuration, the one that sends the digest.
+        BridgeConfig config = mappings.stream()
+                .map(mapping -> BridgeConfig.fromEnvironment(function(mapping).environment()))
+                .filter(mappingConfig -> mappingConfig.bucketName() != null && mappingConfig.digestQueueUrl() != null)
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("No function has a bucket and digest queue, was the digest queue created by the stack?"));
+        // The deployment's replay of the (empty) bucket sets the offsets the source handler waits for.
+        new ProjectionBridge(config, this.environment.clients()).replay();
+
+        List<Thread> threads = new ArrayList<>();
+        for (InMemoryAwsEnvironment.EventSourceMapping mapping : mappings) {
+            int pollers = mapping.maximumConcurrency() > 0 ? Math.min(mapping.maximumConcurrency(), this.options.pollers()) : this.options.pollers();
+            for (int i = 0; i < pollers; i++) {
+                RequestHandler<SQSEvent, SQSBatchResponse> handler = handler(mapping);
+                threads.add(Thread.ofPlatform().name("poller-" + mapping.functionLogicalId() + "-" + i).start(() -> poll(mapping, handler)));
+            }
+        }
+        threads.add(Thread.ofPlatform().name("digest-consumer").start(() -> consumeDigests(config.digestQueueUrl())));
+
+        long objects = this.options.objects();
+        long startNanos = System.nanoTime();
+        try {
+            for (long i = 0; i < objects; i++) {
+                long dueNanos = startNanos + i * TimeUnit.SECONDS.toNanos(1) / this.options.objectsPerSecond();
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                String key = config.objectPrefix() + "load/" + String.format("%08d", i) + ".json";
+                this.putNanos.put(key, System.nanoTime());
+                this.environment.s3().putObject(config.bucketName(), key, "{\"i\":" + i + "}");
+            }
+            long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.options.drainTimeoutMillis());
+            while (this.lagNanos.size() < objects && System.nanoTime() < drainDeadline) {
+                Thread.sleep(IDLE_POLL_MILLIS);
+            }
+        } finally {
+            this.stopped = true;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        return report(objects, startNanos);
+    }
+
+    private InMemoryAwsEnvironment.Function function(InMemoryAwsEnvironment.EventSourceMapping mapping) {
+        InMemoryAwsEnvironment.Function function = this.environment.functions().get(mapping.functionLogicalId());
+        if (function == null || function.handler() == null) {
+            throw new IllegalArgumentException("Function " + mapping.functionLogicalId() + " of the mapping from "
+                    + mapping.queueUrl() + " is not a Java function, synthesise the stack with lambdaUseJavaRuntime");
+        }
+        return function;
+    }
+
+    // Each poller is a container of its own, with its own bridge, as concurrent Lambda invocations are.
+    @SuppressWarnings("unchecked")
+    private RequestHandler<SQSEvent, SQSBatchResponse> handler(InMemoryAwsEnvironment.EventSourceMapping mapping) {
+        InMemoryAwsEnvironment.Function function = function(mapping);
+        ProjectionBridge bridge = new ProjectionBridge(BridgeConfig.fromEnvironment(function.environment()), this.environment.clients());
+        try {
+            return (RequestHandler<SQSEvent, SQSBatchResponse>) Class.forName(function.handler())
+                    .getConstructor(ProjectionBridge.class)
+                    .newInstance(bridge);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot construct handler " + function.handler() + " of function " + function.logicalId(), e);
+        }
+    }
+
+    // A batch that throws is left in flight to be redelivered after its visibility timeout, and then dead-lettered, as it
+    // would be by Lambda. A batch that returns has its messages deleted, except the batch item failures when the mapping
+    // reports them.
+    private void poll(InMemoryAwsEnvironment.EventSourceMapping mapping, RequestHandler<SQSEvent, SQSBatchResponse> handler) {
+        while (!this.stopped) {
+            List<Message> messages = receive(mapping.queueUrl(), mapping.batchSize());
+            if (messages.isEmpty()) {
+                idle();
+                continue;
+            }
+            SQSBatchResponse response;
+            try {
+                response = handler.handleRequest(sqsEvent(messages), null);
+            } catch (RuntimeException e) {
+                BridgeLog.error("Batch of " + messages.size() + " messages from " + mapping.queueUrl() + " failed", e);
+                continue;
+            }
+            Set<String> failedMessageIds = new HashSet<>();
+            if (mapping.reportBatchItemFailures() && response != null && response.getBatchItemFailures() != null) {
+                response.getBatchItemFailures().forEach(failure -> failedMessageIds.add(failure.getItemIdentifier()));
+            }
+            delete(mapping.queueUrl(), messages.stream().filter(message -> !failedMessageIds.contains(message.messageId())).toList());
+        }
+    }
+
+    // The digest queue's consumer, recording when each object is first announced by a delta or a snapshot.
+    private void consumeDigests(String digestQueueUrl) {
+        while (!this.stopped) {
+            List<Message> messages = receive(digestQueueUrl, ReplaySender.MAX_BATCH_ENTRIES);
+            if (messages.isEmpty()) {
+                idle();
+                continue;
+            }
+            for (Message message : messages) {
+                JsonNode digest = readTree(message.body());
+                if ("snapshot".equals(digest.path("type").asText())) {
+                    byte[] gzipped = this.environment.s3().findVersion(digest.path("bucket").asText(), digest.path("key").asText(), null).content();
+                    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+                        this.mapper.readTree(in).path("ids").forEach(id -> announced(id.asText()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                } else {
+                    digest.path("added").forEach(id -> announced(id.asText()));
+                    digest.path("changed").forEach(id -> announced(id.asText()));
+                }
+            }
+            delete(digestQueueUrl, messages);
+        }
+    }
+
+    private void announced(String id) {
+        Long putNanos = this.putNanos.get(id);
+        if (putNanos != null && this.lagNanos.putIfAbsent(id, System.nanoTime() - putNanos) == null) {
+            this.lastAnnouncedNanos.accumulateAndGet(System.nanoTime(), Math::max);
+        }
+    }
+
+    private List<Message> receive(String queueUrl, int maxMessages) {
+        return this.environment.sqs().receiveMessage(ReceiveMessageRequest.builder()
+                .queueUrl(queueUrl)
+                .maxNumberOfMessages(maxMessages)
+                .build()).messages();
+    }
+
+    private void delete(String queueUrl, List<Message> messages) {
+        for (int i = 0; i < messages.size(); i += ReplaySender.MAX_BATCH_ENTRIES) {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>();
+            for (Message message : messages.subList(i, Math.min(messages.size(), i + ReplaySender.MAX_BATCH_ENTRIES))) {
+                entries.add(DeleteMessageBatchRequestEntry.builder()
+                        .id(Integer.toString(entries.size()))
+                        .receiptHandle(message.receiptHandle())
+                        .build());
+            }
+            this.environment.sqs().deleteMessageBatch(DeleteMessageBatchRequest.builder().queueUrl(queueUrl).entries(entries).build());
+        }
+    }
+
+    private SQSEvent sqsEvent(List<Message> messages) {
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        for (Message message : messages) {
+            SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+            record.setMessageId(message.messageId());
+            record.setReceiptHandle(message.receiptHandle());
+            record.setBody(message.body());
+            record.setAttributes(new HashMap<>(message.attributesAsStrings()));
+            records.add(record);
+        }
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(records);
+        return sqsEvent;
+    }
+
+    private Report report(long objects, long startNanos) {
+        long[] lags = this.lagNanos.values().stream().mapToLong(Long::longValue).sorted().toArray();
+        double elapsedSeconds = Math.max(1, this.lastAnnouncedNanos.get() - startNanos) / 1e9;
+        Map<String, Integer> deadLetters = new LinkedHashMap<>();
+        for (InMemoryAwsEnvironment.Queue queue : this.environment.queues().values()) {
+            if (queue.deadLetterQueueUrl() != null) {
+                deadLetters.put(queue.deadLetterQueueUrl().substring(queue.deadLetterQueueUrl().lastIndexOf('/') + 1),
+                        this.environment.sqs().messages(queue.deadLetterQueueUrl()).size());
+            }
+        }
+        Map<String, Long> operations = new LinkedHashMap<>();
+        operations.put("S3.GetObject", this.environment.s3().getObjectCount());
+        for (String operation : List.of("ReceiveMessage", "SendMessage", "SendMessageBatch", "DeleteMessageBatch", "DeadLetter")) {
+            operations.put("SQS." + operation, this.environment.sqs().operationCount(operation));
+        }
+        for (String operation : List.of("GetItem", "PutItem", "UpdateItem", "BatchWriteItem")) {
+            operations.put("DynamoDB." + operation, this.environment.dynamodb().operationCount(operation));
+        }
+        return new Report(objects, lags.length, lags.length == 0 ? 0 : lags.length / elapsedSeconds,
+                percentileMillis(lags, 0.50), percentileMillis(lags, 0.90), percentileMillis(lags, 0.99),
+                percentileMillis(lags, 1.0), deadLetters, operations);
+    }
+
+    // The nearest-rank percentile of the sorted lags.
+    static long percentileMillis(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile * sortedNanos.length);
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(0, rank - 1)]);
+    }
+
+    private JsonNode readTree(String json) {
+        try {
+            return this.mapper.readTree(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void idle() {
+        try {
+            Thread.sleep(IDLE_POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> arguments = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            arguments.put(args[i], args[i + 1]);
+        }
+        if (!arguments.containsKey("--template")) {
+            throw new IllegalArgumentException("Usage: PipelineLoadDriver --template <template.json> [--objects-per-second n]"
+                    + " [--duration-seconds n] [--pollers n] [--min-throughput n], given " + Arrays.toString(args));
+        }
+        JsonNode template = new ObjectMapper().readTree(new File(arguments.get("--template")));
+        Options options = new Options(
+                Integer.parseInt(arguments.getOrDefault("--objects-per-second", "100")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(arguments.getOrDefault("--duration-seconds", "10"))),
+                Integer.parseInt(arguments.getOrDefault("--pollers", "2")),
+                TimeUnit.SECONDS.toMillis(30));
+        double minThroughput = Double.parseDouble(arguments.getOrDefault("--min-throughput", "0"));
+        Report report = new PipelineLoadDriver(InMemoryAwsEnvironment.fromTemplate(template, DEFAULT_VISIBILITY_TIMEOUT_SCALE), options).run();
+        System.out.println(report.summary());
+        if (report.throughputPerSecond() < minThroughput) {
+            System.err.println("Throughput " + report.throughputPerSecond() + " objects/s is below the minimum " + minThroughput);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PipelineLoadDriverTest {
+
+    // The resources of a synthesised stack that the environment reads, in the shape CDK writes them.
+    private static final String TEMPLATE = """
+            {"Resources": {
+              "EventsBucket5D1DE8D7": {"Type": "AWS::S3::Bucket", "Properties": {"BucketName": "s3-sqs-bridge-bucket-test"}},
+              "SourceDLQ0A1B2C3D": {"Type": "AWS::SQS::Queue", "Properties": {"QueueName": "s3-sqs-bridge-source-queue-test-dlq"}},
+              "SourceQueue6E72AA92": {"Type": "AWS::SQS::Queue", "Properties": {"QueueName": "s3-sqs-bridge-source-queue-test",
+                "VisibilityTimeout": 300,
+                "RedrivePolicy": {"deadLetterTargetArn": {"Fn::GetAtt": ["SourceDLQ0A1B2C3D", "Arn"]}, "maxReceiveCount": 3}}},
+              "ReplayQueue7AD3A3C1": {"Type": "AWS::SQS::Queue", "Properties": {"QueueName": "s3-sqs-bridge-replay-queue-test"}},
+              "DigestQueueE4A1A3B7": {"Type": "AWS::SQS::Queue", "Properties": {"QueueName": "s3-sqs-bridge-digest-queue-test", "VisibilityTimeout": 30}},
+              "OffsetsTable1DB4A2C5": {"Type": "AWS::DynamoDB::Table", "Properties": {"TableName": "s3-sqs-bridge-offsets-table-test"}},
+              "ProjectionsTable7E2B5F0A": {"Type": "AWS::DynamoDB::Table", "Properties": {"TableName": "s3-sqs-bridge-projections-table-test"}},
+              "SourceLambda1F2E3D4C": {"Type": "AWS::Lambda::Function", "Properties": {
+                "FunctionName": "s3-sqs-bridge-source-function",
+                "Handler": "com.intentïon.S3SqsBridge.runtime.SourceLambdaHandler::handleRequest",
+                "Environment": {"Variables": {
+                  "BUCKET_NAME": {"Ref": "EventsBucket5D1DE8D7"},
+                  "OBJECT_PREFIX": "events/",
+                  "REPLAY_QUEUE_URL": {"Ref": "ReplayQueue7AD3A3C1"},
+                  "DIGEST_QUEUE_URL": {"Ref": "DigestQueueE4A1A3B7"},
+                  "OFFSETS_TABLE_NAME": {"Ref": "OffsetsTable1DB4A2C5"},
+                  "PROJECTIONS_TABLE_NAME": {"Ref": "ProjectionsTable7E2B5F0A"},
+                  "SOURCE_LAMBDA_FUNCTION_NAME": "s3-sqs-bridge-source-function",
+                  "LOG_GROUP": {"Fn::GetAtt": ["SourceLambdaLogGroup", "Arn"]}}}}},
+              "SourceLambdaAlias5A6B7C8D": {"Type": "AWS::Lambda::Alias", "Properties": {"FunctionName": {"Ref": "SourceLambda1F2E3D4C"}}},
+              "SourceLambdaAliasSqsEventSource9E8D7C6B": {"Type": "AWS::Lambda::EventSourceMapping", "Properties": {
+                "EventSourceArn": {"Fn::GetAtt": ["SourceQueue6E72AA92", "Arn"]},
+                "FunctionName": {"Ref": "SourceLambdaAlias5A6B7C8D"},
+                "BatchSize": 10,
+                "FunctionResponseTypes": ["ReportBatchItemFailures"]}},
+              "EventsBucketNotifications2B3C4D5E": {"Type": "Custom::S3BucketNotifications", "Properties": {
+                "BucketName": {"Ref": "EventsBucket5D1DE8D7"},
+                "NotificationConfiguration": {"QueueConfigurations": [
+                  {"Events": ["s3:ObjectCreated:Put"], "QueueArn": {"Fn::GetAtt": ["SourceQueue6E72AA92", "Arn"]},
+                    "Filter": {"Key": {"FilterRules": [{"Name": "prefix", "Value": "events/"}]}}},
+                  {"Events": ["s3:ObjectCreated:CompleteMultipartUpload"], "QueueArn": {"Fn::GetAtt": ["SourceQueue6E72AA92", "Arn"]},
+                    "Filter": {"Key": {"FilterRules": [{"Name": "prefix", "Value": "events/"}]}}}]}}}
+            }}
+            """;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private JsonNode template;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        FlowControl.reset();
+        this.template = this.mapper.readTree(TEMPLATE);
+    }
+
+    @Test
+    public void testEnvironmentIsConfiguredFromTheTemplate() {
+        InMemoryAwsEnvironment environment = InMemoryAwsEnvironment.fromTemplate(this.template, 0.01);
+        String sourceQueueUrl = "https://sqs.eu-west-2.amazonaws.com/000000000000/s3-sqs-bridge-source-queue-test";
+        assertEquals(new InMemoryAwsEnvironment.Queue("SourceQueue6E72AA92", sourceQueueUrl, 300, sourceQueueUrl + "-dlq", 3),
+                environment.queue("SourceQueue"));
+        assertEquals(List.of(new InMemoryAwsEnvironment.EventSourceMapping(sourceQueueUrl, "SourceLambda1F2E3D4C", 10, true, 0)),
+                environment.eventSourceMappings());
+        Map<String, String> variables = environment.functions().get("SourceLambda1F2E3D4C").environment();
+        assertEquals("com.intentïon.S3SqsBridge.runtime.SourceLambdaHandler", environment.functions().get("SourceLambda1F2E3D4C").handler());
+        assertEquals("s3-sqs-bridge-bucket-test", variables.get("BUCKET_NAME"));
+        assertEquals("s3-sqs-bridge-projections-table-test", variables.get("PROJECTIONS_TABLE_NAME"));
+        assertEquals("https://sqs.eu-west-2.amazonaws.com/000000000000/s3-sqs-bridge-digest-queue-test", variables.get("DIGEST_QUEUE_URL"));
+        assertFalse(variables.containsKey("LOG_GROUP"));
+
+        // A put is notified to the source queue as S3 would, once and only under the prefix.
+        String versionId = environment.s3().putObject("s3-sqs-bridge-bucket-test", "events/a.json", "{}");
+        environment.s3().putObject("s3-sqs-bridge-bucket-test", "other/a.json", "{}");
+        assertEquals(1, environment.sqs().messages(sourceQueueUrl).size());
+        JsonNode record = readTree(environment.sqs().messages(sourceQueueUrl).get(0).body()).at("/Records/0");
+        assertEquals("ObjectCreated:Put", record.path("eventName").asText());
+        assertEquals("events/a.json", record.at("/s3/object/key").asText());
+        assertEquals(versionId, record.at("/s3/object/versionId").asText());
+        assertThrows(IllegalArgumentException.class, () -> environment.queue("OrderedSourceQueue"));
+    }
+
+    @Test
+    public void testMessagesAreRedeliveredAfterTheVisibilityTimeoutThenDeadLettered() {
+        AtomicLong now = new AtomicLong(1_000);
+        InMemorySqsClient sqs = new InMemorySqsClient(now::get);
+        String queueUrl = "http://test/000000000000/queue";
+        sqs.configureQueue(queueUrl, 100, queueUrl + "-dlq", 2);
+        sqs.sendMessage(SendMessageRequest.builder().queueUrl(queueUrl).messageBody("poison").build());
+        ReceiveMessageRequest receive = ReceiveMessageRequest.builder().queueUrl(queueUrl).maxNumberOfMessages(10).build();
+
+        Message first = sqs.receiveMessage(receive).messages().get(0);
+        assertEquals("1", first.attributesAsStrings().get("ApproximateReceiveCount"));
+        now.addAndGet(99);
+        assertTrue(sqs.receiveMessage(receive).messages().isEmpty());
+        now.addAndGet(1);
+        Message second = sqs.receiveMessage(receive).messages().get(0);
+        assertEquals("2", second.attributesAsStrings().get("ApproximateReceiveCount"));
+        now.addAndGet(100);
+        assertTrue(sqs.receiveMessage(receive).messages().isEmpty());
+        assertEquals(List.of("poison"), sqs.messages(queueUrl + "-dlq").stream().map(Message::body).toList());
+        assertEquals(1, sqs.operationCount("DeadLetter"));
+        assertThrows(IllegalArgumentException.class, () -> sqs.configureQueue(queueUrl, 100, queueUrl + "-dlq", 0));
+    }
+
+    @Test
+    public void testLoadIsProjectedAndAnnouncedInTheDigest() throws Exception {
+        InMemoryAwsEnvironment environment = InMemoryAwsEnvironment.fromTemplate(this.template, 0.01);
+        PipelineLoadDriver.Options options = new PipelineLoadDriver.Options(200, 500, 2, 10_000);
+
+        PipelineLoadDriver.Report report = new PipelineLoadDriver(environment, options).run();
+
+        assertEquals(100, report.objects());
+        assertEquals(100, report.announced(), report.summary());
+        assertTrue(report.throughputPerSecond() > 50, report.summary());
+        assertTrue(report.lagP50Millis() <= report.lagP99Millis() && report.lagP99Millis() <= report.lagMaxMillis());
+        assertEquals(Map.of("s3-sqs-bridge-source-queue-test-dlq", 0), report.deadLetters());
+        assertEquals("{\"i\":42}", environment.dynamodb().item("s3-sqs-bridge-projections-table-test", "events/load/00000042.json").get("value").s());
+        assertThrows(IllegalArgumentException.class, () -> new PipelineLoadDriver.Options(0, 500, 1, 0));
+    }
+
+    @Test
+    public void testPercentilesAreNearestRank() {
+        long[] lags = {1_000_000, 2_000_000, 3_000_000, 4_000_000};
+        assertEquals(2, PipelineLoadDriver.percentileMillis(lags, 0.5));
+        assertEquals(4, PipelineLoadDriver.percentileMillis(lags, 0.99));
+        assertEquals(0, PipelineLoadDriver.percentileMillis(new long[0], 0.5));
+    }
+
+    private JsonNode readTree(String json) {
+        try {
+            return this.mapper.readTree(json);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProjectionBridgeTest {
+
+    static final Map<String, String> ENVIRONMENT = Map.of(
+            "BUCKET_NAME", "s3-sqs-bridge-bucket-test",
+            "OBJECT_PREFIX", "events/",
+            "REPLAY_QUEUE_URL", "http://test/000000000000/s3-sqs-bridge-replay-queue-test",
+            "DIGEST_QUEUE_URL", "http://test/000000000000/s3-sqs-bridge-digest-queue-test",
+            "OFFSETS_TABLE_NAME", "s3-sqs-bridge-offsets-table-test",
+            "PROJECTIONS_TABLE_NAME", "s3-sqs-bridge-projections-table-test",
+            "SOURCE_LAMBDA_FUNCTION_NAME", "s3-sqs-bridge-source-lambda-test");
+
+    static final BridgeConfig CONFIG = BridgeConfig.fromEnvironment(ENVIRONMENT);
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private InMemoryS3Client s3;
+    private InMemorySqsClient sqs;
+    private InMemoryDynamoDbClient dynamodb;
+    private ProjectionBridge bridge;
+
+    @BeforeEach
+    public void setUp() {
+        FlowControl.reset();
+        this.s3 = new InMemoryS3Client();
+        this.sqs = new InMemorySqsClient();
+        this.dynamodb = new InMemoryDynamoDbClient();
+        this.dynamodb.globalSecondaryIndex(CONFIG.projectionsTableName(), DigestIndex.MEMBER_INDEX, "memberShard", "id");
+        this.bridge = new ProjectionBridge(CONFIG, new BridgeClients(this.s3, this.sqs, this.dynamodb));
+    }
+
+    @Test
+    public void testReplayThenSourceProjectionEndToEnd() throws Exception {
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        String b1 = this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+        String a2 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        this.s3.putObject(CONFIG.bucketName(), "other/ignored.json", "{}");
+
+        Map<String, Object> replayResult = new ReplayBatchLambdaHandler(this.bridge).handleRequest(Map.of(), null);
+        assertEquals(3, replayResult.get("versions"));
+        assertEquals(3, replayResult.get("eventsReplayed"));
+        assertEquals(0, this.s3.getObjectCount());
+        assertEquals(1, this.sqs.operationCount("SendMessageBatch"));
+        assertTrue(((String) replayResult.get("lastOffsetProcessed")).endsWith("events/a.json " + a2));
+
+        List<Message> replayMessages = this.sqs.messages(CONFIG.replayQueueUrl());
+        assertEquals(List.of(a1, b1, a2), replayMessages.stream()
+                .map(m -> readTree(m.body()).at("/Records/0/s3/object/versionId").asText())
+                .toList());
+
+        // Until the replayed events are projected the source handler refuses to run.
+        SQSEvent early = sourceEvent("events/b.json", b1);
+        assertThrows(IllegalStateException.class, () -> new SourceLambdaHandler(this.bridge).handleRequest(early, null));
+
+        SQSBatchResponse replayResponse = new ReplayLambdaHandler(this.bridge)
+                .handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        assertTrue(replayResponse.getBatchItemFailures().isEmpty());
+        assertEquals("{\"a\":2}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+        assertEquals(0, this.sqs.messages(CONFIG.digestQueueUrl()).size());
+
+        String c1 = this.s3.putObject(CONFIG.bucketName(), "events/c.json", "{\"c\":1}");
+        SQSBatchResponse sourceResponse = new SourceLambdaHandler(this.bridge).handleRequest(sourceEvent("events/c.json", c1), null);
+        assertTrue(sourceResponse.getBatchItemFailures().isEmpty());
+
+        // The replay changed the digest without deltas, so the first source batch sends a snapshot pointer.
+        List<Message> digests = this.sqs.messages(CONFIG.digestQueueUrl());
+        assertEquals(1, digests.size());
+        JsonNode pointer = this.mapper.readTree(digests.get(0).body());
+        assertEquals("snapshot", pointer.path("type").asText());
+        assertEquals(3, pointer.path("count").asLong());
+        byte[] gzipped = this.s3.findVersion(pointer.path("bucket").asText(), pointer.path("key").asText(), null).content();
+        JsonNode snapshot = this.mapper.readTree(new GZIPInputStream(new ByteArrayInputStream(gzipped)));
+        assertEquals(List.of("events/a.json", "events/b.json", "events/c.json"), this.mapper.convertValue(snapshot.path("ids"), List.class));
+        assertEquals(pointer.path("hash").asText(), snapshot.path("hash").asText());
+        String bucketOffset = this.bridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId());
+        assertTrue(bucketOffset.endsWith("events/c.json " + c1));
+
+        // Later batches send only their own changes.
+        String a3 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":3}");
+        new SourceLambdaHandler(this.bridge).handleRequest(sourceEvent("events/a.json", a3), null);
+        String d1 = this.s3.putObject(CONFIG.bucketName(), "events/d.json", "{\"d\":1}");
+        new SourceLambdaHandler(this.bridge).handleRequest(sourceEvent("events/d.json", d1), null);
+        digests = this.sqs.messages(CONFIG.digestQueueUrl());
+        assertEquals(3, digests.size());
+        JsonNode changed = this.mapper.readTree(digests.get(1).body());
+        assertEquals("delta", changed.path("type").asText());
+        assertEquals(pointer.path("sequence").asLong() + 1, changed.path("sequence").asLong());
+        assertEquals("events/a.json", changed.at("/changed/0").asText());
+        assertEquals(0, changed.path("added").size());
+        assertEquals(pointer.path("hash").asText(), changed.path("hash").asText());
+        JsonNode added = this.mapper.readTree(digests.get(2).body());
+        assertEquals(pointer.path("sequence").asLong() + 2, added.path("sequence").asLong());
+        assertEquals("events/d.json", added.at("/added/0").asText());
+        assertEquals(4, added.path("count").asLong());
+        assertEquals(this.bridge.digestIndex.summary().hash(), added.path("hash").asText());
+    }
+
+    @Test
+    public void testSourceRecordFailureIsReportedAsBatchItemFailure() {
+        this.bridge.replay();
+        SQSEvent sqsEvent = sourceEvent("events/missing.json", "v-missing");
+
+        SQSBatchResponse response = new SourceLambdaHandler(this.bridge).handleRequest(sqsEvent, null);
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals("message-events/missing.json", response.getBatchItemFailures().get(0).getItemIdentifier());
+    }
+
+    @Test
+    public void testMultipartUploadsAreProjectedAndRemovalsRejected() {
+        this.bridge.replay();
+        String versionId = this.s3.putObject(CONFIG.bucketName(), "events/large.json", "{\"large\":true}");
+        ObjectNode s3Event = this.bridge.createS3EventFromVersion("events/large.json", versionId, null);
+        ((ObjectNode) s3Event.path("Records").get(0)).put("eventName", "ObjectCreated:CompleteMultipartUpload");
+        SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+        record.setMessageId("message-large");
+        record.setBody(s3Event.toString());
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(List.of(record));
+
+        assertTrue(new SourceLambdaHandler(this.bridge).handleRequest(sqsEvent, null).getBatchItemFailures().isEmpty());
+        assertEquals("{\"large\":true}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/large.json").get("value").s());
+
+        ((ObjectNode) s3Event.path("Records").get(0)).put("eventName", "ObjectRemoved:Delete");
+        assertThrows(IllegalArgumentException.class, () -> this.bridge.putEventRecords(s3Event));
+    }
+
+    @Test
+    public void testSourceBatchReadsOffsetsAndSendsDigestOncePerBatch() {
+        this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        this.bridge.replay();
+        new ReplayLambdaHandler(this.bridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        String lastVersionId = null;
+        for (int i = 0; i < 4; i++) {
+            String key = "events/batch-" + i + ".json";
+            lastVersionId = this.s3.putObject(CONFIG.bucketName(), key, "{\"i\":" + i + "}");
+            records.addAll(sourceEvent(key, lastVersionId).getRecords());
+        }
+        records.add(1, sourceEvent("events/missing.json", "v-missing").getRecords().get(0));
+        SQSEvent batch = new SQSEvent();
+        batch.setRecords(records);
+        long getItems = this.dynamodb.operationCount("GetItem");
+        long putItems = this.dynamodb.operationCount("PutItem");
+        long batchWriteItems = this.dynamodb.operationCount("BatchWriteItem");
+
+        SQSBatchResponse response = new SourceLambdaHandler(this.bridge).handleRequest(batch, null);
+
+        assertEquals(List.of("message-events/missing.json"), response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier)
+                .toList());
+        // The replay queue and bucket offsets are read once, then 4 projections written in one batch.
+        assertEquals(2, this.dynamodb.operationCount("GetItem") - getItems);
+        assertEquals(0, this.dynamodb.operationCount("PutItem") - putItems);
+        assertEquals(1, this.dynamodb.operationCount("BatchWriteItem") - batchWriteItems);
+        assertEquals(1, this.sqs.messages(CONFIG.digestQueueUrl()).size());
+
+        // The warm container advances its cached offsets with a conditional write and no reads.
+        String nextVersionId = this.s3.putObject(CONFIG.bucketName(), "events/batch-4.json", "{\"i\":4}");
+        getItems = this.dynamodb.operationCount("GetItem");
+        long updateItems = this.dynamodb.operationCount("UpdateItem");
+        long transactions = this.dynamodb.operationCount("TransactWriteItems");
+        assertTrue(new SourceLambdaHandler(this.bridge).handleRequest(sourceEvent("events/batch-4.json", nextVersionId), null).getBatchItemFailures().isEmpty());
+        // The bucket offset and the digest sequence, and one transaction of the digest membership row and shard counters.
+        assertEquals(0, this.dynamodb.operationCount("GetItem") - getItems);
+        assertEquals(2, this.dynamodb.operationCount("UpdateItem") - updateItems);
+        assertEquals(1, this.dynamodb.operationCount("TransactWriteItems") - transactions);
+        assertTrue(this.bridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()).endsWith("events/batch-4.json " + nextVersionId));
+    }
+
+    @Test
+    public void testBatchWritesOnlyTheLastVersionOfEachKey() {
+        this.s3.putObject(CONFIG.bucketName(), "events/initial.json", "{}");
+        this.bridge.replay();
+        new ReplayLambdaHandler(this.bridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        String lastA = null;
+        for (int i = 0; i < 3; i++) {
+            lastA = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":" + i + "}");
+            records.addAll(sourceEvent("events/a.json", lastA).getRecords());
+            records.get(records.size() - 1).setMessageId("message-a-" + i);
+        }
+        String b1 = this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+        records.addAll(sourceEvent("events/b.json", b1).getRecords());
+        SQSEvent batch = new SQSEvent();
+        batch.setRecords(records);
+        // The first write of b is throttled and retried.
+        AtomicInteger throttled = new AtomicInteger();
+        this.dynamodb.leaveUnprocessed(write -> write.putRequest().item().get("id").s().equals("events/b.json") && throttled.getAndIncrement() == 0);
+        long getObjects = this.s3.getObjectCount();
+        long putItems = this.dynamodb.operationCount("PutItem");
+        long batchWriteItems = this.dynamodb.operationCount("BatchWriteItem");
+
+        SQSBatchResponse response = new SourceLambdaHandler(this.bridge).handleRequest(batch, null);
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        assertEquals(0, this.dynamodb.operationCount("PutItem") - putItems);
+        assertEquals(2, this.dynamodb.operationCount("BatchWriteItem") - batchWriteItems);
+        // Two versions of a are neither fetched nor written, and each fetch is a single GET.
+        assertEquals(2, this.s3.getObjectCount() - getObjects);
+        assertEquals("{\"a\":2}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+        assertEquals("{\"b\":1}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/b.json").get("value").s());
+        assertEquals(1, this.sqs.messages(CONFIG.digestQueueUrl()).size());
+        assertTrue(this.bridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()).endsWith("events/b.json " + b1));
+    }
+
+    @Test
+    public void testBatchWritesTheNewestVersionOfAKeyDeliveredOutOfOrder() {
+        this.s3.putObject(CONFIG.bucketName(), "events/initial.json", "{}");
+        this.bridge.replay();
+        new ReplayLambdaHandler(this.bridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        String a2 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        String a3 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":3}");
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        // a3's sequencer is longer than a1's and greater only once padded, a2 has none and is ordered by eventTime.
+        records.addAll(sequencedEvent("events/a.json", a3, "2025-01-01T00:00:01.000Z", "1055AED6DCD90281E5").getRecords());
+        records.addAll(sequencedEvent("events/a.json", a1, "2025-01-01T00:00:01.000Z", "955AED6DCD90281E5").getRecords());
+        records.addAll(sequencedEvent("events/a.json", a2, "2025-01-01T00:00:00.500Z", null).getRecords());
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).setMessageId("message-a-" + i);
+        }
+        SQSEvent batch = new SQSEvent();
+        batch.setRecords(records);
+
+        SQSBatchResponse response = new SourceLambdaHandler(this.bridge).handleRequest(batch, null);
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        assertEquals("{\"a\":3}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+        JsonNode newest = readTree(records.get(0).getBody()).path("Records").get(0);
+        JsonNode older = readTree(records.get(1).getBody()).path("Records").get(0);
+        assertTrue(ProjectionBridge.isNewerVersion(newest, older));
+        assertFalse(ProjectionBridge.isNewerVersion(older, newest));
+    }
+
+    @Test
+    public void testRedeliveredRecordsAreProjectedWithoutDownloadingAgain() {
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        this.bridge.replay();
+        new ReplayLambdaHandler(this.bridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        assertEquals(1, this.s3.getObjectCount());
+
+        // The replayed version is redelivered from the source queue to the same warm container.
+        assertTrue(new SourceLambdaHandler(this.bridge).handleRequest(sourceEvent("events/a.json", a1), null).getBatchItemFailures().isEmpty());
+        assertEquals(1, this.s3.getObjectCount());
+        assertEquals(0, this.s3.headObjectCount());
+        assertEquals("{\"a\":1}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+    }
+
+    @Test
+    public void testLatestOnlySkipsVersionsThatHaveBeenReplaced() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("PROJECTION_LATEST_ONLY", "true");
+        ProjectionBridge latestOnlyBridge = new ProjectionBridge(BridgeConfig.fromEnvironment(environment), new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        this.s3.putObject(CONFIG.bucketName(), "events/initial.json", "{}");
+        latestOnlyBridge.replay();
+        new ReplayLambdaHandler(latestOnlyBridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        String a2 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        long getObjects = this.s3.getObjectCount();
+        long headObjects = this.s3.headObjectCount();
+
+        // The event for a1 arrives after a2 was written, a1 is neither downloaded nor written.
+        assertTrue(new SourceLambdaHandler(latestOnlyBridge).handleRequest(sourceEvent("events/a.json", a1), null).getBatchItemFailures().isEmpty());
+        assertEquals(0, this.s3.getObjectCount() - getObjects);
+        assertEquals(null, this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json"));
+
+        assertTrue(new SourceLambdaHandler(latestOnlyBridge).handleRequest(sourceEvent("events/a.json", a2), null).getBatchItemFailures().isEmpty());
+        assertEquals(1, this.s3.getObjectCount() - getObjects);
+        assertEquals(2, this.s3.headObjectCount() - headObjects);
+        assertEquals("{\"a\":2}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+    }
+
+    @Test
+    public void testSourceBatchFailsWhenAReplayResetsTheBucketOffset() {
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        this.bridge.replay();
+        new ReplayLambdaHandler(this.bridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        assertTrue(new SourceLambdaHandler(this.bridge).handleRequest(sourceEvent("events/a.json", a1), null).getBatchItemFailures().isEmpty());
+
+        // Another container starts a replay, this one still has the bucket offset from before it cached.
+        ProjectionBridge replayContainer = new ProjectionBridge(CONFIG, new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        replayContainer.replay();
+        String b1 = this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+        SQSEvent live = sourceEvent("events/b.json", b1);
+        assertThrows(IllegalStateException.class, () -> new SourceLambdaHandler(this.bridge).handleRequest(live, null));
+        assertEquals(null, this.bridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()));
+        assertThrows(IllegalStateException.class, () -> new SourceLambdaHandler(this.bridge).handleRequest(live, null));
+
+        new ReplayLambdaHandler(replayContainer).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        assertTrue(new SourceLambdaHandler(this.bridge).handleRequest(live, null).getBatchItemFailures().isEmpty());
+        assertTrue(this.bridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()).endsWith("events/b.json " + b1));
+    }
+
+    @Test
+    public void testConcurrentIngestProjectsSourceBatchesBesideAReplay() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("REPLAY_CONCURRENT_INGEST", "true");
+        BridgeConfig concurrentConfig = BridgeConfig.fromEnvironment(environment);
+        ProjectionBridge concurrentBridge = new ProjectionBridge(concurrentConfig, new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+        concurrentBridge.replay();
+
+        // While the replayed events are still queued, source batches are projected in the live lane.
+        String a2 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        String c1 = this.s3.putObject(CONFIG.bucketName(), "events/c.json", "{\"c\":1}");
+        SQSEvent batch = new SQSEvent();
+        batch.setRecords(List.of(sourceEvent("events/a.json", a2).getRecords().get(0), sourceEvent("events/c.json", c1).getRecords().get(0)));
+        assertTrue(new SourceLambdaHandler(concurrentBridge).handleRequest(batch, null).getBatchItemFailures().isEmpty());
+        assertEquals("{\"a\":2}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+        String liveOffset = concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(concurrentConfig.liveOffsetId());
+        assertTrue(liveOffset.endsWith("events/c.json " + c1));
+        assertEquals(null, concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()));
+
+        // The replayed a is older than the live one and is not written, but still moves the replay lane's offset.
+        SQSBatchResponse replayResponse = new ReplayLambdaHandler(concurrentBridge)
+                .handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        assertTrue(replayResponse.getBatchItemFailures().isEmpty());
+        assertEquals(a2, this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("versionId").s());
+        assertEquals("{\"b\":1}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/b.json").get("value").s());
+        assertEquals(concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.replayQueueUrl()),
+                concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()));
+
+        // The next source batch hands the live lane over to the bucket offset and advances it as before.
+        assertTrue(new SourceLambdaHandler(concurrentBridge).handleRequest(sourceEvent("events/c.json", c1), null).getBatchItemFailures().isEmpty());
+        assertEquals(liveOffset, concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()));
+        String d1 = this.s3.putObject(CONFIG.bucketName(), "events/d.json", "{\"d\":1}");
+        assertTrue(new SourceLambdaHandler(concurrentBridge).handleRequest(sourceEvent("events/d.json", d1), null).getBatchItemFailures().isEmpty());
+        assertTrue(concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()).endsWith("events/d.json " + d1));
+        assertEquals(liveOffset, concurrentBridge.readLastOffsetProcessedFromOffsetsTableById(concurrentConfig.liveOffsetId()));
+        assertEquals(4, concurrentBridge.digestIndex.summary().count());
+    }
+
+    @Test
+    public void testShardedOffsetsAreAdvancedPerPrefixAndSnapshotAtTheLowWatermark() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("OFFSETS_SHARDS", "4");
+        environment.put("OFFSETS_SHARD_BY", OffsetShards.BY_PREFIX);
+        environment.put("OFFSETS_TTL_SECONDS", "86400");
+        this.dynamodb.sortKey(CONFIG.offsetsTableName(), OffsetShards.SORT_KEY);
+        ProjectionBridge shardedBridge = new ProjectionBridge(BridgeConfig.fromEnvironment(environment), new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        this.s3.putObject(CONFIG.bucketName(), "events/initial.json", "{}");
+        shardedBridge.replay();
+        new ReplayLambdaHandler(shardedBridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        String replayed = shardedBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId());
+
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/2025/a.json", "{\"a\":1}");
+        String b1 = this.s3.putObject(CONFIG.bucketName(), "events/2026/b.json", "{\"b\":1}");
+        SQSEvent batch = new SQSEvent();
+        batch.setRecords(List.of(sourceEvent("events/2025/a.json", a1).getRecords().get(0), sourceEvent("events/2026/b.json", b1).getRecords().get(0)));
+        assertTrue(new SourceLambdaHandler(shardedBridge).handleRequest(batch, null).getBatchItemFailures().isEmpty());
+
+        // The batch advanced a row per prefix and left the bucket offset row where the replay left it.
+        Map<String, AttributeValue> a = this.dynamodb.item(CONFIG.offsetsTableName(), CONFIG.bucketOffsetId(), "prefix-2025/");
+        assertTrue(a.get("lastOffsetProcessed").s().endsWith("events/2025/a.json " + a1));
+        assertTrue(a.containsKey(OffsetTracker.EXPIRES_AT));
+        assertTrue(this.dynamodb.item(CONFIG.offsetsTableName(), CONFIG.bucketOffsetId(), "prefix-2026/")
+                .get("lastOffsetProcessed").s().endsWith("events/2026/b.json " + b1));
+        assertEquals(replayed, shardedBridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.bucketOffsetId()));
+
+        Map<String, Object> written = new SnapshotLambdaHandler(shardedBridge).handleRequest(Map.of(), null);
+        assertEquals(a.get("lastOffsetProcessed").s(), written.get("lastOffsetProcessed"));
+    }
+
+    @Test
+    public void testConditionalWritesRejectStaleVersionsAndIndexChanges() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("PROJECTION_CONDITIONAL_WRITES", "true");
+        environment.put("PROJECTION_INDEX_SHARDS", "2");
+        this.dynamodb.globalSecondaryIndex(CONFIG.projectionsTableName(), ProjectionWriter.LAST_MODIFIED_INDEX, "changeShard", "lastModified");
+        ProjectionBridge versionedBridge = new ProjectionBridge(BridgeConfig.fromEnvironment(environment), new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        this.s3.putObject(CONFIG.bucketName(), "events/initial.json", "{}");
+        versionedBridge.replay();
+        new ReplayLambdaHandler(versionedBridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        String since = ProjectionBridge.toIsoString(java.time.Instant.parse("2025-01-01T00:00:00.000Z"));
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        String a2 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        String b1 = this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+
+        // The events of a arrive out of order, the late one is rejected without reading the projection.
+        assertTrue(new SourceLambdaHandler(versionedBridge).handleRequest(sourceEvent("events/a.json", a2), null).getBatchItemFailures().isEmpty());
+        long reads = this.dynamodb.operationCount("GetItem");
+        assertTrue(new SourceLambdaHandler(versionedBridge).handleRequest(sourceEvent("events/a.json", a1), null).getBatchItemFailures().isEmpty());
+        assertEquals(reads, this.dynamodb.operationCount("GetItem"));
+        assertEquals("{\"a\":2}", this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+        assertEquals(a2, this.dynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("versionId").s());
+        assertTrue(new SourceLambdaHandler(versionedBridge).handleRequest(sourceEvent("events/b.json", b1), null).getBatchItemFailures().isEmpty());
+
+        List<ProjectionBridge.ProjectionChange> changes = versionedBridge.changedSince(since);
+        assertEquals(List.of("events/initial.json", "events/a.json", "events/b.json"), changes.stream().map(ProjectionBridge.ProjectionChange::id).toList());
+        assertEquals(a2, changes.get(1).versionId());
+        assertEquals(List.of("events/b.json"), versionedBridge.changedSince(changes.get(1).lastModified()).stream()
+                .map(ProjectionBridge.ProjectionChange::id).toList());
+        assertThrows(IllegalStateException.class, () -> this.bridge.changedSince(since));
+    }
+
+    @Test
+    public void testShardedReplayResumesFromShardCheckpoints() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("REPLAY_SHARD_BY", ReplayShard.BY_HASH);
+        ProjectionBridge shardedBridge = new ProjectionBridge(BridgeConfig.fromEnvironment(environment), new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        for (int version = 0; version < 3; version++) {
+            for (int key = 0; key < 10; key++) {
+                this.s3.putObject(CONFIG.bucketName(), "events/" + key + ".json", "{\"v\":" + version + "}");
+            }
+        }
+        ReplayCheckpoints checkpoints = new ReplayCheckpoints(this.dynamodb, CONFIG.offsetsTableName(), CONFIG.replayQueueUrl());
+
+        ReplayShard shard0 = new ReplayShard(0, 3, ReplayShard.BY_HASH);
+        assertEquals(List.of(0, 1, 2), shardedBridge.startReplay(3, false));
+        int shard0Events = shardedBridge.replayShard(shard0).eventsReplayed();
+        assertThrows(IllegalStateException.class, () -> shardedBridge.completeReplay(3));
+
+        // Shard 1 timed out after checkpointing part of its events.
+        ReplayShard shard1 = new ReplayShard(1, 3, ReplayShard.BY_HASH);
+        List<ReplayPlanner.ReplayEvent> shard1Events = new ArrayList<>();
+        new ReplayPlanner(CONFIG.replayMaxActiveKeys()).events(shard1.pages(this.s3, CONFIG.bucketName(), CONFIG.objectPrefix()))
+                .forEachRemaining(shard1Events::add);
+        checkpoints.checkpoint(shard1, shard1Events.get(1).offset());
+
+        // The rerun resumes rather than resetting the checkpoints, a complete shard is not replayed again.
+        shardedBridge.startReplay(3, false);
+        assertEquals(0, shardedBridge.replayShard(shard0).eventsReplayed());
+        assertEquals(shard1Events.size() - 2, shardedBridge.replayShard(shard1).eventsReplayed());
+        int shard2Events = shardedBridge.replayShard(new ReplayShard(2, 3, ReplayShard.BY_HASH)).eventsReplayed();
+        assertEquals(30, shard0Events + shard1Events.size() + shard2Events);
+
+        String lastOffsetProcessed = shardedBridge.completeReplay(3);
+        assertEquals(this.bridge.readLastOffsetProcessedFromOffsetsTableById(CONFIG.replayQueueUrl()), lastOffsetProcessed);
+        assertEquals(30 - 2, this.sqs.messages(CONFIG.replayQueueUrl()).size());
+        // A completed run is restarted from the beginning.
+        shardedBridge.startReplay(3, false);
+        assertEquals(new ReplayCheckpoints.ShardState(null, false, null), checkpoints.shard(shard0));
+    }
+
+    @Test
+    public void testAShardLargerThanTheWindowResumesItsListing() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("REPLAY_MAX_ACTIVE_KEYS", "2");
+        environment.put("REPLAY_CHECKPOINT_EVERY", "1");
+        ProjectionBridge windowedBridge = new ProjectionBridge(BridgeConfig.fromEnvironment(environment), new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        for (int version = 0; version < 3; version++) {
+            for (int key = 0; key < 10; key++) {
+                this.s3.putObject(CONFIG.bucketName(), "events/" + key + ".json", "{\"v\":" + version + "}");
+            }
+        }
+        ReplayCheckpoints checkpoints = new ReplayCheckpoints(this.dynamodb, CONFIG.offsetsTableName(), CONFIG.replayQueueUrl());
+        ReplayShard shard = ReplayShard.all(CONFIG.replayShardBy());
+
+        // The shard stops when the versions of the last key cannot be sent.
+        windowedBridge.startReplay(1, false);
+        this.sqs.failEntries(entry -> entry.messageBody().contains("events/9.json"));
+        assertThrows(RuntimeException.class, () -> windowedBridge.replayShard(shard));
+        ReplayCheckpoints.ShardState state = checkpoints.shard(shard);
+        assertEquals(null, state.lastOffsetProcessed());
+        assertTrue(state.listedThrough() != null && state.listedThrough().compareTo("events/9.json") < 0, state.listedThrough());
+
+        // The rerun lists only the keys after the checkpointed one.
+        this.sqs.failEntries(entry -> false);
+        windowedBridge.startReplay(1, false);
+        int keysLeft = 9 - Integer.parseInt(state.listedThrough().replaceAll("\\D", ""));
+        ProjectionBridge.ReplayResult resumed = windowedBridge.replayShard(shard);
+        assertEquals(3 * keysLeft, resumed.versions());
+        assertEquals(3 * keysLeft, resumed.eventsReplayed());
+        windowedBridge.completeReplay(1);
+        assertEquals(30, this.sqs.messages(CONFIG.replayQueueUrl()).stream().map(Message::body).distinct().count());
+    }
+
+    @Test
+    public void testReplayFromSnapshotReplaysOnlyNewerVersions() {
+        this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+        this.bridge.replay();
+        new ReplayLambdaHandler(this.bridge).handleRequest(this.sqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+        Map<String, Object> written = new SnapshotLambdaHandler(this.bridge).handleRequest(Map.of(), null);
+        assertEquals(true, written.get("written"));
+        assertEquals(2L, written.get("projections"));
+        this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        String c1 = this.s3.putObject(CONFIG.bucketName(), "events/c.json", "{\"c\":1}");
+
+        // The projections table is lost and rebuilt from the snapshot.
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("REPLAY_FROM_SNAPSHOT", "true");
+        environment.put("REPLAY_SNAPSHOT_OVERLAP_MS", "0");
+        InMemoryDynamoDbClient rebuiltDynamodb = new InMemoryDynamoDbClient();
+        rebuiltDynamodb.globalSecondaryIndex(CONFIG.projectionsTableName(), DigestIndex.MEMBER_INDEX, "memberShard", "id");
+        InMemorySqsClient rebuiltSqs = new InMemorySqsClient();
+        ProjectionBridge rebuiltBridge = new ProjectionBridge(BridgeConfig.fromEnvironment(environment), new BridgeClients(this.s3, rebuiltSqs, rebuiltDynamodb));
+        ProjectionBridge.ReplayResult result = rebuiltBridge.replay();
+        assertEquals(4, result.versions());
+        assertEquals(2, result.eventsReplayed());
+        assertTrue(result.lastOffsetProcessed().endsWith("events/c.json " + c1));
+        new ReplayLambdaHandler(rebuiltBridge).handleRequest(rebuiltSqs.drainAsSqsEvent(CONFIG.replayQueueUrl(), 10), null);
+
+        assertEquals("{\"a\":2}", rebuiltDynamodb.item(CONFIG.projectionsTableName(), "events/a.json").get("value").s());
+        assertEquals("{\"b\":1}", rebuiltDynamodb.item(CONFIG.projectionsTableName(), "events/b.json").get("value").s());
+        assertEquals(3, rebuiltBridge.computeDigest().size());
+    }
+
+    @Test
+    public void testFifoReplayKeepsPerKeyOrderAcrossConcurrentConsumers() throws Exception {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("REPLAY_QUEUE_URL", CONFIG.replayQueueUrl() + ".fifo");
+        BridgeConfig fifoConfig = BridgeConfig.fromEnvironment(environment);
+        // Projection writes are slowed down at random and the order of the writes per key recorded, digest updates fail
+        // now and then.
+        Map<String, List<String>> writes = new ConcurrentHashMap<>();
+        InMemoryDynamoDbClient slowDynamodb = new InMemoryDynamoDbClient() {
+            @Override
+            public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+                sleep(ThreadLocalRandom.current().nextInt(3));
+                BatchWriteItemResponse response = super.batchWriteItem(request);
+                request.requestItems().getOrDefault(fifoConfig.projectionsTableName(), List.of()).forEach(write -> writes
+                        .computeIfAbsent(write.putRequest().item().get("id").s(), k -> Collections.synchronizedList(new ArrayList<>()))
+                        .add(write.putRequest().item().get("value").s()));
+                return response;
+            }
+
+            @Override
+            public UpdateItemResponse updateItem(UpdateItemRequest request) {
+                if (request.tableName().equals(fifoConfig.projectionsTableName()) && ThreadLocalRandom.current().nextInt(10) == 0) {
+                    throw new IllegalStateException("Injected digest failure");
+                }
+                return super.updateItem(request);
+            }
+        };
+        ProjectionBridge fifoBridge = new ProjectionBridge(fifoConfig, new BridgeClients(this.s3, this.sqs, slowDynamodb));
+        int keys = 12;
+        int versions = 5;
+        for (int version = 0; version < versions; version++) {
+            for (int key = 0; key < keys; key++) {
+                this.s3.putObject(fifoConfig.bucketName(), "events/" + key + ".json", "{\"v\":" + version + "}");
+            }
+        }
+        fifoBridge.replay();
+        assertEquals(keys * versions, this.sqs.messages(fifoConfig.replayQueueUrl()).size());
+
+        ReplayLambdaHandler handler = new ReplayLambdaHandler(fifoBridge);
+        AtomicInteger projected = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        for (int worker = 0; worker < 4; worker++) {
+            workers.submit(() -> {
+                while (projected.get() < keys * versions) {
+                    SQSEvent sqsEvent = this.sqs.receiveAsSqsEvent(fifoConfig.replayQueueUrl(), 3);
+                    if (sqsEvent.getRecords().isEmpty()) {
+                        sleep(1);
+                        continue;
+                    }
+                    SQSBatchResponse response = handler.handleRequest(sqsEvent, null);
+                    projected.addAndGet(sqsEvent.getRecords().size() - response.getBatchItemFailures().size());
+                    this.sqs.complete(fifoConfig.replayQueueUrl(), sqsEvent, response);
+                }
+            });
+        }
+        workers.shutdown();
+        assertTrue(workers.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals(keys, writes.size());
+        for (Map.Entry<String, List<String>> keyWrites : writes.entrySet()) {
+            List<String> inOrder = new ArrayList<>(keyWrites.getValue());
+            Collections.sort(inOrder);
+            assertEquals(inOrder, keyWrites.getValue(), "Writes to " + keyWrites.getKey() + " were reordered");
+            assertEquals("{\"v\":" + (versions - 1) + "}", slowDynamodb.item(fifoConfig.projectionsTableName(), keyWrites.getKey()).get("value").s());
+        }
+    }
+
+    @Test
+    public void testSourceSequencerForwardsRecordsInMessageGroups() {
+        Map<String, String> environment = new HashMap<>(ENVIRONMENT);
+        environment.put("ORDERED_SOURCE_QUEUE_URL", "http://test/000000000000/s3-sqs-bridge-source-queue-test-ordered.fifo");
+        BridgeConfig sequencerConfig = BridgeConfig.fromEnvironment(environment);
+        ProjectionBridge sequencerBridge = new ProjectionBridge(sequencerConfig, new BridgeClients(this.s3, this.sqs, this.dynamodb));
+        String a1 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":1}");
+        String b1 = this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":1}");
+        String a2 = this.s3.putObject(CONFIG.bucketName(), "events/a.json", "{\"a\":2}");
+        String b2 = this.s3.putObject(CONFIG.bucketName(), "events/b.json", "{\"b\":2}");
+        List<SQSEvent.SQSMessage> records = new ArrayList<>();
+        records.addAll(sourceEvent("events/a.json", a1).getRecords());
+        records.addAll(sourceEvent("events/b.json", b1).getRecords());
+        records.add(sourceEvent("events/a.json", a2).getRecords().get(0));
+        records.get(2).setMessageId("message-events/a.json-2");
+        records.add(sourceEvent("events/b.json", b2).getRecords().get(0));
+        records.get(3).setMessageId("message-events/b.json-2");
+        SQSEvent batch = new SQSEvent();
+        batch.setRecords(records);
+        this.sqs.failEntries(entry -> entry.messageBody().contains(b1));
+
+        SQSBatchResponse response = new SourceSequencerLambdaHandler(sequencerBridge).handleRequest(batch, null);
+
+        // b2 is held back behind the failed b1 rather than overtaking it.
+        assertEquals(List.of("message-events/b.json", "message-events/b.json-2"), response.getBatchItemFailures().stream()
+                .map(SQSBatchResponse.BatchItemFailure::getItemIdentifier)
+                .sorted()
+                .toList());
+        SQSEvent ordered = this.sqs.receiveAsSqsEvent(sequencerConfig.orderedSourceQueueUrl(), 10);
+        assertEquals(List.of(a1, a2), ordered.getRecords().stream()
+                .map(record -> readTree(record.getBody()).at("/Records/0/s3/object/versionId").asText())
+                .toList());
+        assertEquals(List.of("events/a.json", "events/a.json"), ordered.getRecords().stream()
+                .map(record -> record.getAttributes().get("MessageGroupId"))
+                .toList());
+
+        // The redelivered b messages are forwarded in order and a resent a1 is dropped as a duplicate.
+        this.sqs.failEntries(entry -> false);
+        List<SQSEvent.SQSMessage> redelivered = new ArrayList<>(List.of(records.get(0), records.get(1), records.get(3)));
+        batch.setRecords(redelivered);
+        assertTrue(new SourceSequencerLambdaHandler(sequencerBridge).handleRequest(batch, null).getBatchItemFailures().isEmpty());
+        this.sqs.complete(sequencerConfig.orderedSourceQueueUrl(), ordered, new SQSBatchResponse(List.of()));
+        assertEquals(List.of(b1, b2), this.sqs.receiveAsSqsEvent(sequencerConfig.orderedSourceQueueUrl(), 10).getRecords().stream()
+                .map(record -> readTree(record.getBody()).at("/Records/0/s3/object/versionId").asText())
+                .toList());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SQSEvent sourceEvent(String key, String versionId) {
+        SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+        record.setMessageId("message-" + key);
+        record.setBody(this.bridge.createS3EventFromVersion(key, versionId, null).toString());
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(List.of(record));
+        return sqsEvent;
+    }
+
+    private SQSEvent sequencedEvent(String key, String versionId, String eventTime, String sequencer) {
+        ObjectNode s3Event = this.bridge.createS3EventFromVersion(key, versionId, eventTime);
+        if (sequencer != null) {
+            ((ObjectNode) s3Event.path("Records").get(0).path("s3").path("object")).put("sequencer", sequencer);
+        }
+        SQSEvent.SQSMessage record = new SQSEvent.SQSMessage();
+        record.setMessageId("message-" + key);
+        record.setBody(s3Event.toString());
+        SQSEvent sqsEvent = new SQSEvent();
+        sqsEvent.setRecords(List.of(record));
+        return sqsEvent;
+    }
+
+    private JsonNode readTree(String body) {
+        try {
+            return this.mapper.readTree(body);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
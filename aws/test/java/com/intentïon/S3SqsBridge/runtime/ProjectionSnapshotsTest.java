@@ -0,0 +1,64 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.PutItemRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ProjectionSnapshotsTest {
+
+    private static final String BUCKET = ProjectionBridgeTest.CONFIG.bucketName();
+    private static final String TABLE = ProjectionBridgeTest.CONFIG.projectionsTableName();
+
+    private final InMemoryS3Client s3 = new InMemoryS3Client();
+    private final InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+
+    @Test
+    public void testATableLargerThanARunIsMergedInIdOrder() throws IOException {
+        Set<String> ids = new HashSet<>();
+        for (int i = 9; i >= 0; i--) {
+            String id = "events/" + i + ".json";
+            ids.add(id);
+            this.dynamodb.putItem(PutItemRequest.builder()
+                    .tableName(TABLE)
+                    .item(Map.of("id", AttributeValue.fromS(id), "value", AttributeValue.fromS("{\"i\":" + i + "}")))
+                    .build());
+        }
+        // A run of about three projections, so the snapshot is merged from four runs.
+        ProjectionSnapshots snapshots = new ProjectionSnapshots(this.s3, this.dynamodb, BUCKET, ProjectionSnapshots.DEFAULT_PREFIX, TABLE, 150);
+
+        ProjectionSnapshots.Snapshot snapshot = snapshots.write("offset");
+        assertEquals(10, snapshot.projections());
+        List<String> written = new ArrayList<>();
+        ObjectMapper mapper = new ObjectMapper();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(this.s3.getObject(GetObjectRequest.builder()
+                .bucket(BUCKET)
+                .key(snapshot.key())
+                .build())), StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                written.add(mapper.readTree(line).path("id").path("S").asText());
+            }
+        }
+        assertEquals(ids.stream().sorted().toList(), written);
+
+        InMemoryDynamoDbClient loaded = new InMemoryDynamoDbClient();
+        assertEquals(ids, new ProjectionSnapshots(this.s3, loaded, BUCKET, ProjectionSnapshots.DEFAULT_PREFIX, TABLE).load(snapshot));
+        GetItemRequest get = GetItemRequest.builder().tableName(TABLE).key(Map.of("id", AttributeValue.fromS("events/3.json"))).build();
+        assertEquals(this.dynamodb.getItem(get).item(), loaded.getItem(get).item());
+    }
+}
@@ -0,0 +1,103 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProjectionValueCodecTest {
+
+    private static final String BUCKET = ProjectionBridgeTest.CONFIG.bucketName();
+
+    private final InMemoryS3Client s3 = new InMemoryS3Client();
+
+    @Test
+    public void testAutoEncodingBySize() throws IOException {
+        ProjectionValueCodec codec = new ProjectionValueCodec(List.of(), 64, 1024);
+        String small = "{\"a\":1}";
+        String medium = "{\"a\":\"" + "x".repeat(4096) + "\"}";
+        Random random = new Random(1);
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 64 * 1024) {
+            large.append(Long.toHexString(random.nextLong()));
+        }
+
+        Map<String, AttributeValue> inline = encode(codec, "events/small.json", small);
+        assertEquals(small, inline.get("value").s());
+        assertFalse(inline.containsKey("valueEncoding"));
+
+        Map<String, AttributeValue> gzip = encode(codec, "events/medium.json", medium);
+        assertEquals("gzip", gzip.get("valueEncoding").s());
+        assertTrue(gzip.get("valueGzip").b().asByteArray().length < 1024);
+        assertEquals(medium, read(ProjectionValueCodec.decode(gzip, this.s3)));
+
+        // Does not compress below the limit so it is stored as a pointer to the version.
+        Map<String, AttributeValue> pointer = encode(codec, "events/large.json", large.toString());
+        assertEquals("s3", pointer.get("valueEncoding").s());
+        assertEquals("events/large.json", pointer.get("valueS3Key").s());
+        assertEquals(large.toString(), read(ProjectionValueCodec.decode(pointer, this.s3)));
+    }
+
+    @Test
+    public void testLongestPrefixRuleWinsAndPointersDoNotReadTheObject() throws IOException {
+        ProjectionValueCodec codec = new ProjectionValueCodec(
+                ProjectionValueCodec.parseRules("events/=gzip, events/large/=s3"), 64, 1024);
+        assertEquals(ProjectionValueCodec.Encoding.S3, codec.encodingFor("events/large/a.json"));
+        assertEquals(ProjectionValueCodec.Encoding.GZIP, codec.encodingFor("events/a.json"));
+        assertEquals(ProjectionValueCodec.Encoding.AUTO, codec.encodingFor("other/a.json"));
+
+        String versionId = this.s3.putObject(BUCKET, "events/large/a.json", "{\"a\":1}");
+        GetObjectResponse response = GetObjectResponse.builder().versionId(versionId).contentLength(7L).build();
+        InputStream unreadable = new InputStream() {
+            @Override
+            public int read() {
+                throw new AssertionError("A pointer must not read the object");
+            }
+        };
+        Map<String, AttributeValue> pointer = codec.encode(BUCKET, "events/large/a.json", versionId,
+                new ResponseInputStream<>(response, AbortableInputStream.create(unreadable)));
+        assertEquals(versionId, pointer.get("valueS3VersionId").s());
+
+        Map<String, AttributeValue> gzip = encode(codec, "events/a.json", "{\"a\":1}");
+        assertEquals("gzip", gzip.get("valueEncoding").s());
+        assertEquals("{\"a\":1}", read(ProjectionValueCodec.decode(gzip, this.s3)));
+    }
+
+    @Test
+    public void testAPointerWithoutAVersionReadsTheCurrentObject() throws IOException {
+        this.s3.putObject(BUCKET, "events/a.json", "{\"a\":1}");
+        this.s3.putObject(BUCKET, "events/a.json", "{\"a\":2}");
+
+        Map<String, AttributeValue> pointer = ProjectionValueCodec.pointer(BUCKET, "events/a.json", null);
+        assertFalse(pointer.containsKey("valueS3VersionId"));
+        assertEquals("{\"a\":2}", read(ProjectionValueCodec.decode(pointer, this.s3)));
+    }
+
+    private Map<String, AttributeValue> encode(ProjectionValueCodec codec, String key, String content) {
+        String versionId = this.s3.putObject(BUCKET, key, content);
+        return codec.encode(BUCKET, key, versionId, this.s3.getObject(GetObjectRequest.builder()
+                .bucket(BUCKET)
+                .key(key)
+                .versionId(versionId)
+                .build()));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProjectionWriterTest {
+
+    private static final String TABLE = ProjectionBridgeTest.CONFIG.projectionsTableName();
+
+    @BeforeEach
+    public void setUp() {
+        FlowControl.reset();
+    }
+
+    @Test
+    public void testCoalescesPutsAndWritesInBatchesOf25() {
+        InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+        ProjectionWriter writer = new ProjectionWriter(dynamodb, TABLE);
+        for (int version = 0; version < 3; version++) {
+            for (int id = 0; id < 30; id++) {
+                writer.put("events/" + id + ".json", "{\"v\":" + version + "}");
+            }
+        }
+        assertEquals(60, writer.coalesced());
+        // One write of the first batch is left unprocessed once and retried on its own.
+        AtomicInteger throttled = new AtomicInteger();
+        dynamodb.leaveUnprocessed(write -> write.putRequest().item().get("id").s().equals("events/7.json") && throttled.getAndIncrement() == 0);
+
+        Set<String> failed = writer.flush();
+
+        assertTrue(failed.isEmpty());
+        assertEquals(3, dynamodb.operationCount("BatchWriteItem"));
+        assertEquals(30, dynamodb.itemCount(TABLE));
+        assertEquals("{\"v\":2}", dynamodb.item(TABLE, "events/7.json").get("value").s());
+        assertTrue(writer.flush().isEmpty());
+        assertEquals(3, dynamodb.operationCount("BatchWriteItem"));
+    }
+
+    @Test
+    public void testReturnsTheIdsStillUnprocessedAfterRetries() {
+        InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+        ProjectionWriter writer = new ProjectionWriter(dynamodb, TABLE);
+        writer.put("events/a.json", "{}");
+        writer.put("events/b.json", "{}");
+        dynamodb.leaveUnprocessed(write -> write.putRequest().item().get("id").s().equals("events/b.json"));
+
+        assertEquals(Set.of("events/b.json"), writer.flush());
+        assertEquals(1, dynamodb.itemCount(TABLE));
+    }
+
+    @Test
+    public void testConditionalWritesRejectOlderVersionsAndRedeliveries() {
+        InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+        ProjectionWriter.Options options = new ProjectionWriter.Options(true, 4, 3600);
+        ProjectionWriter writer = new ProjectionWriter(dynamodb, TABLE, options);
+        writer.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":2}")),
+                new ProjectionWriter.Version("2025-01-01T00:00:00.002Z", "v2", "0055AED6DCD90281E5"));
+        assertTrue(writer.flush().isEmpty());
+
+        // A redelivery of v2 and a late v1 are rejected by the condition, v3 is written.
+        ProjectionWriter next = new ProjectionWriter(dynamodb, TABLE, options);
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":2}")), new ProjectionWriter.Version("2025-01-01T00:00:00.002Z", "v2", null));
+        assertTrue(next.flush().isEmpty());
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":1}")), new ProjectionWriter.Version("2025-01-01T00:00:00.001Z", "v1", null));
+        assertTrue(next.flush().isEmpty());
+        next.put("events/b.json", Map.of("value", AttributeValue.fromS("{\"b\":1}")), new ProjectionWriter.Version("2025-01-01T00:00:00.001Z", "v1", null));
+        assertTrue(next.flush().isEmpty());
+        assertEquals(Set.of("events/a.json"), next.stale());
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":3}")), new ProjectionWriter.Version("2025-01-01T00:00:00.003Z", "v3", null));
+        assertTrue(next.flush().isEmpty());
+
+        Map<String, AttributeValue> a = dynamodb.item(TABLE, "events/a.json");
+        assertEquals("{\"a\":3}", a.get("value").s());
+        assertEquals("2025-01-01T00:00:00.003Z", a.get("lastModified").s());
+        assertEquals("v3", a.get("versionId").s());
+        assertEquals(Integer.toString(Math.floorMod("events/a.json".hashCode(), 4)), a.get("changeShard").n());
+        assertTrue(Long.parseLong(a.get("expiresAt").n()) > System.currentTimeMillis() / 1000);
+        assertEquals(5, dynamodb.operationCount("PutItem"));
+        assertEquals(0, dynamodb.operationCount("BatchWriteItem"));
+        assertThrows(IllegalArgumentException.class, () -> new ProjectionWriter.Options(true, -1, 0));
+    }
+
+    @Test
+    public void testVersionsOfTheSameSecondAreOrderedBySequencer() {
+        InMemoryDynamoDbClient dynamodb = new InMemoryDynamoDbClient();
+        ProjectionWriter.Options options = new ProjectionWriter.Options(true, 0, 0);
+        String second = "2025-01-01T00:00:01.000Z";
+        ProjectionWriter writer = new ProjectionWriter(dynamodb, TABLE, options);
+        writer.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":3}")),
+                new ProjectionWriter.Version(second, "v3", "0055AED6DCD9028200"));
+        assertTrue(writer.flush().isEmpty());
+
+        // v2 has a shorter sequencer and arrives late, the redelivered v3 and an unsequenced v1 are rejected too.
+        ProjectionWriter next = new ProjectionWriter(dynamodb, TABLE, options);
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":2}")), new ProjectionWriter.Version(second, "v2", "55AED6DCD90281E5"));
+        assertTrue(next.flush().isEmpty());
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":3}")), new ProjectionWriter.Version(second, "v3", "0055AED6DCD9028200"));
+        assertTrue(next.flush().isEmpty());
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":1}")), new ProjectionWriter.Version(second, "v1", null));
+        assertTrue(next.flush().isEmpty());
+        assertEquals(Set.of("events/a.json"), next.stale());
+        assertEquals("{\"a\":3}", dynamodb.item(TABLE, "events/a.json").get("value").s());
+
+        next.put("events/a.json", Map.of("value", AttributeValue.fromS("{\"a\":4}")), new ProjectionWriter.Version(second, "v4", "55aed6dcd9028201"));
+        assertTrue(next.flush().isEmpty());
+        Map<String, AttributeValue> a = dynamodb.item(TABLE, "events/a.json");
+        assertEquals("{\"a\":4}", a.get("value").s());
+        assertEquals("000000000000000055AED6DCD9028201", a.get("sequencer").s());
+    }
+}
@@ -0,0 +1,105 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplayPlannerTest {
+
+    @Test
+    public void testUnboundedWindowEmitsExactLastModifiedOrder() {
+        SyntheticVersionListing listing = new SyntheticVersionListing(50, 20, 7);
+        List<ReplayPlanner.ReplayEvent> events = new ArrayList<>();
+
+        ReplayPlanner.Stats stats = new ReplayPlanner(Integer.MAX_VALUE).plan(listing, events::add);
+
+        assertEquals(1000, stats.versionsListed());
+        assertEquals(1000, stats.eventsEmitted());
+        List<ReplayPlanner.ReplayEvent> sorted = new ArrayList<>(events);
+        sorted.sort(Comparator.comparingLong(ReplayPlanner.ReplayEvent::lastModifiedEpochMilli)
+                .thenComparing(ReplayPlanner.ReplayEvent::key));
+        assertEquals(sorted, events);
+    }
+
+    @Test
+    public void testBoundedWindowKeepsPerKeyOrderAndBoundsActiveKeys() {
+        SyntheticVersionListing listing = new SyntheticVersionListing(40, 10, 3);
+        Map<String, Long> lastEpochByKey = new HashMap<>();
+        int[] events = {0};
+
+        ReplayPlanner.Stats stats = new ReplayPlanner(4).plan(listing, event -> {
+            Long previous = lastEpochByKey.put(event.key(), event.lastModifiedEpochMilli());
+            assertTrue(previous == null || previous < event.lastModifiedEpochMilli(), "versions of " + event.key() + " out of order");
+            events[0]++;
+        });
+
+        assertEquals(400, events[0]);
+        assertEquals(40, lastEpochByKey.size());
+        assertTrue(stats.maxActiveKeys() <= 5, "active keys " + stats.maxActiveKeys());
+    }
+
+    @Test
+    public void testListedThroughPassesOnlyKeysWithEveryVersionEmitted() {
+        SyntheticVersionListing listing = new SyntheticVersionListing(40, 10, 3);
+        Map<String, Integer> emitted = new HashMap<>();
+        Set<String> positions = new HashSet<>();
+
+        ReplayPlanner.Plan plan = new ReplayPlanner(4).events(listing);
+        while (plan.hasNext()) {
+            emitted.merge(plan.next().key(), 1, Integer::sum);
+            String listedThrough = plan.listedThrough();
+            for (int k = 0; listedThrough != null && SyntheticVersionListing.key(k).compareTo(listedThrough) <= 0; k++) {
+                assertEquals(Integer.valueOf(10), emitted.get(SyntheticVersionListing.key(k)), "versions of " + SyntheticVersionListing.key(k));
+            }
+            positions.add(listedThrough);
+        }
+
+        assertEquals(SyntheticVersionListing.key(39), plan.listedThrough());
+        // The position moves on during the listing rather than only at its end, but not past key 1, which has the newest
+        // version of each round of uploads and stays active until the end.
+        assertEquals(Set.of(SyntheticVersionListing.key(0), SyntheticVersionListing.key(39)), positions.stream()
+                .filter(position -> position != null)
+                .collect(Collectors.toSet()));
+        assertEquals("events/a.json", new ReplayPlanner(4).events(List.of(), "events/a.json").listedThrough());
+    }
+
+    @Test
+    public void testPagesAreListedOnlyAsFarAsNeeded() {
+        SyntheticVersionListing listing = new SyntheticVersionListing(100, 2, 2);
+        int[] pagesListed = {0};
+        Iterable<ListObjectVersionsResponse> counted = () -> new Iterator<>() {
+            private final Iterator<ListObjectVersionsResponse> pages = listing.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return this.pages.hasNext();
+            }
+
+            @Override
+            public ListObjectVersionsResponse next() {
+                pagesListed[0]++;
+                return this.pages.next();
+            }
+        };
+
+        ReplayPlanner.Plan plan = new ReplayPlanner(1).events(counted);
+        plan.next();
+
+        assertTrue(pagesListed[0] <= 3, "pages listed " + pagesListed[0]);
+        // The first event was emitted before the listing ended so the order is not exact.
+        assertFalse(plan.exact());
+    }
+}
@@ -0,0 +1,124 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplaySenderTest {
+
+    private static final String QUEUE_URL = "http://test/000000000000/s3-sqs-bridge-replay-queue-test";
+
+    private InMemorySqsClient sqs;
+
+    @BeforeEach
+    public void setUp() {
+        this.sqs = new InMemorySqsClient();
+        FlowControl.reset();
+    }
+
+    @Test
+    public void testBatchesSendsAndCheckpointsOnlyWhatHasBeenSent() {
+        List<ReplayPlanner.ReplayEvent> events = events(25, 4);
+        Map<String, Integer> sendIndex = new HashMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            sendIndex.put(events.get(i).offset(), i);
+        }
+        List<String> checkpoints = new ArrayList<>();
+
+        String lastOffset;
+        try (ReplaySender sender = new ReplaySender(this.sqs, QUEUE_URL, 4, 20, Long.MAX_VALUE,
+                ReplayPlanner.ReplayEvent::offset,
+                offset -> {
+                    // Every event up to the checkpointed one must already be on the queue.
+                    Set<String> queued = new HashSet<>();
+                    this.sqs.messages(QUEUE_URL).forEach(m -> queued.add(m.body()));
+                    for (int i = 0; i <= sendIndex.get(offset); i++) {
+                        assertTrue(queued.contains(events.get(i).offset()), "Checkpoint " + offset + " is ahead of " + events.get(i).offset());
+                    }
+                    checkpoints.add(offset);
+                })) {
+            events.forEach(sender::send);
+            lastOffset = sender.finish();
+            assertEquals(100, sender.acknowledged());
+            assertEquals(10, sender.batchesSent());
+        }
+
+        assertEquals(10, this.sqs.operationCount("SendMessageBatch"));
+        assertEquals(0, this.sqs.operationCount("SendMessage"));
+        assertEquals(100, this.sqs.messages(QUEUE_URL).size());
+        assertEquals(events.get(events.size() - 1).offset(), lastOffset);
+        assertEquals(lastOffset, checkpoints.get(checkpoints.size() - 1));
+        // One checkpoint per 20 acknowledged messages rather than one per message.
+        assertEquals(5, checkpoints.size());
+    }
+
+    @Test
+    public void testKeepsPerKeyOrderWithBatchesInFlight() {
+        List<ReplayPlanner.ReplayEvent> events = events(3, 50);
+
+        try (ReplaySender sender = new ReplaySender(this.sqs, QUEUE_URL, 8, 1000, Long.MAX_VALUE,
+                ReplayPlanner.ReplayEvent::offset, offset -> {
+                })) {
+            events.forEach(sender::send);
+            sender.finish();
+        }
+
+        Map<String, List<String>> expected = new HashMap<>();
+        events.forEach(e -> expected.computeIfAbsent(e.key(), k -> new ArrayList<>()).add(e.offset()));
+        Map<String, List<String>> actual = new HashMap<>();
+        for (Message message : this.sqs.messages(QUEUE_URL)) {
+            String key = message.body().split(" ")[1];
+            actual.computeIfAbsent(key, k -> new ArrayList<>()).add(message.body());
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testRetriesFailedEntriesAndFailsOnPersistentErrors() {
+        List<ReplayPlanner.ReplayEvent> events = events(10, 1);
+        AtomicInteger failures = new AtomicInteger();
+        this.sqs.failEntries(entry -> entry.id().equals("3") && failures.getAndIncrement() == 0);
+
+        try (ReplaySender sender = new ReplaySender(this.sqs, QUEUE_URL, 2, 1000, Long.MAX_VALUE,
+                ReplayPlanner.ReplayEvent::offset, offset -> {
+                })) {
+            events.forEach(sender::send);
+            sender.finish();
+        }
+        assertEquals(10, this.sqs.messages(QUEUE_URL).size());
+        assertEquals(2, this.sqs.operationCount("SendMessageBatch"));
+
+        this.sqs.failEntries(entry -> true);
+        List<String> checkpoints = new ArrayList<>();
+        try (ReplaySender sender = new ReplaySender(this.sqs, QUEUE_URL, 2, 1, Long.MAX_VALUE,
+                ReplayPlanner.ReplayEvent::offset, checkpoints::add)) {
+            events.forEach(sender::send);
+            assertThrows(IllegalStateException.class, sender::finish);
+        }
+        assertTrue(checkpoints.isEmpty());
+    }
+
+    // Interleaves versionsPerKey versions of each key in upload order, one millisecond apart.
+    private static List<ReplayPlanner.ReplayEvent> events(int keys, int versionsPerKey) {
+        List<ReplayPlanner.ReplayEvent> events = new ArrayList<>();
+        long epochMilli = 1_735_689_600_000L;
+        for (int v = 0; v < versionsPerKey; v++) {
+            for (int k = 0; k < keys; k++) {
+                events.add(new ReplayPlanner.ReplayEvent(String.format("events/%04d.json", k), String.format("v%06d", v), epochMilli++));
+            }
+        }
+        return events;
+    }
+}
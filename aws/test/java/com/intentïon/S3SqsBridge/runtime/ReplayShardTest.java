@@ -0,0 +1,116 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectVersion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplayShardTest {
+
+    private static final String BUCKET = ProjectionBridgeTest.CONFIG.bucketName();
+
+    private final InMemoryS3Client s3 = new InMemoryS3Client();
+
+    @Test
+    public void testShardsPartitionTheKeysAndKeepEachKeysVersionsInOrder() {
+        Map<String, List<String>> uploaded = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            String key = i % 4 == 0 ? "events/" + i + ".json" : "events/" + (i % 7) + "/" + i + ".json";
+            for (int version = 0; version < 1 + i % 3; version++) {
+                uploaded.computeIfAbsent(key, k -> new ArrayList<>()).add(0, this.s3.putObject(BUCKET, key, "{\"i\":" + i + "}"));
+            }
+        }
+        this.s3.putObject(BUCKET, "other/ignored.json", "{}");
+
+        for (String by : List.of(ReplayShard.BY_PREFIX, ReplayShard.BY_HASH)) {
+            Map<String, List<String>> replayed = new HashMap<>();
+            for (int index = 0; index < 3; index++) {
+                ReplayShard shard = new ReplayShard(index, 3, by);
+                for (ListObjectVersionsResponse page : shard.pages(this.s3, BUCKET, "events/")) {
+                    for (ObjectVersion version : page.versions()) {
+                        assertTrue(owns(shard, version.key()), version.key());
+                        replayed.computeIfAbsent(version.key(), k -> new ArrayList<>()).add(version.versionId());
+                    }
+                }
+            }
+            // Each key's versions come from one shard only, newest first as uploaded.
+            assertEquals(uploaded, replayed, by);
+        }
+    }
+
+    @Test
+    public void testAListingResumesAfterAKey() {
+        for (int i = 0; i < 20; i++) {
+            String key = i % 3 == 0 ? "events/" + i + ".json" : "events/" + (i % 5) + "/" + i + ".json";
+            this.s3.putObject(BUCKET, key, "{}");
+            this.s3.putObject(BUCKET, key, "{}");
+        }
+
+        for (String by : List.of(ReplayShard.BY_PREFIX, ReplayShard.BY_HASH)) {
+            for (ReplayShard shard : List.of(ReplayShard.all(by), new ReplayShard(1, 3, by))) {
+                List<String> keys = keys(shard.pages(this.s3, BUCKET, "events/"));
+                assertTrue(keys.size() > 2, by);
+                for (int i = 0; i < keys.size(); i++) {
+                    assertEquals(keys.subList(i + 1, keys.size()), keys(shard.pages(this.s3, BUCKET, "events/", keys.get(i))),
+                            by + " " + shard.count() + " after " + keys.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDelimitedListingPagesThroughCommonPrefixes() {
+        this.s3.putObject(BUCKET, "events/a.json", "{}");
+        this.s3.putObject(BUCKET, "events/a.json", "{}");
+        this.s3.putObject(BUCKET, "events/x/1.json", "{}");
+        this.s3.putObject(BUCKET, "events/x/2.json", "{}");
+        this.s3.putObject(BUCKET, "events/y/1.json", "{}");
+        this.s3.putObject(BUCKET, "events/z.json", "{}");
+
+        List<String> entries = new ArrayList<>();
+        int pages = 0;
+        for (ListObjectVersionsResponse page : ReplayShard.listing(this.s3, ListObjectVersionsRequest.builder()
+                .bucket(BUCKET)
+                .prefix("events/")
+                .delimiter("/")
+                .maxKeys(2))) {
+            pages++;
+            page.versions().forEach(version -> entries.add(version.key()));
+            page.commonPrefixes().stream().map(CommonPrefix::prefix).forEach(entries::add);
+        }
+        assertEquals(List.of("events/a.json", "events/a.json", "events/x/", "events/y/", "events/z.json"), entries);
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void testRejectsShardsOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new ReplayShard(3, 3, ReplayShard.BY_HASH));
+        assertThrows(IllegalArgumentException.class, () -> new ReplayShard(0, 2, "range"));
+    }
+
+    // The keys of the pages in listing order.
+    private static List<String> keys(Iterable<ListObjectVersionsResponse> pages) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (ListObjectVersionsResponse page : pages) {
+            page.versions().forEach(version -> keys.add(version.key()));
+        }
+        return List.copyOf(keys);
+    }
+
+    private static boolean owns(ReplayShard shard, String key) {
+        int slash = key.indexOf('/', "events/".length());
+        return ReplayShard.BY_PREFIX.equals(shard.by()) && slash >= 0 ? shard.owns(key.substring(0, slash + 1)) : shard.owns(key);
+    }
+}
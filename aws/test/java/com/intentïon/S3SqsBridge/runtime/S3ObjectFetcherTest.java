@@ -0,0 +1,89 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class S3ObjectFetcherTest {
+
+    private static final String BUCKET = ProjectionBridgeTest.CONFIG.bucketName();
+
+    private final InMemoryS3Client s3 = new InMemoryS3Client();
+
+    @Test
+    public void testFetchesOnceAndServesRedeliveriesFromTheCache() {
+        S3ObjectFetcher fetcher = new S3ObjectFetcher(this.s3, codec(), S3ObjectFetcher.DEFAULT_CACHE_MAX_BYTES);
+        String a1 = this.s3.putObject(BUCKET, "events/a.json", "{\"a\":1}");
+        String eTag = this.s3.findVersion(BUCKET, "events/a.json", a1).eTag();
+
+        ProjectionBridge.ProjectionValue fetched = fetcher.fetch(BUCKET, "events/a.json", a1, null, null);
+        assertEquals("{\"a\":1}", fetched.valueAttributes().get("value").s());
+        assertEquals(a1, fetched.objectMetaData().versionId());
+        // Event notifications carry the ETag unquoted.
+        assertEquals(fetched, fetcher.fetch(BUCKET, "events/a.json", a1, eTag.replace("\"", ""), null));
+        assertEquals(fetched, fetcher.fetch(BUCKET, "events/a.json", a1, null, null));
+        assertEquals(1, this.s3.getObjectCount());
+        assertEquals(2, fetcher.cacheHits());
+
+        // A different ETag is fetched again.
+        fetcher.fetch(BUCKET, "events/a.json", a1, "other", null);
+        assertEquals(2, this.s3.getObjectCount());
+    }
+
+    @Test
+    public void testEvictsTheLeastRecentlyUsedValuesBeyondTheCacheSize() {
+        // Room for two of the values.
+        S3ObjectFetcher fetcher = new S3ObjectFetcher(this.s3, codec(), 2 * ("value".length() + "{\"i\":0}".length()));
+        String v0 = this.s3.putObject(BUCKET, "events/0.json", "{\"i\":0}");
+        String v1 = this.s3.putObject(BUCKET, "events/1.json", "{\"i\":1}");
+        String v2 = this.s3.putObject(BUCKET, "events/2.json", "{\"i\":2}");
+        fetcher.fetch(BUCKET, "events/0.json", v0, null, null);
+        fetcher.fetch(BUCKET, "events/1.json", v1, null, null);
+        fetcher.fetch(BUCKET, "events/0.json", v0, null, null);
+        fetcher.fetch(BUCKET, "events/2.json", v2, null, null);
+        assertEquals(3, this.s3.getObjectCount());
+
+        fetcher.fetch(BUCKET, "events/0.json", v0, null, null);
+        assertEquals(3, this.s3.getObjectCount());
+        fetcher.fetch(BUCKET, "events/1.json", v1, null, null);
+        assertEquals(4, this.s3.getObjectCount());
+    }
+
+    @Test
+    public void testIsLatestUsesAHeadRequest() {
+        S3ObjectFetcher fetcher = new S3ObjectFetcher(this.s3, codec(), 0);
+        String a1 = this.s3.putObject(BUCKET, "events/a.json", "{\"a\":1}");
+        String a2 = this.s3.putObject(BUCKET, "events/a.json", "{\"a\":2}");
+        assertFalse(fetcher.isLatest(BUCKET, "events/a.json", a1));
+        assertTrue(fetcher.isLatest(BUCKET, "events/a.json", a2));
+        assertEquals(2, this.s3.headObjectCount());
+        assertEquals(0, this.s3.getObjectCount());
+    }
+
+    @Test
+    public void testPointersAreMadeFromAHeadRequest() {
+        ProjectionValueCodec codec = new ProjectionValueCodec(ProjectionValueCodec.parseRules("events/large/=s3"), 64, 1024);
+        S3ObjectFetcher fetcher = new S3ObjectFetcher(this.s3, codec, S3ObjectFetcher.DEFAULT_CACHE_MAX_BYTES);
+        String a1 = this.s3.putObject(BUCKET, "events/large/a.json", "{\"a\":1}");
+        String b1 = this.s3.putObject(BUCKET, "events/b.json", "{\"b\":1}");
+
+        ProjectionBridge.ProjectionValue byKey = fetcher.fetch(BUCKET, "events/large/a.json", a1, null, null);
+        assertEquals("s3", byKey.valueAttributes().get("valueEncoding").s());
+        assertEquals(a1, byKey.valueAttributes().get("valueS3VersionId").s());
+        assertEquals(a1, byKey.objectMetaData().versionId());
+        // Too large for the event size to compress below the limit.
+        ProjectionBridge.ProjectionValue bySize = fetcher.fetch(BUCKET, "events/b.json", b1, null, 1024L * 1024);
+        assertEquals("s3", bySize.valueAttributes().get("valueEncoding").s());
+        assertEquals(b1, bySize.valueAttributes().get("valueS3VersionId").s());
+        assertEquals(2, this.s3.headObjectCount());
+        assertEquals(0, this.s3.getObjectCount());
+    }
+
+    private static ProjectionValueCodec codec() {
+        return new ProjectionValueCodec(List.of(), ProjectionValueCodec.DEFAULT_INLINE_MAX_BYTES, ProjectionValueCodec.DEFAULT_COMPRESSED_MAX_BYTES);
+    }
+}
@@ -0,0 +1,63 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StageMetricsTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testDrainWritesEmbeddedMetricFormatLines() throws Exception {
+        StageMetrics metrics = new StageMetrics();
+        metrics.record(StageMetrics.Stage.S3_FETCH, 12_000_000L);
+        metrics.record(StageMetrics.Stage.SQS_SEND, 3_000_000L);
+        assertEquals("ok", metrics.time(StageMetrics.Stage.SQS_SEND, () -> "ok"));
+        assertEquals(2, metrics.count(StageMetrics.Stage.SQS_SEND));
+
+        List<String> lines = metrics.drain("source", 1_700_000_000_000L);
+        assertEquals(1, lines.size());
+        JsonNode emf = MAPPER.readTree(lines.get(0));
+        JsonNode directive = emf.path("_aws").path("CloudWatchMetrics").path(0);
+        assertEquals(1_700_000_000_000L, emf.path("_aws").path("Timestamp").asLong());
+        assertEquals(StageMetrics.NAMESPACE, directive.path("Namespace").asText());
+        assertEquals(StageMetrics.DIMENSION, directive.path("Dimensions").path(0).path(0).asText());
+        assertEquals(2, directive.path("Metrics").size());
+        assertEquals("source", emf.path(StageMetrics.DIMENSION).asText());
+
+        // Each latency is reported as the upper bound of its bucket, at most 25% above it.
+        double fetch = emf.path("S3FetchLatency").path(0).asDouble();
+        assertTrue(fetch >= 12 && fetch <= 15, "S3FetchLatency " + fetch);
+        assertEquals(2, emf.path("SqsSendLatency").size());
+
+        assertEquals(0, metrics.count(StageMetrics.Stage.SQS_SEND));
+        assertTrue(metrics.drain("source", 1_700_000_000_000L).isEmpty());
+    }
+
+    @Test
+    public void testDrainSplitsStagesWithMoreThanOneHundredSamples() throws Exception {
+        StageMetrics metrics = new StageMetrics();
+        for (int i = 0; i < 250; i++) {
+            metrics.record(StageMetrics.Stage.PROJECTION_WRITE, 1_000_000L);
+        }
+        metrics.record(StageMetrics.Stage.OFFSET_READ, 1_000_000L);
+
+        List<String> lines = metrics.drain("replay", 0L);
+        assertEquals(3, lines.size());
+        int samples = 0;
+        for (String line : lines) {
+            samples += MAPPER.readTree(line).path("ProjectionWriteLatency").size();
+        }
+        assertEquals(250, samples);
+        assertEquals(1, MAPPER.readTree(lines.get(0)).path("OffsetReadLatency").size());
+        // A line declares only the metrics it holds values for.
+        assertEquals(1, MAPPER.readTree(lines.get(2)).path("_aws").path("CloudWatchMetrics").path(0).path("Metrics").size());
+        assertTrue(MAPPER.readTree(lines.get(2)).path("OffsetReadLatency").isMissingNode());
+    }
+}
@@ -0,0 +1,80 @@
+package com.intentïon.S3SqsBridge.runtime;
+
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectVersion;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Generates ListObjectVersions pages on the fly in S3's order (keys ascending, versions newest first) without holding
+ * the listing in memory. Within a key versions are one "round" of all keys apart, and each key is offset within the
+ * round by a scrambled amount so that the keys interleave in time.
+ */
+public class SyntheticVersionListing implements Iterable<ListObjectVersionsResponse> {
+
+    static final long BASE_EPOCH_MILLI = Instant.parse("2025-01-01T00:00:00.000Z").toEpochMilli();
+
+    private final int keys;
+    private final int versionsPerKey;
+    private final int pageSize;
+
+    public SyntheticVersionListing(int keys, int versionsPerKey, int pageSize) {
+        this.keys = keys;
+        this.versionsPerKey = versionsPerKey;
+        this.pageSize = pageSize;
+    }
+
+    public long totalVersions() {
+        return (long) this.keys * this.versionsPerKey;
+    }
+
+    public static String key(int k) {
+        return String.format("events/key-%08d.json", k);
+    }
+
+    public long epochMilli(int k, int version) {
+        return BASE_EPOCH_MILLI + (long) version * this.keys + (k * 7919L) % this.keys;
+    }
+
+    @Override
+    public Iterator<ListObjectVersionsResponse> iterator() {
+        return new Iterator<>() {
+            private int k;
+            // Counts down from the newest version of key k.
+            private int version = SyntheticVersionListing.this.versionsPerKey - 1;
+
+            @Override
+            public boolean hasNext() {
+                return this.k < SyntheticVersionListing.this.keys;
+            }
+
+            @Override
+            public ListObjectVersionsResponse next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<ObjectVersion> page = new ArrayList<>(SyntheticVersionListing.this.pageSize);
+                while (page.size() < SyntheticVersionListing.this.pageSize && hasNext()) {
+                    page.add(ObjectVersion.builder()
+                            .key(key(this.k))
+                            .versionId("v" + this.version)
+                            .lastModified(Instant.ofEpochMilli(epochMilli(this.k, this.version)))
+                            .isLatest(this.version == SyntheticVersionListing.this.versionsPerKey - 1)
+                            .build());
+                    if (--this.version < 0) {
+                        this.k++;
+                        this.version = SyntheticVersionListing.this.versionsPerKey - 1;
+                    }
+                }
+                return ListObjectVersionsResponse.builder()
+                        .versions(page)
+                        .isTruncated(hasNext())
+                        .build();
+            }
+        };
+    }
+}
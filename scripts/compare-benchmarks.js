@@ -0,0 +1,62 @@
+#!/usr/bin/env node
+// Compares two JMH JSON results (mvn -Pbenchmark verify writes target/jmh-result.json) and exits non-zero when a
+// benchmark's score or allocation per operation regressed by more than the threshold percentage.
+//
+// Usage: node scripts/compare-benchmarks.js baseline.json current.json [thresholdPercent=10]
+
+import fs from "fs";
+
+const [baselinePath, currentPath, thresholdArg] = process.argv.slice(2);
+if (!baselinePath || !currentPath) {
+  console.error("Usage: node scripts/compare-benchmarks.js baseline.json current.json [thresholdPercent]");
+  process.exit(2);
+}
+const threshold = Number(thresholdArg ?? 10);
+
+function resultKey(result) {
+  const params = Object.entries(result.params ?? {})
+    .map(([name, value]) => `${name}=${value}`)
+    .join(",");
+  return params ? `${result.benchmark}(${params})` : result.benchmark;
+}
+
+function load(path) {
+  const results = new Map();
+  for (const result of JSON.parse(fs.readFileSync(path, "utf8"))) {
+    results.set(resultKey(result), result);
+  }
+  return results;
+}
+
+// Throughput is better higher, times (e.g. ms/op) are better lower.
+function change(result, baselineScore, currentScore) {
+  const percent = ((currentScore - baselineScore) / baselineScore) * 100;
+  return result.mode === "thrpt" ? -percent : percent;
+}
+
+const baseline = load(baselinePath);
+const current = load(currentPath);
+let regressions = 0;
+for (const [key, result] of current) {
+  const before = baseline.get(key);
+  if (!before) {
+    console.log(`new        ${key}: ${result.primaryMetric.score.toFixed(3)} ${result.primaryMetric.scoreUnit}`);
+    continue;
+  }
+  const scoreChange = change(result, before.primaryMetric.score, result.primaryMetric.score);
+  const allocation = result.secondaryMetrics?.["gc.alloc.rate.norm"];
+  const allocationBefore = before.secondaryMetrics?.["gc.alloc.rate.norm"];
+  const allocationChange =
+    allocation && allocationBefore && allocationBefore.score > 0
+      ? ((allocation.score - allocationBefore.score) / allocationBefore.score) * 100
+      : 0;
+  const regressed = scoreChange > threshold || allocationChange > threshold;
+  if (regressed) {
+    regressions++;
+  }
+  console.log(
+    `${regressed ? "REGRESSED " : "ok         "}${key}: ${result.primaryMetric.score.toFixed(3)} ${result.primaryMetric.scoreUnit}` +
+      ` (${scoreChange > 0 ? "+" : ""}${scoreChange.toFixed(1)}% slower, ${allocationChange > 0 ? "+" : ""}${allocationChange.toFixed(1)}% allocation)`,
+  );
+}
+process.exit(regressions > 0 ? 1 : 0);
@@ -48,7 +48,17 @@ import {
   createStatusServer,
   computeRetryDelay,
   sendToDeadLetterQueue,
-  connectWithRetry
+  connectWithRetry,
+  timeStage,
+  drainStageMetrics,
+  newestEventPerRepository,
+  buildUpsertQuery,
+  classifyError,
+  computeJitteredDelay,
+  getFlowControl,
+  getFlowControlMetrics,
+  drainFlowControlMetrics,
+  resetFlowControl
 } from '../../src/lib/main.js';
 
 // Reset mocks and metrics before each test
@@ -59,6 +69,7 @@ beforeEach(() => {
   mockPoolEnd.mockClear();
   mockSend.mockClear();
   resetMetrics();
+  resetFlowControl();
 });
 
 describe('computeRetryDelay', () => {
@@ -70,6 +81,81 @@ describe('computeRetryDelay', () => {
   });
 });
 
+describe('computeJitteredDelay', () => {
+  it('returns a random delay up to the capped exponential delay', () => {
+    expect(computeJitteredDelay(1000, 3, 20000, () => 0)).toBe(0);
+    expect(computeJitteredDelay(1000, 3, 20000, () => 0.5)).toBe(2000);
+    expect(computeJitteredDelay(1000, 10, 20000, () => 0.999)).toBe(19980);
+  });
+});
+
+describe('classifyError', () => {
+  it('tells throttles from transient and fatal errors', () => {
+    expect(classifyError({ name: 'ProvisionedThroughputExceededException', $fault: 'client' })).toBe('throttle');
+    expect(classifyError({ name: 'Error', $metadata: { httpStatusCode: 503 } })).toBe('throttle');
+    expect(classifyError({ code: '53300' })).toBe('throttle');
+    expect(classifyError(new Error('Connection terminated unexpectedly'))).toBe('transient');
+    expect(classifyError({ code: '40001' })).toBe('transient');
+    expect(classifyError({ code: '23505' })).toBe('fatal');
+    expect(classifyError({ name: 'InvalidParameterValue', $fault: 'client' })).toBe('fatal');
+  });
+});
+
+describe('Flow Control', () => {
+  it('cuts the concurrency limit once per throttling burst and counts the retries', async () => {
+    const random = vi.spyOn(Math, 'random').mockReturnValue(0);
+    mockConnect.mockRejectedValue(Object.assign(new Error('sorry, too many clients already'), { code: '53300' }));
+
+    await expect(connectWithRetry()).rejects.toThrow('too many clients');
+
+    expect(mockConnect).toHaveBeenCalledTimes(3);
+    expect(getMetrics().dbRetryCount).toBe(2);
+    expect(getFlowControlMetrics().postgres).toEqual({ limit: 5, inFlight: 0, waiting: 0, retryBudget: 8, throttles: 3, retries: 2, retriesRejected: 0 });
+    random.mockRestore();
+  });
+
+  it('does not retry fatal errors or retries beyond the budget', async () => {
+    mockConnect.mockRejectedValue(Object.assign(new Error('duplicate key'), { code: '23505' }));
+    await expect(connectWithRetry()).rejects.toThrow('duplicate key');
+    expect(mockConnect).toHaveBeenCalledTimes(1);
+
+    const flowControl = getFlowControl('postgres');
+    while (flowControl.tryRetry()) {
+      // Spend the budget, the call that finds it spent counting as a rejected retry.
+    }
+    mockConnect.mockClear();
+    mockConnect.mockRejectedValue(new Error('Failure'));
+    await expect(connectWithRetry()).rejects.toThrow('Failure');
+    expect(mockConnect).toHaveBeenCalledTimes(1);
+    expect(getMetrics().dbRetryCount).toBe(0);
+    expect(getFlowControlMetrics().postgres.retriesRejected).toBe(2);
+  });
+
+  it('holds calls beyond the limit until a call completes', async () => {
+    const flowControl = getFlowControl('sqs');
+    const releases = [];
+    const calls = Array.from({ length: 12 }, () =>
+      flowControl.run(() => new Promise((resolve) => releases.push(resolve))));
+    await Promise.resolve();
+    expect(flowControl.state()).toMatchObject({ limit: 10, inFlight: 10, waiting: 2 });
+
+    releases.shift()();
+    await calls[0];
+    await Promise.resolve();
+    expect(flowControl.state()).toMatchObject({ inFlight: 10, waiting: 1 });
+    while (releases.length > 0) {
+      releases.shift()();
+      await new Promise((resolve) => setTimeout(resolve, 0));
+    }
+    await Promise.all(calls);
+    expect(flowControl.state()).toMatchObject({ limit: 11, inFlight: 0, waiting: 0 });
+
+    const [line] = drainFlowControlMetrics('projection', 1700000000000).map((emf) => JSON.parse(emf));
+    expect(line._aws.CloudWatchMetrics[0].Dimensions).toEqual([['FunctionName', 'Downstream']]);
+    expect(line).toMatchObject({ Downstream: 'sqs', ConcurrencyLimit: 11, InFlight: 0, Throttles: 0, Retries: 0 });
+  });
+});
+
 describe('sendToDeadLetterQueue', () => {
   it('sends message to the configured DLQ', async () => {
     mockSend.mockResolvedValue({});
@@ -115,7 +201,7 @@ describe('githubEventProjectionHandler', () => {
     // Simulate connection failure on first attempt then success
     mockConnect.mockRejectedValueOnce(new Error('Connect error'));
     mockConnect.mockResolvedValue();
-    mockQuery.mockResolvedValue({ rowCount: 1 });
+    mockQuery.mockResolvedValue({ rowCount: 1, rows: [{ repository: 'my-repo' }] });
 
     const event = {
       Records: [
@@ -141,7 +227,7 @@ describe('githubEventProjectionHandler', () => {
 
   it('skips records with invalid JSON', async () => {
     mockConnect.mockResolvedValue();
-    mockQuery.mockResolvedValue({ rowCount: 1 });
+    mockQuery.mockResolvedValue({ rowCount: 1, rows: [{ repository: 'repo2' }] });
 
     const event = {
       Records: [
@@ -227,6 +313,85 @@ describe('githubEventProjectionHandler', () => {
     expect(mockSend).toHaveBeenCalledTimes(1);
     expect(mockRelease).toHaveBeenCalledTimes(1);
   });
+
+  it('writes a batch with one upsert of the newest event per repository', async () => {
+    mockConnect.mockResolvedValue();
+    mockQuery.mockResolvedValue({ rowCount: 2, rows: [{ repository: 'repo5' }, { repository: 'repo6' }] });
+
+    const event = {
+      Records: [
+        { body: JSON.stringify({ repository: 'repo5', eventType: 'push', eventTimestamp: '2025-03-17T15:00:00Z' }) },
+        { body: JSON.stringify({ repository: 'repo6', eventType: 'fork', eventTimestamp: '2025-03-17T15:00:00Z' }) },
+        { body: JSON.stringify({ repository: 'repo5', eventType: 'issues', eventTimestamp: '2025-03-17T14:00:00Z' }) }
+      ]
+    };
+
+    const result = await githubEventProjectionHandler(event);
+    expect(result).toEqual({ status: 'success' });
+    expect(mockQuery).toHaveBeenCalledTimes(1);
+    const [text, values] = mockQuery.mock.calls[0];
+    expect(text).toContain('VALUES ($1, $2, $3, $4), ($5, $6, $7, $8)');
+    expect(text).toContain('WHERE github_event_projections.event_timestamp < EXCLUDED.event_timestamp');
+    expect(text).toContain('RETURNING repository');
+    expect(values).toEqual(['repo5', 'push', '2025-03-17T15:00:00Z', '{}', 'repo6', 'fork', '2025-03-17T15:00:00Z', '{}']);
+    expect(getMetrics()).toEqual({ totalEvents: 3, successfulEvents: 3, skippedEvents: 0, dbFailures: 0, dbRetryCount: 0, deadLetterEvents: 0 });
+  });
+
+  it('writes the rows of a failed upsert one by one with retries and routes only the failing rows to the DLQ', async () => {
+    mockConnect.mockResolvedValue();
+    mockQuery.mockRejectedValueOnce(new Error('DB error'));
+    mockQuery.mockRejectedValueOnce(new Error('DB error'));
+    mockQuery.mockRejectedValueOnce(new Error('DB error'));
+    mockQuery.mockRejectedValueOnce(new Error('DB error'));
+    mockQuery.mockResolvedValueOnce({ rowCount: 1, rows: [{ repository: 'repo7' }] });
+    mockQuery.mockRejectedValueOnce(Object.assign(new Error('value too long'), { code: '22001' }));
+
+    const event = {
+      Records: [
+        { body: JSON.stringify({ repository: 'repo7', eventType: 'push', eventTimestamp: '2025-03-17T16:00:00Z' }) },
+        { body: JSON.stringify({ repository: 'repo8', eventType: 'push', eventTimestamp: '2025-03-17T16:00:00Z' }) }
+      ]
+    };
+
+    const result = await githubEventProjectionHandler(event);
+    expect(result).toEqual({ status: 'success' });
+    expect(mockQuery).toHaveBeenCalledTimes(6);
+    expect(mockSend).toHaveBeenCalledTimes(1);
+    expect(mockSend.mock.calls[0][0].input.MessageBody).toBe(event.Records[1].body);
+    expect(getMetrics()).toEqual({ totalEvents: 2, successfulEvents: 1, skippedEvents: 0, dbFailures: 1, dbRetryCount: 3, deadLetterEvents: 1 });
+  }, 10000);
+
+  it('counts the events the upsert leaves to a newer projection as skipped', async () => {
+    mockConnect.mockResolvedValue();
+    mockQuery.mockResolvedValue({ rowCount: 1, rows: [{ repository: 'repo9' }] });
+
+    const event = {
+      Records: [
+        { body: JSON.stringify({ repository: 'repo9', eventType: 'push', eventTimestamp: '2025-03-17T17:00:00Z' }) },
+        { body: JSON.stringify({ repository: 'repo10', eventType: 'push', eventTimestamp: '2025-03-17T09:00:00Z' }) },
+        { body: JSON.stringify({ repository: 'repo10', eventType: 'fork', eventTimestamp: '2025-03-17T08:00:00Z' }) }
+      ]
+    };
+
+    const result = await githubEventProjectionHandler(event);
+    expect(result).toEqual({ status: 'success' });
+    expect(mockQuery).toHaveBeenCalledTimes(1);
+    expect(mockSend).not.toHaveBeenCalled();
+    expect(getMetrics()).toEqual({ totalEvents: 3, successfulEvents: 1, skippedEvents: 2, dbFailures: 0, dbRetryCount: 0, deadLetterEvents: 0 });
+  });
+});
+
+describe('newestEventPerRepository', () => {
+  it('keeps the newest event of each repository and the bodies of all its records', () => {
+    const older = { repository: 'repo', eventType: 'push', eventTimestamp: '2025-03-17T12:00:00Z' };
+    const newer = { repository: 'repo', eventType: 'fork', eventTimestamp: '2025-03-17T12:00:01Z' };
+    const rows = newestEventPerRepository([
+      { record: { body: 'newer' }, event: newer },
+      { record: { body: 'older' }, event: older }
+    ]);
+    expect(rows).toEqual([{ event: newer, bodies: ['newer', 'older'] }]);
+    expect(buildUpsertQuery(rows).values).toEqual(['repo', 'fork', '2025-03-17T12:00:01Z', '{}']);
+  });
 });
 
 describe('Metrics Endpoint', () => {
@@ -248,3 +413,26 @@ describe('Status Endpoint', () => {
     expect(response.body).toEqual({ totalEvents: 0, successfulEvents: 0, skippedEvents: 0, dbFailures: 0, dbRetryCount: 0, deadLetterEvents: 0 });
   });
 });
+
+describe('Stage Metrics', () => {
+  it('writes the recorded stage latencies as embedded metric format lines', async () => {
+    drainStageMetrics('test');
+    expect(await timeStage('DbQuery', async () => 'ok')).toBe('ok');
+    for (let i = 0; i < 150; i++) {
+      await timeStage('SqsSend', async () => undefined);
+    }
+
+    const lines = drainStageMetrics('projection', 1700000000000).map((line) => JSON.parse(line));
+    expect(lines).toHaveLength(2);
+    expect(lines[0]._aws.Timestamp).toBe(1700000000000);
+    expect(lines[0]._aws.CloudWatchMetrics[0].Namespace).toBe('S3SqsBridge');
+    expect(lines[0]._aws.CloudWatchMetrics[0].Dimensions).toEqual([['FunctionName']]);
+    expect(lines[0].FunctionName).toBe('projection');
+    expect(lines[0].DbQueryLatency).toHaveLength(1);
+    expect(lines[0].SqsSendLatency).toHaveLength(100);
+    expect(lines[1].DbQueryLatency).toBeUndefined();
+    expect(lines[1]._aws.CloudWatchMetrics[0].Metrics).toEqual([{ Name: 'SqsSendLatency', Unit: 'Milliseconds' }]);
+    expect(lines[1].SqsSendLatency).toHaveLength(50);
+    expect(drainStageMetrics('projection')).toEqual([]);
+  });
+});